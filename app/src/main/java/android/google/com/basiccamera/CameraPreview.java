@@ -16,8 +16,8 @@
 
 package android.google.com.basiccamera;
 
-import android.google.com.basiccamera.camera.CameraManager;
-import android.os.Message;
+import android.google.com.basiccamera.camera.CameraBackend;
+import android.google.com.basiccamera.camera.CameraCommand;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -32,11 +32,11 @@ public final class CameraPreview extends SurfaceView implements SurfaceHolder.Ca
 
     private static final String TAG = CameraPreview.class.getSimpleName();
 
-    private CameraManager mCameraManager;
+    private CameraBackend mCameraManager;
     private UIActivity mActivity;
     private SurfaceHolder mHolder;
 
-    public CameraPreview(UIActivity activity, CameraManager cameraManager) {
+    public CameraPreview(UIActivity activity, CameraBackend cameraManager) {
         super(activity);
         mActivity = activity;
         mCameraManager = cameraManager;
@@ -59,32 +59,21 @@ public final class CameraPreview extends SurfaceView implements SurfaceHolder.Ca
 
         }
         // request to execute initCamera
-        mCameraManager.sendTask(R.id.init_camera, mHolder);
+        mCameraManager.submit(CameraCommand.initCamera(mHolder));
     }
 
     /** Is executed right after creation and when the surface is changed */
      @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         Log.v(TAG,"Surface was changed.");
-        Message msg;
-
-        // If your preview can change or rotate, take care of those events here.
-        // Make sure to stop the preview before resizing or reformatting it.
 
         if (mHolder.getSurface() == null){
             Log.w(TAG, "Surface does not exist. Too early or late callback?");
             return;
         }
-        mCameraManager.sendTask(R.id.stop_preview);
-
-        // set preview size and make any resize, rotate or
-        // reformatting changes here
-
-        // start preview with new settings
-        // request to execute openDriver
-        mCameraManager.sendTask(R.id.open_camera, mHolder);
-        // request to execute startPreview
-        mCameraManager.sendTask(R.id.start_preview);
+        // request to apply only what has changed, the preview is only stopped and restarted
+        // if the surface or the preview parameters have changed
+        mCameraManager.submit(CameraCommand.reconfigure(mHolder));
         mActivity.onFinishedSurfaceChanged();
 
     }
@@ -18,10 +18,14 @@ package android.google.com.basiccamera;
 
 import android.app.Activity;
 import android.content.Context;
+import android.google.com.basiccamera.imageprocessing.kernel.LineSegments;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Display;
@@ -40,9 +44,19 @@ public final class ResultView extends View {
 
     private static final String TAG = ResultView.class.getSimpleName();
     private static final int VIEW_OPACITY = 160;
+    private static final float LINE_WIDTH = 3;
 
     private final Paint mPaint;
+    private final Paint mLinePaint;
+    // the result scaled to the screen, it is reused for every result
     private Bitmap mResultBitmap;
+    private Canvas mResultCanvas;
+    private final Rect mScreenRect;
+    // the segments of a vector result in screen coordinates, as Canvas.drawLines takes them
+    private float[] mLines;
+    private int mLineCount;
+    // whether the last result was a vector result
+    private boolean mDrawsSegments;
     private Point mScreenResolution;
 
 
@@ -51,17 +65,27 @@ public final class ResultView extends View {
         super(context, attrs);
         mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mPaint.setAlpha(VIEW_OPACITY);
+        mLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mLinePaint.setColor(Color.GREEN);
+        mLinePaint.setStrokeWidth(LINE_WIDTH);
+        mLinePaint.setAlpha(VIEW_OPACITY);
+        mLines = new float[0];
 
         WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         Display display = manager.getDefaultDisplay();
         Point theScreenResolution = new Point();
         display.getSize(theScreenResolution);
         mScreenResolution = theScreenResolution;
+        mScreenRect = new Rect(0, 0, theScreenResolution.x, theScreenResolution.y);
     }
 
     @Override
     public void onDraw(Canvas canvas) {
         Log.i(TAG, "draw Picture begin on " + System.nanoTime());
+        if (mDrawsSegments) {
+            canvas.drawLines(mLines, 0, 4 * mLineCount, mLinePaint);
+            return;
+        }
         if (mResultBitmap == null) {
             return; // not ready yet, early draw before done configuring
         }
@@ -69,8 +93,69 @@ public final class ResultView extends View {
         Log.i(TAG, "draw Picture end on " + System.nanoTime());
     }
 
+    /**
+     * Scales the result into the screen sized bitmap, which is allocated once instead of for
+     * every result. The result goes back to the pool afterwards, so it has to be copied anyway.
+     */
     protected void drawResult(Bitmap resultBitmap) {
-        this.mResultBitmap = Bitmap.createScaledBitmap(resultBitmap, mScreenResolution.x, mScreenResolution.y, false);
+        if (mResultBitmap == null) {
+            setResultBitmap(Bitmap.createBitmap(mScreenResolution.x, mScreenResolution.y,
+                    Bitmap.Config.ARGB_8888));
+        }
+        // without paint the bitmap is scaled without filtering, like createScaledBitmap did
+        mResultCanvas.drawBitmap(resultBitmap, null, mScreenRect, null);
+        mDrawsSegments = false;
+        invalidate();
+    }
+
+    /**
+     * Replaces the scaled result, the former one is recycled at once instead of waiting for the
+     * garbage collector. It is accounted in the memory budget.
+     */
+    private void setResultBitmap(Bitmap resultBitmap) {
+        MemoryBudget memoryBudget = MemoryBudget.get();
+        if (mResultBitmap != null) {
+            memoryBudget.free(MemoryBudget.Category.SCREEN_BITMAPS, mResultBitmap.getByteCount());
+            mResultBitmap.recycle();
+        }
+        mResultBitmap = resultBitmap;
+        mResultCanvas = null;
+        if (resultBitmap != null) {
+            memoryBudget.allocate(MemoryBudget.Category.SCREEN_BITMAPS,
+                    resultBitmap.getByteCount());
+            mResultCanvas = new Canvas(resultBitmap);
+        }
+    }
+
+    /** Gives back the memory of the scaled result, should be invoked when the view is dropped */
+    protected void clearResult() {
+        setResultBitmap(null);
+        mDrawsSegments = false;
+        mLineCount = 0;
+    }
+
+    /**
+     * Copies the segments scaled from the resolution of the processed image, the preview
+     * resolution in display orientation divided by the downsampling, to the screen. The copy is
+     * needed because the segments go back to the result channel before onDraw.
+     */
+    protected void drawSegments(LineSegments segments) {
+        int count = segments.getCount();
+        if (mLines.length < 4 * count) {
+            mLines = new float[4 * segments.getCapacity()];
+        }
+        float scaleX = mScreenResolution.x / (float) segments.getWidth();
+        float scaleY = mScreenResolution.y / (float) segments.getHeight();
+        float[] coordinates = segments.getCoordinates();
+        for (int i = 0; i < 4 * count; i += 2) {
+            mLines[i] = coordinates[i] * scaleX;
+            mLines[i + 1] = coordinates[i + 1] * scaleY;
+        }
+        mLineCount = count;
+        mDrawsSegments = true;
+        if (mResultBitmap != null) {
+            setResultBitmap(null);
+        }
         invalidate();
     }
 
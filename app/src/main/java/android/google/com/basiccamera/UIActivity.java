@@ -17,8 +17,25 @@
 package android.google.com.basiccamera;
 
 import android.app.Activity;
+import android.app.ActivityManager;
+import android.google.com.basiccamera.camera.CameraBackend;
+import android.google.com.basiccamera.camera.CameraBackendSelector;
+import android.google.com.basiccamera.camera.CameraBackends;
+import android.google.com.basiccamera.camera.CameraCommand;
 import android.google.com.basiccamera.camera.CameraManager;
+import android.google.com.basiccamera.imageprocessing.BatteryThermalSignal;
+import android.google.com.basiccamera.imageprocessing.BitmapPool;
+import android.google.com.basiccamera.imageprocessing.CameraSession;
+import android.google.com.basiccamera.imageprocessing.ResultChannel;
 import android.google.com.basiccamera.imageprocessing.TaskManager;
+import android.google.com.basiccamera.imageprocessing.cache.ResultCache;
+import android.google.com.basiccamera.imageprocessing.journal.EdgeJournal;
+import android.google.com.basiccamera.imageprocessing.kernel.LineSegments;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+import android.google.com.basiccamera.imageprocessing.pool.SharedWorkerPool;
+import android.google.com.basiccamera.imageprocessing.stream.EdgeStreamPublisher;
+import android.google.com.basiccamera.imageprocessing.tuning.BackendTuning;
+import android.google.com.basiccamera.trace.Tracer;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
@@ -34,6 +51,11 @@ import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
 /**
  * The main activity which initialize everything and handles the UI
  *
@@ -44,11 +66,52 @@ public final class UIActivity extends Activity {
 
     private static final String TAG = UIActivity.class.getSimpleName();
     private static final boolean INIT_OPENCV = true;
+    // records a trace of the pipeline, which is written to trace.json in the files dir on pause
+    private static final boolean TRACE = false;
+    // records the edge maps of every session to journal-<time> in the files dir
+    private static final boolean RECORD_JOURNAL = false;
+    private static final int JOURNAL_QUEUE_CAPACITY = 8;
+    // the OpenCV library is loaded once per process
+    private static boolean sOpenCvLoaded = false;
+    // bitmaps in flight: one being processed, one pending and one being drawn
+    private static final int RESULT_POOL_SIZE = 3;
+    // the old API; AUTO selects Camera2 with an ImageReader where the device runs it natively,
+    // which is only checked against stand-ins so far and not yet on a device
+    private static final CameraBackendSelector.Preference CAMERA_BACKEND =
+            CameraBackendSelector.Preference.CAMERA1;
+    // further cameras whose frames are analyzed without being displayed, e.g. {1} for the front
+    // camera on devices which can open both at once
+    private static final int[] ANALYZED_CAMERA_IDS = {};
+    // the threads running the edge detection and the analysis of all cameras
+    private static final int ANALYSIS_THREAD_COUNT = 2;
+    private static final long ANALYSIS_SHUTDOWN_TIMEOUT_MS = 2000;
+    // share of the heap of the memory class the frames, bitmaps and Mats may use together
+    private static final float MEMORY_BUDGET_SHARE = 0.5f;
+    // the edge maps of pictures kept in memory and in result-cache in the files dir
+    private static final long RESULT_CACHE_MEMORY_BYTES = 8L * 1024 * 1024;
+    private static final long RESULT_CACHE_DISK_BYTES = 32L * 1024 * 1024;
+    // tunes the edge detection per resolution on the first run and after updates, the results
+    // are exported to tuning/ in the external files dir; off by default, because the tuning
+    // competes with the live preview for the CPU, which slows the preview and skews the timings
+    private static final boolean TUNE_EDGE_BACKEND = false;
+    // streams the edge maps to clients on the device or, with adb forward tcp:5555 tcp:5555, on a
+    // host, see EdgeStreamClient
+    private static final boolean PUBLISH_RESULTS = false;
+    private static final int RESULT_STREAM_PORT = 5555;
 
     private SurfaceView mPreview;
     private ResultView mResultView;
-    private CameraManager mCameraManager;
+    private CameraBackend mCameraManager;
     private TaskManager mTaskManager;
+    private EdgeJournal mJournal;
+    private EdgeStreamPublisher mResultPublisher;
+    private ResultCache mResultCache;
+    private BackendTuning mBackendTuning;
+    // the last picture taken, it is shown again after a pause
+    private byte[] mLastPicture;
+    private SharedWorkerPool mAnalysisPool;
+    private CameraSession[] mCameraSessions;
+    private ResultChannel mResultChannel;
     private Handler mMainHandler;
     private Button mCaptureButton;
     private Button mCapturePreviewButton;
@@ -59,6 +122,14 @@ public final class UIActivity extends Activity {
                 WindowManager.LayoutParams.FLAG_FULLSCREEN);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        initMemoryBudget();
+        File cacheDirectory = new File(getFilesDir(), "result-cache");
+        try {
+            mResultCache = new ResultCache(cacheDirectory, RESULT_CACHE_MEMORY_BYTES,
+                    RESULT_CACHE_DISK_BYTES, MemoryBudget.get());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open the result cache " + cacheDirectory, e);
+        }
         mResultView = (ResultView) findViewById(R.id.result_view);
         mCaptureButton = (Button) findViewById(R.id.button_capture);
         mCaptureButton.setOnClickListener(
@@ -66,8 +137,8 @@ public final class UIActivity extends Activity {
                     @Override
                     public void onClick(View v) {
                         // get an image from the camera
-                        mCameraManager.sendTask(R.id.take_picture,
-                                R.id.picture_taken, 0, mMainHandler);
+                        mCameraManager.submit(CameraCommand.takePicture(mMainHandler,
+                                R.id.picture_taken));
                     }
                 }
         );
@@ -77,17 +148,57 @@ public final class UIActivity extends Activity {
                     @Override
                     public void onClick(View v) {
                         // get an image from the camera
-                        mCameraManager.sendTask(R.id.capture_preview,
-                                R.id.preview_captured, 0, mMainHandler);
+                        mCameraManager.submit(CameraCommand.capturePreview(mMainHandler,
+                                R.id.preview_captured));
                     }
                 }
         );
     }
 
+    /**
+     * Sets the memory budget from the memory class of the device. The native memory of the Mats
+     * is not part of the heap, but counting it too keeps the app small on devices whose memory
+     * class is small because their memory is small.
+     */
+    private void initMemoryBudget() {
+        ActivityManager activityManager =
+                (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        MemoryBudget memoryBudget = MemoryBudget.get();
+        memoryBudget.setBudget((long) (activityManager.getMemoryClass() * 1024L * 1024L
+                * MEMORY_BUDGET_SHARE));
+        memoryBudget.setListener(new MemoryBudget.Listener() {
+            @Override
+            public void onStageChanged(MemoryBudget.Stage stage, String reason) {
+                Log.i(TAG, "Memory stage " + stage + ": " + reason);
+                Tracer.instant(Tracer.MEMORY, stage.ordinal());
+            }
+        });
+        Log.i(TAG, "Memory budget: " + memoryBudget);
+    }
+
+    /**
+     * Steps the pipeline down while the system runs low on memory, see MemoryBudget for the
+     * stages.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryBudget.get().onTrimMemory(level, System.nanoTime());
+        if (level >= TRIM_MEMORY_RUNNING_LOW && mResultCache != null) {
+            // the maps are still on disk
+            mResultCache.trimMemory();
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        mCameraManager = new CameraManager(this);
+        if (TRACE) {
+            Tracer.clear();
+            Tracer.setEnabled(true);
+        }
+        mCameraManager = CameraBackends.create(this, CameraManager.DEFAULT_CAMERA_ID,
+                CAMERA_BACKEND);
         mPreview = new CameraPreview(this, mCameraManager);
         FrameLayout preview = (FrameLayout) findViewById(R.id.camera_preview);
         preview.addView(mPreview);
@@ -99,13 +210,97 @@ public final class UIActivity extends Activity {
         } else {
             Log.w(TAG, "CameraManager has been already started. Check race conditions with CameraPreview ");
         }
-        mCameraManager.sendTask(R.id.init_camera, mPreview.getHolder());
+        mCameraManager.submit(CameraCommand.initCamera(mPreview.getHolder()));
+
+        mResultChannel = new ResultChannel(new BitmapPool(RESULT_POOL_SIZE),
+                new ResultChannel.Receiver() {
+                    @Override
+                    public void onResult(Bitmap resultBitmap) {
+                        drawResult(resultBitmap);
+                    }
 
-        mTaskManager = new TaskManager(mCameraManager, mMainHandler);
+                    @Override
+                    public void onSegments(LineSegments segments) {
+                        drawSegments(segments);
+                    }
+                });
+        mAnalysisPool = new SharedWorkerPool("Analysis", ANALYSIS_THREAD_COUNT);
+        mTaskManager = new TaskManager(mCameraManager, mResultChannel,
+                new BatteryThermalSignal(this), mAnalysisPool);
         mTaskManager.start();
+        mTaskManager.setResultCache(mResultCache);
+        if (TUNE_EDGE_BACKEND) {
+            // the tuning starts with the first frame of the task, when OpenCV is loaded
+            mBackendTuning = new BackendTuning(this, INIT_OPENCV);
+            mTaskManager.setBackendTuning(mBackendTuning);
+        }
+        if (mLastPicture != null) {
+            mTaskManager.processStill(mLastPicture);
+        }
+        if (RECORD_JOURNAL) {
+            File directory = new File(getFilesDir(), "journal-" + System.currentTimeMillis());
+            try {
+                mJournal = new EdgeJournal(directory, JOURNAL_QUEUE_CAPACITY);
+                mTaskManager.setJournal(mJournal);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not create the journal " + directory, e);
+            }
+        }
+        if (PUBLISH_RESULTS) {
+            // only processes on the device and adb can connect to the loopback address
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    RESULT_STREAM_PORT);
+            try {
+                mResultPublisher = new EdgeStreamPublisher(address);
+                mTaskManager.setResultPublisher(mResultPublisher);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not serve the results at " + address, e);
+            }
+        }
+        startCameraSessions();
+    }
+
+    /**
+     * Opens the analyzed cameras, which share the worker pool of the task with equal weights.
+     */
+    private void startCameraSessions() {
+        mCameraSessions = new CameraSession[ANALYZED_CAMERA_IDS.length];
+        for (int i = 0; i < ANALYZED_CAMERA_IDS.length; i++) {
+            mCameraSessions[i] = new CameraSession(this, ANALYZED_CAMERA_IDS[i],
+                    CAMERA_BACKEND, mAnalysisPool, 1);
+            mCameraSessions[i].start();
+        }
     }
 
+    private void closeCameraSessions() {
+        for (CameraSession session : mCameraSessions) {
+            session.close();
+        }
+        mCameraSessions = null;
+    }
+
+    private void shutdownAnalysisPool() {
+        if (mAnalysisPool != null) {
+            try {
+                if (!mAnalysisPool.shutdown(ANALYSIS_SHUTDOWN_TIMEOUT_MS)) {
+                    Log.w(TAG, "Analysis pool did not finish within "
+                            + ANALYSIS_SHUTDOWN_TIMEOUT_MS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mAnalysisPool = null;
+        }
+    }
+
+    /**
+     * Loads OpenCV once and starts the task. Further surface changes do nothing.
+     */
     protected void onFinishedSurfaceChanged() {
+        if (sOpenCvLoaded) {
+            mLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
+            return;
+        }
         if (INIT_OPENCV){
             // Load OpenCV
             if (!OpenCVLoader.initDebug()) {
@@ -125,7 +320,10 @@ public final class UIActivity extends Activity {
             switch (status) {
                 case LoaderCallbackInterface.SUCCESS:
                     Log.i(TAG, "OpenCV loaded successfully");
-                    mTaskManager.startTask();
+                    sOpenCvLoaded = true;
+                    if (mTaskManager != null) {
+                        mTaskManager.startTask();
+                    }
                     break;
                 default:
                     super.onManagerConnected(status);
@@ -136,11 +334,43 @@ public final class UIActivity extends Activity {
 
     protected void onPause() {
         super.onPause();
+        if (TRACE) {
+            dumpTrace();
+        }
+        closeCameraSessions();
         mTaskManager.quitTask();
         mTaskManager.quit();
+        shutdownAnalysisPool();
+        if (mBackendTuning != null) {
+            // an unfinished tuning starts again with the next task
+            mBackendTuning.close();
+            mBackendTuning = null;
+        }
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+                Log.i(TAG, "Journal " + mJournal.getDirectory() + ": " + mJournal);
+            } catch (IOException e) {
+                Log.w(TAG, "Journal could not be written", e);
+            }
+            mJournal = null;
+        }
+        if (mResultPublisher != null) {
+            mResultPublisher.close();
+            Log.i(TAG, "Result stream: " + mResultPublisher);
+            mResultPublisher = null;
+        }
         mCameraManager.quit();
         mCameraManager.destroyCamera();
+        mResultChannel.close();
+        mResultChannel.getBitmapPool().clear();
+        mResultView.clearResult();
+        Log.i(TAG, "Memory: " + MemoryBudget.get());
+        if (mResultCache != null) {
+            Log.i(TAG, "Result cache: " + mResultCache);
+        }
         mCameraManager = null;
+        mResultChannel = null;
         mTaskManager = null;
         mMainHandler = null;
         mPreview = null;
@@ -149,10 +379,53 @@ public final class UIActivity extends Activity {
 
     protected void onDestroy(){
         super.onDestroy();
+        if (mLastPicture != null) {
+            MemoryBudget.get().free(MemoryBudget.Category.STILL_IMAGES, mLastPicture.length);
+            mLastPicture = null;
+        }
+        if (mResultCache != null) {
+            mResultCache.trimMemory();
+        }
+        // the budget outlives the activity
+        MemoryBudget.get().setListener(null);
+    }
+
+    /**
+     * Writes the recorded trace to trace.json in the files dir, it can be opened with
+     * chrome://tracing or Perfetto
+     */
+    protected void dumpTrace() {
+        Tracer.setEnabled(false);
+        File traceFile = new File(getFilesDir(), "trace.json");
+        try {
+            Tracer.writeTo(traceFile);
+            Log.i(TAG, "Trace written to " + traceFile.getAbsolutePath());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write trace", e);
+        }
+    }
+
+    /**
+     * Shows the edges of the picture and keeps it to show it again after a pause.
+     */
+    protected void onPictureTaken(byte[] picture) {
+        MemoryBudget memoryBudget = MemoryBudget.get();
+        if (mLastPicture != null) {
+            memoryBudget.free(MemoryBudget.Category.STILL_IMAGES, mLastPicture.length);
+        }
+        memoryBudget.allocate(MemoryBudget.Category.STILL_IMAGES, picture.length);
+        mLastPicture = picture;
+        if (mTaskManager != null) {
+            mTaskManager.processStill(picture);
+        }
     }
 
     protected void drawResult(Bitmap resultBitmap) {
         mResultView.drawResult(resultBitmap);
     }
+
+    protected void drawSegments(LineSegments segments) {
+        mResultView.drawSegments(segments);
+    }
 }
 
@@ -16,7 +16,6 @@
 
 package android.google.com.basiccamera;
 
-import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -46,7 +45,9 @@ public final class UIHandler extends Handler {
                 data = (byte[]) message.obj;
                 if (data == null) {
                     Log.d(TAG, "Picture is null.");
+                    break;
                 }
+                mActivity.onPictureTaken(data);
                 break;
             case R.id.preview_captured:
                 data = (byte[]) message.obj;
@@ -54,10 +55,6 @@ public final class UIHandler extends Handler {
                     Log.d(TAG, "Preview is null.");
                 }
                 break;
-            case R.id.draw_result:
-                Bitmap resultBitmap = (Bitmap) message.obj;
-                mActivity.drawResult(resultBitmap);
-                break;
         }
     }
 
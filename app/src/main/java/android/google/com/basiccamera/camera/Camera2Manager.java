@@ -0,0 +1,832 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.google.com.basiccamera.R;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+import android.google.com.basiccamera.trace.Tracer;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Display;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.WindowManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drives a camera with the Camera2 API. The preview frames are read by an ImageReader in
+ * YUV_420_888 from a repeating request and packed into NV21 buffers, which are published on the
+ * frame bus like the frames of CameraManager, so consumers do not notice the backend.
+ *
+ * The commands are executed on this thread like in CameraManager. Camera2 reports the results of
+ * opening the camera and configuring a session asynchronously, so these callbacks and the images
+ * arrive on a second thread while the command waits for them. The frames are published on that
+ * second thread.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class Camera2Manager extends HandlerThread implements CameraBackend {
+
+    private static final String TAG = Camera2Manager.class.getSimpleName();
+    // The number of preview buffers shared between the reader and the frame bus subscribers: one
+    // per thread of the analysis pool, the queued newest frame and the one being filled
+    private static final int FRAME_BUFFER_COUNT = 4;
+    // the number of NV21 buffers while the memory budget shrinks the queues
+    private static final int SHRUNK_FRAME_BUFFER_COUNT = 2;
+    // images of the reader, each one is packed and closed right away
+    private static final int MAX_IMAGES = 2;
+    private static final long CALLBACK_TIMEOUT_MS = 3000;
+
+    private final int mCameraId;
+    private final String mCameraName;
+    private final Context mContext;
+    private final FrameBus mFrameBus;
+    private final HandlerThread mCallbackThread;
+    private volatile Handler mHandler;
+    private Handler mCallbackHandler;
+    private final CommandQueue mCommandQueue;
+    private final AtomicBoolean mCommandsScheduled;
+    // packs the images, used only on the callback thread
+    private final YuvPlanes mYuvPlanes;
+    // buffers not referenced by any frame, guarded by itself
+    private final ArrayDeque<byte[]> mFreeBuffers;
+    private volatile int mFrameBufferSize;
+    // the buffers of the current size, free or held by subscribers, guarded by mFreeBuffers
+    private int mFrameBufferCount;
+    private final MemoryBudget mMemoryBudget;
+    private long mSkippedImageCount;
+
+    private CameraProfile mProfile;
+    private CameraSettings mSettings;
+    private int mResultRotation;
+    private CameraCharacteristics mCharacteristics;
+    // whether the sensor timestamps of the images are in SystemClock.elapsedRealtimeNanos()
+    private volatile boolean mRealtimeTimestamps;
+    private volatile CameraDevice mCamera;
+    private CameraCaptureSession mSession;
+    private ImageReader mImageReader;
+    private ImageReader mJpegReader;
+    private CaptureRequest mPreviewRequest;
+    // the holder the preview is drawn into and whether its surface has to be set again
+    private SurfaceHolder mPreviewHolder;
+    private boolean mSurfaceInvalid;
+    // the handlers to send back a single preview frame or picture, read by the callback thread
+    private volatile Handler mPreviewHandler;
+    private volatile int mPreviewMessage;
+    private volatile Handler mPictureHandler;
+    private volatile int mPictureMessage;
+    // completes when the picture has been sent to mPictureHandler
+    private volatile CommandFuture mPictureFuture;
+
+    // Tells us if a preview is currently active
+    public boolean previewing;
+    // Tells us if the camera has already been opened
+    public boolean isOpen;
+
+    /**
+     * @param cameraId the id of the camera, Camera2 names the cameras by the same numbers as
+     *                 Camera.open
+     */
+    public Camera2Manager(Context context, int cameraId) {
+        super(TAG + "-" + cameraId);
+        this.mContext = context;
+        this.mCameraId = cameraId;
+        this.mCameraName = String.valueOf(cameraId);
+        this.mProfile = CameraProfile.BALANCED;
+        this.mCallbackThread = new HandlerThread(TAG + "Callbacks-" + cameraId);
+        this.mYuvPlanes = new YuvPlanes();
+        this.mFreeBuffers = new ArrayDeque<>();
+        this.mFrameBus = new FrameBus(new FrameBus.BufferRecycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                returnFrameBuffer(buffer);
+            }
+        });
+        this.mCommandQueue = new CommandQueue();
+        this.mCommandsScheduled = new AtomicBoolean(false);
+        this.mMemoryBudget = MemoryBudget.get();
+    }
+
+    @Override
+    protected void onLooperPrepared() {
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mHandler = new Handler(getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == R.id.process_commands) {
+                    processNextCommand();
+                    return true;
+                }
+                return false;
+            }
+        });
+        Log.v(TAG, "Handler has been initialized");
+        // commands may have been submitted before the looper was prepared
+        scheduleCommands();
+    }
+
+    @Override
+    public boolean quit() {
+        Log.i(TAG, "Command queue " + mCommandQueue + ", images skipped without free buffer "
+                + mSkippedImageCount);
+        mCommandQueue.clear(new IllegalStateException("Camera2Manager has quit"));
+        mCallbackThread.quit();
+        return super.quit();
+    }
+
+    @Override
+    public CommandFuture submit(CameraCommand command) {
+        Tracer.begin(Tracer.SEND_TASK);
+        CommandFuture future = mCommandQueue.offer(command);
+        scheduleCommands();
+        Tracer.end(Tracer.SEND_TASK);
+        return future;
+    }
+
+    /*
+     * Makes sure a process_commands message is pending while there are commands.
+     */
+    private void scheduleCommands() {
+        Handler handler = mHandler;
+        if (handler != null && !mCommandQueue.isEmpty()
+                && mCommandsScheduled.compareAndSet(false, true)) {
+            handler.sendEmptyMessage(R.id.process_commands);
+        }
+    }
+
+    /*
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void processNextCommand() {
+        mCommandsScheduled.set(false);
+        CameraCommand command = mCommandQueue.poll();
+        if (command != null) {
+            Tracer.begin(Tracer.EXECUTE_COMMAND);
+            try {
+                execute(command);
+                // a picture completes its future when it is delivered
+                if (command.type != CameraCommand.Type.TAKE_PICTURE) {
+                    command.future.complete();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Command " + command + " failed", e);
+                command.future.fail(e);
+            }
+            Tracer.end(Tracer.EXECUTE_COMMAND);
+        }
+        scheduleCommands();
+    }
+
+    private void execute(CameraCommand command) throws IOException {
+        switch (command.type) {
+            case INIT_CAMERA:
+                initCamera((SurfaceHolder) command.argument);
+                break;
+            case OPEN_CAMERA:
+                openDriver((SurfaceHolder) command.argument);
+                break;
+            case RECONFIGURE:
+                reconfigure((SurfaceHolder) command.argument);
+                break;
+            case APPLY_PROFILE:
+                applyProfile((CameraProfile) command.argument);
+                break;
+            case START_PREVIEW:
+                startPreview();
+                break;
+            case STOP_PREVIEW:
+                stopPreview();
+                break;
+            case TAKE_PICTURE:
+                takePicture((Handler) command.argument, command.what, command.future);
+                break;
+            case CAPTURE_PREVIEW:
+                if (isOpen && previewing) {
+                    mPreviewMessage = command.what;
+                    mPreviewHandler = (Handler) command.argument;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Opens the camera and starts the preview, if the camera is not open yet.
+     * Shoud be only invoked by the handler mHandler
+     *
+     * @param holder the surface the preview is drawn into, null for a camera whose frames are
+     *               only processed and not displayed
+     */
+    private void initCamera(SurfaceHolder holder) {
+        if (isOpen) {
+            Log.w(TAG, "initCamera() while already open. Check for early SurfaceView callback?");
+            // the surface may have been recreated, so the next reconfiguration sets it again
+            mSurfaceInvalid = true;
+            return;
+        }
+        try {
+            openDriver(holder);
+            startPreview();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unexpected error initializing camera", e);
+        }
+    }
+
+    /**
+     * Opens the camera if needed, chooses the settings of the profile and creates the capture
+     * session. Shoud be only invoked by the handler mHandler
+     *
+     * @throws IOException Indicates the camera failed to open or to configure the session.
+     */
+    private void openDriver(SurfaceHolder holder) throws IOException {
+        android.hardware.camera2.CameraManager manager = (android.hardware.camera2.CameraManager)
+                mContext.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            if (mCamera == null) {
+                mCharacteristics = manager.getCameraCharacteristics(mCameraName);
+                Integer timestampSource = mCharacteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                mRealtimeTimestamps = timestampSource != null && timestampSource
+                        == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+                final ConditionVariable opened = new ConditionVariable();
+                manager.openCamera(mCameraName, new CameraDevice.StateCallback() {
+                    @Override
+                    public void onOpened(CameraDevice camera) {
+                        mCamera = camera;
+                        opened.open();
+                    }
+
+                    @Override
+                    public void onDisconnected(CameraDevice camera) {
+                        Log.w(TAG, "Camera " + mCameraName + " disconnected");
+                        camera.close();
+                        opened.open();
+                    }
+
+                    @Override
+                    public void onError(CameraDevice camera, int error) {
+                        Log.w(TAG, "Camera " + mCameraName + " failed with error " + error);
+                        camera.close();
+                        opened.open();
+                    }
+                }, mCallbackHandler);
+                if (!opened.block(CALLBACK_TIMEOUT_MS) || mCamera == null) {
+                    throw new IOException("Camera " + mCameraName + " could not be opened");
+                }
+            }
+            configure();
+            createSession(holder);
+        } catch (CameraAccessException e) {
+            throw new IOException(e);
+        }
+        isOpen = true;
+    }
+
+    /**
+     * Lets the profile choose the preview settings from the sizes and frame rates Camera2 lists
+     * for the ImageReader and allocates readers and buffers for them.
+     */
+    private void configure() {
+        WindowManager windowManager =
+                (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
+        Display display = windowManager.getDefaultDisplay();
+        Point screenResolution = new Point();
+        display.getSize(screenResolution);
+        mResultRotation = computeResultRotation(display);
+        StreamConfigurationMap map =
+                mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        mSettings = mProfile.select(new FlatParameters(flatten(map.getOutputSizes(
+                ImageFormat.YUV_420_888), mCharacteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES))),
+                screenResolution.x, screenResolution.y);
+        Log.i(TAG, "Camera settings " + mSettings + ", result rotation " + mResultRotation);
+
+        if (mImageReader == null || mImageReader.getWidth() != mSettings.previewWidth
+                || mImageReader.getHeight() != mSettings.previewHeight) {
+            closeSession();
+            if (mImageReader != null) {
+                mImageReader.close();
+            }
+            mImageReader = ImageReader.newInstance(mSettings.previewWidth,
+                    mSettings.previewHeight, ImageFormat.YUV_420_888, MAX_IMAGES);
+            mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    publishImage(reader);
+                }
+            }, mCallbackHandler);
+            allocateFrameBuffers(YuvPlanes.nv21Size(mSettings.previewWidth,
+                    mSettings.previewHeight));
+        }
+        if (mJpegReader == null) {
+            Size pictureSize = findLargestSize(map.getOutputSizes(ImageFormat.JPEG));
+            mJpegReader = ImageReader.newInstance(pictureSize.getWidth(),
+                    pictureSize.getHeight(), ImageFormat.JPEG, 1);
+            mJpegReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    deliverPicture(reader);
+                }
+            }, mCallbackHandler);
+        }
+    }
+
+    /**
+     * Writes the sizes and frame rates of Camera2 in the flattened format of the camera
+     * parameters, so the profiles negotiate both APIs alike. The frames are always packed into
+     * NV21.
+     */
+    static String flatten(Size[] sizes, Range<Integer>[] fpsRanges) {
+        StringBuilder flattened = new StringBuilder(FlatParameters.PREVIEW_SIZE_VALUES)
+                .append('=');
+        for (int i = 0; i < sizes.length; i++) {
+            flattened.append(i == 0 ? "" : ",").append(sizes[i].getWidth()).append('x')
+                    .append(sizes[i].getHeight());
+        }
+        if (sizes.length > 0) {
+            flattened.append(';').append(FlatParameters.PREVIEW_SIZE).append('=')
+                    .append(sizes[0].getWidth()).append('x').append(sizes[0].getHeight());
+        }
+        flattened.append(';').append(FlatParameters.PREVIEW_FPS_RANGE_VALUES).append('=');
+        for (int i = 0; fpsRanges != null && i < fpsRanges.length; i++) {
+            flattened.append(i == 0 ? "(" : ",(").append(fpsRanges[i].getLower() * 1000)
+                    .append(',').append(fpsRanges[i].getUpper() * 1000).append(')');
+        }
+        flattened.append(';').append(FlatParameters.PREVIEW_FORMAT_VALUES).append("=yuv420sp");
+        return flattened.toString();
+    }
+
+    private static Size findLargestSize(Size[] sizes) {
+        Size largest = sizes[0];
+        for (Size size : sizes) {
+            if (size.getWidth() * size.getHeight() > largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Computes the clockwise rotation turning the sensor orientation into the orientation of
+     * the display, as CameraConfigurationManager does for the old API.
+     */
+    private int computeResultRotation(Display display) {
+        int degrees;
+        switch (display.getRotation()) {
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+            default:
+                degrees = 0;
+        }
+        int orientation = mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        Integer facing = mCharacteristics.get(CameraCharacteristics.LENS_FACING);
+        if (facing != null && facing == CameraMetadata.LENS_FACING_FRONT) {
+            return (orientation + degrees) % 360;
+        }
+        return (orientation - degrees + 360) % 360;
+    }
+
+    /**
+     * Creates the capture session for the reader, the picture reader and the preview surface.
+     * A SurfaceView only works as output in a size the camera supports. If it has another size,
+     * it is resized on the main thread and left out until its surfaceChanged reconfigures.
+     */
+    private void createSession(SurfaceHolder holder) throws CameraAccessException, IOException {
+        closeSession();
+        List<Surface> outputs = new ArrayList<>();
+        outputs.add(mImageReader.getSurface());
+        outputs.add(mJpegReader.getSurface());
+        Surface previewSurface = null;
+        if (holder != null) {
+            final SurfaceHolder theHolder = holder;
+            final int width = mSettings.previewWidth;
+            final int height = mSettings.previewHeight;
+            Rect frame = holder.getSurfaceFrame();
+            if (frame.width() == width && frame.height() == height) {
+                previewSurface = holder.getSurface();
+                outputs.add(previewSurface);
+            } else {
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        theHolder.setFixedSize(width, height);
+                    }
+                });
+            }
+        }
+        final ConditionVariable configured = new ConditionVariable();
+        final CameraCaptureSession[] session = new CameraCaptureSession[1];
+        mCamera.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession configuredSession) {
+                session[0] = configuredSession;
+                configured.open();
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession failedSession) {
+                configured.open();
+            }
+        }, mCallbackHandler);
+        if (!configured.block(CALLBACK_TIMEOUT_MS) || session[0] == null) {
+            throw new IOException("Capture session of camera " + mCameraName
+                    + " could not be configured");
+        }
+        mSession = session[0];
+
+        CaptureRequest.Builder builder = mCamera.createCaptureRequest(
+                CameraDevice.TEMPLATE_PREVIEW);
+        builder.addTarget(mImageReader.getSurface());
+        if (previewSurface != null) {
+            builder.addTarget(previewSurface);
+        }
+        if (mSettings.hasFpsRange()) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                    new Range<>(mSettings.fpsMin / 1000, mSettings.fpsMax / 1000));
+        }
+        if (supportsAfMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE)) {
+            builder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        }
+        mPreviewRequest = builder.build();
+        mPreviewHolder = holder;
+        mSurfaceInvalid = holder != null && previewSurface == null;
+    }
+
+    private boolean supportsAfMode(int mode) {
+        int[] modes = mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (modes != null) {
+            for (int available : modes) {
+                if (available == mode) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void closeSession() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+            previewing = false;
+        }
+    }
+
+    /**
+     * Recreates the session if the surface or the preview settings have changed.
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void reconfigure(SurfaceHolder holder) throws IOException {
+        if (!isOpen) {
+            initCamera(holder);
+            return;
+        }
+        long begin = System.nanoTime();
+        CameraSettings appliedSettings = mSettings;
+        configure();
+        boolean settingsChanged = mSettings.previewWidth != appliedSettings.previewWidth
+                || mSettings.previewHeight != appliedSettings.previewHeight
+                || mSettings.fpsMin != appliedSettings.fpsMin
+                || mSettings.fpsMax != appliedSettings.fpsMax;
+        if (!settingsChanged && !mSurfaceInvalid && holder == mPreviewHolder && mSession != null) {
+            Log.i(TAG, "Reconfiguration skipped, nothing has changed");
+            return;
+        }
+        boolean wasPreviewing = previewing || mSession == null;
+        mFrameBus.markReconfiguration();
+        try {
+            createSession(holder);
+        } catch (CameraAccessException e) {
+            throw new IOException(e);
+        }
+        if (wasPreviewing) {
+            startPreview();
+        }
+        Log.i(TAG, "Reconfiguration took " + (System.nanoTime() - begin) / 1000000 + " ms");
+    }
+
+    /**
+     * Switches to another configuration profile. A running preview is restarted with the new
+     * settings. Shoud be only invoked by the handler mHandler.
+     */
+    private void applyProfile(CameraProfile profile) throws IOException {
+        mProfile = profile;
+        if (isOpen) {
+            reconfigure(mPreviewHolder);
+        }
+    }
+
+    /**
+     * Allocates the NV21 buffers for the current preview resolution. Buffers of a former
+     * resolution still held by subscribers are dropped when they are returned, they are not
+     * accounted in the memory budget anymore.
+     */
+    private void allocateFrameBuffers(int bufferSize) {
+        synchronized (mFreeBuffers) {
+            if (bufferSize == mFrameBufferSize) {
+                return;
+            }
+            freeFrameBuffers();
+            mFrameBufferSize = bufferSize;
+            int count = getTargetFrameBufferCount();
+            for (int i = 0; i < count; i++) {
+                mFreeBuffers.add(new byte[bufferSize]);
+            }
+            mFrameBufferCount = count;
+            mMemoryBudget.allocate(MemoryBudget.Category.PREVIEW_FRAMES,
+                    (long) count * bufferSize);
+        }
+    }
+
+    // has to hold the lock of mFreeBuffers
+    private void freeFrameBuffers() {
+        mFreeBuffers.clear();
+        mMemoryBudget.free(MemoryBudget.Category.PREVIEW_FRAMES,
+                (long) mFrameBufferCount * mFrameBufferSize);
+        mFrameBufferCount = 0;
+        mFrameBufferSize = 0;
+    }
+
+    private int getTargetFrameBufferCount() {
+        return mMemoryBudget.isAtLeast(MemoryBudget.Stage.SHRINK_QUEUES)
+                ? SHRUNK_FRAME_BUFFER_COUNT : FRAME_BUFFER_COUNT;
+    }
+
+    /*
+     * Takes back a buffer released by all frame bus subscribers, like CameraManager does: a
+     * buffer beyond the target count of the memory budget is dropped, missing buffers are added.
+     * Is invoked on the thread releasing the frame.
+     */
+    private void returnFrameBuffer(byte[] buffer) {
+        synchronized (mFreeBuffers) {
+            if (buffer.length != mFrameBufferSize) {
+                return;
+            }
+            int target = getTargetFrameBufferCount();
+            if (mFrameBufferCount > target) {
+                mFrameBufferCount--;
+                mMemoryBudget.free(MemoryBudget.Category.PREVIEW_FRAMES, mFrameBufferSize);
+                return;
+            }
+            mFreeBuffers.add(buffer);
+            if (mFrameBufferCount < target) {
+                mFrameBufferCount++;
+                mMemoryBudget.allocate(MemoryBudget.Category.PREVIEW_FRAMES, mFrameBufferSize);
+                mFreeBuffers.add(new byte[mFrameBufferSize]);
+            }
+        }
+    }
+
+    /*
+     * Packs the latest image into a free buffer and publishes it. Without a free buffer the
+     * image is skipped, like the old API skips frames without callback buffer.
+     * Is invoked on the callback thread.
+     */
+    private void publishImage(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        byte[] buffer;
+        synchronized (mFreeBuffers) {
+            buffer = mFreeBuffers.poll();
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // moves the sensor time from the boot clock, which counts deep sleep, to System.nanoTime()
+        long captureTimestamp = mRealtimeTimestamps ? image.getTimestamp()
+                - (SystemClock.elapsedRealtimeNanos() - System.nanoTime()) : 0;
+        try {
+            if (buffer == null) {
+                mSkippedImageCount++;
+                return;
+            }
+            Tracer.begin(Tracer.ON_PREVIEW_FRAME);
+            Image.Plane[] planes = image.getPlanes();
+            mYuvPlanes.toNv21(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                    planes[1].getPixelStride(), width, height, buffer);
+        } catch (IllegalStateException e) {
+            // the reader has been closed while the image was packed, the buffer stays counted
+            // and goes back to the free ones
+            Log.d(TAG, "Image closed while packing", e);
+            returnFrameBuffer(buffer);
+            Tracer.end(Tracer.ON_PREVIEW_FRAME);
+            return;
+        } finally {
+            image.close();
+        }
+        Handler thePreviewHandler = mPreviewHandler;
+        if (thePreviewHandler != null) {
+            thePreviewHandler.obtainMessage(mPreviewMessage, width, height, buffer.clone())
+                    .sendToTarget();
+            mPreviewHandler = null;
+        }
+        boolean measuringGap = mFrameBus.isMeasuringGap();
+        long sequence = mFrameBus.publish(buffer, width, height, captureTimestamp);
+        Tracer.flowStart(sequence);
+        Tracer.end(Tracer.ON_PREVIEW_FRAME);
+        if (measuringGap) {
+            Log.i(TAG, "Gap in frame delivery caused by reconfiguration: "
+                    + mFrameBus.getLastReconfigurationGap() / 1000000 + " ms");
+        }
+    }
+
+    /*
+     * Sends the JPEG data of a taken picture to the requesting handler.
+     * Is invoked on the callback thread.
+     */
+    private void deliverPicture(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            Handler thePictureHandler = mPictureHandler;
+            if (thePictureHandler == null) {
+                Log.d(TAG, "Got a picture, but no handler available");
+                return;
+            }
+            ByteBuffer jpeg = image.getPlanes()[0].getBuffer();
+            byte[] data = new byte[jpeg.remaining()];
+            jpeg.get(data);
+            thePictureHandler.obtainMessage(mPictureMessage, image.getWidth(),
+                    image.getHeight(), data).sendToTarget();
+            mPictureHandler = null;
+            CommandFuture future = mPictureFuture;
+            mPictureFuture = null;
+            if (future != null) {
+                future.complete();
+            }
+        } finally {
+            image.close();
+        }
+    }
+
+    /*
+     * Captures a single JPEG, the repeating preview request continues afterwards.
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void takePicture(Handler handler, int what, CommandFuture future)
+            throws IOException {
+        if (mSession == null || !previewing) {
+            future.fail(new IllegalStateException("The preview is not running"));
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder = mCamera.createCaptureRequest(
+                    CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(mJpegReader.getSurface());
+            cancelPicture(new IllegalStateException("A newer picture has been requested"));
+            mPictureMessage = what;
+            mPictureFuture = future;
+            mPictureHandler = handler;
+            mSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session,
+                        CaptureRequest request, CaptureFailure failure) {
+                    cancelPicture(new IOException("The capture failed with reason "
+                            + failure.getReason()));
+                }
+            }, mCallbackHandler);
+        } catch (CameraAccessException e) {
+            cancelPicture(e);
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * Forgets the requested picture, its future fails with the given reason.
+     */
+    private void cancelPicture(Throwable reason) {
+        mPictureHandler = null;
+        CommandFuture future = mPictureFuture;
+        mPictureFuture = null;
+        if (future != null) {
+            future.fail(reason);
+        }
+    }
+
+    /*
+     * Starts the repeating request delivering the preview frames.
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void startPreview() {
+        if (mSession != null && !previewing) {
+            try {
+                mSession.setRepeatingRequest(mPreviewRequest, null, mCallbackHandler);
+                previewing = true;
+            } catch (CameraAccessException e) {
+                Log.w(TAG, "Preview could not be started", e);
+            }
+        }
+    }
+
+    /*
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void stopPreview() {
+        if (mSession != null && previewing) {
+            try {
+                mSession.stopRepeating();
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.w(TAG, "Preview could not be stopped", e);
+            }
+            mPreviewHandler = null;
+            cancelPicture(new IllegalStateException("The preview has been stopped"));
+            previewing = false;
+        }
+    }
+
+    @Override
+    public void destroyCamera() {
+        stopPreview();
+        closeDriver();
+    }
+
+    /**
+     * Releases the session, the camera and the readers if still in use.
+     */
+    private void closeDriver() {
+        closeSession();
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mJpegReader != null) {
+            mJpegReader.close();
+            mJpegReader = null;
+        }
+        synchronized (mFreeBuffers) {
+            freeFrameBuffers();
+        }
+        mPreviewHolder = null;
+        isOpen = false;
+    }
+
+    @Override
+    public FrameBus getFrameBus() { return mFrameBus; }
+
+    @Override
+    public int getCameraId() { return mCameraId; }
+
+    @Override
+    public int getResultRotation() { return mResultRotation; }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+/**
+ * The contract between the app and the thread driving a camera. The thread executes the
+ * submitted commands in order and publishes every preview frame in NV21 on its frame bus, so
+ * consumers do not depend on the camera API behind it. Create backends with
+ * CameraBackends.create().
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public interface CameraBackend {
+
+    /** Starts the thread, commands submitted before are executed as soon as it runs */
+    void start();
+
+    boolean isAlive();
+
+    /** Stops the thread, pending commands fail */
+    boolean quit();
+
+    /**
+     * Queues a command for the camera thread.
+     * @return the future completing when the command has been executed
+     */
+    CommandFuture submit(CameraCommand command);
+
+    /** Stops the preview and releases the camera immediately */
+    void destroyCamera();
+
+    /** The bus delivering every preview frame in NV21 to its subscribers */
+    FrameBus getFrameBus();
+
+    int getCameraId();
+
+    /** The clockwise rotation in degree which turns a preview frame into display orientation */
+    int getResultRotation();
+}
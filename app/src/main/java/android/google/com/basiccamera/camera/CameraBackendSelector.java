@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+/**
+ * Decides whether a camera is driven by the android.hardware.Camera API or by Camera2. The
+ * decision only depends on the API level and the hardware level reported by Camera2, so it can
+ * be checked for any device on a plain JVM.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CameraBackendSelector {
+
+    /** The API level of Camera2 and the ImageReader */
+    public static final int CAMERA2_API_LEVEL = 21;
+
+    // values of CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_*
+    public static final int HARDWARE_LEVEL_LIMITED = 0;
+    public static final int HARDWARE_LEVEL_FULL = 1;
+    public static final int HARDWARE_LEVEL_LEGACY = 2;
+    public static final int HARDWARE_LEVEL_3 = 3;
+    /** The hardware level could not be read, e.g. because the camera does not exist */
+    public static final int HARDWARE_LEVEL_UNKNOWN = -1;
+
+    public enum Backend {
+        CAMERA1,
+        CAMERA2
+    }
+
+    /** The backend requested by the app */
+    public enum Preference {
+        /** Camera2 wherever it runs on its own HAL, the old API on legacy devices */
+        AUTO,
+        CAMERA1,
+        /** Camera2 whenever the API level allows it, even on top of a legacy HAL */
+        CAMERA2
+    }
+
+    private CameraBackendSelector() {}
+
+    /**
+     * @param preference the backend requested by the app
+     * @param sdkInt the API level of the device
+     * @param hardwareLevel the hardware level of the camera, one of the HARDWARE_LEVEL constants
+     */
+    public static Backend select(Preference preference, int sdkInt, int hardwareLevel) {
+        if (sdkInt < CAMERA2_API_LEVEL || hardwareLevel == HARDWARE_LEVEL_UNKNOWN) {
+            return Backend.CAMERA1;
+        }
+        switch (preference) {
+            case CAMERA1:
+                return Backend.CAMERA1;
+            case CAMERA2:
+                return Backend.CAMERA2;
+            default:
+                // a legacy HAL emulates Camera2 on top of the old API, so only its overhead
+                // would be gained
+                return hardwareLevel == HARDWARE_LEVEL_LEGACY ? Backend.CAMERA1 : Backend.CAMERA2;
+        }
+    }
+}
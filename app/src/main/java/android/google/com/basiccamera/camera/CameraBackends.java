@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Creates the backend driving a camera, as decided by CameraBackendSelector for this device.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CameraBackends {
+
+    private static final String TAG = CameraBackends.class.getSimpleName();
+
+    private CameraBackends() {}
+
+    /**
+     * @param cameraId the id of the camera as passed to Camera.open
+     * @param preference the backend requested by the app
+     */
+    public static CameraBackend create(Context context, int cameraId,
+            CameraBackendSelector.Preference preference) {
+        int hardwareLevel = Build.VERSION.SDK_INT >= CameraBackendSelector.CAMERA2_API_LEVEL
+                ? readHardwareLevel(context, cameraId)
+                : CameraBackendSelector.HARDWARE_LEVEL_UNKNOWN;
+        CameraBackendSelector.Backend backend = CameraBackendSelector.select(preference,
+                Build.VERSION.SDK_INT, hardwareLevel);
+        Log.i(TAG, "Camera " + cameraId + " with hardware level " + hardwareLevel
+                + " uses backend " + backend);
+        if (backend == CameraBackendSelector.Backend.CAMERA2) {
+            return new Camera2Manager(context, cameraId);
+        }
+        return new CameraManager(context, cameraId);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int readHardwareLevel(Context context, int cameraId) {
+        android.hardware.camera2.CameraManager manager = (android.hardware.camera2.CameraManager)
+                context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            Integer level = manager.getCameraCharacteristics(String.valueOf(cameraId))
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level == null ? CameraBackendSelector.HARDWARE_LEVEL_UNKNOWN : level;
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            Log.w(TAG, "No characteristics of camera " + cameraId, e);
+            return CameraBackendSelector.HARDWARE_LEVEL_UNKNOWN;
+        }
+    }
+}
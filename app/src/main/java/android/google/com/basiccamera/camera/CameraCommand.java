@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+/**
+ * A typed command for the CameraManager thread. Commands are created with the static factory
+ * methods and queued with CameraManager.submit(). The surface holders and result handlers are
+ * passed as plain objects and cast back by the backends, so commands and their queue do not
+ * depend on the Android classes and can be checked on a JVM.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CameraCommand {
+
+    /**
+     * The lanes of the command queue in descending priority. The priority only applies among
+     * pictures and preview captures, configuration commands keep their order to all others.
+     */
+    public enum Lane {
+        CONFIGURATION,
+        STILL,
+        PREVIEW
+    }
+
+    public enum Type {
+        INIT_CAMERA(Lane.CONFIGURATION),
+        OPEN_CAMERA(Lane.CONFIGURATION),
+        RECONFIGURE(Lane.CONFIGURATION),
+        APPLY_PROFILE(Lane.CONFIGURATION),
+        START_PREVIEW(Lane.CONFIGURATION),
+        STOP_PREVIEW(Lane.CONFIGURATION),
+        TAKE_PICTURE(Lane.STILL),
+        CAPTURE_PREVIEW(Lane.PREVIEW);
+
+        public final Lane lane;
+
+        Type(Lane lane) {
+            this.lane = lane;
+        }
+    }
+
+    final Type type;
+    // the holder, profile or result handler of the command, latest wins when coalescing
+    Object argument;
+    // the what field of the result message
+    final int what;
+    final CommandFuture future;
+    long enqueueTime;
+    // the position of the command in the order of submission
+    long sequence;
+
+    private CameraCommand(Type type, Object argument, int what) {
+        this.type = type;
+        this.argument = argument;
+        this.what = what;
+        this.future = new CommandFuture();
+    }
+
+    /**
+     * Opens the camera and starts the preview, if the camera is not open yet
+     * @param holder the SurfaceHolder of the preview, null for an undisplayed camera
+     */
+    public static CameraCommand initCamera(Object holder) {
+        return new CameraCommand(Type.INIT_CAMERA, holder, 0);
+    }
+
+    /**
+     * Opens the camera if needed and sets surface and all parameters
+     * @param holder the SurfaceHolder of the preview, null for an undisplayed camera
+     */
+    public static CameraCommand openCamera(Object holder) {
+        return new CameraCommand(Type.OPEN_CAMERA, holder, 0);
+    }
+
+    /**
+     * Applies only what has changed for the surface and the current profile
+     * @param holder the SurfaceHolder of the preview, null for an undisplayed camera
+     */
+    public static CameraCommand reconfigure(Object holder) {
+        return new CameraCommand(Type.RECONFIGURE, holder, 0);
+    }
+
+    public static CameraCommand applyProfile(CameraProfile profile) {
+        return new CameraCommand(Type.APPLY_PROFILE, profile, 0);
+    }
+
+    public static CameraCommand startPreview() {
+        return new CameraCommand(Type.START_PREVIEW, null, 0);
+    }
+
+    public static CameraCommand stopPreview() {
+        return new CameraCommand(Type.STOP_PREVIEW, null, 0);
+    }
+
+    /**
+     * The JPEG data will arrive as byte[] in the message.obj field of a message with the given
+     * what field, with width and height encoded as message.arg1 and message.arg2
+     * @param handler the Handler receiving the message
+     */
+    public static CameraCommand takePicture(Object handler, int what) {
+        return new CameraCommand(Type.TAKE_PICTURE, handler, what);
+    }
+
+    /**
+     * A copy of the next preview frame will arrive as byte[] in the message.obj field of a
+     * message with the given what field, with width and height encoded as message.arg1 and
+     * message.arg2
+     * @param handler the Handler receiving the message
+     */
+    public static CameraCommand capturePreview(Object handler, int what) {
+        return new CameraCommand(Type.CAPTURE_PREVIEW, handler, what);
+    }
+
+    public Type getType() { return type; }
+
+    public Object getArgument() { return argument; }
+
+    public int getWhat() { return what; }
+
+    public CommandFuture getFuture() { return future; }
+
+    @Override
+    public String toString() { return type.toString(); }
+}
@@ -21,6 +21,7 @@ import android.graphics.Point;
 import android.hardware.Camera;
 import android.util.Log;
 import android.view.Display;
+import android.view.Surface;
 import android.view.WindowManager;
 import android.widget.Toast;
 
@@ -42,29 +43,62 @@ public class CameraConfigurationManager {
     private static final String TAG = CameraConfigurationManager.class.getSimpleName();
 
     private final Context mContext;
+    private final int mCameraId;
+    private CameraProfile mProfile;
+    private CameraSettings mSettings;
     private Point mScreenResolution;
     private Point mPreviewResolution;
     private Point mPictureResolution;
+    private int mResultRotation;
 
-    public CameraConfigurationManager(Context context) {
+    public CameraConfigurationManager(Context context, int cameraId) {
         this.mContext = context;
+        this.mCameraId = cameraId;
+        this.mProfile = CameraProfile.BALANCED;
     }
 
     /**
-     * Sets preview and picture size, and focus mode
+     * Sets the profile used by the next initFromCameraParameters()
+     */
+    public void setProfile(CameraProfile profile) { mProfile = profile; }
+
+    public CameraProfile getProfile() { return mProfile; }
+
+    /** The settings chosen by the profile at the last initFromCameraParameters() */
+    public CameraSettings getSettings() { return mSettings; }
+
+    /**
+     * Sets preview size, fps range and format as chosen by the profile, picture size and focus
+     * mode. All parameters are set at once. If the camera rejects them, it keeps its former
+     * parameters.
      * @param camera
      */
     public void initFromCameraParameters(Camera camera) {
         Camera.Parameters parameters = camera.getParameters();
+        String formerParameters = parameters.flatten();
+        requestParameters(parameters);
+        applyParameters(camera, parameters, formerParameters);
+    }
+
+    /**
+     * Changes the given parameters to the values chosen for the current profile and screen
+     * without applying them to the camera.
+     * @param parameters the current parameters of the camera
+     */
+    public void requestParameters(Camera.Parameters parameters) {
         WindowManager manager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
         Display display = manager.getDefaultDisplay();
         Point theScreenResolution = new Point();
         display.getSize(theScreenResolution);
         mScreenResolution = theScreenResolution;
         Log.i(TAG, "Screen resolution: " + mScreenResolution);
-        mPreviewResolution = CameraConfigurationUtils.findBestPreviewSizeValue(parameters,
-                mScreenResolution);
-        parameters.setPreviewSize(mPreviewResolution.x, mPreviewResolution.y);
+        mResultRotation = computeResultRotation(display);
+        Log.i(TAG, "Result rotation: " + mResultRotation);
+        mSettings = mProfile.select(new FlatParameters(parameters.flatten()), mScreenResolution.x,
+                mScreenResolution.y);
+        Log.i(TAG, "Camera settings " + mSettings);
+        CameraConfigurationUtils.applySettings(parameters, mSettings);
+        mPreviewResolution = new Point(mSettings.previewWidth, mSettings.previewHeight);
         Log.i(TAG, "Preview resolution: " + mPreviewResolution);
         mPictureResolution = CameraConfigurationUtils.findBestPictureSizeValue(parameters,
                 mScreenResolution);
@@ -72,13 +106,63 @@ public class CameraConfigurationManager {
         Log.i(TAG, "Picture resolution: " + mPictureResolution);
 
         CameraConfigurationUtils.setFocus(parameters);
+    }
 
-        camera.setParameters(parameters);
+    /**
+     * Sets all parameters at once. If the camera rejects them, the former parameters are restored.
+     * @param camera
+     * @param parameters the requested parameters
+     * @param formerParameters the flattened parameters the camera used before
+     */
+    public void applyParameters(Camera camera, Camera.Parameters parameters,
+                                String formerParameters) {
+        try {
+            camera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            // some drivers reject combinations of values they list as supported
+            Log.w(TAG, "Camera rejected the parameters, keeping the former ones", e);
+            parameters.unflatten(formerParameters);
+            camera.setParameters(parameters);
+            Camera.Size previewSize = parameters.getPreviewSize();
+            mPreviewResolution = new Point(previewSize.width, previewSize.height);
+            Camera.Size pictureSize = parameters.getPictureSize();
+            mPictureResolution = new Point(pictureSize.width, pictureSize.height);
+        }
     }
 
 
+    /**
+     * The preview frames are in the orientation of the sensor. Computes the clockwise rotation
+     * turning them into the orientation of the display, as for Camera.setDisplayOrientation.
+     */
+    private int computeResultRotation(Display display) {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(mCameraId, info);
+        int degrees;
+        switch (display.getRotation()) {
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+            default:
+                degrees = 0;
+        }
+        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            return (info.orientation + degrees) % 360;
+        }
+        return (info.orientation - degrees + 360) % 360;
+    }
+
     public Point getScreenResolution() { return mScreenResolution; }
 
+    /** The clockwise rotation in degree which turns a preview frame into display orientation */
+    public int getResultRotation() { return mResultRotation; }
+
     public Point getPreviewResolution() { return mPreviewResolution; }
 
     public Point getPictureResolution() {
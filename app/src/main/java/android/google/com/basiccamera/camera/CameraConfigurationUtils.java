@@ -70,6 +70,24 @@ public final class CameraConfigurationUtils {
         Log.i(TAG, "Focus mode already set to " + focusMode);
     }
 
+    /**
+     * Sets the values negotiated by a profile, values which could not be negotiated are skipped
+     * @param parameters parameters of a camera
+     * @param settings the settings chosen by the profile
+     */
+    protected static void applySettings(Camera.Parameters parameters, CameraSettings settings) {
+        parameters.setPreviewSize(settings.previewWidth, settings.previewHeight);
+        if (settings.hasFpsRange()) {
+            parameters.setPreviewFpsRange(settings.fpsMin, settings.fpsMax);
+        }
+        if (settings.previewFormat != null) {
+            parameters.set(FlatParameters.PREVIEW_FORMAT, settings.previewFormat);
+        }
+        if (settings.recordingHint) {
+            parameters.setRecordingHint(true);
+        }
+    }
+
     protected static Point findBestPreviewSizeValue(Camera.Parameters parameters,
                                                     Point screenResolution) {
         List<Camera.Size> rawSupportedPreviewSizes = parameters.getSupportedPreviewSizes();
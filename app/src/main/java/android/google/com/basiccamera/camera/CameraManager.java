@@ -2,6 +2,11 @@ package android.google.com.basiccamera.camera;
 
 import android.content.Context;
 import android.google.com.basiccamera.R;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+import android.google.com.basiccamera.trace.Tracer;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -10,7 +15,7 @@ import android.util.Log;
 import android.view.SurfaceHolder;
 
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -23,19 +28,38 @@ import java.util.concurrent.CountDownLatch;
  * @altered_by alexander.goscinski@posteo.de (Alexander Goscinski)
  */
 
-public final class CameraManager extends HandlerThread {
+public final class CameraManager extends HandlerThread implements CameraBackend {
 
     private static final String TAG = CameraManager.class.getSimpleName();
-    // The ID of the camera our system uses
-    private static final int DEFAULT_CAMERA_ID = 0;
+    // The ID of the camera used if none is given
+    public static final int DEFAULT_CAMERA_ID = 0;
+    // name of the texture receiving the preview of a camera without display, it is never drawn
+    private static final int OFFSCREEN_TEXTURE_NAME = 10;
+    // The number of preview buffers shared between the camera and the frame bus subscribers: one
+    // per thread of the analysis pool, the queued newest frame and the one being filled
+    private static final int FRAME_BUFFER_COUNT = 4;
+    // the number of preview buffers while the memory budget shrinks the queues
+    private static final int SHRUNK_FRAME_BUFFER_COUNT = 2;
 
+    private final int mCameraId;
     private final CameraConfigurationManager mConfigManager;
     private final Context mContext;
+    private final FrameBus mFrameBus;
     private PreviewCallback mPreviewCallback;
     private PictureCallback mPictureCallback;
     private Camera mCamera;
-    private Handler mHandler;
-    private CountDownLatch mInitLatch;
+    private volatile Handler mHandler;
+    private final CommandQueue mCommandQueue;
+    private final AtomicBoolean mCommandsScheduled;
+    private int mFrameBufferSize;
+    // the preview buffers of the current size, in the camera or held by subscribers
+    private int mFrameBufferCount;
+    private final MemoryBudget mMemoryBudget;
+    // the holder the preview is drawn into and whether its surface has to be set again
+    private SurfaceHolder mPreviewHolder;
+    private boolean mSurfaceInvalid;
+    // receives the preview if there is no holder to draw it into
+    private SurfaceTexture mOffscreenTexture;
 
     // Tells us if a preview is currently active
     public boolean previewing;
@@ -43,12 +67,32 @@ public final class CameraManager extends HandlerThread {
     public boolean isOpen;
 
     public CameraManager(Context context) {
-        super(TAG);
+        this(context, DEFAULT_CAMERA_ID);
+    }
+
+    /**
+     * @param cameraId the id of the camera as passed to Camera.open, several managers with
+     *                 different ids can run at the same time on devices supporting it
+     */
+    public CameraManager(Context context, int cameraId) {
+        super(TAG + "-" + cameraId);
         this.mContext = context;
-        this.mConfigManager = new CameraConfigurationManager(context);
-        this.mPreviewCallback = new PreviewCallback(mConfigManager);
+        this.mCameraId = cameraId;
+        this.mConfigManager = new CameraConfigurationManager(context, cameraId);
+        this.mFrameBus = new FrameBus(new FrameBus.BufferRecycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                Handler handler = mHandler;
+                if (handler != null) {
+                    handler.obtainMessage(R.id.return_buffer, buffer).sendToTarget();
+                }
+            }
+        });
+        this.mPreviewCallback = new PreviewCallback(mConfigManager, mFrameBus);
         this.mPictureCallback = new PictureCallback(mConfigManager);
-        this.mInitLatch = new CountDownLatch(1);
+        this.mCommandQueue = new CommandQueue();
+        this.mCommandsScheduled = new AtomicBoolean(false);
+        this.mMemoryBudget = MemoryBudget.get();
     }
 
     @Override
@@ -58,87 +102,121 @@ public final class CameraManager extends HandlerThread {
             @Override
             public boolean handleMessage(Message msg) {
                 switch (msg.what) {
-                    case R.id.init_camera:
-                        SurfaceHolder holderInit = (SurfaceHolder) msg.obj;
-                        initCamera(holderInit);
-                        return true;
-                    case R.id.open_camera:
-                        SurfaceHolder holderOpen = (SurfaceHolder) msg.obj;
-                        try {
-                            openDriver(holderOpen);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        return true;
-                    case R.id.start_preview:
-                        startPreview();
-                        return true;
-                    case R.id.stop_preview:
-                        stopPreview();
+                    case R.id.process_commands:
+                        processNextCommand();
                         return true;
-                    case R.id.take_picture:
-                        int msgPicId = msg.arg1;
-                        Handler pictureTakenHandler = (Handler) msg.obj;
-                        requestTakenPicture(pictureTakenHandler, msgPicId);
-                        return true;
-                    case R.id.capture_preview:
-                        int msgPrevId = msg.arg1;
-                        Handler previewCapturedHandler = (Handler) msg.obj;
-                        requestPreviewFrame(previewCapturedHandler, msgPrevId);
+                    case R.id.return_buffer:
+                        returnFrameBuffer((byte[]) msg.obj);
                         return true;
                 }
                 return false;
             }
         });
-        mInitLatch.countDown();
         Log.v(TAG, "Handler has been initialized");
+        // commands may have been submitted before the looper was prepared
+        scheduleCommands();
+    }
 
+    @Override
+    public boolean quit() {
+        Log.i(TAG, "Command queue " + mCommandQueue);
+        mCommandQueue.clear(new IllegalStateException("CameraManager has quit"));
+        return super.quit();
     }
 
-    public void sendTask(int what, int arg1, int arg2, Object obj) {
-        try {
-            mInitLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Queues a command for this thread. Commands can be submitted before the thread has been
+     * started, they are executed as soon as it runs.
+     * @return the future completing when the command has been executed
+     */
+    @Override
+    public CommandFuture submit(CameraCommand command) {
+        Tracer.begin(Tracer.SEND_TASK);
+        CommandFuture future = mCommandQueue.offer(command);
+        scheduleCommands();
+        Tracer.end(Tracer.SEND_TASK);
+        return future;
+    }
+
+    /*
+     * Makes sure a process_commands message is pending while there are commands. Only one is
+     * pending at a time, so returned frame buffers are not stuck behind a burst of commands.
+     */
+    private void scheduleCommands() {
+        Handler handler = mHandler;
+        if (handler != null && !mCommandQueue.isEmpty()
+                && mCommandsScheduled.compareAndSet(false, true)) {
+            handler.sendEmptyMessage(R.id.process_commands);
         }
-        Message msg = mHandler.obtainMessage(what, arg1, arg2, obj);
-        msg.sendToTarget();
     }
 
-    public void sendTask(int what, Object obj) {
-        try {
-            mInitLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /*
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void processNextCommand() {
+        mCommandsScheduled.set(false);
+        CameraCommand command = mCommandQueue.poll();
+        if (command != null) {
+            Tracer.begin(Tracer.EXECUTE_COMMAND);
+            try {
+                execute(command);
+                // a picture completes its future when it is delivered
+                if (command.type != CameraCommand.Type.TAKE_PICTURE) {
+                    command.future.complete();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Command " + command + " failed", e);
+                command.future.fail(e);
+            }
+            Tracer.end(Tracer.EXECUTE_COMMAND);
         }
-        Message msg = mHandler.obtainMessage(what, obj);
-        msg.sendToTarget();
+        scheduleCommands();
     }
 
-    public void sendTask(int what) {
-        try {
-            mInitLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void execute(CameraCommand command) throws IOException {
+        switch (command.type) {
+            case INIT_CAMERA:
+                initCamera((SurfaceHolder) command.argument);
+                break;
+            case OPEN_CAMERA:
+                openDriver((SurfaceHolder) command.argument);
+                break;
+            case RECONFIGURE:
+                reconfigure((SurfaceHolder) command.argument);
+                break;
+            case APPLY_PROFILE:
+                applyProfile((CameraProfile) command.argument);
+                break;
+            case START_PREVIEW:
+                startPreview();
+                break;
+            case STOP_PREVIEW:
+                stopPreview();
+                break;
+            case TAKE_PICTURE:
+                takePicture((Handler) command.argument, command.what, command.future);
+                break;
+            case CAPTURE_PREVIEW:
+                requestPreviewFrame((Handler) command.argument, command.what);
+                break;
         }
-        Message msg = mHandler.obtainMessage(what);
-        msg.sendToTarget();
     }
 
+    public CommandQueue getCommandQueue() { return mCommandQueue; }
+
     /**
      * Opens the camera driver and initializes the hardware parameters.
      * Shoud be only invoked by the handler mHandler
      *
-     * @param holder The surface object which the camera will draw preview frames into.
-     * @throws IllegalStateException Indicates the given surface is not valid.
+     * @param holder The surface object which the camera will draw preview frames into, null
+     *               for a camera whose frames are only processed and not displayed.
      * @throws IOException           Indicates the camera driver failed to open.
      */
     private void initCamera(SurfaceHolder holder) {
-        if (holder == null) {
-            throw new IllegalStateException("No SurfaceHolder provided");
-        }
         if (isOpen) {
             Log.w(TAG, "initCamera() while already open. Check for early SurfaceView callback?");
+            // the surface may have been recreated, so the next reconfiguration sets it again
+            mSurfaceInvalid = true;
             return;
         }
         try {
@@ -165,20 +243,166 @@ public final class CameraManager extends HandlerThread {
      */
     private void openDriver(SurfaceHolder holder) throws IOException {
         if (mCamera == null) {
-            mCamera = Camera.open(DEFAULT_CAMERA_ID);
+            mCamera = Camera.open(mCameraId);
             if (mCamera == null) {
                 throw new IOException();
             }
         }
 
-        mCamera.setPreviewDisplay(holder);
+        setPreviewSurface(holder);
+        mPreviewHolder = holder;
+        mSurfaceInvalid = false;
         mConfigManager.initFromCameraParameters(mCamera);
+        allocateFrameBuffers();
         isOpen = true;
     }
 
+    /**
+     * Brings the camera to the state requested by the surface and the configuration profile,
+     * applying only what has changed. The preview is only restarted if the surface or the
+     * preview parameters have changed.
+     * Shoud be only invoked by the handler mHandler.
+     *
+     * @param holder The surface object which the camera will draw preview frames into.
+     * @throws IOException Indicates the camera driver failed to open.
+     */
+    private void reconfigure(SurfaceHolder holder) throws IOException {
+        if (!isOpen) {
+            initCamera(holder);
+            return;
+        }
+        long begin = System.nanoTime();
+        Camera.Parameters parameters = mCamera.getParameters();
+        String appliedParameters = parameters.flatten();
+        mConfigManager.requestParameters(parameters);
+        boolean surfaceChanged = mSurfaceInvalid || holder != mPreviewHolder;
+        ReconfigurationPlanner.Plan plan = ReconfigurationPlanner.plan(
+                new FlatParameters(appliedParameters), new FlatParameters(parameters.flatten()),
+                surfaceChanged);
+        if (plan.isEmpty()) {
+            Log.i(TAG, "Reconfiguration skipped, nothing has changed");
+            return;
+        }
+        boolean wasPreviewing = previewing;
+        if (plan.restartPreview) {
+            mFrameBus.markReconfiguration();
+            stopPreview();
+        }
+        if (plan.setSurface) {
+            setPreviewSurface(holder);
+            mPreviewHolder = holder;
+            mSurfaceInvalid = false;
+        }
+        if (plan.setParameters) {
+            mConfigManager.applyParameters(mCamera, parameters, appliedParameters);
+            allocateFrameBuffers();
+        }
+        if (plan.restartPreview && wasPreviewing) {
+            startPreview();
+        }
+        Log.i(TAG, "Reconfiguration with " + plan + " took "
+                + (System.nanoTime() - begin) / 1000000 + " ms");
+    }
+
+    /**
+     * The camera only delivers preview frames while drawing the preview somewhere. Without a
+     * holder it draws into a texture which is never shown.
+     */
+    private void setPreviewSurface(SurfaceHolder holder) throws IOException {
+        if (holder != null) {
+            mCamera.setPreviewDisplay(holder);
+            return;
+        }
+        if (mOffscreenTexture == null) {
+            mOffscreenTexture = new SurfaceTexture(OFFSCREEN_TEXTURE_NAME);
+        }
+        mCamera.setPreviewTexture(mOffscreenTexture);
+    }
+
+    /**
+     * Allocates the preview buffers for the current preview resolution and hands them to the
+     * camera. Buffers of a former resolution still held by subscribers are dropped when they
+     * are returned, they are not accounted in the memory budget anymore.
+     */
+    private void allocateFrameBuffers() {
+        Point previewResolution = mConfigManager.getPreviewResolution();
+        int bufferSize = previewResolution.x * previewResolution.y
+                * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        if (bufferSize == mFrameBufferSize) {
+            return;
+        }
+        // clears the buffer queue of the camera
+        mCamera.setPreviewCallbackWithBuffer(null);
+        freeFrameBuffers();
+        mFrameBufferSize = bufferSize;
+        int count = getTargetFrameBufferCount();
+        for (int i = 0; i < count; i++) {
+            mCamera.addCallbackBuffer(new byte[bufferSize]);
+        }
+        mFrameBufferCount = count;
+        mMemoryBudget.allocate(MemoryBudget.Category.PREVIEW_FRAMES, (long) count * bufferSize);
+        mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+    }
+
+    private void freeFrameBuffers() {
+        mMemoryBudget.free(MemoryBudget.Category.PREVIEW_FRAMES,
+                (long) mFrameBufferCount * mFrameBufferSize);
+        mFrameBufferCount = 0;
+        mFrameBufferSize = 0;
+    }
+
+    private int getTargetFrameBufferCount() {
+        return mMemoryBudget.isAtLeast(MemoryBudget.Stage.SHRINK_QUEUES)
+                ? SHRUNK_FRAME_BUFFER_COUNT : FRAME_BUFFER_COUNT;
+    }
+
+    /*
+     * Gives a buffer released by all frame bus subscribers back to the camera. The number of
+     * buffers follows the memory budget: a buffer beyond the target count is dropped, and if
+     * buffers are missing a new one is added along.
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void returnFrameBuffer(byte[] buffer) {
+        if (mCamera == null || buffer.length != mFrameBufferSize) {
+            return;
+        }
+        int target = getTargetFrameBufferCount();
+        if (mFrameBufferCount > target) {
+            mFrameBufferCount--;
+            mMemoryBudget.free(MemoryBudget.Category.PREVIEW_FRAMES, mFrameBufferSize);
+            return;
+        }
+        mCamera.addCallbackBuffer(buffer);
+        if (mFrameBufferCount < target) {
+            mFrameBufferCount++;
+            mMemoryBudget.allocate(MemoryBudget.Category.PREVIEW_FRAMES, mFrameBufferSize);
+            mCamera.addCallbackBuffer(new byte[mFrameBufferSize]);
+        }
+    }
+
+    /**
+     * Switches to another configuration profile. A running preview is restarted with the new
+     * settings. Shoud be only invoked by the handler mHandler, use
+     * submit(CameraCommand.applyProfile(profile)).
+     */
+    private void applyProfile(CameraProfile profile) {
+        mConfigManager.setProfile(profile);
+        if (mCamera == null) {
+            return;
+        }
+        boolean wasPreviewing = previewing;
+        stopPreview();
+        mConfigManager.initFromCameraParameters(mCamera);
+        allocateFrameBuffers();
+        if (wasPreviewing) {
+            startPreview();
+        }
+    }
+
     /**
      * Is used for destroying the camera as equivalent to initCamera()
      */
+    @Override
     public void destroyCamera() {
         stopPreview();
         closeDriver();              // release the camera immediately on pause event
@@ -205,7 +429,7 @@ public final class CameraManager extends HandlerThread {
         if (mCamera != null && previewing) {
             mCamera.stopPreview();
             mPreviewCallback.setHandler(null, 0);
-            mPictureCallback.setHandler(null, 0);
+            mPictureCallback.cancel(new IllegalStateException("The preview has been stopped"));
             previewing = false;
         }
     }
@@ -216,14 +440,36 @@ public final class CameraManager extends HandlerThread {
     private void closeDriver() {
         if (mCamera != null) {
             mCamera.release();
+            mCamera = null;
+        }
+        if (mOffscreenTexture != null) {
+            mOffscreenTexture.release();
+            mOffscreenTexture = null;
         }
+        freeFrameBuffers();
+        mPreviewHolder = null;
         isOpen = false;
     }
 
+    /**
+     * The bus delivering every preview frame to its subscribers. Frames are published on this
+     * thread while the preview is running.
+     */
+    @Override
+    public FrameBus getFrameBus() { return mFrameBus; }
+
+    @Override
+    public int getCameraId() { return mCameraId; }
+
+    /** The clockwise rotation in degree which turns a preview frame into display orientation */
+    @Override
+    public int getResultRotation() { return mConfigManager.getResultRotation(); }
+
     /**
      * A single preview frame will be returned to the handler supplied. The data will arrive as byte[]
      * in the message.obj field, with width and height encoded as message.arg1 and message.arg2,
-     * respectively.
+     * respectively. The data is a copy of the frame, consumers processing every frame should
+     * subscribe to the frame bus instead.
      *
      * @param handler The handler to send the preview frame to.
      * @param what The what field of the message to be sent with the preview frame.
@@ -231,7 +477,6 @@ public final class CameraManager extends HandlerThread {
     public void requestPreviewFrame(Handler handler, int what) {
         if (mCamera != null && previewing) {
             mPreviewCallback.setHandler(handler, what);
-            mCamera.setOneShotPreviewCallback(mPreviewCallback);
         }
     }
 
@@ -244,10 +489,22 @@ public final class CameraManager extends HandlerThread {
      * @param what The what field of the message to be sent with the picture.
      */
     public void requestTakenPicture(Handler handler, int what) {
-        if (mCamera != null && previewing) {
-            mPictureCallback.setHandler(handler, what);
-            mCamera.takePicture(null, null, null, mPictureCallback);
+        takePicture(handler, what, null);
+    }
+
+    /*
+     * The future, if any, completes when the picture has been sent to the handler.
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void takePicture(Handler handler, int what, CommandFuture future) {
+        if (mCamera == null || !previewing) {
+            if (future != null) {
+                future.fail(new IllegalStateException("The preview is not running"));
+            }
+            return;
         }
+        mPictureCallback.setHandler(handler, what, future);
+        mCamera.takePicture(null, null, null, mPictureCallback);
     }
 
 }
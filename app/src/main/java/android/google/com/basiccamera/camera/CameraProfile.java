@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.util.List;
+
+/**
+ * Configuration profiles trading image quality against frame delivery speed and power. A profile
+ * negotiates preview size, preview fps range and preview format from the supported values of the
+ * camera. The negotiation works on the flattened parameters only, so the decisions for a device
+ * can be checked with a parameter dump on a plain JVM.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public enum CameraProfile {
+
+    /** The smallest suitable preview size at the highest fixed frame rate */
+    MAX_THROUGHPUT,
+    /** A preview size close to the screen resolution at a variable frame rate */
+    BALANCED,
+    /** The smallest suitable preview size at a frame rate of at most 15 fps */
+    LOW_POWER;
+
+    private static final int MIN_SIZE_PIXELS = 480 * 320; // normal screen
+    private static final double MAX_ASPECT_DISTORTION = 0.15;
+    private static final int LOW_POWER_MAX_FPS = 15000;
+    // the pipeline processes NV21 frames only, which every camera supports
+    private static final String[] PREVIEW_FORMATS = {"yuv420sp"};
+
+    /**
+     * Chooses the preview settings of this profile
+     * @param parameters the flattened parameters of the camera
+     * @param screenWidth the width of the screen in landscape
+     * @param screenHeight the height of the screen in landscape
+     */
+    public CameraSettings select(FlatParameters parameters, int screenWidth, int screenHeight) {
+        int[] previewSize = findPreviewSize(parameters, screenWidth, screenHeight);
+        int[] fpsRange = findFpsRange(parameters.getFpsRanges());
+        String previewFormat = findSettableValue(
+                parameters.getList(FlatParameters.PREVIEW_FORMAT_VALUES), PREVIEW_FORMATS);
+        boolean recordingHint = this == MAX_THROUGHPUT
+                && parameters.contains(FlatParameters.RECORDING_HINT);
+        return new CameraSettings(this, previewSize[0], previewSize[1],
+                fpsRange == null ? 0 : fpsRange[0], fpsRange == null ? 0 : fpsRange[1],
+                previewFormat, recordingHint);
+    }
+
+    /**
+     * Filters the sizes like CameraConfigurationUtils: too small sizes and sizes with a different
+     * aspect ratio than the screen are ignored. BALANCED takes the size matching the screen or
+     * the largest one, the other profiles take the smallest one.
+     */
+    private int[] findPreviewSize(FlatParameters parameters, int screenWidth, int screenHeight) {
+        double screenAspectRatio = (double) screenWidth / (double) screenHeight;
+        int[] best = null;
+        for (int[] size : parameters.getSizes(FlatParameters.PREVIEW_SIZE_VALUES)) {
+            int pixels = size[0] * size[1];
+            if (pixels < MIN_SIZE_PIXELS) {
+                continue;
+            }
+            boolean isCandidatePortrait = size[0] < size[1];
+            int maybeFlippedWidth = isCandidatePortrait ? size[1] : size[0];
+            int maybeFlippedHeight = isCandidatePortrait ? size[0] : size[1];
+            double aspectRatio = (double) maybeFlippedWidth / (double) maybeFlippedHeight;
+            if (Math.abs(aspectRatio - screenAspectRatio) > MAX_ASPECT_DISTORTION) {
+                continue;
+            }
+            if (this == BALANCED) {
+                if (maybeFlippedWidth == screenWidth && maybeFlippedHeight == screenHeight) {
+                    return size;
+                }
+                if (best == null || pixels > best[0] * best[1]) {
+                    best = size;
+                }
+            } else if (best == null || pixels < best[0] * best[1]) {
+                best = size;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        int[] defaultSize = parameters.getSize(FlatParameters.PREVIEW_SIZE);
+        if (defaultSize == null) {
+            throw new IllegalStateException("Parameters contained no size!");
+        }
+        return defaultSize;
+    }
+
+    /**
+     * @return the best supported range as {min, max} or null if the camera lists none
+     */
+    private int[] findFpsRange(List<int[]> ranges) {
+        int[] best = null;
+        for (int[] range : ranges) {
+            if (best == null || isBetterFpsRange(range, best)) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    private boolean isBetterFpsRange(int[] range, int[] best) {
+        switch (this) {
+            case MAX_THROUGHPUT:
+                // a high minimum keeps the auto exposure from lowering the frame rate
+                return range[1] > best[1] || (range[1] == best[1] && range[0] > best[0]);
+            case LOW_POWER:
+                boolean inBudget = range[1] <= LOW_POWER_MAX_FPS;
+                boolean bestInBudget = best[1] <= LOW_POWER_MAX_FPS;
+                if (inBudget != bestInBudget) {
+                    return inBudget;
+                }
+                if (range[1] != best[1]) {
+                    // closest to the budget, from below or above
+                    return inBudget ? range[1] > best[1] : range[1] < best[1];
+                }
+                return range[0] < best[0];
+            default:
+                return range[1] > best[1] || (range[1] == best[1] && range[0] < best[0]);
+        }
+    }
+
+    /**
+     * Finds the best possible value out of the list of supported values
+     * @param supportedValues the supported values
+     * @param desiredValues the desired values with descending priority
+     * @return the best possible value or null
+     */
+    private static String findSettableValue(List<String> supportedValues,
+                                            String... desiredValues) {
+        for (String desiredValue : desiredValues) {
+            if (supportedValues.contains(desiredValue)) {
+                return desiredValue;
+            }
+        }
+        return null;
+    }
+}
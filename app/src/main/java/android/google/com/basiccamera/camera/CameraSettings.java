@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+/**
+ * The preview settings chosen by a CameraProfile. Values which could not be negotiated are null
+ * or 0 and keep the setting of the camera.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CameraSettings {
+
+    public final CameraProfile profile;
+    public final int previewWidth;
+    public final int previewHeight;
+    // fps scaled by 1000, as the camera parameters use them
+    public final int fpsMin;
+    public final int fpsMax;
+    public final String previewFormat;
+    public final boolean recordingHint;
+
+    public CameraSettings(CameraProfile profile, int previewWidth, int previewHeight, int fpsMin,
+                          int fpsMax, String previewFormat, boolean recordingHint) {
+        this.profile = profile;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.fpsMin = fpsMin;
+        this.fpsMax = fpsMax;
+        this.previewFormat = previewFormat;
+        this.recordingHint = recordingHint;
+    }
+
+    public boolean hasFpsRange() { return fpsMax > 0; }
+
+    @Override
+    public String toString() {
+        return profile + ": preview " + previewWidth + "x" + previewHeight + ", fps "
+                + (fpsMin / 1000.0) + "-" + (fpsMax / 1000.0) + ", format " + previewFormat
+                + (recordingHint ? ", recording hint" : "");
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completes when a camera command has been executed. Commands which were coalesced with another
+ * one share its future, commands which cancelled each other out complete immediately.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CommandFuture implements Future<Void> {
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile Throwable mFailure;
+
+    // the first completion or failure wins, a picture can be delivered and cancelled at once
+    synchronized void complete() {
+        mDone.countDown();
+    }
+
+    synchronized void fail(Throwable failure) {
+        if (mDone.getCount() != 0) {
+            mFailure = failure;
+            mDone.countDown();
+        }
+    }
+
+    /** Commands can not be cancelled once they are queued */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) { return false; }
+
+    @Override
+    public boolean isCancelled() { return false; }
+
+    @Override
+    public boolean isDone() { return mDone.getCount() == 0; }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The pending commands of the CameraManager, one FIFO queue per lane. Configuration commands
+ * change the state the pictures and preview captures depend on, so they are executed in the
+ * order of submission relative to all other commands. Only pictures and preview captures which
+ * were submitted before the next pending configuration command can overtake each other, they
+ * are taken from the lane with the highest priority first. When a command is queued it is
+ * coalesced with the pending ones:
+ * <ul>
+ * <li>a capture preview request for a handler and what which is already pending joins it, as
+ * long as no configuration command was submitted after it</li>
+ * <li>a start preview right after a pending stop preview cancels the stop, because starting is a
+ * no-op on a running preview</li>
+ * <li>a command of the same type as the last submitted pending one joins it, the argument of
+ * the newer command wins; pictures are never coalesced</li>
+ * </ul>
+ * All methods are thread safe.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CommandQueue {
+
+    private final ArrayDeque<CameraCommand>[] mLanes;
+    private long mSubmittedCount;
+    // the sequence of the last queued command
+    private long mSequence;
+    private long mCoalescedCount;
+    private final long[] mExecutedCount;
+    private final long[] mTotalWait;
+    private final long[] mMaxWait;
+
+    @SuppressWarnings("unchecked")
+    public CommandQueue() {
+        int laneCount = CameraCommand.Lane.values().length;
+        mLanes = new ArrayDeque[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            mLanes[i] = new ArrayDeque<>();
+        }
+        mExecutedCount = new long[laneCount];
+        mTotalWait = new long[laneCount];
+        mMaxWait = new long[laneCount];
+    }
+
+    /**
+     * Queues the command or coalesces it with a pending one
+     * @return the future completing with the execution of the command
+     */
+    public synchronized CommandFuture offer(CameraCommand command) {
+        mSubmittedCount++;
+        ArrayDeque<CameraCommand> lane = mLanes[command.type.lane.ordinal()];
+        CameraCommand last = newest(lane);
+        switch (command.type) {
+            case TAKE_PICTURE:
+                break;
+            case CAPTURE_PREVIEW:
+                CameraCommand configuration = configurationLane().peekLast();
+                for (CameraCommand pending : lane) {
+                    if (pending.argument == command.argument && pending.what == command.what
+                            && (configuration == null
+                            || pending.sequence > configuration.sequence)) {
+                        mCoalescedCount++;
+                        return pending.future;
+                    }
+                }
+                break;
+            case START_PREVIEW:
+                if (last != null && last.type == CameraCommand.Type.STOP_PREVIEW) {
+                    lane.pollLast();
+                    last.future.complete();
+                    mCoalescedCount++;
+                    last = newest(lane);
+                }
+                // falls through
+            default:
+                if (last != null && last.type == command.type) {
+                    last.argument = command.argument;
+                    mCoalescedCount++;
+                    return last.future;
+                }
+        }
+        command.enqueueTime = System.nanoTime();
+        command.sequence = ++mSequence;
+        lane.addLast(command);
+        return command.future;
+    }
+
+    /*
+     * Returns the last command of the lane if it is the last submitted of all pending commands,
+     * otherwise joining it would move the newer command before the ones submitted in between.
+     */
+    private CameraCommand newest(ArrayDeque<CameraCommand> lane) {
+        CameraCommand last = lane.peekLast();
+        if (last == null) {
+            return null;
+        }
+        for (ArrayDeque<CameraCommand> other : mLanes) {
+            CameraCommand otherLast = other.peekLast();
+            if (otherLast != null && otherLast.sequence > last.sequence) {
+                return null;
+            }
+        }
+        return last;
+    }
+
+    private ArrayDeque<CameraCommand> configurationLane() {
+        return mLanes[CameraCommand.Lane.CONFIGURATION.ordinal()];
+    }
+
+    /**
+     * Takes the next command and records how long it has waited
+     * @return the command or null if there is none
+     */
+    public synchronized CameraCommand poll() {
+        CameraCommand configuration = configurationLane().peekFirst();
+        for (int i = 0; i < mLanes.length; i++) {
+            CameraCommand command = mLanes[i].peekFirst();
+            if (command == null) {
+                continue;
+            }
+            // a configuration command waits for everything submitted before it, the others
+            // only overtake each other up to the next configuration command
+            boolean next = i == CameraCommand.Lane.CONFIGURATION.ordinal()
+                    ? isOldest(command)
+                    : configuration == null || command.sequence < configuration.sequence;
+            if (next) {
+                mLanes[i].pollFirst();
+                long wait = System.nanoTime() - command.enqueueTime;
+                mExecutedCount[i]++;
+                mTotalWait[i] += wait;
+                mMaxWait[i] = Math.max(mMaxWait[i], wait);
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private boolean isOldest(CameraCommand command) {
+        for (ArrayDeque<CameraCommand> lane : mLanes) {
+            CameraCommand first = lane.peekFirst();
+            if (first != null && first.sequence < command.sequence) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (ArrayDeque<CameraCommand> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all pending commands, their futures fail with the given reason
+     */
+    public void clear(Throwable reason) {
+        ArrayDeque<CameraCommand> dropped = new ArrayDeque<>();
+        synchronized (this) {
+            for (ArrayDeque<CameraCommand> lane : mLanes) {
+                dropped.addAll(lane);
+                lane.clear();
+            }
+        }
+        Iterator<CameraCommand> it = dropped.iterator();
+        while (it.hasNext()) {
+            it.next().future.fail(reason);
+        }
+    }
+
+    /** @return the share of submitted commands which were coalesced with a pending one */
+    public synchronized double getCoalescingHitRate() {
+        return mSubmittedCount == 0 ? 0 : (double) mCoalescedCount / mSubmittedCount;
+    }
+
+    /** @return the mean time commands of the lane waited in the queue in nanoseconds */
+    public synchronized long getMeanWait(CameraCommand.Lane lane) {
+        long count = mExecutedCount[lane.ordinal()];
+        return count == 0 ? 0 : mTotalWait[lane.ordinal()] / count;
+    }
+
+    /** @return the longest time a command of the lane waited in the queue in nanoseconds */
+    public synchronized long getMaxWait(CameraCommand.Lane lane) {
+        return mMaxWait[lane.ordinal()];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder statistics = new StringBuilder();
+        statistics.append("submitted: ").append(mSubmittedCount).append(", coalesced: ")
+                .append(mCoalescedCount);
+        for (CameraCommand.Lane lane : CameraCommand.Lane.values()) {
+            statistics.append(", ").append(lane).append(" executed: ")
+                    .append(mExecutedCount[lane.ordinal()]).append(" mean wait: ")
+                    .append(getMeanWait(lane) / 1000).append(" us max wait: ")
+                    .append(getMaxWait(lane) / 1000).append(" us");
+        }
+        return statistics.toString();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The camera parameters as returned by Camera.Parameters.flatten(), e.g. as saved by
+ * CameraConfigurationManager.saveCameraInfo(). It does not depend on Android, so decisions based
+ * on the parameters of a device can be reproduced on a plain JVM.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class FlatParameters {
+
+    public static final String PREVIEW_SIZE = "preview-size";
+    public static final String PREVIEW_SIZE_VALUES = "preview-size-values";
+    public static final String PREVIEW_FPS_RANGE = "preview-fps-range";
+    public static final String PREVIEW_FPS_RANGE_VALUES = "preview-fps-range-values";
+    public static final String PREVIEW_FORMAT = "preview-format";
+    public static final String PREVIEW_FORMAT_VALUES = "preview-format-values";
+    public static final String FOCUS_MODE_VALUES = "focus-mode-values";
+    public static final String RECORDING_HINT = "recording-hint";
+
+    private final Map<String, String> mValues;
+
+    public FlatParameters(String flattened) {
+        mValues = new HashMap<>();
+        for (String entry : flattened.trim().split(";")) {
+            int separator = entry.indexOf('=');
+            if (separator > 0) {
+                mValues.put(entry.substring(0, separator), entry.substring(separator + 1));
+            }
+        }
+    }
+
+    public String get(String key) { return mValues.get(key); }
+
+    public boolean contains(String key) { return mValues.containsKey(key); }
+
+    /** @return the values of a comma separated list, empty if the key is missing */
+    public List<String> getList(String key) {
+        String value = mValues.get(key);
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> list = new ArrayList<>();
+        for (String item : value.split(",")) {
+            list.add(item.trim());
+        }
+        return list;
+    }
+
+    /** @return the sizes as {width, height} */
+    public List<int[]> getSizes(String key) {
+        List<int[]> sizes = new ArrayList<>();
+        for (String item : getList(key)) {
+            int[] size = parseSize(item);
+            if (size != null) {
+                sizes.add(size);
+            }
+        }
+        return sizes;
+    }
+
+    /** @return the size as {width, height} or null */
+    public int[] getSize(String key) {
+        String value = mValues.get(key);
+        return value == null ? null : parseSize(value);
+    }
+
+    /** @return the supported preview fps ranges as {min, max} scaled by 1000 */
+    public List<int[]> getFpsRanges() {
+        List<int[]> ranges = new ArrayList<>();
+        String value = mValues.get(PREVIEW_FPS_RANGE_VALUES);
+        if (value == null) {
+            return ranges;
+        }
+        // the format is "(15000,15000),(15000,30000)"
+        for (String range : value.split("\\),?")) {
+            String[] bounds = range.replace("(", "").split(",");
+            if (bounds.length == 2) {
+                try {
+                    ranges.add(new int[]{Integer.parseInt(bounds[0].trim()),
+                            Integer.parseInt(bounds[1].trim())});
+                } catch (NumberFormatException e) {
+                    // skips malformed ranges
+                }
+            }
+        }
+        return ranges;
+    }
+
+    private static int[] parseSize(String value) {
+        int separator = value.indexOf('x');
+        if (separator <= 0) {
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(value.substring(0, separator).trim()),
+                    Integer.parseInt(value.substring(separator + 1).trim())};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
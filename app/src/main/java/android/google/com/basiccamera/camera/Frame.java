@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted preview frame in NV21 format. The buffer is shared by all consumers of the
+ * frame and is given back to the camera when the last reference is released, so consumers must
+ * neither modify nor keep the data after releasing the frame.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class Frame {
+
+    private final FrameBus mFrameBus;
+    private final byte[] mData;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mSequence;
+    private final long mTimestamp;
+    private final long mCaptureTimestamp;
+    private final AtomicInteger mReferenceCount;
+    private ByteBuffer mBuffer;
+
+    Frame(FrameBus frameBus, byte[] data, int width, int height, long sequence, long timestamp,
+            long captureTimestamp) {
+        mFrameBus = frameBus;
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        mCaptureTimestamp = captureTimestamp;
+        mReferenceCount = new AtomicInteger(1);
+    }
+
+    public byte[] getData() { return mData; }
+
+    /**
+     * A read only view of the data without copying it. The Y plane are the first
+     * width * height bytes, followed by the interleaved V and U samples.
+     */
+    public synchronized ByteBuffer getBuffer() {
+        if (mBuffer == null) {
+            mBuffer = ByteBuffer.wrap(mData).asReadOnlyBuffer();
+        }
+        return mBuffer.duplicate();
+    }
+
+    public int getWidth() { return mWidth; }
+
+    public int getHeight() { return mHeight; }
+
+    /** The number of the frame, counted by the frame bus since it was created */
+    public long getSequence() { return mSequence; }
+
+    /** The time the frame has arrived in System.nanoTime() */
+    public long getTimestamp() { return mTimestamp; }
+
+    /**
+     * The time the sensor captured the frame in System.nanoTime(), so the deadlines of the frame
+     * include the time it spent in the camera pipeline. Only Camera2 reports it, and only where
+     * the sensor timestamps share a clock with the system. The old camera API and other devices
+     * give no capture time, there it is the arrival time and the time before the callback is
+     * not counted against the staleness budget.
+     */
+    public long getCaptureTimestamp() { return mCaptureTimestamp; }
+
+    /** Acquires an additional reference */
+    public Frame retain() {
+        if (mReferenceCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame " + mSequence + " was already released");
+        }
+        return this;
+    }
+
+    /** Releases a reference, the last one gives the buffer back */
+    public void release() {
+        int count = mReferenceCount.decrementAndGet();
+        if (count == 0) {
+            mFrameBus.recycle(mData);
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame " + mSequence + " was released too often");
+        }
+    }
+}
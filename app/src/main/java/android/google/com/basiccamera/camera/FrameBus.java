@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers every published frame to all subscribers without copying it. Each subscriber has its
+ * own bounded queue and drop policy. The buffer of a frame is given back to its owner when the
+ * last subscriber has released the frame.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class FrameBus {
+
+    /** Receives the buffers of frames which are not referenced anymore */
+    public interface BufferRecycler {
+        void recycle(byte[] buffer);
+    }
+
+    /**
+     * Is invoked on the publishing thread whenever a frame has been queued for a subscriber. It
+     * should only notify the subscriber's own thread.
+     */
+    public interface Listener {
+        void onFrameAvailable(Subscription subscription);
+    }
+
+    /** What happens to a frame which arrives when the queue of a subscriber is full */
+    public enum DropPolicy {
+        /** The oldest queued frame is dropped in favour of the new one */
+        DROP_OLDEST,
+        /** The new frame is dropped */
+        DROP_NEWEST
+    }
+
+    private final BufferRecycler mRecycler;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions;
+    private long mSequence;
+    // time of the last published frame and of the last frame before a reconfiguration
+    private long mLastTimestamp;
+    private long mGapBegin;
+    private volatile long mLastGap;
+    private volatile long mMaxGap;
+
+    public FrameBus(BufferRecycler recycler) {
+        mRecycler = recycler;
+        mSubscriptions = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * @param queueDepth the maximum number of frames waiting for the subscriber
+     * @param dropPolicy what to do with frames arriving at a full queue
+     * @param listener notified about queued frames, can be null for blocking consumers
+     */
+    public Subscription subscribe(int queueDepth, DropPolicy dropPolicy, Listener listener) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("Queue depth has to be at least 1");
+        }
+        Subscription subscription = new Subscription(queueDepth, dropPolicy, listener);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public boolean hasSubscribers() { return !mSubscriptions.isEmpty(); }
+
+    /**
+     * Delivers the buffer to all current subscribers, captured at the time of arrival. Should be
+     * invoked only by the thread receiving the frames from the camera.
+     * @return the sequence number of the frame
+     */
+    public long publish(byte[] data, int width, int height) {
+        return publish(data, width, height, 0);
+    }
+
+    /**
+     * Delivers the buffer to all current subscribers. Should be invoked only by the thread
+     * receiving the frames from the camera.
+     * @param captureTimestamp the time the sensor captured the frame in System.nanoTime(), 0 if
+     *                         it is unknown
+     * @return the sequence number of the frame
+     */
+    public long publish(byte[] data, int width, int height, long captureTimestamp) {
+        long timestamp = System.nanoTime();
+        if (mGapBegin != 0) {
+            mLastGap = timestamp - mGapBegin;
+            mMaxGap = Math.max(mMaxGap, mLastGap);
+            mGapBegin = 0;
+        }
+        mLastTimestamp = timestamp;
+        // a capture time after the arrival comes from a clock which is not the system one
+        if (captureTimestamp <= 0 || captureTimestamp > timestamp) {
+            captureTimestamp = timestamp;
+        }
+        Frame frame = new Frame(this, data, width, height, mSequence++, timestamp,
+                captureTimestamp);
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(frame);
+        }
+        // drops the reference of the bus itself
+        frame.release();
+        return frame.getSequence();
+    }
+
+    /**
+     * Starts measuring the gap in frame delivery caused by a reconfiguration of the camera. The
+     * gap lasts from the last frame before till the first frame after the reconfiguration.
+     * Should be invoked only by the publishing thread.
+     */
+    public void markReconfiguration() {
+        if (mGapBegin == 0) {
+            mGapBegin = mLastTimestamp != 0 ? mLastTimestamp : System.nanoTime();
+        }
+    }
+
+    /** @return whether the gap of a reconfiguration is still being measured */
+    public boolean isMeasuringGap() { return mGapBegin != 0; }
+
+    /** @return the last measured gap caused by a reconfiguration in nanoseconds */
+    public long getLastReconfigurationGap() { return mLastGap; }
+
+    /** @return the longest measured gap caused by a reconfiguration in nanoseconds */
+    public long getMaxReconfigurationGap() { return mMaxGap; }
+
+    void recycle(byte[] buffer) {
+        mRecycler.recycle(buffer);
+    }
+
+    /**
+     * The queue of a single consumer. Every frame taken from it has to be released by the consumer.
+     */
+    public final class Subscription {
+
+        private final int mQueueDepth;
+        private final DropPolicy mDropPolicy;
+        private final Listener mListener;
+        // guarded by this
+        private final ArrayDeque<Frame> mQueue;
+        private boolean mCancelled;
+        private long mDeliveredCount;
+        private long mDroppedCount;
+
+        private Subscription(int queueDepth, DropPolicy dropPolicy, Listener listener) {
+            mQueueDepth = queueDepth;
+            mDropPolicy = dropPolicy;
+            mListener = listener;
+            mQueue = new ArrayDeque<>(queueDepth);
+        }
+
+        private void offer(Frame frame) {
+            Frame dropped = null;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                if (mQueue.size() >= mQueueDepth) {
+                    mDroppedCount++;
+                    if (mDropPolicy == DropPolicy.DROP_NEWEST) {
+                        return;
+                    }
+                    dropped = mQueue.pollFirst();
+                }
+                mQueue.addLast(frame.retain());
+                notifyAll();
+            }
+            if (dropped != null) {
+                dropped.release();
+            }
+            if (mListener != null) {
+                mListener.onFrameAvailable(this);
+            }
+        }
+
+        /** Returns the oldest queued frame or null if there is none */
+        public synchronized Frame poll() {
+            Frame frame = mQueue.pollFirst();
+            if (frame != null) {
+                mDeliveredCount++;
+            }
+            return frame;
+        }
+
+        /**
+         * Blocks till a frame is available.
+         * @return the oldest queued frame or null if the subscription was cancelled
+         */
+        public synchronized Frame take() throws InterruptedException {
+            while (mQueue.isEmpty() && !mCancelled) {
+                wait();
+            }
+            return poll();
+        }
+
+        /** Removes the subscription, releases all queued frames and wakes up a blocked take() */
+        public void cancel() {
+            mSubscriptions.remove(this);
+            ArrayDeque<Frame> queued;
+            synchronized (this) {
+                mCancelled = true;
+                queued = new ArrayDeque<>(mQueue);
+                mQueue.clear();
+                notifyAll();
+            }
+            for (Frame frame : queued) {
+                frame.release();
+            }
+        }
+
+        public synchronized boolean isCancelled() { return mCancelled; }
+
+        public synchronized long getDeliveredCount() { return mDeliveredCount; }
+
+        public synchronized long getDroppedCount() { return mDroppedCount; }
+    }
+}
@@ -39,14 +39,36 @@ public final class PictureCallback implements Camera.PictureCallback {
     private Handler mPictureHandler;
     // the what field of the message
     private int mPictureMessage;
+    // completes when the picture has been sent, may be null
+    private CommandFuture mPictureFuture;
 
     public PictureCallback(CameraConfigurationManager cameraConfigManager) {
         this.mCameraConfigManager = cameraConfigManager;
     }
 
     public void setHandler(Handler handler, int message) {
+        setHandler(handler, message, null);
+    }
+
+    /**
+     * @param future completes when the picture has been sent to the handler, may be null
+     */
+    public void setHandler(Handler handler, int message, CommandFuture future) {
+        cancel(new IllegalStateException("A newer picture has been requested"));
         this.mPictureHandler = handler;
         this.mPictureMessage = message;
+        this.mPictureFuture = future;
+    }
+
+    /**
+     * Forgets the requested picture, its future fails with the given reason
+     */
+    public void cancel(Throwable reason) {
+        if (mPictureFuture != null) {
+            mPictureFuture.fail(reason);
+        }
+        mPictureHandler = null;
+        mPictureFuture = null;
     }
 
     /**
@@ -65,8 +87,13 @@ public final class PictureCallback implements Camera.PictureCallback {
                     cameraResolution.y, data);
             message.sendToTarget();
             mPictureHandler = null;
+            if (mPictureFuture != null) {
+                mPictureFuture.complete();
+                mPictureFuture = null;
+            }
         } else {
             Log.d(TAG, "Got preview callback, but no handler or resolution available");
+            cancel(new IllegalStateException("The picture could not be delivered"));
         }
     }
 }
\ No newline at end of file
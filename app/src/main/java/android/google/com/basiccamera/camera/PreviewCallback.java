@@ -17,6 +17,7 @@
 
 package android.google.com.basiccamera.camera;
 
+import android.google.com.basiccamera.trace.Tracer;
 import android.graphics.Point;
 import android.hardware.Camera;
 import android.os.Handler;
@@ -36,13 +37,15 @@ public final class PreviewCallback implements Camera.PreviewCallback {
     private static final String TAG = PreviewCallback.class.getSimpleName();
 
     private final CameraConfigurationManager mCameraConfigManager;
-    // the handler to send back the picture
+    private final FrameBus mFrameBus;
+    // the handler to send back a single preview frame
     private Handler mPreviewHandler;
     // the what field of the message
     private int mPreviewMessage;
 
-    public PreviewCallback(CameraConfigurationManager cameraConfigManager) {
+    public PreviewCallback(CameraConfigurationManager cameraConfigManager, FrameBus frameBus) {
         this.mCameraConfigManager = cameraConfigManager;
+        this.mFrameBus = frameBus;
     }
 
     public void setHandler(Handler handler, int message) {
@@ -51,22 +54,40 @@ public final class PreviewCallback implements Camera.PreviewCallback {
     }
 
     /**
-     * This method is called within the CameraManager thread.
+     * This method is called within the CameraManager thread. The frame is published to all
+     * subscribers of the frame bus. A pending single frame request gets its own copy, because
+     * the buffer goes back to the camera as soon as all subscribers are done with it.
      * @param data the byte array of the preview frame encoded in YUV
      * @param camera the camera object
      */
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
         Log.v(TAG,"onPreviewFrame() method was called");
+        if (data == null) {
+            Log.w(TAG, "Got preview callback without data, callback buffer too small?");
+            return;
+        }
         Point cameraResolution = mCameraConfigManager.getPreviewResolution();
+        if (cameraResolution == null) {
+            Log.d(TAG, "Got preview callback, but no resolution available");
+            mFrameBus.recycle(data);
+            return;
+        }
         Handler thePreviewHandler = mPreviewHandler;
-        if (cameraResolution != null && thePreviewHandler != null) {
+        if (thePreviewHandler != null) {
             Message message = thePreviewHandler.obtainMessage(mPreviewMessage, cameraResolution.x,
-                    cameraResolution.y, data);
+                    cameraResolution.y, data.clone());
             message.sendToTarget();
             mPreviewHandler = null;
-        } else {
-            Log.d(TAG, "Got preview callback, but no handler or resolution available");
+        }
+        boolean measuringGap = mFrameBus.isMeasuringGap();
+        Tracer.begin(Tracer.ON_PREVIEW_FRAME);
+        long sequence = mFrameBus.publish(data, cameraResolution.x, cameraResolution.y);
+        Tracer.flowStart(sequence);
+        Tracer.end(Tracer.ON_PREVIEW_FRAME);
+        if (measuringGap) {
+            Log.i(TAG, "Gap in frame delivery caused by reconfiguration: "
+                    + mFrameBus.getLastReconfigurationGap() / 1000000 + " ms");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which steps are needed to get from the applied camera parameters to the requested ones.
+ * Only changes of the preview parameters or of the preview surface need a restart of the
+ * preview, picture size and focus mode can be changed while the preview is running.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ReconfigurationPlanner {
+
+    // parameters which can only be changed while the preview is stopped
+    private static final String[] PREVIEW_KEYS = {FlatParameters.PREVIEW_SIZE,
+            FlatParameters.PREVIEW_FPS_RANGE, FlatParameters.PREVIEW_FORMAT,
+            FlatParameters.RECORDING_HINT};
+    // parameters which can be changed while the preview is running
+    private static final String[] STILL_KEYS = {"picture-size", "focus-mode"};
+
+    /** The steps of a reconfiguration */
+    public static final class Plan {
+        public final boolean setSurface;
+        public final boolean setParameters;
+        public final boolean restartPreview;
+        public final List<String> changedKeys;
+
+        private Plan(boolean setSurface, List<String> changedKeys, boolean restartPreview) {
+            this.setSurface = setSurface;
+            this.setParameters = !changedKeys.isEmpty();
+            this.restartPreview = restartPreview;
+            this.changedKeys = changedKeys;
+        }
+
+        public boolean isEmpty() { return !setSurface && !setParameters; }
+
+        @Override
+        public String toString() {
+            return "surface " + (setSurface ? "changed" : "kept") + ", changed parameters "
+                    + changedKeys + (restartPreview ? ", preview restarted" : "");
+        }
+    }
+
+    private ReconfigurationPlanner() {}
+
+    /**
+     * @param applied the parameters the camera currently uses
+     * @param requested the parameters which should be used
+     * @param surfaceChanged whether the preview surface has to be set again
+     */
+    public static Plan plan(FlatParameters applied, FlatParameters requested,
+                            boolean surfaceChanged) {
+        List<String> changedKeys = new ArrayList<>();
+        boolean restartPreview = surfaceChanged;
+        for (String key : PREVIEW_KEYS) {
+            if (isChanged(applied, requested, key)) {
+                changedKeys.add(key);
+                restartPreview = true;
+            }
+        }
+        for (String key : STILL_KEYS) {
+            if (isChanged(applied, requested, key)) {
+                changedKeys.add(key);
+            }
+        }
+        return new Plan(surfaceChanged, changedKeys, restartPreview);
+    }
+
+    private static boolean isChanged(FlatParameters applied, FlatParameters requested,
+                                     String key) {
+        String requestedValue = requested.get(key);
+        // a parameter which is not requested keeps its value
+        return requestedValue != null && !requestedValue.equals(applied.get(key));
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the three planes of a YUV_420_888 image into the NV21 layout the frame bus delivers. The
+ * planes may be padded at the end of every row and the chroma samples may be interleaved, as
+ * described by the row and pixel strides of each plane. Rows are read with bulk gets into
+ * scratch rows, so packing a frame allocates nothing once the scratch rows have grown.
+ *
+ * An instance is not thread safe, every backend thread needs its own.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class YuvPlanes {
+
+    private byte[] mURow;
+    private byte[] mVRow;
+
+    /** @return the size of an NV21 frame with the given resolution */
+    public static int nv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Copies the planes into an NV21 buffer: the full Y plane followed by the chroma plane of half
+     * the resolution in both directions with interleaved V and U samples. The positions of the
+     * plane buffers are changed.
+     * @param y the luminance plane, whose pixel stride is always 1
+     * @param yRowStride the bytes between the starts of two luminance rows
+     * @param u the U plane
+     * @param v the V plane
+     * @param uvRowStride the bytes between the starts of two chroma rows, equal for U and V
+     * @param uvPixelStride the bytes between two chroma samples of a row, equal for U and V
+     * @param nv21 receives the frame, at least nv21Size(width, height) long
+     */
+    public void toNv21(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+            int uvPixelStride, int width, int height, byte[] nv21) {
+        if (nv21.length < nv21Size(width, height)) {
+            throw new IllegalArgumentException("Buffer too small for " + width + "x" + height);
+        }
+        int yStart = y.position();
+        if (yRowStride == width) {
+            y.get(nv21, 0, width * height);
+        } else {
+            for (int row = 0; row < height; row++) {
+                y.position(yStart + row * yRowStride);
+                y.get(nv21, row * width, width);
+            }
+        }
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        // the last sample of a row need not be followed by padding
+        int rowLength = (chromaWidth - 1) * uvPixelStride + 1;
+        if (mURow == null || mURow.length < rowLength) {
+            mURow = new byte[rowLength];
+            mVRow = new byte[rowLength];
+        }
+        int uStart = u.position();
+        int vStart = v.position();
+        int target = width * height;
+        for (int row = 0; row < chromaHeight; row++) {
+            u.position(uStart + row * uvRowStride);
+            u.get(mURow, 0, rowLength);
+            v.position(vStart + row * uvRowStride);
+            v.get(mVRow, 0, rowLength);
+            for (int sample = 0, index = 0; sample < chromaWidth;
+                    sample++, index += uvPixelStride) {
+                nv21[target++] = mVRow[index];
+                nv21[target++] = mURow[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.google.com.basiccamera.imageprocessing.governor.ThermalSignal;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Derives the thermal state from the battery temperature, which is available on all API levels.
+ * The temperature is read from the sticky battery broadcast at most every few seconds.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class BatteryThermalSignal implements ThermalSignal {
+
+    private static final String TAG = BatteryThermalSignal.class.getSimpleName();
+    private static final long READ_INTERVAL_MS = 5000;
+    // battery temperatures in tenths of a degree Celsius at which the states begin
+    private static final int WARM_TEMPERATURE = 380;
+    private static final int HOT_TEMPERATURE = 420;
+    private static final int CRITICAL_TEMPERATURE = 450;
+
+    private final Context mContext;
+    private final IntentFilter mFilter;
+    private State mState;
+    private long mLastRead;
+
+    public BatteryThermalSignal(Context context) {
+        mContext = context.getApplicationContext();
+        mFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        mState = State.NORMAL;
+    }
+
+    @Override
+    public synchronized State read() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastRead != 0 && now - mLastRead < READ_INTERVAL_MS) {
+            return mState;
+        }
+        mLastRead = now;
+        // a null receiver only returns the last sticky broadcast
+        Intent battery = mContext.registerReceiver(null, mFilter);
+        if (battery == null) {
+            return mState;
+        }
+        int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+        State state;
+        if (temperature >= CRITICAL_TEMPERATURE) {
+            state = State.CRITICAL;
+        } else if (temperature >= HOT_TEMPERATURE) {
+            state = State.HOT;
+        } else if (temperature >= WARM_TEMPERATURE) {
+            state = State.WARM;
+        } else {
+            state = State.NORMAL;
+        }
+        if (state != mState) {
+            Log.i(TAG, "Battery temperature " + temperature / 10f + " C, thermal state " + state);
+            mState = state;
+        }
+        return mState;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing;
+
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of mutable bitmaps, so result bitmaps can be reused as decode targets instead of
+ * being allocated for every frame. The bitmaps are accounted in the memory budget from their
+ * creation by obtain till they are recycled by the pool, and under memory pressure the pool
+ * keeps fewer of them. All methods are thread safe.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class BitmapPool {
+
+    // the pool size while the memory budget shrinks the queues
+    private static final int SHRUNK_SIZE = 1;
+
+    private final int mMaxSize;
+    private final ArrayDeque<Bitmap> mBitmaps;
+    private final MemoryBudget mMemoryBudget;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+        mBitmaps = new ArrayDeque<>(maxSize);
+        mMemoryBudget = MemoryBudget.get();
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size and config or null if there is none
+     */
+    public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+        Iterator<Bitmap> it = mBitmaps.iterator();
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                it.remove();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size and config or creates one, which is accounted
+     * in the memory budget. Bitmaps created by obtain should be given back with release.
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = acquire(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+            mMemoryBudget.allocate(MemoryBudget.Category.RESULT_BITMAPS, bitmap.getByteCount());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. If the pool is full the oldest bitmap is recycled. Under
+     * memory pressure the pool keeps fewer bitmaps and none while the analysis is paused.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int maxSize = mMaxSize;
+        if (mMemoryBudget.isAtLeast(MemoryBudget.Stage.PAUSE_ANALYSIS)) {
+            maxSize = 0;
+        } else if (mMemoryBudget.isAtLeast(MemoryBudget.Stage.SHRINK_QUEUES)) {
+            maxSize = Math.min(maxSize, SHRUNK_SIZE);
+        }
+        mBitmaps.addLast(bitmap);
+        while (mBitmaps.size() > maxSize) {
+            recycle(mBitmaps.pollFirst());
+        }
+    }
+
+    /** Recycles all pooled bitmaps */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            recycle(bitmap);
+        }
+        mBitmaps.clear();
+    }
+
+    private void recycle(Bitmap bitmap) {
+        mMemoryBudget.free(MemoryBudget.Category.RESULT_BITMAPS, bitmap.getByteCount());
+        bitmap.recycle();
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing;
+
+import android.content.Context;
+import android.google.com.basiccamera.camera.CameraBackend;
+import android.google.com.basiccamera.camera.CameraBackendSelector;
+import android.google.com.basiccamera.camera.CameraBackends;
+import android.google.com.basiccamera.camera.CameraCommand;
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.imageprocessing.pool.EdgeDensityProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.FrameProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.SharedWorkerPool;
+import android.util.Log;
+
+/**
+ * Runs a camera which is not displayed and analyzes its frames on a shared worker pool, so
+ * several cameras can be processed at once without a thread per camera.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CameraSession {
+
+    private static final String TAG = CameraSession.class.getSimpleName();
+
+    private static final int DOWNSAMPLING = 2;
+    // frames not analyzed within this time after their capture are abandoned
+    private static final long STALENESS_BUDGET_NANOS = 200000000L;
+    // frames between two log messages of the edge density
+    private static final int LOG_INTERVAL = 100;
+
+    private final CameraBackend mCameraManager;
+    private final SharedWorkerPool mPool;
+    private final int mWeight;
+    private SharedWorkerPool.Session mSession;
+    private EdgeDensityProcessor mProcessor;
+
+    /**
+     * @param preference the camera API requested for this camera
+     * @param weight the quota of the pool's processing time relative to the other sessions
+     */
+    public CameraSession(Context context, int cameraId,
+            CameraBackendSelector.Preference preference, SharedWorkerPool pool, int weight) {
+        mCameraManager = CameraBackends.create(context, cameraId, preference);
+        mPool = pool;
+        mWeight = weight;
+    }
+
+    /**
+     * Opens the camera without a preview surface and registers its frames with the pool.
+     */
+    public void start() {
+        final EdgeDensityProcessor processor = new EdgeDensityProcessor(DOWNSAMPLING,
+                STALENESS_BUDGET_NANOS);
+        mProcessor = processor;
+        mSession = mPool.register("camera-" + mCameraManager.getCameraId(),
+                mCameraManager.getFrameBus(), mWeight, new FrameProcessor() {
+                    @Override
+                    public void process(Frame frame) {
+                        processor.process(frame);
+                        if (frame.getSequence() % LOG_INTERVAL == 0) {
+                            Log.d(TAG, "Camera " + mCameraManager.getCameraId()
+                                    + " edge density " + processor.getDensity());
+                        }
+                    }
+                });
+        mCameraManager.start();
+        mCameraManager.submit(CameraCommand.initCamera(null));
+    }
+
+    /**
+     * Unregisters from the pool and releases the camera.
+     */
+    public void close() {
+        if (mSession != null) {
+            Log.i(TAG, mSession.toString());
+            Log.i(TAG, "Deadlines: " + mProcessor.getDeadlineStats());
+            mSession.close();
+            mSession = null;
+        }
+        mCameraManager.quit();
+        mCameraManager.destroyCamera();
+    }
+
+    public CameraBackend getCameraManager() { return mCameraManager; }
+}
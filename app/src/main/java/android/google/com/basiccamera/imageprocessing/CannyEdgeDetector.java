@@ -17,60 +17,494 @@
 
 package android.google.com.basiccamera.imageprocessing;
 
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.imageprocessing.journal.EdgeJournal;
+import android.google.com.basiccamera.imageprocessing.kernel.ContourVectorizer;
+import android.google.com.basiccamera.imageprocessing.kernel.Deadline;
+import android.google.com.basiccamera.imageprocessing.kernel.KeyframeScheduler;
+import android.google.com.basiccamera.imageprocessing.kernel.LineSegments;
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMask;
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMorphology;
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+import android.google.com.basiccamera.imageprocessing.kernel.TrackedPoints;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+import android.google.com.basiccamera.imageprocessing.pool.FrameProcessor;
+import android.google.com.basiccamera.imageprocessing.stream.EdgeStreamPublisher;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeBackend;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeDetection;
+import android.google.com.basiccamera.imageprocessing.tuning.JavaEdgeDetection;
+import android.google.com.basiccamera.trace.Tracer;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Point;
 import android.util.Log;
 
 import org.opencv.android.Utils;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
 
 /**
- * This is a implementation of a Canny edge detector
+ * This is a implementation of a Canny edge detector. If TRACK_BETWEEN_KEYFRAMES is set, the full
+ * edge detection only runs on keyframes chosen by a KeyframeScheduler. In between, the edges of
+ * the last keyframe are moved by the motion of a sample of edge points, which are tracked with
+ * sparse optical flow.
+ *
+ * The result is either the edge map as bitmap or, as RESULT_TYPE chooses, line segments: the
+ * polylines of the edges or the segments of a probabilistic Hough transform. Their size depends
+ * on the number of edges instead of the resolution.
+ *
+ * The edges of the keyframes are detected by the EdgeBackend which the TaskManager selects for
+ * the processing resolution, OpenCV or one of the pure Java kernels, unless FIXED_BACKEND is
+ * set, e.g. to the CoarseToFineCanny, which refines only the tiles of the image whose low
+ * resolution gradients hint at edges.
+ *
+ * As EDGE_CLEANUP chooses, the edge map is cleaned before it is used, by the morphology on a
+ * packed copy of the map, which processes 64 pixels per operation.
+ *
+ * Under memory pressure the frames are downsampled further, and while the memory budget pauses
+ * the analysis the buffers of the task are released.
+ *
+ * The detector is run by the TaskManager on the shared worker pool, one frame per call of
+ * process. It keeps its buffers between the frames and has to be closed to free them. A frame
+ * whose deadline expires after the blur or after the edges is abandoned without a result, the
+ * OpenCV calls themselves can not be interrupted.
  *
  * @author alexander.goscinski@posteo.de (Alexander Goscinski)
  */
 
-public final class CannyEdgeDetector extends ImageTask {
+public final class CannyEdgeDetector implements FrameProcessor {
+
+    // the edges are detected on a downsampled image, 1, 2 or 4
+    private static final int DOWNSAMPLING = 2;
+    // the downsampling while the memory budget asks for a smaller resolution
+    private static final int REDUCED_DOWNSAMPLING = 4;
+    // runs the full edge detection only on keyframes. Off, as between the keyframes the result
+    // shows tracked instead of detected edges, whose drift is only measured on synthetic pans
+    // with the TrackingReport so far.
+    private static final boolean TRACK_BETWEEN_KEYFRAMES = false;
+    private static final int MAX_TRACKED_POINTS = 200;
+    private static final Size FLOW_WINDOW = new Size(9, 9);
+    private static final int FLOW_LEVELS = 3;
+    // the backend of the edge detection, null for the one tuned for the device and resolution
+    private static final EdgeBackend FIXED_BACKEND = null;
+    // the stages after which the deadline of a frame is checked
+    private static final String STAGE_BLUR = "blur";
+    private static final String STAGE_EDGES = "edges";
+
+    private enum ResultType {
+        /** The edge map as bitmap */
+        RASTER,
+        /** Polylines following the edges, simplified by Douglas-Peucker */
+        CONTOURS,
+        /** Straight segments found by the probabilistic Hough transform */
+        HOUGH_SEGMENTS
+    }
+    private static final ResultType RESULT_TYPE = ResultType.CONTOURS;
+    // parameters of Imgproc.HoughLinesP: votes, minimum length and maximum gap in pixels
+    private static final int HOUGH_THRESHOLD = 30;
+    private static final double HOUGH_MIN_LENGTH = 15;
+    private static final double HOUGH_MAX_GAP = 3;
+
+    private enum EdgeCleanup {
+        NONE,
+        /** Removes edge pixels without a neighbouring edge pixel */
+        REMOVE_ISOLATED,
+        /** Closes gaps of one pixel in the edges */
+        CLOSE
+    }
+    private static final EdgeCleanup EDGE_CLEANUP = EdgeCleanup.NONE;
 
     private TaskManager mTaskManager;
+    // buffers allocated once per preview resolution
+    private Mat mGray;
+    private Mat mPreviousGray;
+    private Mat mEdges;
+    private byte[] mEdgeBytes;
+    private byte[] mScaled;
+    private byte[] mRotated;
+    // the gray image before the blur, one of the frame, mScaled or mRotated
+    private byte[] mGrayBytes;
+    // the backend chosen for the current resolution, the detection is null for OpenCV
+    private EdgeBackend mBackend;
+    private EdgeDetection mEdgeDetection;
+    private Mat mHoughLines;
+    private int[] mHoughEnds;
+    private PackedMask mPackedEdges;
+    private PackedMask mPackedResult;
+    private PackedMask mPackedScratch;
+    private final ContourVectorizer mVectorizer;
+    private final KeyframeScheduler mScheduler;
+    private final TrackedPoints mTrackedPoints;
+    private final MatOfPoint2f mPoints;
+    private final MatOfPoint2f mNextPoints;
+    private final MatOfByte mStatus;
+    private final MatOfFloat mError;
+    private final MemoryBudget mMemoryBudget;
+    // the bytes accounted per category for the buffers above
+    private long mMatBytes;
+    private long mBufferBytes;
 
     private static final String TAG = CannyEdgeDetector.class.getSimpleName();
 
     public CannyEdgeDetector(TaskManager taskManager) {
         mTaskManager = taskManager;
+        mScheduler = new KeyframeScheduler();
+        mTrackedPoints = new TrackedPoints(MAX_TRACKED_POINTS);
+        mPoints = new MatOfPoint2f();
+        mNextPoints = new MatOfPoint2f();
+        mStatus = new MatOfByte();
+        mError = new MatOfFloat();
+        mVectorizer = new ContourVectorizer();
+        mHoughLines = new Mat();
+        mHoughEnds = new int[0];
+        mMemoryBudget = MemoryBudget.get();
+    }
+
+    @Override
+    public void process(Frame frame) {
+        long sequence = frame.getSequence();
+        Deadline deadline = mTaskManager.getDeadline();
+        if (!detectEdges(frame, deadline) || deadline.hasExpired(STAGE_EDGES)) {
+            mTaskManager.abandonFrame();
+            return;
+        }
+        if (RESULT_TYPE == ResultType.RASTER) {
+            mTaskManager.drawResult(toBitmap(), sequence);
+        } else {
+            postSegments(sequence);
+        }
     }
 
-    protected void runTask() {
-        Log.i(TAG, "Starting heavy image processing task");
-        while(running) {
-            Long begin, end;
-            //begin = System.currentTimeMillis();
+    /**
+     * Frees the buffers while the memory budget pauses the analysis, they are allocated again
+     * with the next frame.
+     */
+    void releaseBuffers() {
+        releaseMats();
+        mTaskManager.getBitmapPool().clear();
+    }
 
-            // requests picture and blocks till it receives one
-            mTaskManager.requestPreviewFrame();
-            //end = System.currentTimeMillis();
-            //Log.i(TAG, "Process took " + String.valueOf(end - begin) + " ms");
-            byte[] image = getImage();
-            if (image == null) {
-                Log.w(TAG, "Received null as picture");
+    /**
+     * Frees all native memory, the detector can not be used afterwards. Must not be invoked
+     * while a frame is processed.
+     */
+    void close() {
+        // the native memory of the Mats is not freed by the garbage collector in time
+        releaseMats();
+        mPoints.release();
+        mNextPoints.release();
+        mStatus.release();
+        mError.release();
+        mHoughLines.release();
+        Log.i(TAG, "Edge detection finished: " + mScheduler);
+        if (mEdgeDetection != null) {
+            Log.i(TAG, "Edge backend " + mEdgeDetection);
+            mEdgeDetection.close();
+            mEdgeDetection = null;
+        }
+    }
+
+    /**
+     * Does the Canny edge detection or the tracking on the Y plane of the frame, which is already
+     * the gray image. The image is downsampled and rotated into display orientation first. The
+     * frame is released by the pool after process. The edges are left in mEdges and, if needed,
+     * in mEdgeBytes.
+     * @return false if the deadline expired after the blur, the tracking state is unchanged then
+     */
+    private boolean detectEdges(Frame frame, Deadline deadline) {
+        int rotation = mTaskManager.getResultRotation();
+        int downsampling = mMemoryBudget.isAtLeast(MemoryBudget.Stage.REDUCE_RESOLUTION)
+                ? REDUCED_DOWNSAMPLING : DOWNSAMPLING;
+        int width = frame.getWidth() / downsampling;
+        int height = frame.getHeight() / downsampling;
+        if (rotation == 90 || rotation == 270) {
+            int scaledWidth = width;
+            width = height;
+            height = scaledWidth;
+        }
+        allocateMats(width, height);
+
+        long sequence = frame.getSequence();
+        // a tuned kernel detects on mGrayBytes and does its own blur, so the blurred Mat is only
+        // needed by OpenCV's Canny and by the tracking
+        boolean blurredGray = mEdgeDetection == null || TRACK_BETWEEN_KEYFRAMES;
+        Tracer.begin(Tracer.DECODE, sequence);
+        Tracer.flowStep(sequence);
+        putGray(frame, rotation, downsampling, blurredGray);
+        Tracer.end(Tracer.DECODE);
+
+        if (blurredGray) {
+            Imgproc.blur(mGray, mGray, new Size(3, 3));
+        }
+        if (deadline.hasExpired(STAGE_BLUR)) {
+            // mPreviousGray stays the image the tracked points belong to
+            return false;
+        }
+        boolean keyframe = !TRACK_BETWEEN_KEYFRAMES || mScheduler.isKeyframeDue()
+                || !trackEdges(width, height, sequence);
+        if (keyframe) {
+            Tracer.begin(Tracer.CANNY, sequence);
+            if (mEdgeDetection != null) {
+                // the kernel does its own blur, so it gets the gray image before the blur
+                mEdgeDetection.detect(mGrayBytes, width, height, mEdgeBytes);
+                mEdges.put(0, 0, mEdgeBytes);
+                mTaskManager.getCopyCounter().count("edges->mat", width * height);
+            } else {
+                Imgproc.Canny(mGray, mEdges, 20, 100);
+            }
+            Tracer.end(Tracer.CANNY);
+            if (TRACK_BETWEEN_KEYFRAMES) {
+                if (mEdgeDetection == null) {
+                    mEdges.get(0, 0, mEdgeBytes);
+                }
+                mTrackedPoints.sampleEdges(mEdgeBytes, width, height);
+                mScheduler.onKeyframe();
+            }
+        }
+        EdgeJournal journal = mTaskManager.getJournal();
+        EdgeStreamPublisher publisher = mTaskManager.getResultPublisher();
+        // with tracking, mEdgeBytes holds the edges of every frame already
+        if (!TRACK_BETWEEN_KEYFRAMES && mEdgeDetection == null && (journal != null
+                || publisher != null && publisher.getClientCount() > 0
+                || RESULT_TYPE == ResultType.CONTOURS || EDGE_CLEANUP != EdgeCleanup.NONE)) {
+            mEdges.get(0, 0, mEdgeBytes);
+        }
+        if (EDGE_CLEANUP != EdgeCleanup.NONE) {
+            cleanEdges();
+        }
+        if (journal != null) {
+            // copies the map into the queue of the journal, never waits for the disk
+            journal.offer(sequence, mEdgeBytes, width, height);
+        }
+        if (publisher != null) {
+            // the cleaned edges are packed already, the publisher copies them and never waits
+            if (EDGE_CLEANUP != EdgeCleanup.NONE) {
+                publisher.publish(sequence, frame.getTimestamp(), mPackedResult);
+            } else {
+                publisher.publish(sequence, frame.getTimestamp(), mEdgeBytes, width, height);
             }
+        }
+        // the gray image becomes the previous one of the next frame without a copy
+        Mat previous = mPreviousGray;
+        mPreviousGray = mGray;
+        mGray = previous;
+        return true;
+    }
 
-            // do Canny edge detection
-            Mat img = new Mat();
-            Bitmap bmp = BitmapFactory.decodeByteArray(image, 0, image.length);
-            Utils.bitmapToMat(bmp, img);
-            Imgproc.cvtColor(img, img, Imgproc.COLOR_RGB2GRAY);
-            Imgproc.blur(img, img, new Size(3, 3));
-            Imgproc.Canny(img, img, 20, 100);
-            Utils.matToBitmap(img, bmp);
+    /**
+     * Cleans the edges in mEdgeBytes on a packed copy and writes them back, also into mEdges for
+     * the results which are made from it.
+     */
+    private void cleanEdges() {
+        mPackedEdges.pack(mEdgeBytes);
+        if (EDGE_CLEANUP == EdgeCleanup.REMOVE_ISOLATED) {
+            PackedMorphology.removeIsolated(mPackedEdges, mPackedResult);
+        } else {
+            PackedMorphology.close(mPackedEdges, mPackedResult, mPackedScratch);
+        }
+        mPackedResult.unpack(mEdgeBytes);
+        if (RESULT_TYPE != ResultType.CONTOURS) {
+            mEdges.put(0, 0, mEdgeBytes);
+        }
+        mTaskManager.getCopyCounter().count("edges->packed->edges", 2 * mEdgeBytes.length);
+    }
+
+    private Bitmap toBitmap() {
+        int width = mEdges.cols();
+        int height = mEdges.rows();
+        CopyCounter copyCounter = mTaskManager.getCopyCounter();
+        Bitmap bmp = mTaskManager.getBitmapPool().obtain(width, height, Bitmap.Config.ARGB_8888);
+        Utils.matToBitmap(mEdges, bmp);
+        copyCounter.count("mat->bitmap", width * height * 4);
+        copyCounter.endFrame();
+        return bmp;
+    }
+
+    /**
+     * Extracts the segments of the edges and posts them. If all segment lists are still in
+     * flight, the result of this frame is dropped like a superseded one.
+     */
+    private void postSegments(long sequence) {
+        LineSegments segments = mTaskManager.acquireSegments();
+        if (segments == null) {
+            return;
+        }
+        int width = mEdges.cols();
+        int height = mEdges.rows();
+        Tracer.begin(Tracer.VECTORIZE, sequence);
+        if (RESULT_TYPE == ResultType.CONTOURS) {
+            mVectorizer.vectorize(mEdgeBytes, width, height, segments);
+        } else {
+            findHoughSegments(width, height, segments);
+        }
+        Tracer.end(Tracer.VECTORIZE);
+        mTaskManager.getCopyCounter().endFrame();
+        mTaskManager.drawSegments(segments, sequence);
+    }
+
+    private void findHoughSegments(int width, int height, LineSegments segments) {
+        Imgproc.HoughLinesP(mEdges, mHoughLines, 1, Math.PI / 180, HOUGH_THRESHOLD,
+                HOUGH_MIN_LENGTH, HOUGH_MAX_GAP);
+        segments.clear(width, height);
+        int count = mHoughLines.rows();
+        if (count == 0) {
+            return;
+        }
+        if (mHoughEnds.length < 4 * count) {
+            mHoughEnds = new int[4 * count];
+        }
+        // one row of x0, y0, x1, y1 per segment
+        mHoughLines.get(0, 0, mHoughEnds);
+        for (int i = 0; i < 4 * count; i += 4) {
+            if (!segments.add(mHoughEnds[i], mHoughEnds[i + 1], mHoughEnds[i + 2],
+                    mHoughEnds[i + 3])) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the Y plane of the frame into mGrayBytes and, if toMat is set, into mGray. Without
+     * downsampling and rotation it is copied directly, because the Mat is smaller than the whole
+     * frame.
+     */
+    private void putGray(Frame frame, int rotation, int downsampling, boolean toMat) {
+        CopyCounter copyCounter = mTaskManager.getCopyCounter();
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        if (downsampling == 1 && rotation == 0) {
+            mGrayBytes = frame.getData();
+            if (!toMat) {
+                return;
+            }
+            mGray.put(0, 0, mGrayBytes);
+            copyCounter.count("frame->mat", frameWidth * frameHeight);
+            return;
+        }
+        byte[] gray = frame.getData();
+        int width = frameWidth / downsampling;
+        int height = frameHeight / downsampling;
+        if (downsampling != 1) {
+            PlaneTransform.downsample(gray, frameWidth, frameHeight, downsampling, mScaled);
+            copyCounter.count("frame->scaled", width * height);
+            gray = mScaled;
+        }
+        if (rotation != 0) {
+            // the input of the rotation is either the frame or mScaled
+            PlaneTransform.rotate(gray, width, height, rotation, mRotated);
+            copyCounter.count("rotate", width * height);
+            gray = mRotated;
+        }
+        mGrayBytes = gray;
+        if (toMat) {
+            mGray.put(0, 0, gray);
+            copyCounter.count("->mat", width * height);
+        }
+    }
+
+    /**
+     * Tracks the edge points of the last keyframe into the current gray image and draws the
+     * edges of the keyframe moved by their motion.
+     * @return whether the scheduler accepted the tracking, otherwise the frame needs a keyframe
+     */
+    private boolean trackEdges(int width, int height, long sequence) {
+        int count = mTrackedPoints.getCount();
+        if (count == 0) {
+            return false;
+        }
+        Tracer.begin(Tracer.TRACK, sequence);
+        mPoints.create(count, 1, CvType.CV_32FC2);
+        mPoints.put(0, 0, mTrackedPoints.getPoints());
+        Video.calcOpticalFlowPyrLK(mPreviousGray, mGray, mPoints, mNextPoints, mStatus, mError,
+                FLOW_WINDOW, FLOW_LEVELS);
+        mNextPoints.get(0, 0, mTrackedPoints.getNext());
+        mStatus.get(0, 0, mTrackedPoints.getStatus());
+        mTrackedPoints.update(width, height);
+        boolean accepted = mScheduler.onTracked(mTrackedPoints.getConfidence(),
+                mTrackedPoints.getMotion());
+        if (accepted) {
+            mTrackedPoints.render(mEdgeBytes, width, height);
+            mEdges.put(0, 0, mEdgeBytes);
+        }
+        Tracer.end(Tracer.TRACK);
+        return accepted;
+    }
 
-            mTaskManager.drawResult(bmp);
+    /**
+     * Chooses the backend for a new resolution. The detection of the previous backend is kept if
+     * the backend stays the same.
+     */
+    private void selectBackend(int width, int height) {
+        EdgeBackend backend = FIXED_BACKEND != null ? FIXED_BACKEND
+                : mTaskManager.selectEdgeBackend(width, height);
+        if (backend.equals(mBackend)) {
+            return;
         }
-        return;
+        if (mEdgeDetection != null) {
+            Log.i(TAG, "Edge backend " + mEdgeDetection);
+            mEdgeDetection.close();
+        }
+        mBackend = backend;
+        mEdgeDetection = backend.getKind() == EdgeBackend.Kind.OPENCV ? null
+                : new JavaEdgeDetection(backend);
+        Log.i(TAG, "Edge backend at " + width + "x" + height + ": " + backend);
     }
 
+    private void allocateMats(int width, int height) {
+        if (mGray != null && mGray.cols() == width && mGray.rows() == height) {
+            return;
+        }
+        releaseMats();
+        mGray = new Mat(height, width, CvType.CV_8UC1);
+        mPreviousGray = new Mat(height, width, CvType.CV_8UC1);
+        mEdges = new Mat(height, width, CvType.CV_8UC1);
+        mEdgeBytes = new byte[width * height];
+        mScaled = new byte[width * height];
+        mRotated = new byte[width * height];
+        mMatBytes = 3L * width * height;
+        mBufferBytes = 3L * width * height;
+        if (EDGE_CLEANUP != EdgeCleanup.NONE) {
+            mPackedEdges = new PackedMask(width, height);
+            mPackedResult = new PackedMask(width, height);
+            mPackedScratch = new PackedMask(width, height);
+            mBufferBytes += 3L * 8 * mPackedEdges.getWords().length;
+        }
+        selectBackend(width, height);
+        if (mEdgeDetection != null) {
+            mEdgeDetection.allocate(width, height);
+            mBufferBytes += mEdgeDetection.getBufferBytes();
+        }
+        mMemoryBudget.allocate(MemoryBudget.Category.NATIVE_MATS, mMatBytes);
+        mMemoryBudget.allocate(MemoryBudget.Category.WORK_BUFFERS, mBufferBytes);
+        // the points of the old resolution can not be tracked
+        mScheduler.reset();
+    }
 
+    private void releaseMats() {
+        if (mGray != null) {
+            mGray.release();
+            mPreviousGray.release();
+            mEdges.release();
+            mGray = null;
+            mPreviousGray = null;
+            mEdges = null;
+            mEdgeBytes = null;
+            mScaled = null;
+            mRotated = null;
+            mPackedEdges = null;
+            mPackedResult = null;
+            mPackedScratch = null;
+            mGrayBytes = null;
+            if (mEdgeDetection != null) {
+                // the detection keeps its threads and statistics
+                mEdgeDetection.release();
+            }
+            mMemoryBudget.free(MemoryBudget.Category.NATIVE_MATS, mMatBytes);
+            mMemoryBudget.free(MemoryBudget.Category.WORK_BUFFERS, mBufferBytes);
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing;
+
+import android.util.Log;
+
+/**
+ * Counts the pixel data copied per frame. Every stage which copies pixel data reports it with
+ * count(), the end of a frame is marked with endFrame(). An optional listener receives every
+ * single copy, e.g. for tracing.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CopyCounter {
+
+    private static final String TAG = CopyCounter.class.getSimpleName();
+    // every LOG_INTERVAL frames the averages are logged
+    private static final int LOG_INTERVAL = 100;
+
+    /** Instrumentation hook invoked for every copy */
+    public interface Listener {
+        void onCopy(String stage, int bytes);
+    }
+
+    private volatile Listener mListener;
+    private long mFrameCount;
+    private int mFrameCopies;
+    private long mFrameBytes;
+    private long mTotalCopies;
+    private long mTotalBytes;
+
+    public void setListener(Listener listener) { mListener = listener; }
+
+    /**
+     * Reports a copy of pixel data of the current frame
+     * @param stage name of the copying stage, e.g. "camera->mat"
+     * @param bytes the number of bytes copied
+     */
+    public synchronized void count(String stage, int bytes) {
+        mFrameCopies++;
+        mFrameBytes += bytes;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCopy(stage, bytes);
+        }
+    }
+
+    /** Marks the end of the current frame */
+    public synchronized void endFrame() {
+        mFrameCount++;
+        mTotalCopies += mFrameCopies;
+        mTotalBytes += mFrameBytes;
+        mFrameCopies = 0;
+        mFrameBytes = 0;
+        if (mFrameCount % LOG_INTERVAL == 0) {
+            Log.i(TAG, "Copies per frame: " + getCopiesPerFrame() + ", bytes per frame: "
+                    + getBytesPerFrame());
+        }
+    }
+
+    public synchronized long getFrameCount() { return mFrameCount; }
+
+    public synchronized double getCopiesPerFrame() {
+        return mFrameCount == 0 ? 0 : (double) mTotalCopies / mFrameCount;
+    }
+
+    public synchronized double getBytesPerFrame() {
+        return mFrameCount == 0 ? 0 : (double) mTotalBytes / mFrameCount;
+    }
+}
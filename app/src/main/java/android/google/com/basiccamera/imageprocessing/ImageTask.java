@@ -16,6 +16,8 @@
 
 package android.google.com.basiccamera.imageprocessing;
 
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
 import android.graphics.Point;
 import android.util.Log;
 
@@ -30,15 +32,17 @@ public abstract class ImageTask extends Thread {
 
     private static final String TAG = ImageTask.class.getSimpleName();
 
-    protected boolean running;
+    protected volatile boolean running;
     private byte[] mImage;
     private Point mImageResolution;
+    private Frame mFrame;
 
     @Override
     public void run() {
         Log.i(TAG,"ImageTask started to run");
         runTask();
         running = false;
+        setImage(null);
         Log.i(TAG,"ImageTask stopped to run");
 
     }
@@ -50,7 +54,25 @@ public abstract class ImageTask extends Thread {
 
     protected Point getImageResolution() {return mImageResolution; }
 
-    protected void setImage(byte[] image) { this.mImage = image; }
+    /** The still is accounted in the memory budget till it is replaced */
+    protected void setImage(byte[] image) {
+        MemoryBudget memoryBudget = MemoryBudget.get();
+        if (mImage != null) {
+            memoryBudget.free(MemoryBudget.Category.STILL_IMAGES, mImage.length);
+        }
+        if (image != null) {
+            memoryBudget.allocate(MemoryBudget.Category.STILL_IMAGES, image.length);
+        }
+        this.mImage = image;
+    }
+
+    /**
+     * The current preview frame. The task owns a reference and has to release it as soon as it
+     * does not need the data anymore, because the buffer is shared with the camera.
+     */
+    protected Frame getFrame() { return mFrame; }
+
+    protected void setFrame(Frame frame) { mFrame = frame; }
 
     protected void setImageResolution(Point point) { mImageResolution = point; }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing;
+
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.imageprocessing.pool.FrameProcessor;
+
+/**
+ * Lets an ImageTask, which runs its own loop and blocks for every preview frame, take its frames
+ * from a session of the shared worker pool. Such a task needs a thread of its own for its loop,
+ * but its frames are selected by the pool like the ones of the other processors: the pool only
+ * hands the frame over and does not wait for the task. A frame the task has not taken yet is
+ * replaced by a newer one.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+final class ImageTaskAdapter implements FrameProcessor {
+
+    // guarded by this
+    private Frame mFrame;
+    private boolean mClosed;
+    private long mReplacedCount;
+
+    /** Keeps a reference to the frame till the task takes it */
+    @Override
+    public void process(Frame frame) {
+        Frame replaced;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            replaced = mFrame;
+            mFrame = frame.retain();
+            if (replaced != null) {
+                mReplacedCount++;
+            }
+            notifyAll();
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+    }
+
+    /**
+     * Blocks till a frame is available.
+     * @return the frame, which the task has to release, or null if the adapter has been closed
+     */
+    synchronized Frame take() throws InterruptedException {
+        while (mFrame == null && !mClosed) {
+            wait();
+        }
+        Frame frame = mFrame;
+        mFrame = null;
+        return frame;
+    }
+
+    /** Wakes up the task and releases the frame it has not taken */
+    void close() {
+        Frame frame;
+        synchronized (this) {
+            mClosed = true;
+            frame = mFrame;
+            mFrame = null;
+            notifyAll();
+        }
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /** @return the number of frames replaced before the task took them */
+    synchronized long getReplacedCount() { return mReplacedCount; }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing;
+
+import android.google.com.basiccamera.imageprocessing.kernel.LineSegments;
+import android.google.com.basiccamera.trace.Tracer;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Hands results from the processing thread to the UI thread. Only the newest result which has
+ * not been drawn yet is kept; a result which is superseded before the next vsync goes straight
+ * back to the bitmap pool without ever being scaled. At most one frame callback is pending at
+ * any time. Vector results are handled alike, their segment lists are recycled by the channel
+ * itself.
+ *
+ * Has to be constructed on the UI thread, because the Choreographer is bound to the looper of
+ * the constructing thread.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ResultChannel implements Choreographer.FrameCallback {
+
+    private static final String TAG = ResultChannel.class.getSimpleName();
+
+    /**
+     * Is invoked on the UI thread with the newest result. The bitmap goes back to the pool after
+     * onResult returns, so it must not be referenced afterwards.
+     */
+    public interface Receiver {
+        void onResult(Bitmap resultBitmap);
+
+        /** The segments go back to the channel after onSegments returns, like the bitmaps */
+        void onSegments(LineSegments segments);
+    }
+
+    // segment lists in flight: one being filled, one pending and one being drawn
+    private static final int SEGMENTS_POOL_SIZE = 3;
+
+    private final Choreographer mChoreographer;
+    private final BitmapPool mBitmapPool;
+    private final Receiver mReceiver;
+
+    // guarded by this
+    private Bitmap mPendingResult;
+    private LineSegments mPendingSegments;
+    private final ArrayDeque<LineSegments> mFreeSegments;
+    private int mSegmentsCount;
+    private long mPendingSequence;
+    private boolean mFrameScheduled;
+    private boolean mClosed;
+    private long mPostedCount;
+    private long mDrawnCount;
+    private long mSupersededCount;
+
+    public ResultChannel(BitmapPool bitmapPool, Receiver receiver) {
+        mChoreographer = Choreographer.getInstance();
+        mBitmapPool = bitmapPool;
+        mReceiver = receiver;
+        mFreeSegments = new ArrayDeque<>();
+    }
+
+    public BitmapPool getBitmapPool() { return mBitmapPool; }
+
+    /**
+     * Posts a new result. Can be invoked from any thread. The bitmap belongs to the channel
+     * afterwards and is given back to the pool once it was drawn or superseded.
+     * @param frameSequence the sequence of the processed frame or -1
+     */
+    public void post(Bitmap resultBitmap, long frameSequence) {
+        Bitmap superseded;
+        synchronized (this) {
+            if (mClosed) {
+                superseded = resultBitmap;
+            } else {
+                mPostedCount++;
+                superseded = mPendingResult;
+                mPendingResult = resultBitmap;
+                mPendingSequence = frameSequence;
+                if (superseded != null || mPendingSegments != null) {
+                    mSupersededCount++;
+                }
+                if (mPendingSegments != null) {
+                    mFreeSegments.add(mPendingSegments);
+                    mPendingSegments = null;
+                }
+                if (!mFrameScheduled) {
+                    mFrameScheduled = true;
+                    mChoreographer.postFrameCallback(this);
+                }
+            }
+        }
+        mBitmapPool.release(superseded);
+    }
+
+    /**
+     * @return an empty segment list to fill and post, or null if all lists are in flight
+     */
+    public synchronized LineSegments acquireSegments() {
+        LineSegments segments = mFreeSegments.poll();
+        if (segments == null && mSegmentsCount < SEGMENTS_POOL_SIZE) {
+            mSegmentsCount++;
+            segments = new LineSegments();
+        }
+        return segments;
+    }
+
+    /** Gives back a segment list which is not posted */
+    public synchronized void releaseSegments(LineSegments segments) {
+        mFreeSegments.add(segments);
+    }
+
+    /**
+     * Posts a new vector result, which supersedes a pending bitmap result too. Can be invoked
+     * from any thread. The segments belong to the channel afterwards.
+     * @param frameSequence the sequence of the processed frame or -1
+     */
+    public void post(LineSegments segments, long frameSequence) {
+        Bitmap superseded;
+        synchronized (this) {
+            if (mClosed) {
+                mFreeSegments.add(segments);
+                return;
+            }
+            mPostedCount++;
+            superseded = mPendingResult;
+            mPendingResult = null;
+            if (superseded != null || mPendingSegments != null) {
+                mSupersededCount++;
+            }
+            if (mPendingSegments != null) {
+                mFreeSegments.add(mPendingSegments);
+            }
+            mPendingSegments = segments;
+            mPendingSequence = frameSequence;
+            if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                mChoreographer.postFrameCallback(this);
+            }
+        }
+        mBitmapPool.release(superseded);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        Bitmap result;
+        LineSegments segments;
+        long sequence;
+        synchronized (this) {
+            mFrameScheduled = false;
+            result = mPendingResult;
+            segments = mPendingSegments;
+            sequence = mPendingSequence;
+            mPendingResult = null;
+            mPendingSegments = null;
+            if ((result == null && segments == null) || mClosed) {
+                mBitmapPool.release(result);
+                if (segments != null) {
+                    mFreeSegments.add(segments);
+                }
+                return;
+            }
+            mDrawnCount++;
+        }
+        Tracer.begin(Tracer.DRAW_RESULT, sequence);
+        if (sequence >= 0) {
+            Tracer.flowEnd(sequence);
+        }
+        if (result != null) {
+            mReceiver.onResult(result);
+        } else {
+            mReceiver.onSegments(segments);
+        }
+        Tracer.end(Tracer.DRAW_RESULT);
+        mBitmapPool.release(result);
+        if (segments != null) {
+            synchronized (this) {
+                mFreeSegments.add(segments);
+            }
+        }
+    }
+
+    /**
+     * Drops the pending result and stops scheduling frame callbacks. Should be invoked on the UI
+     * thread.
+     */
+    public void close() {
+        Bitmap pending;
+        synchronized (this) {
+            mClosed = true;
+            pending = mPendingResult;
+            mPendingResult = null;
+            if (mPendingSegments != null) {
+                mFreeSegments.add(mPendingSegments);
+                mPendingSegments = null;
+            }
+            if (mFrameScheduled) {
+                mChoreographer.removeFrameCallback(this);
+                mFrameScheduled = false;
+            }
+        }
+        mBitmapPool.release(pending);
+        Log.i(TAG, "Results posted: " + mPostedCount + ", drawn: " + mDrawnCount
+                + ", superseded: " + mSupersededCount);
+    }
+
+    public synchronized long getPostedCount() { return mPostedCount; }
+
+    public synchronized long getDrawnCount() { return mDrawnCount; }
+
+    public synchronized long getSupersededCount() { return mSupersededCount; }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing;
+
+import android.google.com.basiccamera.imageprocessing.cache.EdgeMap;
+import android.google.com.basiccamera.imageprocessing.cache.ResultCache;
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Detects the edges of pictures. The JPEG is decoded at a fraction of its resolution, rotated
+ * into display orientation and passed through the CannyKernel, whose stages match the live
+ * pipeline. The edge maps are kept in a ResultCache, so a picture shown again, e.g. after a
+ * pause, is not decoded and processed again.
+ *
+ * Is not thread safe, the TaskManager uses it on its own thread.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class StillProcessor {
+
+    private static final String TAG = StillProcessor.class.getSimpleName();
+    // pictures are decoded at 1 / SAMPLE_SIZE of their resolution, like the preview is downsampled
+    private static final int SAMPLE_SIZE = 4;
+
+    private final CannyKernel mKernel;
+    private volatile ResultCache mCache;
+    private int[] mPixels;
+    private byte[] mGray;
+    private byte[] mRotated;
+
+    public StillProcessor() {
+        mKernel = new CannyKernel();
+        mPixels = new int[0];
+        mGray = new byte[0];
+        mRotated = new byte[0];
+    }
+
+    /** @param cache keeps the edge maps, null to process every picture */
+    public void setCache(ResultCache cache) { mCache = cache; }
+
+    /**
+     * Describes everything an edge map depends on besides the picture. It is part of the cache
+     * key, so a change of the pipeline never serves stale maps.
+     */
+    public static String configuration(int sampleSize, int rotation) {
+        return "canny " + CannyKernel.LOW_THRESHOLD + "/" + CannyKernel.HIGH_THRESHOLD
+                + " sample " + sampleSize + " rotation " + rotation;
+    }
+
+    /**
+     * @param rotation the clockwise rotation in degree into display orientation
+     * @return the edge map of the picture or null if it could not be decoded
+     */
+    public EdgeMap process(byte[] jpeg, int rotation) {
+        ResultCache cache = mCache;
+        String key = null;
+        if (cache != null) {
+            key = ResultCache.key(jpeg, 0, jpeg.length, configuration(SAMPLE_SIZE, rotation));
+            try {
+                EdgeMap cached = cache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read the cached result", e);
+            }
+        }
+        EdgeMap map = detect(jpeg, rotation);
+        if (map != null && cache != null) {
+            try {
+                cache.put(key, map);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not cache the result", e);
+            }
+        }
+        return map;
+    }
+
+    private EdgeMap detect(byte[] jpeg, int rotation) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = SAMPLE_SIZE;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            Log.w(TAG, "Could not decode the picture");
+            return null;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int size = width * height;
+        if (mPixels.length < size) {
+            mPixels = new int[size];
+        }
+        if (mGray.length < size) {
+            mGray = new byte[size];
+            mRotated = new byte[size];
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        for (int i = 0; i < size; i++) {
+            int pixel = mPixels[i];
+            // the same weights as Imgproc.COLOR_RGB2GRAY
+            mGray[i] = (byte) ((299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff)
+                    + 114 * (pixel & 0xff) + 500) / 1000);
+        }
+        byte[] gray = mGray;
+        if (rotation != 0) {
+            PlaneTransform.rotate(mGray, width, height, rotation, mRotated);
+            gray = mRotated;
+            if (rotation == 90 || rotation == 270) {
+                width = bitmap.getHeight();
+                height = bitmap.getWidth();
+            }
+        }
+        byte[] edges = new byte[size];
+        mKernel.detect(gray, width, height, edges);
+        return new EdgeMap(edges, width, height);
+    }
+
+    /**
+     * Draws the map into a bitmap of the pool, white edges on black like the live raster result.
+     */
+    public Bitmap toBitmap(EdgeMap map, BitmapPool pool) {
+        int width = map.getWidth();
+        int height = map.getHeight();
+        int size = width * height;
+        if (mPixels.length < size) {
+            mPixels = new int[size];
+        }
+        byte[] edges = map.getEdges();
+        for (int i = 0; i < size; i++) {
+            mPixels[i] = edges[i] != 0 ? Color.WHITE : Color.BLACK;
+        }
+        Bitmap bitmap = pool.obtain(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(mPixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+}
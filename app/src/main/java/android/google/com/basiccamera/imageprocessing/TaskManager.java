@@ -17,67 +17,246 @@
 package android.google.com.basiccamera.imageprocessing;
 
 import android.google.com.basiccamera.R;
-import android.google.com.basiccamera.camera.CameraManager;
+import android.google.com.basiccamera.camera.CameraBackend;
+import android.google.com.basiccamera.camera.CameraCommand;
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.imageprocessing.cache.EdgeMap;
+import android.google.com.basiccamera.imageprocessing.cache.ResultCache;
+import android.google.com.basiccamera.imageprocessing.governor.DeadlineStats;
+import android.google.com.basiccamera.imageprocessing.governor.ProcessingGovernor;
+import android.google.com.basiccamera.imageprocessing.governor.ThermalSignal;
+import android.google.com.basiccamera.imageprocessing.journal.EdgeJournal;
+import android.google.com.basiccamera.imageprocessing.kernel.Deadline;
+import android.google.com.basiccamera.imageprocessing.kernel.LineSegments;
+import android.google.com.basiccamera.imageprocessing.kernel.YuvToArgb;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+import android.google.com.basiccamera.imageprocessing.pool.FrameProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.SharedWorkerPool;
+import android.google.com.basiccamera.imageprocessing.stream.EdgeStreamPublisher;
+import android.google.com.basiccamera.imageprocessing.tuning.BackendTuning;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeBackend;
+import android.google.com.basiccamera.trace.Tracer;
 import android.graphics.Bitmap;
-import android.graphics.ImageFormat;
 import android.graphics.Point;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class manages the an image processing task and handles all messages correspondent to the task
  *
+ * The task and further processors of the preview frames, e.g. statistics or recorders, run on a
+ * shared worker pool, each one in a session processing one frame at a time. They hold no thread
+ * of their own while they wait for frames or pictures. A task written as ImageTask, which loops
+ * and blocks for every frame, still runs on its own thread and gets its frames from a session.
+ *
  * @author alexander.goscinski@posteo.de (Alexander Goscinski)
  */
 
 public final class TaskManager extends HandlerThread {
 
     private static final String TAG = TaskManager.class.getSimpleName();
+    // the share of the pool of the displayed task relative to a processor of weight 1
+    private static final int TASK_WEIGHT = 4;
+    // how long quitTask waits for the task to finish
+    private static final long QUIT_TIMEOUT_MS = 2000;
+    // how long a still is shown before the live results are drawn again
+    private static final long STILL_DISPLAY_NANOS = 3000000000L;
+    // how old the result of a frame may be when it is posted, measured from the capture
+    private static final long DEFAULT_STALENESS_BUDGET_NANOS = 100000000L;
+    // the stages checked by the TaskManager itself, the task checks its own stages
+    private static final String STAGE_QUEUE = "queue";
+    private static final String STAGE_RESULT = "result";
 
-    private CameraManager mCameraManager;
-    private Handler mMainActivityHandler;
+    private CameraBackend mCameraManager;
+    private ResultChannel mResultChannel;
     private Handler mHandler;
-    private ImageTask mTask;
+    private final SharedWorkerPool mPool;
+    private volatile SharedWorkerPool.Session mTaskSession;
+    private CannyEdgeDetector mDetector;
+    // a task with its own loop and the adapter handing it the frames of its session
+    private volatile ImageTask mTask;
+    private volatile ImageTaskAdapter mTaskAdapter;
+    private final List<SharedWorkerPool.Session> mProcessorSessions;
+    // the processor waiting for a picture
+    private volatile SharedWorkerPool.Session mPictureSession;
+    private volatile PictureListener mPictureListener;
+    private final CopyCounter mCopyCounter;
+    private final ProcessingGovernor mGovernor;
+    // the deadline of the frame being processed, only used by the task
+    private final Deadline mDeadline;
+    private final DeadlineStats mDeadlineStats;
+    private volatile long mStalenessBudget;
+    private volatile EdgeJournal mJournal;
+    private volatile EdgeStreamPublisher mResultPublisher;
+    private volatile BackendTuning mBackendTuning;
+    private final MemoryBudget mMemoryBudget;
+    private final StillProcessor mStillProcessor;
+    // converts frames for tasks which need colors, created with the first conversion
+    private YuvToArgb mArgbConverter;
+    private ExecutorService mArgbExecutor;
+    private int[] mArgb;
+    // the live results are dropped till then, while a still is shown
+    private volatile long mStillShownUntil;
+    // begin and queue latency of the frame being processed, only used by the task
+    private long mProcessingBegin;
+    private long mQueueLatency;
     private CountDownLatch mInitLatch;
     public boolean dataReady;
 
-    public TaskManager(CameraManager cameraManager, Handler mainActivityHandler) {
+    /** Receives a picture requested by a processor, within the session of the processor */
+    public interface PictureListener {
+        void onPictureTaken(byte[] picture, int width, int height);
+    }
+
+    /**
+     * @param pool runs the task and the processors, it is shut down by the caller
+     */
+    public TaskManager(CameraBackend cameraManager, ResultChannel resultChannel,
+                       ThermalSignal thermalSignal, SharedWorkerPool pool) {
         super(TAG);
         mCameraManager = cameraManager;
+        mPool = pool;
+        mProcessorSessions = new ArrayList<>();
         mInitLatch = new CountDownLatch(1);
-        mMainActivityHandler = mainActivityHandler;
+        mResultChannel = resultChannel;
+        mCopyCounter = new CopyCounter();
+        mMemoryBudget = MemoryBudget.get();
+        mStillProcessor = new StillProcessor();
+        mGovernor = new ProcessingGovernor(thermalSignal);
+        mDeadline = new Deadline();
+        mDeadlineStats = new DeadlineStats();
+        mStalenessBudget = DEFAULT_STALENESS_BUDGET_NANOS;
+        mGovernor.setListener(new ProcessingGovernor.Listener() {
+            @Override
+            public void onLevelChanged(int level, int stride, int targetFps, String reason) {
+                Log.i(TAG, "Processing every " + stride + ". frame at up to " + targetFps
+                        + " fps: " + reason);
+                Tracer.instant(Tracer.GOVERNOR, level);
+            }
+        });
         dataReady = false;
     }
 
+    /**
+     * Starts the task, if it is not running already
+     */
     public void startTask(){
-        mTask = new CannyEdgeDetector(this);
-        try {
-            mInitLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        if (mTaskSession != null) {
+            return;
+        }
+        awaitInit();
+        final CannyEdgeDetector detector = new CannyEdgeDetector(this);
+        mDetector = detector;
+        mTaskSession = mPool.register("task", mCameraManager.getFrameBus(), TASK_WEIGHT,
+                new GatedProcessor(detector, true, new Runnable() {
+                    @Override
+                    public void run() {
+                        // the buffers are allocated again with the first frame after the pause
+                        detector.releaseBuffers();
+                    }
+                }));
+    }
+
+    /**
+     * Starts a task which runs its own loop instead of the edge detector, if no task is running
+     * already. The task blocks for its frames in requestPreviewFrame.
+     */
+    public void startTask(ImageTask task) {
+        if (mTaskSession != null) {
+            return;
+        }
+        awaitInit();
+        mTask = task;
+        mTaskAdapter = new ImageTaskAdapter();
+        mTaskSession = mPool.register("task", mCameraManager.getFrameBus(), TASK_WEIGHT,
+                new GatedProcessor(mTaskAdapter, true, null));
+        task.running = true;
+        task.start();
+    }
+
+    /**
+     * Adds a processor of the preview frames, which runs beside the task on the pool till
+     * quitTask. Frames are skipped while the memory budget pauses the analysis.
+     * @param weight the quota of the pool's processing time relative to the other processors
+     * @return the session of the processor, e.g. to request a picture for it
+     */
+    public SharedWorkerPool.Session addProcessor(String name, int weight,
+            FrameProcessor processor) {
+        SharedWorkerPool.Session session = mPool.register(name, mCameraManager.getFrameBus(),
+                weight, new GatedProcessor(processor, false, null));
+        synchronized (mProcessorSessions) {
+            mProcessorSessions.add(session);
         }
-        mTask.running = true;
-        mTask.start();
+        return session;
     }
 
     public void quitTask() {
-        if (mTask != null) {
-            mTask.running = false;
+        SharedWorkerPool.Session taskSession = mTaskSession;
+        if (taskSession != null) {
+            // waits for the frame being processed
+            taskSession.close();
+            Log.i(TAG, "Task: " + taskSession);
+            logFailure(taskSession);
+            Log.i(TAG, "Governor: " + mGovernor);
+            Log.i(TAG, "Deadlines: " + mDeadlineStats);
+            Log.i(TAG, "Memory: " + mMemoryBudget);
+            mTaskSession = null;
+        }
+        synchronized (mProcessorSessions) {
+            for (SharedWorkerPool.Session session : mProcessorSessions) {
+                session.close();
+                Log.i(TAG, "Processor: " + session);
+                logFailure(session);
+            }
+            mProcessorSessions.clear();
+        }
+        if (mDetector != null) {
+            mDetector.close();
+            mDetector = null;
+        }
+        ImageTaskAdapter adapter = mTaskAdapter;
+        if (adapter != null) {
+            // wakes up the task if it is waiting for a preview frame
+            adapter.close();
+            Log.i(TAG, "Frames replaced before the task took them: "
+                    + adapter.getReplacedCount());
+            mTaskAdapter = null;
+        }
+        ImageTask task = mTask;
+        if (task != null) {
+            task.running = false;
+            // wakes up the task if it is waiting for a picture
+            task.interrupt();
             try {
                 // waits till the task finishes.
-                mTask.join(500);
+                task.join(QUIT_TIMEOUT_MS);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            if (task.isAlive()) {
+                Log.e(TAG, "Task did not finish within " + QUIT_TIMEOUT_MS + " ms, leaking it");
+            }
         }
         mTask = null;
+        mPictureSession = null;
+        mPictureListener = null;
+        if (mArgbExecutor != null) {
+            mArgbExecutor.shutdown();
+            mArgbExecutor = null;
+        }
+        mArgbConverter = null;
+        if (mArgb != null) {
+            mMemoryBudget.free(MemoryBudget.Category.WORK_BUFFERS, 4L * mArgb.length);
+            mArgb = null;
+        }
     }
 
     @Override
@@ -93,30 +272,24 @@ public final class TaskManager extends HandlerThread {
                         pictureResolution.x = message.arg1;
                         pictureResolution.y = message.arg2;
                         data = (byte[]) message.obj;
-                        synchronized (mTask) {
-                            mTask.setImageResolution(pictureResolution);
-                            mTask.setImage(data);
-                            dataReady = true;
-                            mTask.notify();
+                        if (deliverPicture(data, pictureResolution)) {
+                            return true;
                         }
-                        return true;
-                    case R.id.preview_captured:
-                        Point previewResolution = new Point();
-                        previewResolution.x = message.arg1;
-                        previewResolution.y = message.arg2;
-                        data = (byte[]) message.obj;
-                        ByteArrayOutputStream out = new ByteArrayOutputStream();
-                        YuvImage yuvImage = new YuvImage(data, ImageFormat.NV21, previewResolution.x,
-                                previewResolution.y, null);
-                        yuvImage.compressToJpeg(new Rect(0, 0, previewResolution.x, previewResolution.y), 50, out);
-                        data = out.toByteArray();
-                        synchronized (mTask) {
-                            mTask.setImageResolution(previewResolution);
-                            mTask.setImage(data);
+                        ImageTask task = mTask;
+                        if (task == null) {
+                            Log.d(TAG, "Picture received after the task has quit");
+                            return true;
+                        }
+                        synchronized (task) {
+                            task.setImageResolution(pictureResolution);
+                            task.setImage(data);
                             dataReady = true;
-                            mTask.notify();
+                            task.notify();
                         }
                         return true;
+                    case R.id.process_still:
+                        showStill((byte[]) message.obj);
+                        return true;
                 }
                 return false;
             }
@@ -125,59 +298,329 @@ public final class TaskManager extends HandlerThread {
         Log.v(TAG, "Handler has been initialized.");
     }
 
-    protected void drawResult(Bitmap resultBitmap) {
+    private void awaitInit() {
         try {
             mInitLatch.await();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        Message msg = mMainActivityHandler.obtainMessage(R.id.draw_result, resultBitmap);
-        msg.sendToTarget();
+    }
+
+    /**
+     * Hands a picture to the processor waiting for it, within its session, and unparks it.
+     * @return false if no processor waits for a picture
+     */
+    private boolean deliverPicture(final byte[] picture, final Point resolution) {
+        final PictureListener listener = mPictureListener;
+        SharedWorkerPool.Session session = mPictureSession;
+        if (listener == null) {
+            return false;
+        }
+        mPictureListener = null;
+        mPictureSession = null;
+        session.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPictureTaken(picture, resolution.x, resolution.y);
+            }
+        });
+        session.unpark();
+        return true;
+    }
+
+    /**
+     * Posts the result to the UI. If the UI has not drawn the previous result yet, the previous
+     * one is dropped and its bitmap is given back to the pool.
+     */
+    protected void drawResult(Bitmap resultBitmap) {
+        mResultChannel.post(resultBitmap, -1);
+    }
+
+    /**
+     * Posts the result of a preview frame to the UI, the sequence of the frame is used for
+     * tracing the frame till it is drawn.
+     */
+    protected void drawResult(Bitmap resultBitmap, long frameSequence) {
+        if (mDeadline.hasExpired(STAGE_RESULT, 1)) {
+            getBitmapPool().release(resultBitmap);
+            abandonFrame();
+            return;
+        }
+        long now = System.nanoTime();
+        mGovernor.onFrameProcessed(mQueueLatency, now - mProcessingBegin, now);
+        mDeadlineStats.onCompleted(now - mProcessingBegin);
+        if (now < mStillShownUntil) {
+            getBitmapPool().release(resultBitmap);
+            return;
+        }
+        mResultChannel.post(resultBitmap, frameSequence);
+    }
+
+    /**
+     * Posts the vector result of a preview frame to the UI, like drawResult(Bitmap, long).
+     */
+    protected void drawSegments(LineSegments segments, long frameSequence) {
+        if (mDeadline.hasExpired(STAGE_RESULT, 1)) {
+            mResultChannel.releaseSegments(segments);
+            abandonFrame();
+            return;
+        }
+        long now = System.nanoTime();
+        mGovernor.onFrameProcessed(mQueueLatency, now - mProcessingBegin, now);
+        mDeadlineStats.onCompleted(now - mProcessingBegin);
+        if (now < mStillShownUntil) {
+            mResultChannel.releaseSegments(segments);
+            return;
+        }
+        mResultChannel.post(segments, frameSequence);
+    }
+
+    /**
+     * Gives up the preview frame being processed because its deadline expired, no result is
+     * posted for it. The time spent on it still counts as load for the governor.
+     */
+    protected void abandonFrame() {
+        long now = System.nanoTime();
+        mGovernor.onFrameProcessed(mQueueLatency, now - mProcessingBegin, now);
+        mDeadlineStats.onAbandoned(mDeadline.getExpiredStage(), now - mProcessingBegin,
+                mDeadline.getExpiredProgress());
+    }
+
+    /**
+     * The deadline of the preview frame being processed. The task checks it between its stages
+     * and calls abandonFrame once it has expired.
+     */
+    protected Deadline getDeadline() { return mDeadline; }
+
+    /**
+     * Sets how old the result of a preview frame may be when it is posted, measured from the
+     * capture of the frame. Frames which can not make it are abandoned.
+     */
+    public void setStalenessBudget(long nanos) { mStalenessBudget = nanos; }
+
+    /** Counts the frames finished in time and abandoned */
+    public DeadlineStats getDeadlineStats() { return mDeadlineStats; }
+
+    /**
+     * Shows the edges of a picture for a few seconds instead of the live results. The picture
+     * is processed on this thread, a picture shown before is served by the result cache.
+     */
+    public void processStill(byte[] jpeg) {
+        awaitInit();
+        mHandler.obtainMessage(R.id.process_still, jpeg).sendToTarget();
+    }
+
+    /*
+     * Shoud be only invoked by the handler mHandler.
+     */
+    private void showStill(byte[] jpeg) {
+        long begin = System.nanoTime();
+        EdgeMap map = mStillProcessor.process(jpeg, getResultRotation());
+        if (map == null) {
+            return;
+        }
+        Bitmap bitmap = mStillProcessor.toBitmap(map, getBitmapPool());
+        Log.i(TAG, "Still processed in " + (System.nanoTime() - begin) / 1000000 + " ms");
+        mStillShownUntil = System.nanoTime() + STILL_DISPLAY_NANOS;
+        mResultChannel.post(bitmap, -1);
+    }
+
+    /** Keeps the edge maps of the stills, null processes every still again */
+    public void setResultCache(ResultCache cache) { mStillProcessor.setCache(cache); }
+
+    protected BitmapPool getBitmapPool() { return mResultChannel.getBitmapPool(); }
+
+    /** @return an empty segment list for a vector result or null if all are in flight */
+    protected LineSegments acquireSegments() { return mResultChannel.acquireSegments(); }
+
+    /** Decides which preview frames the task processes */
+    public ProcessingGovernor getGovernor() { return mGovernor; }
+
+    /** Records the edge maps of the task, null stops the recording */
+    public void setJournal(EdgeJournal journal) { mJournal = journal; }
+
+    protected EdgeJournal getJournal() { return mJournal; }
+
+    /** Streams the edge maps of the task to other processes, null stops the streaming */
+    public void setResultPublisher(EdgeStreamPublisher publisher) { mResultPublisher = publisher; }
+
+    protected EdgeStreamPublisher getResultPublisher() { return mResultPublisher; }
+
+    /** Chooses the edge backend per resolution for the next task, null always uses OpenCV */
+    public void setBackendTuning(BackendTuning tuning) { mBackendTuning = tuning; }
+
+    /**
+     * @return the backend tuned for the resolution the task detects the edges at, OpenCV if
+     *         the resolution is not tuned yet
+     */
+    protected EdgeBackend selectEdgeBackend(int width, int height) {
+        BackendTuning tuning = mBackendTuning;
+        EdgeBackend backend = tuning == null ? null : tuning.select(width, height);
+        return backend == null ? EdgeBackend.OPENCV : backend;
+    }
+
+    /** Counts the pixel data copied by the task per frame */
+    public CopyCounter getCopyCounter() { return mCopyCounter; }
+
+    /** The clockwise rotation in degree which turns a preview frame into display orientation */
+    public int getResultRotation() { return mCameraManager.getResultRotation(); }
+
+    /**
+     * Requests a picture for a processor without blocking. Its session is parked till the
+     * picture arrives, which takes around 1000 ms, so it holds no thread meanwhile. Only one
+     * picture can be requested at a time.
+     */
+    public void requestPicture(SharedWorkerPool.Session session, PictureListener listener) {
+        awaitInit();
+        mPictureSession = session;
+        mPictureListener = listener;
+        session.park();
+        mCameraManager.submit(CameraCommand.takePicture(mHandler, R.id.picture_taken));
     }
 
     /*
      * It requests a picture from the camera by sending a request for a picture to the
-     * CameraManager thread. This takes around 1000 ms.
+     * CameraManager thread and blocks the ImageTask till it arrives. This takes around 1000 ms.
      */
     protected void requestPicture() {
+        awaitInit();
+        ImageTask task = mTask;
+        mCameraManager.submit(CameraCommand.takePicture(mHandler, R.id.picture_taken));
         try {
-            mInitLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        mCameraManager.sendTask(R.id.take_picture, R.id.picture_taken, 0, mHandler);
-        try {
-            synchronized (mTask) {
-                while (!dataReady) {
-                    mTask.wait();
+            synchronized (task) {
+                while (!dataReady && task.running) {
+                    task.wait();
                 }
             }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            // the task is quitting
+            task.setImage(null);
         }
         dataReady = false;
     }
 
+    private static void logFailure(SharedWorkerPool.Session session) {
+        if (session.getLastFailure() != null) {
+            Log.w(TAG, session.getName() + " failed on " + session.getFailureCount()
+                    + " frames or tasks, last with", session.getLastFailure());
+        }
+    }
+
     /*
-     * It requests a preview frame from the camera by sending a request for a preview frame to the
-     * CameraManager thread. This takes around 150 ms.
+     * It takes the newest preview frame of the session of an ImageTask and blocks till one is
+     * available. Frames arrive every 30 to 60 ms depending on the preview fps. The session
+     * skips the frames the governor does not want processed, as well as all frames while the
+     * memory budget pauses the analysis. The frame is handed to the task without copying, the
+     * task has to release it. The frame of the task is set to null if the task is quit while
+     * waiting.
      */
     protected void requestPreviewFrame() {
+        ImageTaskAdapter adapter = mTaskAdapter;
+        ImageTask task = mTask;
+        if (task == null) {
+            return;
+        }
+        Frame frame = null;
         try {
-            mInitLatch.await();
+            if (adapter != null) {
+                frame = adapter.take();
+            }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            // the task is quitting
         }
-        mCameraManager.sendTask(R.id.capture_preview, R.id.preview_captured, 0, mHandler);
-        try {
-            synchronized (mTask) {
-                while (!dataReady) {
-                    mTask.wait();
+        if (frame != null) {
+            beginProcessing(frame);
+            task.setImageResolution(new Point(frame.getWidth(), frame.getHeight()));
+        }
+        task.setFrame(frame);
+    }
+
+    /** Remembers when the processing of a frame began, for the governor, and its deadline */
+    private void beginProcessing(Frame frame) {
+        mProcessingBegin = System.nanoTime();
+        mQueueLatency = mProcessingBegin - frame.getTimestamp();
+        mDeadline.set(frame.getCaptureTimestamp(), mStalenessBudget);
+    }
+
+    /**
+     * Skips the frames of a processor while the memory budget pauses the analysis, and for the
+     * task also the frames the governor does not want processed and the frames which waited past
+     * their deadline. Skipped frames are given back to the camera at once by the pool.
+     */
+    private final class GatedProcessor implements FrameProcessor {
+
+        private final FrameProcessor mProcessor;
+        private final boolean mGoverned;
+        private final Runnable mOnPause;
+
+        /** @param onPause is run for every frame skipped during a pause, may be null */
+        GatedProcessor(FrameProcessor processor, boolean governed, Runnable onPause) {
+            mProcessor = processor;
+            mGoverned = governed;
+            mOnPause = onPause;
+        }
+
+        @Override
+        public void process(Frame frame) {
+            mMemoryBudget.update(frame.getTimestamp());
+            if (mMemoryBudget.isAtLeast(MemoryBudget.Stage.PAUSE_ANALYSIS)) {
+                if (mOnPause != null) {
+                    mOnPause.run();
                 }
+                return;
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            if (mGoverned) {
+                if (!mGovernor.shouldProcess(frame.getTimestamp())) {
+                    return;
+                }
+                // an ImageTask takes the frame later, its processing begins then
+                if (mTaskAdapter == null) {
+                    beginProcessing(frame);
+                    if (mDeadline.hasExpired(STAGE_QUEUE, 0)) {
+                        abandonFrame();
+                        return;
+                    }
+                }
+            }
+            mProcessor.process(frame);
         }
-        dataReady = false;
+    }
+
+    /*
+     * Converts a NV21 frame into ARGB pixels, for tasks which need the colors of the frame. The
+     * rows are converted on all cores. The frame is not released.
+     * @param argb receives width * height pixels
+     */
+    protected void convertToArgb(Frame frame, int[] argb) {
+        if (mArgbConverter == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            // the task thread converts a band itself
+            mArgbExecutor = cores > 1 ? Executors.newFixedThreadPool(cores - 1) : null;
+            mArgbConverter = new YuvToArgb(mArgbExecutor, cores);
+        }
+        Tracer.begin(Tracer.CONVERT_ARGB, frame.getSequence());
+        mArgbConverter.convert(frame.getData(), frame.getWidth(), frame.getHeight(), argb);
+        Tracer.end(Tracer.CONVERT_ARGB);
+    }
+
+    /*
+     * Converts a NV21 frame into a bitmap of the pool, like convertToArgb. The frame is not
+     * released.
+     */
+    protected Bitmap convertToBitmap(Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (mArgb == null || mArgb.length != width * height) {
+            if (mArgb != null) {
+                mMemoryBudget.free(MemoryBudget.Category.WORK_BUFFERS, 4L * mArgb.length);
+            }
+            mArgb = new int[width * height];
+            mMemoryBudget.allocate(MemoryBudget.Category.WORK_BUFFERS, 4L * mArgb.length);
+        }
+        convertToArgb(frame, mArgb);
+        Bitmap bitmap = getBitmapPool().obtain(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(mArgb, 0, width, 0, 0, width, height);
+        mCopyCounter.count("nv21->argb", 4 * width * height);
+        return bitmap;
     }
 }
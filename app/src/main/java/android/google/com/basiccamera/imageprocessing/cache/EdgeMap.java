@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.cache;
+
+/**
+ * A binary edge map as the Canny kernels write it, EDGE or NO_EDGE per pixel in row order.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeMap {
+
+    private final byte[] mEdges;
+    private final int mWidth;
+    private final int mHeight;
+
+    /** @param edges the map, it is not copied and must not be changed afterwards */
+    public EdgeMap(byte[] edges, int width, int height) {
+        if (edges.length != width * height) {
+            throw new IllegalArgumentException("Map of " + edges.length + " bytes is not "
+                    + width + "x" + height);
+        }
+        mEdges = edges;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public byte[] getEdges() { return mEdges; }
+
+    public int getWidth() { return mWidth; }
+
+    public int getHeight() { return mHeight; }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.cache;
+
+import android.google.com.basiccamera.imageprocessing.journal.EdgeMapCodec;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the edge maps of processed stills, so a capture which is shown again is not decoded and
+ * processed again. An entry is keyed by a hash of the image bytes and of the configuration of
+ * the pipeline, see key.
+ *
+ * There are two tiers, each bounded by its size and evicting the least recently used entry
+ * first: the maps themselves in memory, and run-length encoded files in a directory, which
+ * survive the process. A map found on disk moves into memory again. The memory tier is
+ * accounted in the MemoryBudget. All methods are thread safe, the disk is accessed while the
+ * cache is locked, which is fine for the rate of stills.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ResultCache {
+
+    private static final String SUFFIX = ".edges";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x45444743; // "EDGC"
+    // FNV-1a, 64 bit
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File mDirectory;
+    private final long mMemoryCapacity;
+    private final long mDiskCapacity;
+    private final MemoryBudget mMemoryBudget;
+    // both in access order, the eldest entry is evicted first
+    private final LinkedHashMap<String, EdgeMap> mMemory;
+    private final LinkedHashMap<String, Long> mDisk;
+    private long mMemoryBytes;
+    private long mDiskBytes;
+    private byte[] mEncoded;
+    // metrics
+    private long mMemoryHits;
+    private long mDiskHits;
+    private long mMisses;
+    private long mMemoryEvictions;
+    private long mDiskEvictions;
+
+    /**
+     * Opens the cache, the files already in the directory form the disk tier.
+     * @param memoryCapacity the bytes of the maps kept in memory
+     * @param diskCapacity the bytes of the files kept on disk
+     * @param memoryBudget accounts the memory tier, null to not account it
+     */
+    public ResultCache(File directory, long memoryCapacity, long diskCapacity,
+            MemoryBudget memoryBudget) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mMemoryCapacity = memoryCapacity;
+        mDiskCapacity = diskCapacity;
+        mMemoryBudget = memoryBudget;
+        mMemory = new LinkedHashMap<>(16, 0.75f, true);
+        mDisk = new LinkedHashMap<>(16, 0.75f, true);
+        mEncoded = new byte[0];
+        loadDiskIndex();
+    }
+
+    /**
+     * The key of an image processed with a configuration.
+     * @param configuration describes everything the map depends on besides the image, like the
+     *                      thresholds, the downsampling and the rotation
+     */
+    public static String key(byte[] image, int offset, int length, String configuration) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (image[i] & 0xff)) * FNV_PRIME;
+        }
+        // the length guards against a collision of images with a common prefix
+        return String.format("%016x-%08x-%08x", hash, length, configuration.hashCode());
+    }
+
+    /**
+     * @return the cached map of the key or null. A corrupt file is deleted and counts as miss.
+     */
+    public synchronized EdgeMap get(String key) throws IOException {
+        EdgeMap map = mMemory.get(key);
+        if (map != null) {
+            mMemoryHits++;
+            return map;
+        }
+        if (mDisk.get(key) != null) {
+            File file = new File(mDirectory, key + SUFFIX);
+            map = readFile(file);
+            if (map != null) {
+                mDiskHits++;
+                // keeps the order of the disk tier over restarts
+                file.setLastModified(System.currentTimeMillis());
+                putInMemory(key, map);
+                return map;
+            }
+            mDiskBytes -= mDisk.remove(key);
+            file.delete();
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Adds a map to both tiers, it must not be changed afterwards.
+     */
+    public synchronized void put(String key, EdgeMap map) throws IOException {
+        putInMemory(key, map);
+        if (mDisk.containsKey(key)) {
+            return;
+        }
+        long length = writeFile(key, map);
+        mDisk.put(key, length);
+        mDiskBytes += length;
+        Iterator<Map.Entry<String, Long>> it = mDisk.entrySet().iterator();
+        while (mDiskBytes > mDiskCapacity && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(key) && mDisk.size() == 1) {
+                // a single file larger than the disk tier is not kept
+                break;
+            }
+            new File(mDirectory, eldest.getKey() + SUFFIX).delete();
+            mDiskBytes -= eldest.getValue();
+            mDiskEvictions++;
+            it.remove();
+        }
+    }
+
+    private void putInMemory(String key, EdgeMap map) {
+        int bytes = map.getEdges().length;
+        if (bytes > mMemoryCapacity) {
+            return;
+        }
+        EdgeMap replaced = mMemory.put(key, map);
+        long freed = replaced != null ? replaced.getEdges().length : 0;
+        mMemoryBytes += bytes - freed;
+        Iterator<Map.Entry<String, EdgeMap>> it = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMemoryCapacity && it.hasNext()) {
+            Map.Entry<String, EdgeMap> eldest = it.next();
+            mMemoryBytes -= eldest.getValue().getEdges().length;
+            freed += eldest.getValue().getEdges().length;
+            mMemoryEvictions++;
+            it.remove();
+        }
+        if (mMemoryBudget != null) {
+            mMemoryBudget.allocate(MemoryBudget.Category.RESULT_CACHE, bytes);
+            mMemoryBudget.free(MemoryBudget.Category.RESULT_CACHE, freed);
+        }
+    }
+
+    /** Drops the memory tier, e.g. when the system runs low on memory */
+    public synchronized void trimMemory() {
+        mMemoryEvictions += mMemory.size();
+        mMemory.clear();
+        if (mMemoryBudget != null) {
+            mMemoryBudget.free(MemoryBudget.Category.RESULT_CACHE, mMemoryBytes);
+        }
+        mMemoryBytes = 0;
+    }
+
+    private void loadDiskIndex() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMPORARY_SUFFIX)) {
+                // left by a process killed while writing
+                file.delete();
+            } else if (name.endsWith(SUFFIX)) {
+                mDisk.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                mDiskBytes += file.length();
+            }
+        }
+    }
+
+    /**
+     * Writes the map to a temporary file first, so a file of the cache is always complete.
+     * @return the length of the file
+     */
+    private long writeFile(String key, EdgeMap map) throws IOException {
+        int pixelCount = map.getWidth() * map.getHeight();
+        int maxSize = EdgeMapCodec.maxEncodedSize(pixelCount);
+        if (mEncoded.length < maxSize) {
+            mEncoded = new byte[maxSize];
+        }
+        int length = EdgeMapCodec.encode(map.getEdges(), null, pixelCount, mEncoded);
+        File temporary = new File(mDirectory, key + TEMPORARY_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(map.getWidth());
+            out.writeInt(map.getHeight());
+            out.writeInt(length);
+            out.write(mEncoded, 0, length);
+        } finally {
+            out.close();
+        }
+        File file = new File(mDirectory, key + SUFFIX);
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " to " + file);
+        }
+        return file.length();
+    }
+
+    /** @return the map of the file or null if the file is corrupt */
+    private EdgeMap readFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int length = in.readInt();
+            long pixelCount = (long) width * height;
+            if (width <= 0 || height <= 0 || pixelCount > Integer.MAX_VALUE || length < 0
+                    || length > file.length()) {
+                return null;
+            }
+            byte[] encoded = new byte[length];
+            in.readFully(encoded);
+            byte[] edges = new byte[(int) pixelCount];
+            EdgeMapCodec.decode(encoded, 0, length, false, edges, edges.length);
+            return new EdgeMap(edges, width, height);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized long getMemoryHits() { return mMemoryHits; }
+
+    public synchronized long getDiskHits() { return mDiskHits; }
+
+    public synchronized long getMisses() { return mMisses; }
+
+    /** @return the share of get calls served by either tier */
+    public synchronized float getHitRate() {
+        long requests = mMemoryHits + mDiskHits + mMisses;
+        return requests == 0 ? 0 : (mMemoryHits + mDiskHits) / (float) requests;
+    }
+
+    public synchronized long getMemoryBytes() { return mMemoryBytes; }
+
+    public synchronized long getDiskBytes() { return mDiskBytes; }
+
+    public synchronized long getMemoryEvictions() { return mMemoryEvictions; }
+
+    public synchronized long getDiskEvictions() { return mDiskEvictions; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("hits=%.1f%% memory hits=%d disk hits=%d misses=%d memory=%d entries "
+                        + "%.1fKB evictions=%d disk=%d files %.1fKB evictions=%d",
+                100 * getHitRate(), mMemoryHits, mDiskHits, mMisses, mMemory.size(),
+                mMemoryBytes / 1024f, mMemoryEvictions, mDisk.size(), mDiskBytes / 1024f,
+                mDiskEvictions);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.governor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts the frames finished within their deadline and the frames abandoned, per stage after
+ * which they were abandoned. The processing time saved by an abandoned frame is estimated from
+ * the time spent on it and its progress: a frame abandoned halfway saves as much time as it
+ * took so far. Without a known progress it is estimated as the mean processing time of the
+ * finished frames minus the time spent. All times are passed in by the caller. All methods are
+ * thread safe.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class DeadlineStats {
+
+    private long mCompletedCount;
+    private long mCompletedTime;
+    private long mAbandonedCount;
+    private long mAbandonedTime;
+    private long mSavedTime;
+    // abandoned frames per stage, in the order the stages were first seen
+    private final Map<String, long[]> mAbandonedByStage = new LinkedHashMap<>();
+
+    /** @param processingTime the time in nanoseconds the frame took */
+    public synchronized void onCompleted(long processingTime) {
+        mCompletedCount++;
+        mCompletedTime += processingTime;
+    }
+
+    /**
+     * @param stage the stage after which the deadline was found expired
+     * @param spentTime the time in nanoseconds spent on the frame till it was abandoned
+     * @param progress the share of the processing done, between 0 and 1, or negative if unknown
+     */
+    public synchronized void onAbandoned(String stage, long spentTime, float progress) {
+        mAbandonedCount++;
+        mAbandonedTime += spentTime;
+        if (progress > 0) {
+            mSavedTime += (long) (spentTime * (1 - Math.min(progress, 1)) / progress);
+        } else if (mCompletedCount > 0) {
+            mSavedTime += Math.max(0, mCompletedTime / mCompletedCount - spentTime);
+        }
+        long[] count = mAbandonedByStage.get(stage);
+        if (count == null) {
+            count = new long[1];
+            mAbandonedByStage.put(stage, count);
+        }
+        count[0]++;
+    }
+
+    public synchronized long getCompletedCount() { return mCompletedCount; }
+
+    public synchronized long getAbandonedCount() { return mAbandonedCount; }
+
+    /** @return the frames abandoned after the stage */
+    public synchronized long getAbandonedCount(String stage) {
+        long[] count = mAbandonedByStage.get(stage);
+        return count == null ? 0 : count[0];
+    }
+
+    /** @return the time in nanoseconds spent on frames which were abandoned */
+    public synchronized long getAbandonedTime() { return mAbandonedTime; }
+
+    /** @return the estimated time in nanoseconds the abandoned frames did not use */
+    public synchronized long getSavedTime() { return mSavedTime; }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("completed=%d abandoned=%d spent=%dms saved=%dms",
+                mCompletedCount, mAbandonedCount, mAbandonedTime / 1000000,
+                mSavedTime / 1000000));
+        for (Map.Entry<String, long[]> entry : mAbandonedByStage.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue()[0]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.governor;
+
+/**
+ * A thermal signal whose state is set by hand, for simulations and for devices without a
+ * temperature sensor.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class FakeThermalSignal implements ThermalSignal {
+
+    private volatile State mState;
+
+    public FakeThermalSignal() {
+        mState = State.NORMAL;
+    }
+
+    public void setState(State state) { mState = state; }
+
+    @Override
+    public State read() { return mState; }
+}
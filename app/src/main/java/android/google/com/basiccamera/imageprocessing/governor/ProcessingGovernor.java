@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.governor;
+
+/**
+ * Decides which preview frames are processed. It steps through levels of a processing stride
+ * and a target frame rate, from every frame at 30 fps down to every third frame at 5 fps. The
+ * level goes down when the processing time does not fit the frame budget of the level, or the
+ * frames wait too long before being processed, and up again when the processing time would fit
+ * the budget of the faster level with room to spare. The thermal state sets the fastest level
+ * allowed.
+ *
+ * A level only changes after its condition held for several processed frames, and going up needs
+ * many more frames than going down, so the governor does not oscillate. All times are passed in
+ * by the caller, so the control loop can be replayed on a plain JVM.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ProcessingGovernor {
+
+    /** Is notified on the processing thread whenever the level changes */
+    public interface Listener {
+        void onLevelChanged(int level, int stride, int targetFps, String reason);
+    }
+
+    // the levels, a frame is processed if stride frames have arrived and the target frame rate
+    // allows it
+    private static final int[] STRIDES = {1, 2, 3, 3};
+    private static final int[] TARGET_FPS = {30, 15, 10, 5};
+    // the fastest level allowed per thermal state
+    private static final int[] THERMAL_LEVELS = {0, 1, 2, 3};
+    // fraction of the frame budget used by processing above which the level goes down
+    private static final float HIGH_UTILIZATION = 0.9f;
+    // fraction of the frame budget of the faster level below which the level goes up
+    private static final float LOW_UTILIZATION = 0.6f;
+    // processed frames the condition has to hold before the level changes
+    private static final int DOWN_HOLD_FRAMES = 5;
+    private static final int UP_HOLD_FRAMES = 60;
+    // frames arriving this fraction of the frame interval early are still processed
+    private static final float PACING_TOLERANCE = 0.2f;
+    private static final float AVERAGE_WEIGHT = 0.1f;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final ThermalSignal mThermalSignal;
+    private Listener mListener;
+    private int mLevel;
+    private ThermalSignal.State mThermalState;
+    private int mArrivedSinceProcessed;
+    private long mLastProcessedTimestamp;
+    // exponentially weighted averages in nanoseconds
+    private float mProcessingTime;
+    private float mQueueLatency;
+    private int mOverloadedFrames;
+    private int mUnderloadedFrames;
+    private long mLastUpdate;
+    // metrics
+    private long mProcessedCount;
+    private long mSkippedCount;
+    private long mLevelChangeCount;
+    private final long[] mTimeAtLevel;
+
+    public ProcessingGovernor(ThermalSignal thermalSignal) {
+        mThermalSignal = thermalSignal;
+        mThermalState = ThermalSignal.State.NORMAL;
+        mTimeAtLevel = new long[STRIDES.length];
+    }
+
+    public synchronized void setListener(Listener listener) { mListener = listener; }
+
+    /**
+     * Is invoked for every arriving frame.
+     * @param timestamp the time the frame arrived in nanoseconds
+     * @return whether the frame should be processed, otherwise it should be released at once
+     */
+    public synchronized boolean shouldProcess(long timestamp) {
+        mArrivedSinceProcessed++;
+        long interval = NANOS_PER_SECOND / TARGET_FPS[mLevel];
+        boolean process = mArrivedSinceProcessed >= STRIDES[mLevel]
+                && (mProcessedCount == 0 || timestamp - mLastProcessedTimestamp
+                >= interval * (1 - PACING_TOLERANCE));
+        if (process) {
+            mArrivedSinceProcessed = 0;
+            mLastProcessedTimestamp = timestamp;
+            mProcessedCount++;
+        } else {
+            mSkippedCount++;
+        }
+        return process;
+    }
+
+    /**
+     * Is invoked after a frame has been processed, adapts the level.
+     * @param queueLatency how long the frame waited before its processing began in nanoseconds
+     * @param processingTime how long the processing took in nanoseconds
+     * @param now the current time in nanoseconds
+     */
+    public synchronized void onFrameProcessed(long queueLatency, long processingTime, long now) {
+        if (mLastUpdate != 0) {
+            mTimeAtLevel[mLevel] += now - mLastUpdate;
+        }
+        mLastUpdate = now;
+        if (mProcessingTime == 0) {
+            mProcessingTime = processingTime;
+            mQueueLatency = queueLatency;
+        } else {
+            mProcessingTime += AVERAGE_WEIGHT * (processingTime - mProcessingTime);
+            mQueueLatency += AVERAGE_WEIGHT * (queueLatency - mQueueLatency);
+        }
+        mThermalState = mThermalSignal.read();
+        int thermalLevel = THERMAL_LEVELS[mThermalState.ordinal()];
+
+        float budget = NANOS_PER_SECOND / (float) TARGET_FPS[mLevel];
+        boolean overloaded = mProcessingTime > HIGH_UTILIZATION * budget || mQueueLatency > budget;
+        if (mLevel < thermalLevel) {
+            changeLevel(thermalLevel, "thermal state " + mThermalState);
+        } else if (overloaded && mLevel < STRIDES.length - 1) {
+            mUnderloadedFrames = 0;
+            if (++mOverloadedFrames >= DOWN_HOLD_FRAMES) {
+                changeLevel(mLevel + 1, String.format("processing %.1f ms, queue %.1f ms, budget "
+                        + "%.1f ms", mProcessingTime / 1e6, mQueueLatency / 1e6, budget / 1e6));
+            }
+        } else if (mLevel > thermalLevel && mProcessingTime
+                < LOW_UTILIZATION * NANOS_PER_SECOND / TARGET_FPS[mLevel - 1]) {
+            mOverloadedFrames = 0;
+            if (++mUnderloadedFrames >= UP_HOLD_FRAMES) {
+                changeLevel(mLevel - 1, String.format("processing %.1f ms fits the faster level",
+                        mProcessingTime / 1e6));
+            }
+        } else {
+            mOverloadedFrames = 0;
+            mUnderloadedFrames = 0;
+        }
+    }
+
+    private void changeLevel(int level, String reason) {
+        mLevel = level;
+        mOverloadedFrames = 0;
+        mUnderloadedFrames = 0;
+        mLevelChangeCount++;
+        if (mListener != null) {
+            mListener.onLevelChanged(level, STRIDES[level], TARGET_FPS[level], reason);
+        }
+    }
+
+    public synchronized int getLevel() { return mLevel; }
+
+    public static int getLevelCount() { return STRIDES.length; }
+
+    public synchronized int getStride() { return STRIDES[mLevel]; }
+
+    public synchronized int getTargetFps() { return TARGET_FPS[mLevel]; }
+
+    public synchronized ThermalSignal.State getThermalState() { return mThermalState; }
+
+    /** @return the average processing time in nanoseconds */
+    public synchronized long getProcessingTime() { return (long) mProcessingTime; }
+
+    /** @return the average time a frame waits before its processing begins in nanoseconds */
+    public synchronized long getQueueLatency() { return (long) mQueueLatency; }
+
+    public synchronized long getProcessedCount() { return mProcessedCount; }
+
+    public synchronized long getSkippedCount() { return mSkippedCount; }
+
+    public synchronized long getLevelChangeCount() { return mLevelChangeCount; }
+
+    /** @return the time spent at the level in nanoseconds */
+    public synchronized long getTimeAtLevel(int level) { return mTimeAtLevel[level]; }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("level=%d stride=%d fps=%d thermal=%s processed=%d "
+                        + "skipped=%d changes=%d processing=%.1fms queue=%.1fms time at levels=",
+                mLevel, STRIDES[mLevel], TARGET_FPS[mLevel], mThermalState, mProcessedCount,
+                mSkippedCount, mLevelChangeCount, mProcessingTime / 1e6, mQueueLatency / 1e6));
+        for (int level = 0; level < mTimeAtLevel.length; level++) {
+            builder.append(level == 0 ? "" : "/").append(mTimeAtLevel[level] / 1000000000L)
+                    .append('s');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.governor;
+
+/**
+ * A source of the thermal state of the device, read by the ProcessingGovernor after every
+ * processed frame. Implementations should be cheap to read and cache expensive queries.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public interface ThermalSignal {
+
+    /** How hot the device is, each state allows less processing than the one before */
+    enum State {
+        NORMAL,
+        WARM,
+        HOT,
+        CRITICAL
+    }
+
+    State read();
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records the edge maps of a session for later inspection. The processing thread hands a map to
+ * offer(), which copies it into a free slot of a bounded queue and returns. It never waits for
+ * the disk: without a free slot the map is dropped and counted. A writer thread takes the maps
+ * in batches, compresses them with the EdgeMapCodec and appends them to a memory-mapped data
+ * file, followed by one write of their index entries.
+ *
+ * Every KEYFRAME_INTERVAL-th map is encoded on its own, the others as delta to their predecessor
+ * if that is smaller, so a reader decodes at most KEYFRAME_INTERVAL maps to reach any frame.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeJournal {
+
+    private static final int KEYFRAME_INTERVAL = 30;
+    // maps written with one index write
+    private static final int BATCH_SIZE = 16;
+    // the data file grows by mapped regions of this size
+    private static final int REGION_SIZE = 8 << 20;
+
+    /** A slot of the queue, the map is copied into it */
+    private static final class Slot {
+        long frameNumber;
+        byte[] edges = new byte[0];
+        int width;
+        int height;
+    }
+
+    private final File mDirectory;
+    private final BlockingQueue<Slot> mFreeSlots;
+    private final BlockingQueue<Slot> mPendingSlots;
+    // tells the writer thread to finish
+    private final Slot mEndOfJournal;
+    private final Thread mWriter;
+    private final RandomAccessFile mDataFile;
+    private final FileChannel mIndexChannel;
+    // used only by the writer thread
+    private MappedByteBuffer mRegion;
+    private long mRegionStart;
+    private long mDataSize;
+    private byte[] mPrevious;
+    private byte[] mEncoded;
+    private byte[] mDelta;
+    private int mSinceKeyframe;
+    private final ByteBuffer mIndexBatch;
+    private volatile IOException mError;
+    private volatile long mWrittenCount;
+    private volatile long mDroppedCount;
+    private volatile long mRawBytes;
+    private volatile long mEncodedBytes;
+
+    /**
+     * Creates the directory with an empty journal and starts the writer thread.
+     * @param queueCapacity the number of maps which can wait for the writer
+     */
+    public EdgeJournal(File directory, int queueCapacity) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mFreeSlots = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            mFreeSlots.add(new Slot());
+        }
+        // one more for the end of the journal
+        mPendingSlots = new ArrayBlockingQueue<>(queueCapacity + 1);
+        mEndOfJournal = new Slot();
+        mDataFile = new RandomAccessFile(new File(directory, JournalFormat.DATA_FILE), "rw");
+        mDataFile.setLength(0);
+        RandomAccessFile indexFile = new RandomAccessFile(
+                new File(directory, JournalFormat.INDEX_FILE), "rw");
+        indexFile.setLength(0);
+        mIndexChannel = indexFile.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(JournalFormat.HEADER_SIZE);
+        header.putInt(JournalFormat.MAGIC).putInt(JournalFormat.ENTRY_SIZE).flip();
+        mIndexChannel.write(header);
+        mIndexBatch = ByteBuffer.allocate(BATCH_SIZE * JournalFormat.ENTRY_SIZE);
+        mWriter = new Thread("EdgeJournal") {
+            @Override
+            public void run() {
+                write();
+            }
+        };
+        mWriter.start();
+    }
+
+    /**
+     * Queues a copy of an edge map without waiting.
+     * @param frameNumber increasing number of the frame, e.g. its sequence number
+     * @return false if the map was dropped because the writer is behind or has failed
+     */
+    public boolean offer(long frameNumber, byte[] edges, int width, int height) {
+        Slot slot = mError == null ? mFreeSlots.poll() : null;
+        if (slot == null) {
+            mDroppedCount++;
+            return false;
+        }
+        int size = width * height;
+        if (slot.edges.length != size) {
+            slot.edges = new byte[size];
+        }
+        System.arraycopy(edges, 0, slot.edges, 0, size);
+        slot.frameNumber = frameNumber;
+        slot.width = width;
+        slot.height = height;
+        mPendingSlots.add(slot);
+        return true;
+    }
+
+    /**
+     * Writes the queued maps and closes the files.
+     * @throws IOException if writing any map failed
+     */
+    public void close() throws IOException {
+        mPendingSlots.add(mEndOfJournal);
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private void write() {
+        List<Slot> batch = new ArrayList<>(BATCH_SIZE);
+        boolean ended = false;
+        try {
+            while (!ended) {
+                batch.add(mPendingSlots.take());
+                mPendingSlots.drainTo(batch, BATCH_SIZE - 1);
+                mIndexBatch.clear();
+                for (Slot slot : batch) {
+                    if (slot == mEndOfJournal) {
+                        ended = true;
+                    } else {
+                        append(slot);
+                        mFreeSlots.add(slot);
+                    }
+                }
+                batch.clear();
+                mIndexBatch.flip();
+                while (mIndexBatch.hasRemaining()) {
+                    mIndexChannel.write(mIndexBatch);
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+        } catch (InterruptedException e) {
+            mError = new IOException("Journal writer interrupted");
+        } finally {
+            finish();
+        }
+    }
+
+    /** Encodes a map, appends it to the data file and its entry to the index batch */
+    private void append(Slot slot) throws IOException {
+        int size = slot.edges.length;
+        if (mEncoded == null || mEncoded.length < EdgeMapCodec.maxEncodedSize(size)) {
+            mEncoded = new byte[EdgeMapCodec.maxEncodedSize(size)];
+            mDelta = new byte[EdgeMapCodec.maxEncodedSize(size)];
+        }
+        int length = EdgeMapCodec.encode(slot.edges, null, size, mEncoded);
+        byte[] encoded = mEncoded;
+        int flags = 0;
+        if (mPrevious != null && mPrevious.length == size && mSinceKeyframe < KEYFRAME_INTERVAL) {
+            int deltaLength = EdgeMapCodec.encode(slot.edges, mPrevious, size, mDelta);
+            if (deltaLength < length) {
+                length = deltaLength;
+                encoded = mDelta;
+                flags = JournalFormat.FLAG_DELTA;
+            }
+        }
+        mSinceKeyframe = flags == JournalFormat.FLAG_DELTA ? mSinceKeyframe + 1 : 1;
+
+        if (mRegion == null || mRegion.remaining() < length) {
+            mRegionStart = mDataSize;
+            mRegion = mDataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, mRegionStart,
+                    Math.max(REGION_SIZE, length));
+        }
+        mRegion.put(encoded, 0, length);
+        mIndexBatch.putLong(slot.frameNumber).putLong(mDataSize).putInt(length)
+                .putInt(slot.width).putInt(slot.height).putInt(flags);
+        mDataSize += length;
+
+        // the slot goes back to the queue, so the map is kept in a buffer of the writer
+        if (mPrevious == null || mPrevious.length != size) {
+            mPrevious = new byte[size];
+        }
+        System.arraycopy(slot.edges, 0, mPrevious, 0, size);
+        mWrittenCount++;
+        mRawBytes += size;
+        mEncodedBytes += length;
+    }
+
+    /** Cuts the unused end of the last region and closes the files */
+    private void finish() {
+        try {
+            if (mRegion != null) {
+                mRegion.force();
+            }
+            mDataFile.setLength(mDataSize);
+            mDataFile.close();
+            mIndexChannel.force(false);
+            mIndexChannel.close();
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    public File getDirectory() { return mDirectory; }
+
+    public long getWrittenCount() { return mWrittenCount; }
+
+    /** @return the number of maps dropped because no slot of the queue was free */
+    public long getDroppedCount() { return mDroppedCount; }
+
+    /** @return the size of the encoded maps relative to the raw maps */
+    public double getCompressionRatio() {
+        return mRawBytes == 0 ? 0 : mEncodedBytes / (double) mRawBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("written=%d dropped=%d compressed to %.2f%% (%d bytes)",
+                mWrittenCount, mDroppedCount, 100 * getCompressionRatio(), mEncodedBytes);
+    }
+}
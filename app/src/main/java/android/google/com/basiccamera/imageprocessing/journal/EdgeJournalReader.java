@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the edge maps of a journal written by EdgeJournal in any order. The index is loaded
+ * once, the data file is memory-mapped. A map encoded as delta is decoded from the preceding
+ * keyframe on, which the reader skips if it is reading forward from the previous map anyway.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeJournalReader {
+
+    private final long[] mFrameNumbers;
+    private final long[] mOffsets;
+    private final int[] mLengths;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final boolean[] mDeltas;
+    private final MappedByteBuffer mData;
+    private byte[] mEncoded;
+    // the last decoded map, continued from when reading forward
+    private byte[] mCurrent;
+    private int mCurrentIndex;
+
+    public EdgeJournalReader(File directory) throws IOException {
+        ByteBuffer index;
+        RandomAccessFile indexFile = new RandomAccessFile(
+                new File(directory, JournalFormat.INDEX_FILE), "r");
+        try {
+            index = ByteBuffer.allocate((int) indexFile.length());
+            indexFile.readFully(index.array());
+        } finally {
+            indexFile.close();
+        }
+        if (index.remaining() < JournalFormat.HEADER_SIZE
+                || index.getInt() != JournalFormat.MAGIC
+                || index.getInt() != JournalFormat.ENTRY_SIZE) {
+            throw new IOException("Not a journal: " + directory);
+        }
+        // an entry cut off by a crash is ignored
+        int count = index.remaining() / JournalFormat.ENTRY_SIZE;
+        mFrameNumbers = new long[count];
+        mOffsets = new long[count];
+        mLengths = new int[count];
+        mWidths = new int[count];
+        mHeights = new int[count];
+        mDeltas = new boolean[count];
+        long dataSize = 0;
+        for (int i = 0; i < count; i++) {
+            mFrameNumbers[i] = index.getLong();
+            mOffsets[i] = index.getLong();
+            mLengths[i] = index.getInt();
+            mWidths[i] = index.getInt();
+            mHeights[i] = index.getInt();
+            mDeltas[i] = (index.getInt() & JournalFormat.FLAG_DELTA) != 0;
+            dataSize = Math.max(dataSize, mOffsets[i] + mLengths[i]);
+        }
+        if (dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Journal too large for one mapping: " + dataSize + " bytes");
+        }
+        RandomAccessFile dataFile = new RandomAccessFile(
+                new File(directory, JournalFormat.DATA_FILE), "r");
+        try {
+            if (dataFile.length() < dataSize) {
+                throw new IOException("Data file shorter than its index: " + directory);
+            }
+            // the mapping stays valid after the file is closed
+            mData = dataFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataSize);
+        } finally {
+            dataFile.close();
+        }
+        mCurrentIndex = -1;
+    }
+
+    /** @return the number of maps in the journal */
+    public int size() { return mFrameNumbers.length; }
+
+    public long getFrameNumber(int index) { return mFrameNumbers[index]; }
+
+    public int getWidth(int index) { return mWidths[index]; }
+
+    public int getHeight(int index) { return mHeights[index]; }
+
+    /** @return the size of the encoded map in bytes */
+    public int getEncodedLength(int index) { return mLengths[index]; }
+
+    /** @return the index of the map of the frame or a negative value if it was not recorded */
+    public int indexOf(long frameNumber) {
+        return Arrays.binarySearch(mFrameNumbers, frameNumber);
+    }
+
+    /**
+     * Decodes the map of a frame.
+     * @param edges receives EDGE or NO_EDGE per pixel, at least width * height of the map long
+     * @return false if the frame was not recorded
+     */
+    public boolean read(long frameNumber, byte[] edges) {
+        int index = indexOf(frameNumber);
+        if (index < 0) {
+            return false;
+        }
+        readAt(index, edges);
+        return true;
+    }
+
+    /**
+     * Decodes the map at an index of the journal.
+     * @param edges receives EDGE or NO_EDGE per pixel, at least width * height of the map long
+     */
+    public void readAt(int index, byte[] edges) {
+        int first = index;
+        while (mDeltas[first]) {
+            first--;
+        }
+        if (mCurrentIndex >= first && mCurrentIndex <= index) {
+            first = mCurrentIndex + 1;
+        } else {
+            mCurrentIndex = -1;
+        }
+        int size = mWidths[index] * mHeights[index];
+        if (mCurrent == null || mCurrent.length != size) {
+            mCurrent = new byte[size];
+        }
+        for (int i = first; i <= index; i++) {
+            int length = mLengths[i];
+            if (mEncoded == null || mEncoded.length < length) {
+                mEncoded = new byte[length];
+            }
+            mData.position((int) mOffsets[i]);
+            mData.get(mEncoded, 0, length);
+            EdgeMapCodec.decode(mEncoded, 0, length, mDeltas[i], mCurrent, size);
+            mCurrentIndex = i;
+        }
+        System.arraycopy(mCurrent, 0, edges, 0, size);
+    }
+}
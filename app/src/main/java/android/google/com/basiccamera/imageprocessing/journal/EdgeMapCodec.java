@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.journal;
+
+import java.util.Arrays;
+
+/**
+ * Compresses binary edge maps by run-length encoding. A map is a sequence of alternating runs of
+ * non-edge and edge pixels, starting with non-edge pixels, whose lengths are stored as unsigned
+ * variable length integers of 7 bits per byte. Sparse edge maps consist of few long runs, so
+ * most maps shrink by one to two orders of magnitude.
+ *
+ * A map can also be encoded as delta to the previous map: the runs then describe the pixels which
+ * changed. Consecutive maps of a steady camera differ in few pixels, so the delta is smaller than
+ * the map itself.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeMapCodec {
+
+    /** The value of an edge pixel in a decoded map, as written by the Canny kernels */
+    public static final byte EDGE = (byte) 255;
+    public static final byte NO_EDGE = 0;
+
+    private EdgeMapCodec() {}
+
+    /** @return the size of an encoded map of the given number of pixels in the worst case */
+    public static int maxEncodedSize(int pixelCount) {
+        // every run takes at least one byte, only runs of at least 128 pixels need more
+        return pixelCount + 6;
+    }
+
+    /**
+     * Encodes a map, every non-zero value is an edge.
+     * @param previous the map to encode the delta to, null to encode the map itself
+     * @param encoded receives the runs, at least maxEncodedSize(pixelCount) long
+     * @return the number of bytes written
+     */
+    public static int encode(byte[] edges, byte[] previous, int pixelCount, byte[] encoded) {
+        int position = 0;
+        boolean inEdge = false;
+        int runStart = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            boolean edge = previous == null ? edges[i] != 0 : (edges[i] != 0) != (previous[i] != 0);
+            if (edge != inEdge) {
+                position = writeRun(i - runStart, encoded, position);
+                runStart = i;
+                inEdge = edge;
+            }
+        }
+        return writeRun(pixelCount - runStart, encoded, position);
+    }
+
+    private static int writeRun(int length, byte[] encoded, int position) {
+        while (length >= 0x80) {
+            encoded[position++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        encoded[position++] = (byte) length;
+        return position;
+    }
+
+    /**
+     * Decodes a map.
+     * @param edges receives EDGE or NO_EDGE for every pixel. For a delta it has to contain the
+     *              previous map, whose pixels are flipped where they changed.
+     * @param delta whether the runs describe a delta
+     * @throws IllegalArgumentException if the runs do not cover exactly pixelCount pixels
+     */
+    public static void decode(byte[] encoded, int offset, int length, boolean delta,
+            byte[] edges, int pixelCount) {
+        int position = offset;
+        int end = offset + length;
+        int pixel = 0;
+        boolean inEdge = false;
+        while (position < end) {
+            int run = 0;
+            int shift = 0;
+            byte value;
+            do {
+                value = encoded[position++];
+                run |= (value & 0x7f) << shift;
+                shift += 7;
+            } while (value < 0 && position < end);
+            if (pixel + run > pixelCount) {
+                throw new IllegalArgumentException("Runs exceed " + pixelCount + " pixels");
+            }
+            if (delta) {
+                if (inEdge) {
+                    for (int i = pixel; i < pixel + run; i++) {
+                        edges[i] = edges[i] == NO_EDGE ? EDGE : NO_EDGE;
+                    }
+                }
+            } else {
+                Arrays.fill(edges, pixel, pixel + run, inEdge ? EDGE : NO_EDGE);
+            }
+            pixel += run;
+            inEdge = !inEdge;
+        }
+        if (pixel != pixelCount) {
+            throw new IllegalArgumentException("Runs cover " + pixel + " of " + pixelCount
+                    + " pixels");
+        }
+    }
+}
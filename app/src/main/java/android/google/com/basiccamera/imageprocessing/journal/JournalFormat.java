@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.journal;
+
+/**
+ * The layout of a journal directory. The data file holds the encoded edge maps back to back.
+ * The index file starts with a header and holds one fixed size entry per map, so the entry of
+ * the n-th map is found without reading the others.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+final class JournalFormat {
+
+    static final String DATA_FILE = "edges.dat";
+    static final String INDEX_FILE = "edges.idx";
+
+    static final int MAGIC = 0x45444a31; // "EDJ1"
+    static final int HEADER_SIZE = 8;
+
+    // frame number, offset in the data file, length, width, height, flags
+    static final int ENTRY_SIZE = 8 + 8 + 4 + 4 + 4 + 4;
+    /** The map is encoded as delta to the map of the previous entry */
+    static final int FLAG_DELTA = 1;
+
+    private JournalFormat() {}
+}
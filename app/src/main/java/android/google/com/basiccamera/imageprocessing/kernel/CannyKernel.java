@@ -0,0 +1,430 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+import java.util.Arrays;
+
+/**
+ * A pure Java Canny edge detector doing the same stages as the OpenCV pipeline of the
+ * CannyEdgeDetector task: a 3x3 box blur, 3x3 Sobel gradients with L1 magnitude, non maximum
+ * suppression and hysteresis. It does not depend on Android or OpenCV, so it also runs on a plain
+ * JVM. The 1 pixel border of the image is never marked as edge.
+ *
+ * With a deadline the detection checks between its passes, and during the hysteresis after
+ * every strip of rows, whether the frame is still worth finishing, and abandons it otherwise.
+ * The passes also run on column ranges of single rows, so the CoarseToFineCanny can restrict
+ * them to parts of the image.
+ *
+ * The scratch buffers are allocated once per resolution, so an instance is not thread safe and
+ * should be used by a single thread.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CannyKernel implements EdgeKernel {
+
+    /** The thresholds used by the live pipeline */
+    public static final int LOW_THRESHOLD = 20;
+    public static final int HIGH_THRESHOLD = 100;
+
+    public static final byte EDGE = (byte) 255;
+    public static final byte NO_EDGE = 0;
+
+    // tan(22.5 degree) in 15 bit fixed point, as in OpenCV
+    private static final int TG22 = 13573;
+    // values of the edge map during hysteresis
+    private static final byte MAP_CANDIDATE = 0;
+    private static final byte MAP_NONE = 1;
+    private static final byte MAP_EDGE = 2;
+    // rows of seeds followed by the hysteresis between two checks of the deadline
+    private static final int HYSTERESIS_STRIP_ROWS = 32;
+    // the share of the detection time done after each pass, measured at 1920x1080
+    private static final float BLUR_PROGRESS = 0.3f;
+    private static final float GRADIENTS_PROGRESS = 0.69f;
+    private static final float SUPPRESSION_PROGRESS = 0.87f;
+
+    /** The stages after which the deadline is checked, as reported by Deadline */
+    public static final String STAGE_BLUR = "blur";
+    public static final String STAGE_GRADIENTS = "gradients";
+    public static final String STAGE_SUPPRESSION = "suppression";
+    public static final String STAGE_HYSTERESIS = "hysteresis";
+
+    private final int mLowThreshold;
+    private final int mHighThreshold;
+    private int mWidth;
+    private int mHeight;
+    private short[] mRowSums;
+    private byte[] mBlurred;
+    private short[] mDx;
+    private short[] mDy;
+    private int[] mMagnitude;
+    private byte[] mMap;
+    private int[] mStack;
+
+    public CannyKernel() {
+        this(LOW_THRESHOLD, HIGH_THRESHOLD);
+    }
+
+    public CannyKernel(int lowThreshold, int highThreshold) {
+        mLowThreshold = lowThreshold;
+        mHighThreshold = highThreshold;
+    }
+
+    /**
+     * Detects the edges of a gray image.
+     * @param gray the gray image, e.g. the Y plane of a NV21 frame, starting at index 0
+     * @param width width of the image
+     * @param height height of the image
+     * @param edges receives EDGE or NO_EDGE for every pixel, at least width * height long
+     */
+    @Override
+    public void detect(byte[] gray, int width, int height, byte[] edges) {
+        allocate(width, height);
+        blur(gray, 0, height);
+        gradients(1, height - 1);
+        suppress(1, height - 1);
+        hysteresis(edges);
+    }
+
+    /**
+     * Detects the edges of a gray image like detect, unless the deadline expires first.
+     * @return false if the frame has been abandoned, the edges are incomplete then
+     */
+    public boolean detect(byte[] gray, int width, int height, byte[] edges, Deadline deadline) {
+        allocate(width, height);
+        blur(gray, 0, height);
+        if (deadline.hasExpired(STAGE_BLUR, BLUR_PROGRESS)) {
+            return false;
+        }
+        gradients(1, height - 1);
+        if (deadline.hasExpired(STAGE_GRADIENTS, GRADIENTS_PROGRESS)) {
+            return false;
+        }
+        suppress(1, height - 1);
+        if (deadline.hasExpired(STAGE_SUPPRESSION, SUPPRESSION_PROGRESS)) {
+            return false;
+        }
+        Arrays.fill(edges, 0, width * height, NO_EDGE);
+        for (int row = 1; row < height - 1; row += HYSTERESIS_STRIP_ROWS) {
+            int end = Math.min(row + HYSTERESIS_STRIP_ROWS, height - 1);
+            hysteresis(edges, row, end);
+            // a finished map is not abandoned
+            if (end < height - 1 && deadline.hasExpired(STAGE_HYSTERESIS, SUPPRESSION_PROGRESS
+                    + (1 - SUPPRESSION_PROGRESS) * end / (height - 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allocates the scratch buffers if the resolution has changed
+     */
+    @Override
+    public void allocate(int width, int height) {
+        if (width < 3 || height < 3) {
+            throw new IllegalArgumentException("Image too small: " + width + "x" + height);
+        }
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        int size = width * height;
+        mRowSums = new short[size];
+        mBlurred = new byte[size];
+        mDx = new short[size];
+        mDy = new short[size];
+        mMagnitude = new int[size];
+        mMap = new byte[size];
+        mStack = new int[size];
+    }
+
+    /**
+     * Frees the scratch buffers, they are allocated again by the next detection
+     */
+    @Override
+    public void release() {
+        mWidth = 0;
+        mHeight = 0;
+        mRowSums = null;
+        mBlurred = null;
+        mDx = null;
+        mDy = null;
+        mMagnitude = null;
+        mMap = null;
+        mStack = null;
+    }
+
+    /**
+     * 3x3 box blur of the rows [rowBegin, rowEnd) with reflected borders, as Imgproc.blur.
+     */
+    void blur(byte[] gray, int rowBegin, int rowEnd) {
+        // horizontal sums need one row above and below the requested rows
+        int sumBegin = Math.max(rowBegin - 1, 0);
+        int sumEnd = Math.min(rowEnd + 1, mHeight);
+        for (int y = sumBegin; y < sumEnd; y++) {
+            rowSums(gray, y, 0, mWidth);
+        }
+        for (int y = rowBegin; y < rowEnd; y++) {
+            blur(y, 0, mWidth);
+        }
+    }
+
+    /**
+     * Horizontal sums of three pixels of the columns [xBegin, xEnd) of one row.
+     */
+    void rowSums(byte[] gray, int y, int xBegin, int xEnd) {
+        int width = mWidth;
+        short[] rowSums = mRowSums;
+        int row = y * width;
+        int begin = Math.max(xBegin, 1);
+        int end = Math.min(xEnd, width - 1);
+        if (xBegin == 0) {
+            rowSums[row] = (short) ((gray[row] & 0xff) + 2 * (gray[row + 1] & 0xff));
+        }
+        for (int x = begin; x < end; x++) {
+            rowSums[row + x] = (short) ((gray[row + x - 1] & 0xff) + (gray[row + x] & 0xff)
+                    + (gray[row + x + 1] & 0xff));
+        }
+        if (xEnd == width) {
+            rowSums[row + width - 1] = (short) ((gray[row + width - 1] & 0xff)
+                    + 2 * (gray[row + width - 2] & 0xff));
+        }
+    }
+
+    /**
+     * Box blur of the columns [xBegin, xEnd) of one row. The row sums of the row and of its
+     * neighbours have to be computed already.
+     */
+    void blur(int y, int xBegin, int xEnd) {
+        int width = mWidth;
+        int height = mHeight;
+        short[] rowSums = mRowSums;
+        byte[] blurred = mBlurred;
+        int row = y * width;
+        int above = (y == 0 ? 1 : y - 1) * width;
+        int below = (y == height - 1 ? height - 2 : y + 1) * width;
+        for (int x = xBegin; x < xEnd; x++) {
+            int sum = rowSums[above + x] + rowSums[row + x] + rowSums[below + x];
+            // rounded division by 9
+            blurred[row + x] = (byte) ((sum * 2 + 9) / 18);
+        }
+    }
+
+    /**
+     * Sobel gradients and L1 magnitude of the rows [rowBegin, rowEnd), which have to lie
+     * inside [1, height - 1).
+     */
+    void gradients(int rowBegin, int rowEnd) {
+        if (rowBegin == 1) {
+            gradients(0, 0, mWidth);
+        }
+        for (int y = rowBegin; y < rowEnd; y++) {
+            gradients(y, 0, mWidth);
+        }
+        if (rowEnd == mHeight - 1) {
+            gradients(mHeight - 1, 0, mWidth);
+        }
+    }
+
+    /**
+     * Sobel gradients and L1 magnitude of the columns [xBegin, xEnd) of one row. The magnitude
+     * of the 1 pixel border is 0. The blurred neighbours of the pixels have to be computed
+     * already.
+     */
+    void gradients(int y, int xBegin, int xEnd) {
+        int width = mWidth;
+        byte[] b = mBlurred;
+        short[] dxs = mDx;
+        short[] dys = mDy;
+        int[] magnitude = mMagnitude;
+        int row = y * width;
+        if (y == 0 || y == mHeight - 1) {
+            Arrays.fill(magnitude, row + xBegin, row + xEnd, 0);
+            return;
+        }
+        if (xBegin == 0) {
+            magnitude[row] = 0;
+        }
+        if (xEnd == width) {
+            magnitude[row + width - 1] = 0;
+        }
+        int end = row + Math.min(xEnd, width - 1);
+        for (int i = row + Math.max(xBegin, 1); i < end; i++) {
+            int tl = b[i - width - 1] & 0xff;
+            int t = b[i - width] & 0xff;
+            int tr = b[i - width + 1] & 0xff;
+            int l = b[i - 1] & 0xff;
+            int r = b[i + 1] & 0xff;
+            int bl = b[i + width - 1] & 0xff;
+            int bt = b[i + width] & 0xff;
+            int br = b[i + width + 1] & 0xff;
+            int dx = (tr + 2 * r + br) - (tl + 2 * l + bl);
+            int dy = (bl + 2 * bt + br) - (tl + 2 * t + tr);
+            dxs[i] = (short) dx;
+            dys[i] = (short) dy;
+            magnitude[i] = (dx < 0 ? -dx : dx) + (dy < 0 ? -dy : dy);
+        }
+    }
+
+    /**
+     * Non maximum suppression of the rows [rowBegin, rowEnd), which have to lie inside
+     * [1, height - 1). The gradients of the neighbouring rows have to be computed already.
+     */
+    void suppress(int rowBegin, int rowEnd) {
+        if (rowBegin == 1) {
+            suppress(0, 0, mWidth);
+        }
+        for (int y = rowBegin; y < rowEnd; y++) {
+            suppress(y, 0, mWidth);
+        }
+        if (rowEnd == mHeight - 1) {
+            suppress(mHeight - 1, 0, mWidth);
+        }
+    }
+
+    /**
+     * Non maximum suppression of the columns [xBegin, xEnd) of one row. The 1 pixel border is
+     * never a candidate. The gradients of the neighbours have to be computed already.
+     */
+    void suppress(int y, int xBegin, int xEnd) {
+        int width = mWidth;
+        int low = mLowThreshold;
+        int high = mHighThreshold;
+        short[] dxs = mDx;
+        short[] dys = mDy;
+        int[] magnitude = mMagnitude;
+        byte[] map = mMap;
+        int row = y * width;
+        if (y == 0 || y == mHeight - 1) {
+            Arrays.fill(map, row + xBegin, row + xEnd, MAP_NONE);
+            return;
+        }
+        if (xBegin == 0) {
+            map[row] = MAP_NONE;
+        }
+        if (xEnd == width) {
+            map[row + width - 1] = MAP_NONE;
+        }
+        int end = row + Math.min(xEnd, width - 1);
+        for (int i = row + Math.max(xBegin, 1); i < end; i++) {
+            int m = magnitude[i];
+            byte value = MAP_NONE;
+            if (m > low) {
+                int xs = dxs[i];
+                int ys = dys[i];
+                int ax = xs < 0 ? -xs : xs;
+                int ay = (ys < 0 ? -ys : ys) << 15;
+                int tg22x = ax * TG22;
+                boolean maximum;
+                if (ay < tg22x) {
+                    maximum = m > magnitude[i - 1] && m >= magnitude[i + 1];
+                } else {
+                    int tg67x = tg22x + (ax << 16);
+                    if (ay > tg67x) {
+                        maximum = m > magnitude[i + width] && m >= magnitude[i - width];
+                    } else {
+                        int s = (xs ^ ys) < 0 ? -1 : 1;
+                        maximum = m > magnitude[i - width - s] && m > magnitude[i + width + s];
+                    }
+                }
+                if (maximum) {
+                    value = m > high ? MAP_EDGE : MAP_CANDIDATE;
+                }
+            }
+            map[i] = value;
+        }
+    }
+
+    /**
+     * Marks the columns [xBegin, xEnd) of one row as no candidate. Around the parts of the image
+     * which are suppressed, this stops the hysteresis from following stale candidates.
+     */
+    void clearMap(int y, int xBegin, int xEnd) {
+        int row = y * mWidth;
+        Arrays.fill(mMap, row + xBegin, row + xEnd, MAP_NONE);
+    }
+
+    /**
+     * Follows the strong edges into the connected candidates and writes the result
+     */
+    void hysteresis(byte[] edges) {
+        Arrays.fill(edges, 0, mWidth * mHeight, NO_EDGE);
+        hysteresis(edges, 1, mHeight - 1);
+    }
+
+    /**
+     * Starts the edge following at the strong edges of the rows [rowBegin, rowEnd). Candidates are
+     * followed across the whole image. The edges have to be cleared before the first strip.
+     */
+    void hysteresis(byte[] edges, int rowBegin, int rowEnd) {
+        for (int y = rowBegin; y < rowEnd; y++) {
+            hysteresis(edges, y, 0, mWidth);
+        }
+    }
+
+    /**
+     * Starts the edge following at the strong edges of the columns [xBegin, xEnd) of one row
+     */
+    void hysteresis(byte[] edges, int y, int xBegin, int xEnd) {
+        int width = mWidth;
+        byte[] map = mMap;
+        int[] stack = mStack;
+        int row = y * width;
+        int end = row + Math.min(xEnd, width - 1);
+        for (int seed = row + Math.max(xBegin, 1); seed < end; seed++) {
+            if (map[seed] != MAP_EDGE || edges[seed] == EDGE) {
+                continue;
+            }
+            int top = 0;
+            stack[top++] = seed;
+            edges[seed] = EDGE;
+            while (top > 0) {
+                int i = stack[--top];
+                top = follow(i - width - 1, top, edges);
+                top = follow(i - width, top, edges);
+                top = follow(i - width + 1, top, edges);
+                top = follow(i - 1, top, edges);
+                top = follow(i + 1, top, edges);
+                top = follow(i + width - 1, top, edges);
+                top = follow(i + width, top, edges);
+                top = follow(i + width + 1, top, edges);
+            }
+        }
+    }
+
+    private int follow(int i, int top, byte[] edges) {
+        byte value = mMap[i];
+        if (value != MAP_NONE && edges[i] != EDGE) {
+            edges[i] = EDGE;
+            mStack[top++] = i;
+        }
+        return top;
+    }
+
+    /** @return the bytes of the scratch buffers for the current resolution */
+    @Override
+    public long getBufferBytes() {
+        // row sums, blurred, dx, dy, magnitude, map and stack
+        return 16L * mWidth * mHeight;
+    }
+
+    public int getWidth() { return mWidth; }
+
+    public int getHeight() { return mHeight; }
+}
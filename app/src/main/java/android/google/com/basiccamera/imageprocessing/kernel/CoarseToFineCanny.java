@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+import java.util.Arrays;
+
+/**
+ * A Canny edge detector which refines only where a low resolution level of the image has
+ * gradients. The image is downsampled by 2 or 4 and the Sobel magnitude of the small image is
+ * compared per tile against a bound. The stages of the CannyKernel then run at full resolution
+ * only inside the candidate tiles plus a margin, and the hysteresis starts only there. Flat
+ * parts of the image, which make up most of a typical frame, are never blurred or differentiated.
+ *
+ * Inside the refined parts the edges are the ones of the full resolution detection, except near
+ * the border of the margin, where an edge is not followed into a tile which was not refined.
+ * Edges which are too fine to survive the downsampling are lost with their tile. The bound is
+ * the trade-off between the two: a lower bound refines more tiles and finds more of the edges,
+ * a higher one skips more of the image. It is given in the units of the full resolution
+ * magnitude, a step of the brightness has about the same magnitude on both levels.
+ *
+ * An instance is not thread safe and should be used by a single thread.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CoarseToFineCanny implements EdgeKernel {
+
+    public static final int DEFAULT_DOWNSAMPLING = 4;
+    public static final int DEFAULT_TILE_SIZE = 32;
+    public static final int DEFAULT_MARGIN = 4;
+    public static final int DEFAULT_BOUND = CannyKernel.LOW_THRESHOLD;
+
+    private final int mDownsampling;
+    private final int mTileSize;
+    private final int mMargin;
+    private final int mBound;
+    private final CannyKernel mKernel;
+    private int mWidth;
+    private int mHeight;
+    private int mTilesX;
+    private int mTilesY;
+    private byte[] mCoarse;
+    private int[] mCoarseMagnitude;
+    private boolean[] mCandidates;
+    private boolean[] mColumns;
+    // begin and end of the refined column ranges of one row
+    private int[] mSpans;
+    // the tile rows and the margin the ranges in mSpans have been collected for
+    private int mSpanFirst;
+    private int mSpanLast;
+    private int mSpanMargin;
+    private int mSpanCount;
+    private int mCandidateCount;
+    private long mRefinedPixels;
+    private long mTotalRefinedPixels;
+    private long mTotalPixels;
+    private long mFrameCount;
+
+    public CoarseToFineCanny() {
+        this(DEFAULT_DOWNSAMPLING, DEFAULT_TILE_SIZE, DEFAULT_MARGIN, DEFAULT_BOUND);
+    }
+
+    /**
+     * @param downsampling the factor of the low resolution level, 2 or 4
+     * @param tileSize side length of the tiles in full resolution pixels, a multiple of the
+     *                 downsampling
+     * @param margin pixels refined around each candidate tile
+     * @param bound the magnitude of the low resolution gradients a candidate tile has to exceed
+     */
+    public CoarseToFineCanny(int downsampling, int tileSize, int margin, int bound) {
+        if (downsampling != 2 && downsampling != 4) {
+            throw new IllegalArgumentException("Unsupported downsampling factor " + downsampling);
+        }
+        if (tileSize < downsampling || tileSize % downsampling != 0 || margin < 0) {
+            throw new IllegalArgumentException("Invalid tiles: " + tileSize + " margin " + margin);
+        }
+        mDownsampling = downsampling;
+        mTileSize = tileSize;
+        mMargin = margin;
+        mBound = bound;
+        mKernel = new CannyKernel();
+    }
+
+    /**
+     * Detects the edges of a gray image, see CannyKernel.detect.
+     * @param gray the gray image, e.g. the Y plane of a NV21 frame, starting at index 0
+     * @param edges receives EDGE or NO_EDGE for every pixel, at least width * height long
+     */
+    @Override
+    public void detect(byte[] gray, int width, int height, byte[] edges) {
+        allocate(width, height);
+        findCandidates(gray);
+        mSpanFirst = -1;
+        CannyKernel kernel = mKernel;
+        int margin = mMargin;
+        // every stage needs the previous one on its pixels and their 8 neighbours
+        for (int y = 0; y < height; y++) {
+            int count = findSpans(y, margin + 2, margin + 3);
+            for (int i = 0; i < count; i += 2) {
+                kernel.rowSums(gray, y, mSpans[i], mSpans[i + 1]);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int count = findSpans(y, margin + 2, margin + 2);
+            for (int i = 0; i < count; i += 2) {
+                kernel.blur(y, mSpans[i], mSpans[i + 1]);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int count = findSpans(y, margin + 1, margin + 1);
+            for (int i = 0; i < count; i += 2) {
+                kernel.gradients(y, mSpans[i], mSpans[i + 1]);
+                // the hysteresis looks one pixel beyond the suppressed ones
+                kernel.clearMap(y, mSpans[i], mSpans[i + 1]);
+            }
+        }
+        long refined = 0;
+        for (int y = 0; y < height; y++) {
+            int count = findSpans(y, margin, margin);
+            for (int i = 0; i < count; i += 2) {
+                kernel.suppress(y, mSpans[i], mSpans[i + 1]);
+                refined += mSpans[i + 1] - mSpans[i];
+            }
+        }
+        Arrays.fill(edges, 0, width * height, CannyKernel.NO_EDGE);
+        for (int y = 1; y < height - 1; y++) {
+            int count = findSpans(y, margin, margin);
+            for (int i = 0; i < count; i += 2) {
+                kernel.hysteresis(edges, y, mSpans[i], mSpans[i + 1]);
+            }
+        }
+        mRefinedPixels = refined;
+        mTotalRefinedPixels += refined;
+        mTotalPixels += (long) width * height;
+        mFrameCount++;
+    }
+
+    /**
+     * Allocates the buffers if the resolution has changed
+     */
+    @Override
+    public void allocate(int width, int height) {
+        if (width / mDownsampling < 3 || height / mDownsampling < 3) {
+            throw new IllegalArgumentException("Image too small: " + width + "x" + height);
+        }
+        mKernel.allocate(width, height);
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        mTilesX = (width + mTileSize - 1) / mTileSize;
+        mTilesY = (height + mTileSize - 1) / mTileSize;
+        int coarseSize = PlaneTransform.downsampledSize(width, mDownsampling)
+                * PlaneTransform.downsampledSize(height, mDownsampling);
+        mCoarse = new byte[coarseSize];
+        mCoarseMagnitude = new int[coarseSize];
+        mCandidates = new boolean[mTilesX * mTilesY];
+        mColumns = new boolean[mTilesX];
+        mSpans = new int[2 * mTilesX];
+    }
+
+    /**
+     * Frees the buffers, they are allocated again by the next detection. The statistics are kept.
+     */
+    @Override
+    public void release() {
+        mKernel.release();
+        mWidth = 0;
+        mHeight = 0;
+        mCoarse = null;
+        mCoarseMagnitude = null;
+        mCandidates = null;
+        mColumns = null;
+        mSpans = null;
+    }
+
+    /**
+     * Marks the tiles in which the Sobel magnitude of the low resolution level exceeds the
+     * bound. A tile also looks at the low resolution pixels next to it, so an edge on the border
+     * between two tiles refines both, and the columns and rows dropped by the downsampling
+     * belong to the last tile.
+     */
+    private void findCandidates(byte[] gray) {
+        int factor = mDownsampling;
+        int coarseWidth = PlaneTransform.downsampledSize(mWidth, factor);
+        int coarseHeight = PlaneTransform.downsampledSize(mHeight, factor);
+        PlaneTransform.downsample(gray, mWidth, mHeight, factor, mCoarse);
+        byte[] c = mCoarse;
+        int[] magnitude = mCoarseMagnitude;
+        for (int y = 0; y < coarseHeight; y++) {
+            int above = (y == 0 ? 0 : y - 1) * coarseWidth;
+            int row = y * coarseWidth;
+            int below = (y == coarseHeight - 1 ? y : y + 1) * coarseWidth;
+            for (int x = 0; x < coarseWidth; x++) {
+                int left = x == 0 ? 0 : x - 1;
+                int right = x == coarseWidth - 1 ? x : x + 1;
+                int tl = c[above + left] & 0xff;
+                int t = c[above + x] & 0xff;
+                int tr = c[above + right] & 0xff;
+                int l = c[row + left] & 0xff;
+                int r = c[row + right] & 0xff;
+                int bl = c[below + left] & 0xff;
+                int bt = c[below + x] & 0xff;
+                int br = c[below + right] & 0xff;
+                int dx = (tr + 2 * r + br) - (tl + 2 * l + bl);
+                int dy = (bl + 2 * bt + br) - (tl + 2 * t + tr);
+                magnitude[row + x] = (dx < 0 ? -dx : dx) + (dy < 0 ? -dy : dy);
+            }
+        }
+        int coarseTile = mTileSize / factor;
+        int count = 0;
+        for (int ty = 0; ty < mTilesY; ty++) {
+            int yBegin = Math.max(ty * coarseTile - 1, 0);
+            int yEnd = Math.min((ty + 1) * coarseTile + 1, coarseHeight);
+            for (int tx = 0; tx < mTilesX; tx++) {
+                int xBegin = Math.max(tx * coarseTile - 1, 0);
+                int xEnd = Math.min((tx + 1) * coarseTile + 1, coarseWidth);
+                boolean candidate = false;
+                for (int y = yBegin; y < yEnd && !candidate; y++) {
+                    int row = y * coarseWidth;
+                    for (int x = xBegin; x < xEnd; x++) {
+                        if (magnitude[row + x] > mBound) {
+                            candidate = true;
+                            break;
+                        }
+                    }
+                }
+                mCandidates[ty * mTilesX + tx] = candidate;
+                if (candidate) {
+                    count++;
+                }
+            }
+        }
+        mCandidateCount = count;
+    }
+
+    /**
+     * Collects into mSpans the column ranges of a row which lie in a candidate tile grown by the
+     * given margins. The rows covered by the same tiles share their ranges, which are only
+     * collected again when the tiles change.
+     * @return the number of values in mSpans, twice the number of ranges
+     */
+    private int findSpans(int y, int horizontalMargin, int verticalMargin) {
+        int tileSize = mTileSize;
+        int tilesX = mTilesX;
+        int first = y < verticalMargin ? 0 : (y - verticalMargin) / tileSize;
+        int last = Math.min((y + verticalMargin) / tileSize, mTilesY - 1);
+        if (first == mSpanFirst && last == mSpanLast && horizontalMargin == mSpanMargin) {
+            return mSpanCount;
+        }
+        mSpanFirst = first;
+        mSpanLast = last;
+        mSpanMargin = horizontalMargin;
+        Arrays.fill(mColumns, false);
+        for (int ty = first; ty <= last; ty++) {
+            int row = ty * tilesX;
+            for (int tx = 0; tx < tilesX; tx++) {
+                mColumns[tx] |= mCandidates[row + tx];
+            }
+        }
+        int count = 0;
+        for (int tx = 0; tx < tilesX; tx++) {
+            if (!mColumns[tx]) {
+                continue;
+            }
+            int begin = Math.max(tx * tileSize - horizontalMargin, 0);
+            int end = Math.min((tx + 1) * tileSize + horizontalMargin, mWidth);
+            if (count > 0 && begin <= mSpans[count - 1]) {
+                mSpans[count - 1] = end;
+            } else {
+                mSpans[count++] = begin;
+                mSpans[count++] = end;
+            }
+        }
+        mSpanCount = count;
+        return count;
+    }
+
+    /** @return the bytes of the buffers for the current resolution, including the kernel */
+    @Override
+    public long getBufferBytes() {
+        if (mWidth == 0) {
+            return 0;
+        }
+        // the low resolution level and its magnitude, the tiles and the ranges
+        return mKernel.getBufferBytes() + 5L * mCoarse.length + mCandidates.length
+                + mColumns.length + 4L * mSpans.length;
+    }
+
+    public int getTileCount() { return mTilesX * mTilesY; }
+
+    /** @return the number of candidate tiles of the last frame */
+    public int getCandidateCount() { return mCandidateCount; }
+
+    /** @return the share of the pixels the last frame has refined at full resolution */
+    public float getRefinedFraction() {
+        return mRefinedPixels / (float) (mWidth * mHeight);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("refined %.1f%% of %d frames, downsampling %d, tiles %d, margin %d,"
+                + " bound %d", mTotalPixels == 0 ? 0 : 100.0 * mTotalRefinedPixels / mTotalPixels,
+                mFrameCount, mDownsampling, mTileSize, mMargin, mBound);
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+import java.util.Arrays;
+
+/**
+ * Turns an edge map into polylines. Edge pixels are followed from neighbour to neighbour into
+ * chains, which are simplified with the Douglas-Peucker algorithm: a chain is replaced by the
+ * line between its ends unless a pixel lies farther than epsilon from it, in which case the chain
+ * is split at the farthest pixel and both halves are simplified the same way. The segments of the
+ * simplified polylines are written to a LineSegments list, so the size of the result depends on
+ * the complexity of the edges instead of the resolution.
+ *
+ * The scratch buffers are allocated once per resolution. An instance is not thread safe.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ContourVectorizer {
+
+    /** The maximum distance in pixels of a dropped pixel from the simplified polyline */
+    public static final float DEFAULT_EPSILON = 1.5f;
+    /** Chains of fewer pixels are noise and ignored */
+    public static final int DEFAULT_MIN_CHAIN_LENGTH = 8;
+
+    // the 4-neighbours are followed before the diagonal ones, which keeps chains thin
+    private static final int[] NEIGHBOUR_X = {1, 0, -1, 0, 1, -1, -1, 1};
+    private static final int[] NEIGHBOUR_Y = {0, 1, 0, -1, 1, 1, -1, -1};
+
+    private final float mEpsilon;
+    private final int mMinChainLength;
+    private int mWidth;
+    private int mHeight;
+    private boolean[] mVisited;
+    // the pixel indices of the current chain
+    private int[] mChain;
+    private boolean[] mKeep;
+    // pairs of chain positions still to simplify
+    private int[] mStack;
+
+    public ContourVectorizer() {
+        this(DEFAULT_EPSILON, DEFAULT_MIN_CHAIN_LENGTH);
+    }
+
+    public ContourVectorizer(float epsilon, int minChainLength) {
+        mEpsilon = epsilon;
+        mMinChainLength = Math.max(2, minChainLength);
+    }
+
+    /**
+     * Extracts the simplified polylines of the edges.
+     * @param edges an edge map, every non-zero value is an edge
+     * @param segments receives the segments in pixel coordinates, it is cleared first
+     */
+    public void vectorize(byte[] edges, int width, int height, LineSegments segments) {
+        allocate(width, height);
+        Arrays.fill(mVisited, false);
+        segments.clear(width, height);
+        int size = width * height;
+        for (int start = 0; start < size; start++) {
+            if (edges[start] == 0 || mVisited[start]) {
+                continue;
+            }
+            mVisited[start] = true;
+            mChain[0] = start;
+            int length = follow(edges, 1);
+            // the start may lie inside a chain, so it is followed into the other direction too
+            reverse(length);
+            length = follow(edges, length);
+            if (length >= mMinChainLength && !simplify(length, segments)) {
+                // the list is full
+                return;
+            }
+        }
+    }
+
+    private void allocate(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        int size = width * height;
+        mVisited = new boolean[size];
+        mChain = new int[size];
+        mKeep = new boolean[size];
+        mStack = new int[2 * size];
+    }
+
+    /**
+     * Appends unvisited neighbours to the chain as long as the last pixel has one.
+     * @return the new length of the chain
+     */
+    private int follow(byte[] edges, int length) {
+        int current = mChain[length - 1];
+        while (true) {
+            int x = current % mWidth;
+            int y = current / mWidth;
+            int next = -1;
+            for (int i = 0; i < NEIGHBOUR_X.length; i++) {
+                int nx = x + NEIGHBOUR_X[i];
+                int ny = y + NEIGHBOUR_Y[i];
+                if (nx < 0 || ny < 0 || nx >= mWidth || ny >= mHeight) {
+                    continue;
+                }
+                int neighbour = ny * mWidth + nx;
+                if (edges[neighbour] != 0 && !mVisited[neighbour]) {
+                    next = neighbour;
+                    break;
+                }
+            }
+            if (next < 0) {
+                return length;
+            }
+            mVisited[next] = true;
+            mChain[length++] = next;
+            current = next;
+        }
+    }
+
+    private void reverse(int length) {
+        for (int i = 0, j = length - 1; i < j; i++, j--) {
+            int swap = mChain[i];
+            mChain[i] = mChain[j];
+            mChain[j] = swap;
+        }
+    }
+
+    /**
+     * Simplifies the chain with Douglas-Peucker and adds the segments between the kept pixels.
+     * @return false if the list of segments is full
+     */
+    private boolean simplify(int length, LineSegments segments) {
+        Arrays.fill(mKeep, 0, length, false);
+        mKeep[0] = true;
+        mKeep[length - 1] = true;
+        int stackSize = 0;
+        mStack[stackSize++] = 0;
+        mStack[stackSize++] = length - 1;
+        float epsilonSquared = mEpsilon * mEpsilon;
+        while (stackSize > 0) {
+            int last = mStack[--stackSize];
+            int first = mStack[--stackSize];
+            if (last - first < 2) {
+                continue;
+            }
+            int x0 = mChain[first] % mWidth;
+            int y0 = mChain[first] / mWidth;
+            int dx = mChain[last] % mWidth - x0;
+            int dy = mChain[last] / mWidth - y0;
+            long lengthSquared = (long) dx * dx + (long) dy * dy;
+            float maxDistance = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                int px = mChain[i] % mWidth - x0;
+                int py = mChain[i] / mWidth - y0;
+                float distance;
+                if (lengthSquared == 0) {
+                    // a closed chain, the distance to its start
+                    distance = px * px + py * py;
+                } else {
+                    // squared distance to the line through the ends
+                    long cross = (long) px * dy - (long) py * dx;
+                    distance = (float) cross * cross / lengthSquared;
+                }
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (maxDistance > epsilonSquared) {
+                mKeep[farthest] = true;
+                mStack[stackSize++] = first;
+                mStack[stackSize++] = farthest;
+                mStack[stackSize++] = farthest;
+                mStack[stackSize++] = last;
+            }
+        }
+        int previous = 0;
+        for (int i = 1; i < length; i++) {
+            if (!mKeep[i]) {
+                continue;
+            }
+            // at pixel centers
+            if (!segments.add(mChain[previous] % mWidth + 0.5f, mChain[previous] / mWidth + 0.5f,
+                    mChain[i] % mWidth + 0.5f, mChain[i] / mWidth + 0.5f)) {
+                return false;
+            }
+            previous = i;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+/**
+ * The time by which the result of a frame has to be ready, derived from the capture timestamp
+ * of the frame. The processing stages check it between their passes and abandon a frame whose
+ * result would be stale, so the time goes to the next, fresher frame. The check compares with
+ * System.nanoTime, the clock of the frame timestamps.
+ *
+ * An instance is reused for every frame of one processing thread, so it is not thread safe.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class Deadline {
+
+    /** The progress of a stage whose share of the processing time is not known */
+    public static final float UNKNOWN_PROGRESS = -1f;
+
+    private long mDeadline;
+    private String mExpiredStage;
+    private float mExpiredProgress;
+
+    /** Creates a deadline which never expires till set */
+    public Deadline() {
+        clear();
+    }
+
+    /** Sets the deadline of a frame to its timestamp plus the budget, all in nanoseconds */
+    public void set(long timestamp, long budget) {
+        mDeadline = timestamp + budget;
+        mExpiredStage = null;
+    }
+
+    /** Lets the deadline never expire, e.g. for stills */
+    public void clear() {
+        mDeadline = Long.MAX_VALUE;
+        mExpiredStage = null;
+    }
+
+    /**
+     * Checks the deadline after a stage whose share of the processing time is not known.
+     */
+    public boolean hasExpired(String stage) {
+        return hasExpired(stage, UNKNOWN_PROGRESS);
+    }
+
+    /**
+     * Checks the deadline after a stage. Once expired, the stage is remembered for the metrics.
+     * @param stage the name of the stage finished last, a constant
+     * @param progress the share of the processing time of the frame done so far, from 0 to 1
+     * @return whether the frame should be abandoned
+     */
+    public boolean hasExpired(String stage, float progress) {
+        if (mExpiredStage != null) {
+            return true;
+        }
+        if (System.nanoTime() < mDeadline) {
+            return false;
+        }
+        mExpiredStage = stage;
+        mExpiredProgress = progress;
+        return true;
+    }
+
+    /** @return the stage after which the deadline was found expired, or null */
+    public String getExpiredStage() { return mExpiredStage; }
+
+    /** @return the progress passed with the expired stage */
+    public float getExpiredProgress() { return mExpiredProgress; }
+
+    /** @return the deadline in nanoseconds */
+    public long getTime() { return mDeadline; }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+/**
+ * A pure Java edge detector of gray images, which keeps its buffers between the images.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public interface EdgeKernel {
+
+    /**
+     * Detects the edges of a gray image.
+     * @param gray the gray image, e.g. the Y plane of a NV21 frame, starting at index 0
+     * @param edges receives CannyKernel.EDGE or NO_EDGE for every pixel
+     */
+    void detect(byte[] gray, int width, int height, byte[] edges);
+
+    /** Allocates the buffers if the resolution has changed */
+    void allocate(int width, int height);
+
+    /** @return the bytes of the buffers for the current resolution */
+    long getBufferBytes();
+
+    /** Frees the buffers, they are allocated again by the next detection */
+    void release();
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+/**
+ * Decides on which frames the full edge detection runs. In between the edges of the last
+ * keyframe are tracked with optical flow. The interval between keyframes grows while the scene
+ * moves slowly and shrinks when it moves fast. A tracked frame whose points got lost is rejected,
+ * so the caller recomputes its edges and a keyframe starts.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class KeyframeScheduler {
+
+    /** At least every second frame is tracked, otherwise there is no motion to adapt to */
+    public static final int MIN_INTERVAL = 2;
+    public static final int MAX_INTERVAL = 8;
+    /** The fraction of points which have to survive the tracking */
+    public static final float MIN_CONFIDENCE = 0.7f;
+    /** Motion per frame in pixels below which the interval grows */
+    public static final float SLOW_MOTION = 0.5f;
+    /** Motion per frame in pixels above which the interval is halved */
+    public static final float FAST_MOTION = 2f;
+
+    private int mInterval;
+    private int mSinceKeyframe;
+    private boolean mKeyframeForced;
+    private long mKeyframeCount;
+    private long mTrackedCount;
+    private long mRejectedCount;
+
+    public KeyframeScheduler() {
+        reset();
+    }
+
+    /** Forces a keyframe, e.g. after the resolution changed */
+    public void reset() {
+        mInterval = MIN_INTERVAL;
+        mSinceKeyframe = 0;
+        mKeyframeForced = true;
+    }
+
+    /** @return whether the next frame has to be a keyframe */
+    public boolean isKeyframeDue() {
+        return mKeyframeForced || mSinceKeyframe + 1 >= mInterval;
+    }
+
+    /** Is invoked after the full edge detection ran on a frame */
+    public void onKeyframe() {
+        mKeyframeForced = false;
+        mSinceKeyframe = 0;
+        mKeyframeCount++;
+    }
+
+    /**
+     * Is invoked after the edges have been tracked into a frame.
+     * @param confidence the fraction of points which survived the tracking
+     * @param motion the motion of the scene since the last frame in pixels
+     * @return whether the tracked edges are good enough, if not the frame has to be a keyframe
+     */
+    public boolean onTracked(float confidence, float motion) {
+        if (confidence < MIN_CONFIDENCE) {
+            mRejectedCount++;
+            mInterval = Math.max(MIN_INTERVAL, mInterval / 2);
+            return false;
+        }
+        mSinceKeyframe++;
+        mTrackedCount++;
+        if (motion > FAST_MOTION) {
+            mInterval = Math.max(MIN_INTERVAL, mInterval / 2);
+        } else if (motion < SLOW_MOTION) {
+            mInterval = Math.min(MAX_INTERVAL, mInterval + 1);
+        }
+        return true;
+    }
+
+    public int getInterval() { return mInterval; }
+
+    public long getKeyframeCount() { return mKeyframeCount; }
+
+    public long getTrackedCount() { return mTrackedCount; }
+
+    /** @return the number of tracked frames which had to be recomputed */
+    public long getRejectedCount() { return mRejectedCount; }
+
+    @Override
+    public String toString() {
+        return "keyframes=" + mKeyframeCount + " tracked=" + mTrackedCount + " rejected="
+                + mRejectedCount + " interval=" + mInterval;
+    }
+}
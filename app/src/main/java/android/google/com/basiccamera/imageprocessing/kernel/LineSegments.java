@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+/**
+ * A preallocated list of line segments, the vector result of the edge detection. The coordinates
+ * are stored as x0, y0, x1, y1 per segment, the layout Canvas.drawLines takes. They refer to an
+ * image of getWidth() x getHeight() pixels, the consumer scales them to its own size.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class LineSegments {
+
+    /** Enough for the polylines of a busy scene in a quarter of a 720p preview */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final float[] mCoordinates;
+    private int mCount;
+    private int mWidth;
+    private int mHeight;
+    private boolean mTruncated;
+
+    public LineSegments() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity the maximum number of segments */
+    public LineSegments(int capacity) {
+        mCoordinates = new float[4 * capacity];
+    }
+
+    /** Removes all segments and sets the size of the image they will refer to */
+    public void clear(int width, int height) {
+        mCount = 0;
+        mWidth = width;
+        mHeight = height;
+        mTruncated = false;
+    }
+
+    /**
+     * Adds a segment.
+     * @return false if the list is full, the segment is then dropped and the list truncated
+     */
+    public boolean add(float x0, float y0, float x1, float y1) {
+        if (4 * mCount == mCoordinates.length) {
+            mTruncated = true;
+            return false;
+        }
+        int index = 4 * mCount++;
+        mCoordinates[index] = x0;
+        mCoordinates[index + 1] = y0;
+        mCoordinates[index + 2] = x1;
+        mCoordinates[index + 3] = y1;
+        return true;
+    }
+
+    /** @return the coordinates, only the first 4 * getCount() values are valid */
+    public float[] getCoordinates() { return mCoordinates; }
+
+    public int getCount() { return mCount; }
+
+    public int getCapacity() { return mCoordinates.length / 4; }
+
+    public int getWidth() { return mWidth; }
+
+    public int getHeight() { return mHeight; }
+
+    /** @return whether segments were dropped because the list was full */
+    public boolean isTruncated() { return mTruncated; }
+}
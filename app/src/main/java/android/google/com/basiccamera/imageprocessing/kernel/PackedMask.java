@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+import java.util.Arrays;
+
+/**
+ * A binary mask, e.g. an edge map, packed row by row into 64 pixels per long. Pixel x of a row is
+ * bit x % 64 of word x / 64 of the row, every row starts with a new word and the bits beyond the
+ * width in the last word of a row are always 0. A mask takes 1 bit per pixel instead of the 8
+ * bits of the byte mask of the Canny kernels, so PackedMorphology processes 64 pixels with one
+ * operation.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class PackedMask {
+
+    static final int BITS_PER_WORD = 64;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mWordsPerRow;
+    private final long[] mWords;
+
+    public PackedMask(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mWordsPerRow = (width + BITS_PER_WORD - 1) / BITS_PER_WORD;
+        mWords = new long[mWordsPerRow * height];
+    }
+
+    /**
+     * Packs a byte mask, every non-zero value is set.
+     * @param mask at least width * height long, starting at index 0
+     */
+    public void pack(byte[] mask) {
+        long[] words = mWords;
+        int width = mWidth;
+        for (int y = 0; y < mHeight; y++) {
+            int row = y * width;
+            int wordRow = y * mWordsPerRow;
+            for (int i = 0; i < mWordsPerRow; i++) {
+                int begin = row + i * BITS_PER_WORD;
+                int end = Math.min(begin + BITS_PER_WORD, row + width);
+                long word = 0;
+                for (int p = begin; p < end; p++) {
+                    if (mask[p] != 0) {
+                        word |= 1L << (p - begin);
+                    }
+                }
+                words[wordRow + i] = word;
+            }
+        }
+    }
+
+    /**
+     * Unpacks into a byte mask of the Canny kernels.
+     * @param mask receives CannyKernel.EDGE or NO_EDGE for every pixel
+     */
+    public void unpack(byte[] mask) {
+        long[] words = mWords;
+        int width = mWidth;
+        for (int y = 0; y < mHeight; y++) {
+            int row = y * width;
+            int wordRow = y * mWordsPerRow;
+            for (int i = 0; i < mWordsPerRow; i++) {
+                int begin = row + i * BITS_PER_WORD;
+                int end = Math.min(begin + BITS_PER_WORD, row + width);
+                long word = words[wordRow + i];
+                if (word == 0) {
+                    // edge maps are sparse, most words are empty
+                    Arrays.fill(mask, begin, end, CannyKernel.NO_EDGE);
+                    continue;
+                }
+                for (int p = begin; p < end; p++) {
+                    mask[p] = (word & 1L) != 0 ? CannyKernel.EDGE : CannyKernel.NO_EDGE;
+                    word >>>= 1;
+                }
+            }
+        }
+    }
+
+    public void clear() { Arrays.fill(mWords, 0); }
+
+    public boolean get(int x, int y) {
+        long word = mWords[y * mWordsPerRow + x / BITS_PER_WORD];
+        return (word & (1L << (x % BITS_PER_WORD))) != 0;
+    }
+
+    public void set(int x, int y, boolean value) {
+        int index = y * mWordsPerRow + x / BITS_PER_WORD;
+        if (value) {
+            mWords[index] |= 1L << (x % BITS_PER_WORD);
+        } else {
+            mWords[index] &= ~(1L << (x % BITS_PER_WORD));
+        }
+    }
+
+    /** @return the number of set pixels */
+    public int count() {
+        int count = 0;
+        for (long word : mWords) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /** @return whether both masks have the same size and pixels */
+    public boolean sameAs(PackedMask other) {
+        return mWidth == other.mWidth && mHeight == other.mHeight
+                && Arrays.equals(mWords, other.mWords);
+    }
+
+    /** @return the mask of the valid bits of the last word of a row */
+    long getLastWordMask() {
+        int bits = mWidth % BITS_PER_WORD;
+        return bits == 0 ? -1L : (1L << bits) - 1;
+    }
+
+    public int getWidth() { return mWidth; }
+
+    public int getHeight() { return mHeight; }
+
+    public int getWordsPerRow() { return mWordsPerRow; }
+
+    /** The words of the mask, row after row */
+    public long[] getWords() { return mWords; }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+/**
+ * Morphology on packed masks with a 3x3 square neighbourhood, 64 pixels at a time: the left and
+ * right neighbours of all pixels of a word are the word shifted by one bit, with the bit shifted
+ * in taken from the neighbouring word, and the rows above and below are combined by OR or AND.
+ * The neighbours are counted bit sliced, four words hold the count of every pixel of a word.
+ *
+ * Pixels outside of the mask count as not set for dilate and the neighbour counts and as set for
+ * erode, so a set pixel at the border is not eroded by the border, as in OpenCV. No method
+ * allocates memory and the target must not be the source.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class PackedMorphology {
+
+    private PackedMorphology() {}
+
+    /** Sets every pixel with a set pixel in its 3x3 neighbourhood */
+    public static void dilate(PackedMask source, PackedMask target) {
+        spread(source, target, 0);
+    }
+
+    /** Keeps the pixels whose 3x3 neighbourhood is set completely */
+    public static void erode(PackedMask source, PackedMask target) {
+        // the complement of the dilation of the complement
+        spread(source, target, -1L);
+    }
+
+    /** Erodes and dilates, which removes specks and thin spurs */
+    public static void open(PackedMask source, PackedMask target, PackedMask scratch) {
+        erode(source, scratch);
+        dilate(scratch, target);
+    }
+
+    /** Dilates and erodes, which closes gaps of one pixel in the edges */
+    public static void close(PackedMask source, PackedMask target, PackedMask scratch) {
+        dilate(source, scratch);
+        erode(scratch, target);
+    }
+
+    /** Keeps the set pixels with at least one set neighbour */
+    public static void removeIsolated(PackedMask source, PackedMask target) {
+        selectByNeighbours(source, 1, 8, target);
+    }
+
+    /**
+     * Keeps the set pixels with a number of set pixels among their 8 neighbours within
+     * [min, max], e.g. 1 to 1 for the end points of edges.
+     */
+    public static void selectByNeighbours(PackedMask source, int min, int max,
+            PackedMask target) {
+        checkSizes(source, target);
+        long[] words = source.getWords();
+        long[] result = target.getWords();
+        int wordsPerRow = source.getWordsPerRow();
+        int height = source.getHeight();
+        long lastMask = source.getLastWordMask();
+        for (int y = 0; y < height; y++) {
+            int row = y * wordsPerRow;
+            int above = y > 0 ? row - wordsPerRow : -1;
+            int below = y < height - 1 ? row + wordsPerRow : -1;
+            for (int i = 0; i < wordsPerRow; i++) {
+                long mask = i == wordsPerRow - 1 ? lastMask : -1L;
+                long center = words[row + i];
+                if (center == 0) {
+                    result[row + i] = 0;
+                    continue;
+                }
+                long n0 = shiftedLeft(words, above, i, wordsPerRow, 0, lastMask);
+                long n1 = word(words, above, i, wordsPerRow, 0, lastMask);
+                long n2 = shiftedRight(words, above, i, wordsPerRow, 0, lastMask);
+                long n3 = shiftedLeft(words, row, i, wordsPerRow, 0, lastMask);
+                long n4 = shiftedRight(words, row, i, wordsPerRow, 0, lastMask);
+                long n5 = shiftedLeft(words, below, i, wordsPerRow, 0, lastMask);
+                long n6 = word(words, below, i, wordsPerRow, 0, lastMask);
+                long n7 = shiftedRight(words, below, i, wordsPerRow, 0, lastMask);
+                // adds the 8 neighbours with full adders into the count c3 c2 c1 c0 of every pixel
+                long sumA = n0 ^ n1 ^ n2;
+                long carryA = (n0 & n1) | (n2 & (n0 ^ n1));
+                long sumB = n3 ^ n4 ^ n5;
+                long carryB = (n3 & n4) | (n5 & (n3 ^ n4));
+                long sumC = n6 ^ n7;
+                long carryC = n6 & n7;
+                long c0 = sumA ^ sumB ^ sumC;
+                long carryD = (sumA & sumB) | (sumC & (sumA ^ sumB));
+                long twos = carryA ^ carryB ^ carryC;
+                long fours = (carryA & carryB) | (carryC & (carryA ^ carryB));
+                long c1 = twos ^ carryD;
+                long carryE = twos & carryD;
+                long c2 = fours ^ carryE;
+                long c3 = fours & carryE;
+                long selected = 0;
+                for (int count = Math.max(min, 0); count <= Math.min(max, 8); count++) {
+                    selected |= ((count & 1) != 0 ? c0 : ~c0) & ((count & 2) != 0 ? c1 : ~c1)
+                            & ((count & 4) != 0 ? c2 : ~c2) & ((count & 8) != 0 ? c3 : ~c3);
+                }
+                result[row + i] = center & selected & mask;
+            }
+        }
+    }
+
+    /**
+     * ORs the 3x3 neighbourhood of every pixel of the source, after XOR with invert, and writes
+     * the result XOR invert.
+     */
+    private static void spread(PackedMask source, PackedMask target, long invert) {
+        checkSizes(source, target);
+        long[] words = source.getWords();
+        long[] result = target.getWords();
+        int wordsPerRow = source.getWordsPerRow();
+        int height = source.getHeight();
+        long lastMask = source.getLastWordMask();
+        for (int y = 0; y < height; y++) {
+            int row = y * wordsPerRow;
+            int above = y > 0 ? row - wordsPerRow : -1;
+            int below = y < height - 1 ? row + wordsPerRow : -1;
+            for (int i = 0; i < wordsPerRow; i++) {
+                long spread = horizontal(words, above, i, wordsPerRow, invert, lastMask)
+                        | horizontal(words, row, i, wordsPerRow, invert, lastMask)
+                        | horizontal(words, below, i, wordsPerRow, invert, lastMask);
+                result[row + i] = (spread ^ invert) & (i == wordsPerRow - 1 ? lastMask : -1L);
+            }
+        }
+    }
+
+    /** @return the word with its left and right neighbours ORed in */
+    private static long horizontal(long[] words, int row, int i, int wordsPerRow, long invert,
+            long lastMask) {
+        return word(words, row, i, wordsPerRow, invert, lastMask)
+                | shiftedLeft(words, row, i, wordsPerRow, invert, lastMask)
+                | shiftedRight(words, row, i, wordsPerRow, invert, lastMask);
+    }
+
+    /** @return the left neighbours of the pixels of word i of the row */
+    private static long shiftedLeft(long[] words, int row, int i, int wordsPerRow, long invert,
+            long lastMask) {
+        return word(words, row, i, wordsPerRow, invert, lastMask) << 1
+                | word(words, row, i - 1, wordsPerRow, invert, lastMask) >>> 63;
+    }
+
+    /** @return the right neighbours of the pixels of word i of the row */
+    private static long shiftedRight(long[] words, int row, int i, int wordsPerRow, long invert,
+            long lastMask) {
+        return word(words, row, i, wordsPerRow, invert, lastMask) >>> 1
+                | word(words, row, i + 1, wordsPerRow, invert, lastMask) << 63;
+    }
+
+    /**
+     * @param row the index of the first word of the row, -1 for a row outside of the mask
+     * @return word i of the row XOR invert, with the bits beyond the width and all bits outside
+     *         of the mask 0
+     */
+    private static long word(long[] words, int row, int i, int wordsPerRow, long invert,
+            long lastMask) {
+        if (row < 0 || i < 0 || i >= wordsPerRow) {
+            return 0;
+        }
+        long word = words[row + i] ^ invert;
+        return i == wordsPerRow - 1 ? word & lastMask : word;
+    }
+
+    private static void checkSizes(PackedMask source, PackedMask target) {
+        if (source == target) {
+            throw new IllegalArgumentException("The target must not be the source");
+        }
+        if (source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight()) {
+            throw new IllegalArgumentException("The masks differ in size");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+/**
+ * Downsampling and rotation of a gray image, e.g. the Y plane at the start of a NV21 frame. The
+ * results are written into buffers of the caller, nothing is allocated.
+ *
+ * The rotations by 90 and 270 degree read rows and write columns. Done naively every written
+ * byte of a column touches another cache line, so they walk the image in square blocks whose
+ * source and target lines both stay in the cache.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class PlaneTransform {
+
+    /** Side length of the blocks of the rotations, 64 lines of 64 bytes fit into a L1 cache */
+    public static final int BLOCK_SIZE = 64;
+
+    private PlaneTransform() {}
+
+    /** @return the size of one side of the image after downsampling */
+    public static int downsampledSize(int size, int factor) {
+        return size / factor;
+    }
+
+    /**
+     * Averages blocks of factor x factor pixels. A remainder of the width or height which does
+     * not fill a block is dropped.
+     * @param source the image, starting at index 0
+     * @param factor 1, 2 or 4
+     * @param target receives the image of width / factor x height / factor pixels
+     */
+    public static void downsample(byte[] source, int width, int height, int factor,
+            byte[] target) {
+        switch (factor) {
+            case 1:
+                System.arraycopy(source, 0, target, 0, width * height);
+                break;
+            case 2:
+                downsample2x(source, width, height, target);
+                break;
+            case 4:
+                downsample4x(source, width, height, target);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported downsampling factor " + factor);
+        }
+    }
+
+    private static void downsample2x(byte[] source, int width, int height, byte[] target) {
+        int targetWidth = width / 2;
+        int targetHeight = height / 2;
+        for (int y = 0; y < targetHeight; y++) {
+            int top = 2 * y * width;
+            int bottom = top + width;
+            int row = y * targetWidth;
+            for (int x = 0; x < targetWidth; x++) {
+                int sum = (source[top] & 0xff) + (source[top + 1] & 0xff)
+                        + (source[bottom] & 0xff) + (source[bottom + 1] & 0xff);
+                target[row + x] = (byte) ((sum + 2) >> 2);
+                top += 2;
+                bottom += 2;
+            }
+        }
+    }
+
+    private static void downsample4x(byte[] source, int width, int height, byte[] target) {
+        int targetWidth = width / 4;
+        int targetHeight = height / 4;
+        for (int y = 0; y < targetHeight; y++) {
+            int line0 = 4 * y * width;
+            int line1 = line0 + width;
+            int line2 = line1 + width;
+            int line3 = line2 + width;
+            int row = y * targetWidth;
+            for (int x = 0; x < targetWidth; x++) {
+                int sum = 0;
+                for (int i = 0; i < 4; i++) {
+                    sum += (source[line0 + i] & 0xff) + (source[line1 + i] & 0xff)
+                            + (source[line2 + i] & 0xff) + (source[line3 + i] & 0xff);
+                }
+                target[row + x] = (byte) ((sum + 8) >> 4);
+                line0 += 4;
+                line1 += 4;
+                line2 += 4;
+                line3 += 4;
+            }
+        }
+    }
+
+    /**
+     * Rotates the image clockwise. After a rotation by 90 or 270 degree the target is height
+     * pixels wide and width pixels high.
+     * @param degrees 0, 90, 180 or 270
+     */
+    public static void rotate(byte[] source, int width, int height, int degrees, byte[] target) {
+        switch (degrees) {
+            case 0:
+                System.arraycopy(source, 0, target, 0, width * height);
+                break;
+            case 90:
+                rotateBlocked(source, width, height, target, true);
+                break;
+            case 180:
+                rotate180(source, width, height, target);
+                break;
+            case 270:
+                rotateBlocked(source, width, height, target, false);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported rotation " + degrees);
+        }
+    }
+
+    /**
+     * Mirrors the image at its main diagonal, the target is height pixels wide and width pixels
+     * high.
+     */
+    public static void transpose(byte[] source, int width, int height, byte[] target) {
+        for (int blockY = 0; blockY < height; blockY += BLOCK_SIZE) {
+            int endY = Math.min(blockY + BLOCK_SIZE, height);
+            for (int blockX = 0; blockX < width; blockX += BLOCK_SIZE) {
+                int endX = Math.min(blockX + BLOCK_SIZE, width);
+                for (int y = blockY; y < endY; y++) {
+                    int sourceIndex = y * width + blockX;
+                    int targetIndex = blockX * height + y;
+                    for (int x = blockX; x < endX; x++) {
+                        target[targetIndex] = source[sourceIndex++];
+                        targetIndex += height;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The pixel (x, y) moves to (height - 1 - y, x) when rotating clockwise and to
+     * (y, width - 1 - x) when rotating counterclockwise.
+     */
+    private static void rotateBlocked(byte[] source, int width, int height, byte[] target,
+            boolean clockwise) {
+        int targetWidth = height;
+        for (int blockY = 0; blockY < height; blockY += BLOCK_SIZE) {
+            int endY = Math.min(blockY + BLOCK_SIZE, height);
+            for (int blockX = 0; blockX < width; blockX += BLOCK_SIZE) {
+                int endX = Math.min(blockX + BLOCK_SIZE, width);
+                for (int y = blockY; y < endY; y++) {
+                    int sourceIndex = y * width + blockX;
+                    int targetIndex;
+                    int step;
+                    if (clockwise) {
+                        targetIndex = blockX * targetWidth + height - 1 - y;
+                        step = targetWidth;
+                    } else {
+                        targetIndex = (width - 1 - blockX) * targetWidth + y;
+                        step = -targetWidth;
+                    }
+                    for (int x = blockX; x < endX; x++) {
+                        target[targetIndex] = source[sourceIndex++];
+                        targetIndex += step;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void rotate180(byte[] source, int width, int height, byte[] target) {
+        int size = width * height;
+        for (int i = 0; i < size; i++) {
+            target[size - 1 - i] = source[i];
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+/**
+ * A pure Java pyramidal Lucas-Kanade tracker for sparse points, doing the same as
+ * Video.calcOpticalFlowPyrLK of OpenCV. The pyramid of every frame is built once when the frame
+ * is pushed and reused as the previous pyramid when the next frame is pushed, so tracking over
+ * a sequence builds one pyramid per frame. The pyramids are allocated once per resolution, an
+ * instance should be used by a single thread.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class SparseOpticalFlow {
+
+    /** 3 levels above the image like OpenCV, but a 9x9 instead of a 21x21 window */
+    public static final int DEFAULT_LEVELS = 3;
+    public static final int DEFAULT_WINDOW_RADIUS = 4;
+
+    private static final int MAX_ITERATIONS = 10;
+    // the iteration stops if the step becomes smaller, in pixels
+    private static final float MIN_STEP = 0.03f;
+    // largest eigenvalue of the gradient matrix per window pixel, smaller means no texture
+    private static final float MIN_EIGENVALUE = 1f;
+    // added to the diagonal of the gradient matrix relative to its largest eigenvalue. On a
+    // straight edge the matrix is singular, then only the motion across the edge is found, which
+    // is the only one visible in an edge map.
+    private static final float REGULARIZATION = 0.01f;
+    // the largest mean absolute difference per window pixel of a found point
+    private static final float MAX_ERROR = 24f;
+
+    private final int mLevels;
+    private final int mRadius;
+    private Pyramid mPrevious;
+    private Pyramid mCurrent;
+    private boolean mHasPrevious;
+    private boolean mHasCurrent;
+    // the window with a border of 1 pixel for the gradients
+    private final float[] mPatch;
+    // the window in the current frame at the current guess
+    private final float[] mWarped;
+    // template of the current point, gray value and gradients per window pixel
+    private final float[] mTemplate;
+    private final float[] mGradientX;
+    private final float[] mGradientY;
+
+    public SparseOpticalFlow() {
+        this(DEFAULT_LEVELS, DEFAULT_WINDOW_RADIUS);
+    }
+
+    /**
+     * @param levels number of pyramid levels above the full resolution
+     * @param windowRadius the window around a point is 2 * windowRadius + 1 pixels wide
+     */
+    public SparseOpticalFlow(int levels, int windowRadius) {
+        mLevels = levels;
+        mRadius = windowRadius;
+        int windowSize = (2 * windowRadius + 1) * (2 * windowRadius + 1);
+        mPatch = new float[(2 * windowRadius + 3) * (2 * windowRadius + 3)];
+        mWarped = new float[windowSize];
+        mTemplate = new float[windowSize];
+        mGradientX = new float[windowSize];
+        mGradientY = new float[windowSize];
+    }
+
+    /**
+     * Builds the pyramid of the next frame. The pyramid of the frame pushed before becomes the
+     * one points are tracked from.
+     * @return whether there is a previous frame to track from
+     */
+    public boolean push(byte[] gray, int width, int height) {
+        Pyramid recycled = mPrevious;
+        mPrevious = mCurrent;
+        if (recycled == null || !recycled.fits(width, height)) {
+            recycled = new Pyramid(width, height, mLevels);
+        }
+        recycled.build(gray);
+        mCurrent = recycled;
+        mHasPrevious = mHasCurrent && mPrevious.fits(width, height);
+        mHasCurrent = true;
+        return mHasPrevious;
+    }
+
+    /** Forgets the pushed frames, e.g. after a scene cut */
+    public void reset() {
+        mHasPrevious = false;
+        mHasCurrent = false;
+    }
+
+    /**
+     * Tracks points from the previous into the current frame.
+     * @param points positions in the previous frame, x and y interleaved
+     * @param count number of points
+     * @param next receives the positions in the current frame, x and y interleaved
+     * @param status receives 1 for every found point and 0 for every lost one
+     */
+    public void track(float[] points, int count, float[] next, byte[] status) {
+        if (!mHasPrevious) {
+            throw new IllegalStateException("Two frames have to be pushed before tracking");
+        }
+        for (int i = 0; i < count; i++) {
+            status[i] = trackPoint(points[2 * i], points[2 * i + 1], next, 2 * i) ? (byte) 1 : 0;
+        }
+    }
+
+    private boolean trackPoint(float x, float y, float[] next, int offset) {
+        // motion guessed from the coarser levels, in pixels of the current level
+        float guessX = 0;
+        float guessY = 0;
+        float error = 0;
+        for (int level = mLevels; level >= 0; level--) {
+            float scale = 1f / (1 << level);
+            byte[] previous = mPrevious.mImages[level];
+            byte[] current = mCurrent.mImages[level];
+            int width = mPrevious.mWidths[level];
+            int height = mPrevious.mHeights[level];
+            float px = x * scale;
+            float py = y * scale;
+            if (!isInside(px, py, width, height)) {
+                if (level == 0) {
+                    return false;
+                }
+                guessX *= 2;
+                guessY *= 2;
+                continue;
+            }
+
+            // samples the window once, the gradients are differences of neighbouring samples
+            int patchWidth = 2 * mRadius + 3;
+            samplePatch(previous, width, px, py, mRadius + 1, mPatch);
+
+            // gradient matrix of the window in the previous frame
+            float gxx = 0;
+            float gxy = 0;
+            float gyy = 0;
+            int index = 0;
+            for (int row = 1; row < patchWidth - 1; row++) {
+                for (int column = 1; column < patchWidth - 1; column++) {
+                    int center = row * patchWidth + column;
+                    float ix = (mPatch[center + 1] - mPatch[center - 1]) * 0.5f;
+                    float iy = (mPatch[center + patchWidth] - mPatch[center - patchWidth]) * 0.5f;
+                    mTemplate[index] = mPatch[center];
+                    mGradientX[index] = ix;
+                    mGradientY[index] = iy;
+                    gxx += ix * ix;
+                    gxy += ix * iy;
+                    gyy += iy * iy;
+                    index++;
+                }
+            }
+            float maxEigenvalue = (gxx + gyy + (float) Math.sqrt((gxx - gyy) * (gxx - gyy)
+                    + 4 * gxy * gxy)) * 0.5f;
+            if (maxEigenvalue / index < MIN_EIGENVALUE) {
+                return false;
+            }
+            gxx += REGULARIZATION * maxEigenvalue;
+            gyy += REGULARIZATION * maxEigenvalue;
+            float determinant = gxx * gyy - gxy * gxy;
+
+            float motionX = 0;
+            float motionY = 0;
+            for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+                float qx = px + guessX + motionX;
+                float qy = py + guessY + motionY;
+                if (!isInside(qx, qy, width, height)) {
+                    return false;
+                }
+                samplePatch(current, width, qx, qy, mRadius, mWarped);
+                float bx = 0;
+                float by = 0;
+                error = 0;
+                for (int i = 0; i < index; i++) {
+                    float difference = mTemplate[i] - mWarped[i];
+                    bx += difference * mGradientX[i];
+                    by += difference * mGradientY[i];
+                    error += Math.abs(difference);
+                }
+                float stepX = (gyy * bx - gxy * by) / determinant;
+                float stepY = (gxx * by - gxy * bx) / determinant;
+                motionX += stepX;
+                motionY += stepY;
+                if (stepX * stepX + stepY * stepY < MIN_STEP * MIN_STEP) {
+                    break;
+                }
+            }
+            if (level == 0) {
+                next[offset] = x + guessX + motionX;
+                next[offset + 1] = y + guessY + motionY;
+                return error / index <= MAX_ERROR;
+            }
+            guessX = 2 * (guessX + motionX);
+            guessY = 2 * (guessY + motionY);
+        }
+        return false;
+    }
+
+    /** @return whether the window and its gradients around the position are inside the image */
+    private boolean isInside(float x, float y, int width, int height) {
+        float margin = mRadius + 2;
+        return x >= margin && y >= margin && x < width - margin && y < height - margin;
+    }
+
+    /**
+     * Bilinear interpolation of the square window around a position, which has to be inside the
+     * image. The fraction of the position is the same for all pixels of the window, so the
+     * weights are computed once.
+     */
+    private static void samplePatch(byte[] image, int width, float x, float y, int radius,
+            float[] patch) {
+        int x0 = (int) x;
+        int y0 = (int) y;
+        float fx = x - x0;
+        float fy = y - y0;
+        float topLeft = (1 - fx) * (1 - fy);
+        float topRight = fx * (1 - fy);
+        float bottomLeft = (1 - fx) * fy;
+        float bottomRight = fx * fy;
+        int index = 0;
+        for (int row = y0 - radius; row <= y0 + radius; row++) {
+            int top = row * width + x0 - radius;
+            int bottom = top + width;
+            for (int column = 0; column <= 2 * radius; column++) {
+                patch[index++] = topLeft * (image[top + column] & 0xff)
+                        + topRight * (image[top + column + 1] & 0xff)
+                        + bottomLeft * (image[bottom + column] & 0xff)
+                        + bottomRight * (image[bottom + column + 1] & 0xff);
+            }
+        }
+    }
+
+    /** The image of a frame and its downsampled versions, each half the size of the one below */
+    private static final class Pyramid {
+
+        final byte[][] mImages;
+        final int[] mWidths;
+        final int[] mHeights;
+
+        Pyramid(int width, int height, int levels) {
+            mImages = new byte[levels + 1][];
+            mWidths = new int[levels + 1];
+            mHeights = new int[levels + 1];
+            for (int level = 0; level <= levels; level++) {
+                mWidths[level] = width;
+                mHeights[level] = height;
+                mImages[level] = new byte[width * height];
+                width /= 2;
+                height /= 2;
+            }
+        }
+
+        boolean fits(int width, int height) {
+            return mWidths[0] == width && mHeights[0] == height;
+        }
+
+        /** Copies the image and averages 2x2 blocks for every coarser level */
+        void build(byte[] gray) {
+            System.arraycopy(gray, 0, mImages[0], 0, mWidths[0] * mHeights[0]);
+            for (int level = 1; level < mImages.length; level++) {
+                byte[] source = mImages[level - 1];
+                byte[] target = mImages[level];
+                int sourceWidth = mWidths[level - 1];
+                int width = mWidths[level];
+                for (int y = 0; y < mHeights[level]; y++) {
+                    int top = 2 * y * sourceWidth;
+                    int bottom = top + sourceWidth;
+                    int row = y * width;
+                    for (int x = 0; x < width; x++) {
+                        int sum = (source[top + 2 * x] & 0xff) + (source[top + 2 * x + 1] & 0xff)
+                                + (source[bottom + 2 * x] & 0xff)
+                                + (source[bottom + 2 * x + 1] & 0xff);
+                        target[row + x] = (byte) ((sum + 2) >> 2);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the passes of the CannyKernel on several threads. Each pass is split into strips of
+ * rows, which the calling thread and the threads of an executor take one after the other, so a
+ * thread which is slowed down takes fewer strips. A pass starts when all strips of the previous
+ * one are done, because it reads the rows next to its strips. The hysteresis follows the edges
+ * across the strips and runs on the calling thread. The edges are the ones of the CannyKernel.
+ *
+ * The strip size trades the overhead of taking a strip against the balance at the end of a
+ * pass, which is best found on the device.
+ *
+ * An instance is not thread safe and should be used by a single thread.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class StripCanny implements EdgeKernel {
+
+    private static final int PASS_ROW_SUMS = 0;
+    private static final int PASS_BLUR = 1;
+    private static final int PASS_GRADIENTS = 2;
+    private static final int PASS_SUPPRESSION = 3;
+
+    private final CannyKernel mKernel;
+    private final Executor mExecutor;
+    private final int mThreadCount;
+    private final int mStripRows;
+    private final AtomicInteger mNextStrip;
+    // the pass and image the helpers work on, published by Executor.execute
+    private int mPass;
+    private byte[] mGray;
+    private int mStripCount;
+    private CountDownLatch mDone;
+    private RuntimeException mFailure;
+    private final Runnable mHelper;
+
+    /**
+     * @param executor runs the helpers, null to run all strips on the calling thread
+     * @param threadCount the threads working on a pass including the calling one
+     * @param stripRows the rows of one strip
+     */
+    public StripCanny(Executor executor, int threadCount, int stripRows) {
+        if (stripRows < 1) {
+            throw new IllegalArgumentException("Invalid strip rows " + stripRows);
+        }
+        mKernel = new CannyKernel();
+        mExecutor = executor;
+        mThreadCount = executor != null ? Math.max(1, threadCount) : 1;
+        mStripRows = stripRows;
+        mNextStrip = new AtomicInteger();
+        mHelper = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runStrips();
+                } catch (RuntimeException e) {
+                    synchronized (mNextStrip) {
+                        mFailure = e;
+                    }
+                } finally {
+                    mDone.countDown();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void detect(byte[] gray, int width, int height, byte[] edges) {
+        mKernel.allocate(width, height);
+        mGray = gray;
+        mStripCount = (height + mStripRows - 1) / mStripRows;
+        runPass(PASS_ROW_SUMS);
+        runPass(PASS_BLUR);
+        runPass(PASS_GRADIENTS);
+        runPass(PASS_SUPPRESSION);
+        mGray = null;
+        mKernel.hysteresis(edges);
+    }
+
+    private void runPass(int pass) {
+        mPass = pass;
+        mNextStrip.set(0);
+        int helperCount = Math.min(mThreadCount - 1, mStripCount - 1);
+        mDone = new CountDownLatch(helperCount);
+        for (int i = 0; i < helperCount; i++) {
+            mExecutor.execute(mHelper);
+        }
+        runStrips();
+        // the helpers write into the buffers, so they are awaited even if this thread is
+        // interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mNextStrip) {
+            if (mFailure != null) {
+                RuntimeException failure = mFailure;
+                mFailure = null;
+                throw failure;
+            }
+        }
+    }
+
+    private void runStrips() {
+        CannyKernel kernel = mKernel;
+        int width = kernel.getWidth();
+        int height = kernel.getHeight();
+        int strip;
+        while ((strip = mNextStrip.getAndIncrement()) < mStripCount) {
+            int rowEnd = Math.min((strip + 1) * mStripRows, height);
+            for (int y = strip * mStripRows; y < rowEnd; y++) {
+                switch (mPass) {
+                    case PASS_ROW_SUMS:
+                        kernel.rowSums(mGray, y, 0, width);
+                        break;
+                    case PASS_BLUR:
+                        kernel.blur(y, 0, width);
+                        break;
+                    case PASS_GRADIENTS:
+                        kernel.gradients(y, 0, width);
+                        break;
+                    default:
+                        kernel.suppress(y, 0, width);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void allocate(int width, int height) {
+        mKernel.allocate(width, height);
+    }
+
+    @Override
+    public long getBufferBytes() {
+        return mKernel.getBufferBytes();
+    }
+
+    @Override
+    public void release() {
+        mKernel.release();
+    }
+
+    @Override
+    public String toString() {
+        return mThreadCount + " threads, strips of " + mStripRows + " rows";
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+import java.util.Arrays;
+
+/**
+ * Edge points of the last keyframe which are tracked into the following frames, and the edge
+ * map of the keyframe. Tracking every edge pixel costs more than detecting the edges again, so
+ * only a sample of them is tracked. The edge map of the keyframe is moved by the common motion
+ * of the sample, which follows the motion of the camera. Points moving differently, e.g. on a
+ * moving object, lower the confidence, so the scheduler asks for a new keyframe.
+ *
+ * On a straight edge only the motion across the edge can be measured. So the motion of a point
+ * is treated as the projection of the common motion onto its direction, and the common motion
+ * is the least squares solution of these projections.
+ *
+ * The coordinates are stored interleaved as x, y like in a MatOfPoint2f, so they can be handed
+ * to OpenCV with a single put. All arrays are allocated once, the edge map once per resolution.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class TrackedPoints {
+
+    // points further away from the common motion in pixels are outliers
+    private static final float INLIER_DISTANCE = 1f;
+    // motions shorter than this in pixels have no usable direction
+    private static final float MIN_MOTION = 0.05f;
+    // added to the diagonal of the normal equations per point, keeps them solvable if all
+    // points lie on parallel edges
+    private static final float REGULARIZATION = 1e-3f;
+
+    private final int mMaxCount;
+    private final float[] mPoints;
+    private final float[] mNext;
+    private final byte[] mStatus;
+    private final float[] mMotionX;
+    private final float[] mMotionY;
+    private byte[] mKeyframeEdges;
+    private int mCount;
+    // motion of the scene since the keyframe
+    private float mOffsetX;
+    private float mOffsetY;
+    private float mConfidence;
+    // the common motion of the last update
+    private float mMotionX0;
+    private float mMotionY0;
+
+    /** @param maxCount the maximum number of points sampled from an edge map */
+    public TrackedPoints(int maxCount) {
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("At least one point has to be tracked");
+        }
+        mMaxCount = maxCount;
+        mPoints = new float[2 * maxCount];
+        mNext = new float[2 * maxCount];
+        mStatus = new byte[maxCount];
+        mMotionX = new float[maxCount];
+        mMotionY = new float[maxCount];
+    }
+
+    /**
+     * Keeps the edge map of a keyframe and replaces the points by edge pixels of it. If there are
+     * more edge pixels than points, every n-th edge pixel in row order is taken.
+     * @return the number of points
+     */
+    public int sampleEdges(byte[] edges, int width, int height) {
+        int size = width * height;
+        if (mKeyframeEdges == null || mKeyframeEdges.length != size) {
+            mKeyframeEdges = new byte[size];
+        }
+        System.arraycopy(edges, 0, mKeyframeEdges, 0, size);
+        int edgeCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (edges[i] != CannyKernel.NO_EDGE) {
+                edgeCount++;
+            }
+        }
+        int stride = (edgeCount + mMaxCount - 1) / mMaxCount;
+        int seen = 0;
+        mCount = 0;
+        for (int i = 0; i < size && mCount < mMaxCount; i++) {
+            if (edges[i] != CannyKernel.NO_EDGE && seen++ % stride == 0) {
+                mPoints[2 * mCount] = i % width;
+                mPoints[2 * mCount + 1] = i / width;
+                mCount++;
+            }
+        }
+        mOffsetX = 0;
+        mOffsetY = 0;
+        mConfidence = 1;
+        mMotionX0 = 0;
+        mMotionY0 = 0;
+        return mCount;
+    }
+
+    /** The current positions, x and y interleaved */
+    public float[] getPoints() { return mPoints; }
+
+    /** Receives the tracked positions, x and y interleaved */
+    public float[] getNext() { return mNext; }
+
+    /** Receives 1 for every point which was found in the next frame, 0 otherwise */
+    public byte[] getStatus() { return mStatus; }
+
+    public int getCount() { return mCount; }
+
+    /**
+     * Moves the points to the tracked positions and drops the lost ones, the ones which left the
+     * image and the ones not following the common motion. The confidence is the fraction of
+     * points kept.
+     */
+    public void update(int width, int height) {
+        int previousCount = mCount;
+        int found = 0;
+        for (int i = 0; i < previousCount; i++) {
+            float x = mNext[2 * i];
+            float y = mNext[2 * i + 1];
+            if (mStatus[i] == 0 || x < 0 || y < 0 || x > width - 1 || y > height - 1) {
+                continue;
+            }
+            mMotionX[found] = x - mPoints[2 * i];
+            mMotionY[found] = y - mPoints[2 * i + 1];
+            mPoints[2 * found] = x;
+            mPoints[2 * found + 1] = y;
+            found++;
+        }
+        if (found == 0) {
+            mCount = 0;
+            mConfidence = 0;
+            mMotionX0 = 0;
+            mMotionY0 = 0;
+            return;
+        }
+        // estimates from all points, then again from the inliers of the first estimate
+        estimateMotion(found, false);
+        estimateMotion(found, true);
+        int kept = 0;
+        for (int i = 0; i < found; i++) {
+            if (isInlier(i)) {
+                mPoints[2 * kept] = mPoints[2 * i];
+                mPoints[2 * kept + 1] = mPoints[2 * i + 1];
+                kept++;
+            }
+        }
+        mCount = kept;
+        mConfidence = kept / (float) previousCount;
+        mOffsetX += mMotionX0;
+        mOffsetY += mMotionY0;
+    }
+
+    /** Solves the normal equations of the projections of the common motion */
+    private void estimateMotion(int count, boolean inliersOnly) {
+        float a11 = 0;
+        float a12 = 0;
+        float a22 = 0;
+        float b1 = 0;
+        float b2 = 0;
+        for (int i = 0; i < count; i++) {
+            float length = (float) Math.sqrt(mMotionX[i] * mMotionX[i]
+                    + mMotionY[i] * mMotionY[i]);
+            if (length < MIN_MOTION || (inliersOnly && !isInlier(i))) {
+                continue;
+            }
+            float nx = mMotionX[i] / length;
+            float ny = mMotionY[i] / length;
+            a11 += nx * nx;
+            a12 += nx * ny;
+            a22 += ny * ny;
+            b1 += mMotionX[i];
+            b2 += mMotionY[i];
+        }
+        a11 += REGULARIZATION * count;
+        a22 += REGULARIZATION * count;
+        float determinant = a11 * a22 - a12 * a12;
+        mMotionX0 = (a22 * b1 - a12 * b2) / determinant;
+        mMotionY0 = (a11 * b2 - a12 * b1) / determinant;
+    }
+
+    /** @return whether the motion of the point is the projection of the common motion */
+    private boolean isInlier(int index) {
+        float length = (float) Math.sqrt(mMotionX[index] * mMotionX[index]
+                + mMotionY[index] * mMotionY[index]);
+        if (length < MIN_MOTION) {
+            // an edge parallel to the motion does not move
+            return true;
+        }
+        float projection = (mMotionX0 * mMotionX[index] + mMotionY0 * mMotionY[index]) / length;
+        return Math.abs(projection - length) <= INLIER_DISTANCE;
+    }
+
+    /** @return the fraction of points which survived the last update */
+    public float getConfidence() { return mConfidence; }
+
+    /** @return the length of the common motion of the last update in pixels */
+    public float getMotion() {
+        return (float) Math.sqrt(mMotionX0 * mMotionX0 + mMotionY0 * mMotionY0);
+    }
+
+    /** Draws the edge map of the keyframe moved by the motion since the keyframe */
+    public void render(byte[] edges, int width, int height) {
+        int offsetX = Math.round(mOffsetX);
+        int offsetY = Math.round(mOffsetY);
+        Arrays.fill(edges, 0, width * height, CannyKernel.NO_EDGE);
+        int columnBegin = Math.max(0, offsetX);
+        int columnEnd = Math.min(width, width + offsetX);
+        if (mKeyframeEdges == null || columnBegin >= columnEnd) {
+            return;
+        }
+        for (int y = Math.max(0, offsetY); y < Math.min(height, height + offsetY); y++) {
+            System.arraycopy(mKeyframeEdges, (y - offsetY) * width + columnBegin - offsetX, edges,
+                    y * width + columnBegin, columnEnd - columnBegin);
+        }
+    }
+}
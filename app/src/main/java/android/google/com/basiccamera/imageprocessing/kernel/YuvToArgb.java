@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.kernel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Converts NV21 frames into ARGB pixels as Bitmap.setPixels takes them, with the BT.601 limited
+ * range coefficients which the camera and YuvImage use. The products of the coefficients are
+ * looked up in tables of 10 bit fixed point values computed once, and the sums are clamped by
+ * another table, so a pixel costs a few loads and adds and no multiplication or branch.
+ *
+ * The rows can be split into bands which are converted on the threads of an executor. The
+ * tables are shared and read only, so any number of threads may convert at the same time.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class YuvToArgb {
+
+    private static final int SHIFT = 10;
+    private static final int HALF = 1 << (SHIFT - 1);
+    // the sums range from -277 to 535 before clamping
+    private static final int CLAMP_OFFSET = 384;
+    private static final int CLAMP_SIZE = 1024;
+
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+    private static final int[] CLAMP = new int[CLAMP_SIZE];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            // the rounding is added to the luminance, so each sum needs a single shift
+            Y_TABLE[i] = (int) Math.round(1.164 * (i - 16) * (1 << SHIFT)) + HALF;
+            RV_TABLE[i] = (int) Math.round(1.596 * (i - 128) * (1 << SHIFT));
+            GV_TABLE[i] = (int) Math.round(-0.813 * (i - 128) * (1 << SHIFT));
+            GU_TABLE[i] = (int) Math.round(-0.391 * (i - 128) * (1 << SHIFT));
+            BU_TABLE[i] = (int) Math.round(2.018 * (i - 128) * (1 << SHIFT));
+        }
+        for (int i = 0; i < CLAMP_SIZE; i++) {
+            CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+    }
+
+    private final Executor mExecutor;
+    private final int mBandCount;
+
+    /**
+     * @param executor runs all bands but the first one, which runs on the calling thread, null
+     *                 to convert on the calling thread only
+     * @param bandCount the number of bands the rows are split into, e.g. the number of cores
+     */
+    public YuvToArgb(Executor executor, int bandCount) {
+        mExecutor = executor;
+        mBandCount = executor != null ? Math.max(1, bandCount) : 1;
+    }
+
+    /**
+     * Converts a whole frame and returns when all bands are done.
+     * @param nv21 the Y plane followed by the interleaved V and U plane
+     * @param argb receives width * height pixels
+     */
+    public void convert(final byte[] nv21, final int width, final int height, final int[] argb) {
+        // bands of an even number of rows, so no chroma row is split
+        final int rowsPerBand = (height / mBandCount + 1) & ~1;
+        if (mBandCount == 1 || rowsPerBand >= height) {
+            convertRows(nv21, width, height, argb, 0, height);
+            return;
+        }
+        int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+        final CountDownLatch done = new CountDownLatch(bandCount - 1);
+        final RuntimeException[] failure = new RuntimeException[1];
+        for (int band = 1; band < bandCount; band++) {
+            final int rowBegin = band * rowsPerBand;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        convertRows(nv21, width, height, argb, rowBegin,
+                                Math.min(height, rowBegin + rowsPerBand));
+                    } catch (RuntimeException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        convertRows(nv21, width, height, argb, 0, rowsPerBand);
+        // the bands write into argb, so they are awaited even if this thread is interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     * Converts the rows from rowBegin to rowEnd exclusively.
+     */
+    public static void convertRows(byte[] nv21, int width, int height, int[] argb,
+            int rowBegin, int rowEnd) {
+        int chromaBegin = width * height;
+        for (int y = rowBegin; y < rowEnd; y++) {
+            int pixel = y * width;
+            int chroma = chromaBegin + (y >> 1) * width;
+            for (int x = 0; x < width; x += 2) {
+                int v = nv21[chroma++] & 0xff;
+                int u = nv21[chroma++] & 0xff;
+                int red = RV_TABLE[v];
+                int green = GV_TABLE[v] + GU_TABLE[u];
+                int blue = BU_TABLE[u];
+                int luma = Y_TABLE[nv21[pixel] & 0xff];
+                argb[pixel++] = 0xff000000 | CLAMP[((luma + red) >> SHIFT) + CLAMP_OFFSET] << 16
+                        | CLAMP[((luma + green) >> SHIFT) + CLAMP_OFFSET] << 8
+                        | CLAMP[((luma + blue) >> SHIFT) + CLAMP_OFFSET];
+                if (x + 1 < width) {
+                    luma = Y_TABLE[nv21[pixel] & 0xff];
+                    argb[pixel++] = 0xff000000
+                            | CLAMP[((luma + red) >> SHIFT) + CLAMP_OFFSET] << 16
+                            | CLAMP[((luma + green) >> SHIFT) + CLAMP_OFFSET] << 8
+                            | CLAMP[((luma + blue) >> SHIFT) + CLAMP_OFFSET];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.memory;
+
+/**
+ * Accounts the large allocations of the pipeline against one budget: the preview buffers, the
+ * stills, the result and screen bitmaps, the native memory of the OpenCV Mats, the work
+ * buffers of the task and the cached results. The share of the budget in use, or memory
+ * pressure reported by the system through onTrimMemory, sets a stage: first the pools and queues
+ * shrink, then the frames are processed at a smaller resolution and at last the analysis
+ * pauses. The components read the stage where they allocate, so a stage takes effect with their
+ * next allocation and frees memory without a callback into them.
+ *
+ * A stage set by the usage is only left when the usage fell clearly below its threshold, and a
+ * stage set by the system is held for a while, so the stages do not oscillate. All times are
+ * passed in by the caller, so the stages can be replayed on a plain JVM. All methods are thread
+ * safe.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class MemoryBudget {
+
+    /** What the memory is used for, the usage is tracked per category */
+    public enum Category {
+        /** The NV21 buffers shared between the camera and the frame bus */
+        PREVIEW_FRAMES,
+        /** Pictures and single preview frames handed to the task */
+        STILL_IMAGES,
+        /** Result bitmaps of the task, pooled by the BitmapPool */
+        RESULT_BITMAPS,
+        /** The result scaled to the screen by the ResultView */
+        SCREEN_BITMAPS,
+        /** The native memory of the OpenCV Mats of the task */
+        NATIVE_MATS,
+        /** The Java arrays the task works on */
+        WORK_BUFFERS,
+        /** The edge maps of stills kept by the ResultCache */
+        RESULT_CACHE
+    }
+
+    /** The stages of degradation, each one includes the measures of the ones before */
+    public enum Stage {
+        NORMAL,
+        /** Pools and buffer queues keep fewer spare entries */
+        SHRINK_QUEUES,
+        /** Frames are processed at a smaller resolution */
+        REDUCE_RESOLUTION,
+        /** No frames are processed, the task releases its buffers */
+        PAUSE_ANALYSIS
+    }
+
+    /** Is notified on the thread which caused the change, while the budget is locked */
+    public interface Listener {
+        void onStageChanged(Stage stage, String reason);
+    }
+
+    // the levels of ComponentCallbacks2, which is not available on a plain JVM
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Category[] CATEGORIES = Category.values();
+    // share of the budget in use from which a stage is entered
+    private static final float[] STAGE_THRESHOLDS = {0f, 0.75f, 0.9f, 1f};
+    // a stage is left when the share is this much below its threshold
+    private static final float HYSTERESIS = 0.1f;
+    // how long a stage set by onTrimMemory is held, the system does not report relief
+    private static final long TRIM_HOLD_NANOS = 30000000000L;
+    // the budget until the activity sets one from the memory class of the device
+    private static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+    private static final float BYTES_PER_MB = 1024f * 1024f;
+
+    private static final MemoryBudget sInstance = new MemoryBudget(DEFAULT_BUDGET_BYTES);
+
+    private final long[] mUsage;
+    private final long[] mPeak;
+    private long mTotal;
+    private long mPeakTotal;
+    private long mBudget;
+    private Stage mUsageStage;
+    private Stage mTrimStage;
+    private long mTrimTime;
+    // read without the lock on the hot paths of the components
+    private volatile Stage mStage;
+    private Listener mListener;
+    // metrics
+    private long mStageChangeCount;
+    private long mTrimCount;
+
+    public MemoryBudget(long budgetBytes) {
+        mUsage = new long[CATEGORIES.length];
+        mPeak = new long[CATEGORIES.length];
+        mBudget = budgetBytes;
+        mUsageStage = Stage.NORMAL;
+        mTrimStage = Stage.NORMAL;
+        mStage = Stage.NORMAL;
+    }
+
+    /** @return the budget shared by all components of the process */
+    public static MemoryBudget get() { return sInstance; }
+
+    public synchronized void setListener(Listener listener) { mListener = listener; }
+
+    public synchronized void setBudget(long budgetBytes) {
+        mBudget = budgetBytes;
+        updateStage("budget set to " + formatMb(budgetBytes));
+    }
+
+    /**
+     * Registers an allocation, it has to be freed with the same size.
+     */
+    public synchronized void allocate(Category category, long bytes) {
+        int index = category.ordinal();
+        mUsage[index] += bytes;
+        mTotal += bytes;
+        if (mUsage[index] > mPeak[index]) {
+            mPeak[index] = mUsage[index];
+        }
+        if (mTotal > mPeakTotal) {
+            mPeakTotal = mTotal;
+        }
+        updateStage(category + " grew by " + formatMb(bytes));
+    }
+
+    public synchronized void free(Category category, long bytes) {
+        mUsage[category.ordinal()] -= bytes;
+        mTotal -= bytes;
+        updateStage(category + " shrank by " + formatMb(bytes));
+    }
+
+    /**
+     * Is invoked with the level of ComponentCallbacks2.onTrimMemory. A level asking for less
+     * memory than the one held already only renews the hold.
+     * @param now the current time in nanoseconds
+     */
+    public synchronized void onTrimMemory(int level, long now) {
+        mTrimCount++;
+        Stage stage = stageForTrimLevel(level);
+        if (stage == Stage.NORMAL) {
+            return;
+        }
+        if (stage.ordinal() > mTrimStage.ordinal()) {
+            mTrimStage = stage;
+        }
+        mTrimTime = now;
+        updateStage("trim memory level " + level);
+    }
+
+    /**
+     * Releases a stage set by the system after it has been held long enough. Should be invoked
+     * regularly, e.g. for every arriving frame.
+     * @param now the current time in nanoseconds
+     */
+    public synchronized void update(long now) {
+        if (mTrimStage != Stage.NORMAL && now - mTrimTime >= TRIM_HOLD_NANOS) {
+            mTrimStage = Stage.NORMAL;
+            updateStage("trim memory released");
+        }
+    }
+
+    /**
+     * The stage a trim level asks for. Only the levels of a running app count: the levels from
+     * TRIM_MEMORY_UI_HIDDEN on arrive while the activity is paused and the pipeline has been
+     * stopped, and a stage held from them would slow down the next start.
+     */
+    public static Stage stageForTrimLevel(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            return Stage.NORMAL;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return Stage.PAUSE_ANALYSIS;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return Stage.REDUCE_RESOLUTION;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return Stage.SHRINK_QUEUES;
+        }
+        return Stage.NORMAL;
+    }
+
+    private void updateStage(String reason) {
+        float share = mBudget > 0 ? mTotal / (float) mBudget : 0;
+        int usageStage = mUsageStage.ordinal();
+        while (usageStage < STAGES.length - 1 && share >= STAGE_THRESHOLDS[usageStage + 1]) {
+            usageStage++;
+        }
+        while (usageStage > 0 && share < STAGE_THRESHOLDS[usageStage] - HYSTERESIS) {
+            usageStage--;
+        }
+        mUsageStage = STAGES[usageStage];
+        Stage stage = STAGES[Math.max(usageStage, mTrimStage.ordinal())];
+        if (stage == mStage) {
+            return;
+        }
+        mStage = stage;
+        mStageChangeCount++;
+        if (mListener != null) {
+            mListener.onStageChanged(stage, String.format("%s, %s of %s in use", reason,
+                    formatMb(mTotal), formatMb(mBudget)));
+        }
+    }
+
+    public Stage getStage() { return mStage; }
+
+    /** @return whether the current stage includes the measures of the given one */
+    public boolean isAtLeast(Stage stage) { return mStage.ordinal() >= stage.ordinal(); }
+
+    public synchronized long getBudget() { return mBudget; }
+
+    /** @return the bytes in use by the category */
+    public synchronized long getUsage(Category category) { return mUsage[category.ordinal()]; }
+
+    public synchronized long getPeakUsage(Category category) { return mPeak[category.ordinal()]; }
+
+    public synchronized long getTotalUsage() { return mTotal; }
+
+    public synchronized long getPeakTotalUsage() { return mPeakTotal; }
+
+    public synchronized long getStageChangeCount() { return mStageChangeCount; }
+
+    public synchronized long getTrimCount() { return mTrimCount; }
+
+    private static String formatMb(long bytes) {
+        return String.format("%.1fMB", bytes / BYTES_PER_MB);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("stage=%s used=%s peak=%s budget=%s changes=%d trims=%d",
+                mStage, formatMb(mTotal), formatMb(mPeakTotal), formatMb(mBudget),
+                mStageChangeCount, mTrimCount));
+        for (Category category : CATEGORIES) {
+            builder.append(' ').append(category.name().toLowerCase()).append('=')
+                    .append(formatMb(mUsage[category.ordinal()]));
+        }
+        return builder.toString();
+    }
+}
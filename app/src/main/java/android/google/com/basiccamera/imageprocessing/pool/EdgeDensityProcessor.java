@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.pool;
+
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.imageprocessing.governor.DeadlineStats;
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.Deadline;
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+
+/**
+ * Measures the fraction of edge pixels in the luminance of the frames, a cheap analysis for the
+ * cameras which are not displayed. Runs the Canny kernel on a downsampled copy of the Y plane.
+ * With a staleness budget, frames which can not be finished in time are abandoned and the
+ * density of the last finished frame is kept.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeDensityProcessor implements FrameProcessor {
+
+    private static final String STAGE_QUEUE = "queue";
+
+    private final int mDownsampling;
+    private final long mStalenessBudget;
+    private final CannyKernel mKernel;
+    private final Deadline mDeadline;
+    private final DeadlineStats mDeadlineStats;
+    private byte[] mScaled;
+    private byte[] mEdges;
+    private volatile float mDensity;
+
+    /** @param downsampling factor by which the Y plane is reduced before the detection */
+    public EdgeDensityProcessor(int downsampling) {
+        this(downsampling, 0);
+    }
+
+    /**
+     * @param stalenessBudget nanoseconds after the capture by which a frame has to be finished,
+     *                        0 to finish every frame
+     */
+    public EdgeDensityProcessor(int downsampling, long stalenessBudget) {
+        mDownsampling = downsampling;
+        mStalenessBudget = stalenessBudget;
+        mKernel = new CannyKernel();
+        mDeadline = new Deadline();
+        mDeadlineStats = new DeadlineStats();
+    }
+
+    @Override
+    public void process(Frame frame) {
+        long begin = System.nanoTime();
+        if (mStalenessBudget > 0) {
+            mDeadline.set(frame.getCaptureTimestamp(), mStalenessBudget);
+        }
+        if (mDeadline.hasExpired(STAGE_QUEUE)) {
+            mDeadlineStats.onAbandoned(STAGE_QUEUE, 0, 0);
+            return;
+        }
+        int width = PlaneTransform.downsampledSize(frame.getWidth(), mDownsampling);
+        int height = PlaneTransform.downsampledSize(frame.getHeight(), mDownsampling);
+        int size = width * height;
+        if (mScaled == null || mScaled.length != size) {
+            mScaled = new byte[size];
+            mEdges = new byte[size];
+        }
+        PlaneTransform.downsample(frame.getData(), frame.getWidth(), frame.getHeight(),
+                mDownsampling, mScaled);
+        if (!mKernel.detect(mScaled, width, height, mEdges, mDeadline)) {
+            mDeadlineStats.onAbandoned(mDeadline.getExpiredStage(), System.nanoTime() - begin,
+                    mDeadline.getExpiredProgress());
+            return;
+        }
+        int edgeCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (mEdges[i] == CannyKernel.EDGE) {
+                edgeCount++;
+            }
+        }
+        mDensity = edgeCount / (float) size;
+        mDeadlineStats.onCompleted(System.nanoTime() - begin);
+    }
+
+    /** Counts the frames finished in time and abandoned */
+    public DeadlineStats getDeadlineStats() { return mDeadlineStats; }
+
+    /** @return the fraction of edge pixels in the last processed frame */
+    public float getDensity() { return mDensity; }
+}
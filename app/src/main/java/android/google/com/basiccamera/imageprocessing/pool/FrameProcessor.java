@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.pool;
+
+import android.google.com.basiccamera.camera.Frame;
+
+/**
+ * Processes the frames of one session of a SharedWorkerPool. The pool never runs two frames or
+ * tasks of the same session at the same time, so an implementation can keep per session state
+ * without synchronization, although consecutive frames may be processed by different threads.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public interface FrameProcessor {
+
+    /**
+     * Processes a frame. The pool releases the frame after this returns, an implementation
+     * keeping it longer has to retain it.
+     */
+    void process(Frame frame);
+}
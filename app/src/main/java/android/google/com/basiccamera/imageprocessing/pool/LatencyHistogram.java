@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.pool;
+
+/**
+ * Counts latencies in buckets of one millisecond up to one second, so percentiles can be read at
+ * any time without keeping the single values. Longer latencies fall into the last bucket.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 1000;
+    private static final long BUCKET_NANOS = 1000000L;
+
+    private final long[] mBuckets;
+    private long mCount;
+    private long mSum;
+
+    public LatencyHistogram() {
+        mBuckets = new long[BUCKET_COUNT];
+    }
+
+    public synchronized void add(long latencyNanos) {
+        int bucket = (int) Math.min(Math.max(latencyNanos, 0) / BUCKET_NANOS, BUCKET_COUNT - 1);
+        mBuckets[bucket]++;
+        mCount++;
+        mSum += latencyNanos;
+    }
+
+    public synchronized long getCount() { return mCount; }
+
+    /** @return the mean latency in nanoseconds */
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper end of the bucket containing the percentile in nanoseconds
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * mCount);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mBuckets[bucket];
+            if (seen >= Math.max(rank, 1)) {
+                return (bucket + 1) * BUCKET_NANOS;
+            }
+        }
+        return BUCKET_COUNT * BUCKET_NANOS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("mean=%.1fms p50<=%dms p99<=%dms", getMean() / 1e6,
+                getPercentile(50) / BUCKET_NANOS, getPercentile(99) / BUCKET_NANOS);
+    }
+}
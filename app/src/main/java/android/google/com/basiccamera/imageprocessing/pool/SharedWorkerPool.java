@@ -0,0 +1,427 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.pool;
+
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.camera.FrameBus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Processes the frames of several sessions, e.g. one per camera, on one fixed set of threads.
+ * Each session subscribes to its own frame bus with a queue of one frame, so it always processes
+ * its newest frame and a slow session drops its own frames instead of delaying the others.
+ *
+ * The threads are shared by weighted fair scheduling: every session has a weight, its quota of
+ * the processing time. The processing time of a session is divided by its weight and summed up
+ * as its virtual time, and a free thread takes the waiting session with the smallest virtual
+ * time. A session waking up after being idle starts at the current virtual time, so it can not
+ * catch up on the time it did not use. A session is processed by at most one thread at a time.
+ *
+ * A processor never blocks a thread of the pool while it waits for something, e.g. a picture.
+ * It parks its session instead, which holds no thread, and the code completing the wait
+ * executes the continuation in the session and unparks it. Tasks executed in a session run
+ * like its frames, one at a time and before the next frame, so dozens of processors can share
+ * a few threads.
+ *
+ * A frame or task which throws is counted as a failure of its session and the thread goes on
+ * with the next one, so a broken processor neither loses a thread nor blocks closing its
+ * session.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class SharedWorkerPool {
+
+    // each session always gets its newest frame
+    private static final int QUEUE_DEPTH = 1;
+
+    private final List<Session> mSessions;
+    private final Thread[] mWorkers;
+    // guarded by this
+    private boolean mRunning;
+    private double mVirtualTime;
+    private long mBusyTime;
+
+    /**
+     * Starts the threads of the pool.
+     * @param name prefix of the thread names
+     * @param threadCount number of threads processing frames
+     */
+    public SharedWorkerPool(String name, int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        mSessions = new ArrayList<>();
+        mRunning = true;
+        mWorkers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Thread(name + "-" + i) {
+                @Override
+                public void run() {
+                    work();
+                }
+            };
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Adds a session processing the frames of a bus.
+     * @param name used in the metrics
+     * @param weight the quota of the processing time relative to the other sessions
+     */
+    public Session register(String name, FrameBus frameBus, int weight,
+            FrameProcessor processor) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("The weight has to be at least 1");
+        }
+        Session session = new Session(name, weight, processor);
+        synchronized (this) {
+            if (!mRunning) {
+                throw new IllegalStateException("The pool has been shut down");
+            }
+            mSessions.add(session);
+        }
+        session.mSubscription = frameBus.subscribe(QUEUE_DEPTH, FrameBus.DropPolicy.DROP_OLDEST,
+                session);
+        return session;
+    }
+
+    /** @return a copy of the registered sessions */
+    public synchronized List<Session> getSessions() {
+        return new ArrayList<>(mSessions);
+    }
+
+    /**
+     * Closes all sessions and stops the threads after their current frames.
+     * @return whether all threads finished within the timeout
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        for (Session session : getSessions()) {
+            session.close();
+        }
+        synchronized (this) {
+            mRunning = false;
+            notifyAll();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean finished = true;
+        for (Thread worker : mWorkers) {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            finished &= !worker.isAlive();
+        }
+        return finished;
+    }
+
+    private void work() {
+        while (true) {
+            Session session;
+            Runnable task;
+            synchronized (this) {
+                while ((session = nextSession()) == null) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                session.mBusy = true;
+                session.mWorker = Thread.currentThread();
+                mVirtualTime = session.mVirtualTime;
+                task = session.mTasks.poll();
+                if (task == null) {
+                    // a frame arriving from here on sets the session pending again
+                    session.mPending = false;
+                }
+            }
+            Frame frame = task == null ? session.mSubscription.poll() : null;
+            long processingTime = 0;
+            RuntimeException failure = null;
+            try {
+                if (task != null) {
+                    long begin = System.nanoTime();
+                    try {
+                        task.run();
+                    } finally {
+                        processingTime = System.nanoTime() - begin;
+                    }
+                } else if (frame != null) {
+                    long begin = System.nanoTime();
+                    try {
+                        session.mProcessor.process(frame);
+                    } finally {
+                        frame.release();
+                        long end = System.nanoTime();
+                        processingTime = end - begin;
+                        session.mQueueLatencies.add(begin - frame.getTimestamp());
+                        session.mLatencies.add(end - frame.getTimestamp());
+                    }
+                }
+            } catch (RuntimeException e) {
+                // only this frame or task is lost, the thread keeps serving the sessions
+                failure = e;
+            } finally {
+                // also after an error, which ends the thread, so close() does not wait forever
+                finish(session, task != null, frame != null, processingTime, failure);
+            }
+        }
+    }
+
+    /** Makes a session runnable again after a thread has processed a frame or task of it */
+    private void finish(Session session, boolean wasTask, boolean wasFrame, long processingTime,
+            RuntimeException failure) {
+        boolean closed;
+        synchronized (this) {
+            session.mBusy = false;
+            session.mWorker = null;
+            if (wasFrame) {
+                session.mProcessedCount++;
+            }
+            if (wasTask) {
+                session.mTaskCount++;
+            }
+            if (failure != null) {
+                session.mFailureCount++;
+                session.mLastFailure = failure;
+            }
+            session.mProcessingTime += processingTime;
+            session.mVirtualTime += processingTime / (double) session.mWeight;
+            mBusyTime += processingTime;
+            if (session.isRunnable()) {
+                notify();
+            }
+            closed = session.mClosed;
+        }
+        if (closed) {
+            // wakes up close() waiting for this frame
+            synchronized (session) {
+                session.notifyAll();
+            }
+        }
+    }
+
+    /** @return the waiting session with the smallest virtual time or null, guarded by this */
+    private Session nextSession() {
+        Session next = null;
+        for (Session session : mSessions) {
+            if (session.isRunnable()
+                    && (next == null || session.mVirtualTime < next.mVirtualTime)) {
+                next = session;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The frames of one bus processed by the pool, with its metrics.
+     */
+    public final class Session implements FrameBus.Listener {
+
+        private final String mName;
+        private final int mWeight;
+        private final FrameProcessor mProcessor;
+        private final LatencyHistogram mQueueLatencies;
+        private final LatencyHistogram mLatencies;
+        private FrameBus.Subscription mSubscription;
+        // guarded by the pool
+        private final ArrayDeque<Runnable> mTasks;
+        private boolean mPending;
+        private boolean mParked;
+        private boolean mBusy;
+        private boolean mClosed;
+        private Thread mWorker;
+        private double mVirtualTime;
+        private long mProcessedCount;
+        private long mTaskCount;
+        private long mParkCount;
+        private long mFailureCount;
+        private RuntimeException mLastFailure;
+        private long mProcessingTime;
+
+        private Session(String name, int weight, FrameProcessor processor) {
+            mName = name;
+            mWeight = weight;
+            mProcessor = processor;
+            mTasks = new ArrayDeque<>();
+            mQueueLatencies = new LatencyHistogram();
+            mLatencies = new LatencyHistogram();
+        }
+
+        @Override
+        public void onFrameAvailable(FrameBus.Subscription subscription) {
+            synchronized (SharedWorkerPool.this) {
+                wakeUp();
+                mPending = true;
+            }
+        }
+
+        /**
+         * Runs a task in this session: never at the same time as a frame or another task of this
+         * session, and before its next frame. A parked session still runs its tasks.
+         * @return false if the session is closed, the task is dropped then
+         */
+        public boolean execute(Runnable task) {
+            synchronized (SharedWorkerPool.this) {
+                if (mClosed) {
+                    return false;
+                }
+                wakeUp();
+                mTasks.add(task);
+            }
+            return true;
+        }
+
+        /**
+         * Stops handing frames to the processor till unpark, e.g. while it waits for a picture.
+         * A parked session holds no thread, newer frames keep replacing its queued one.
+         */
+        public void park() {
+            synchronized (SharedWorkerPool.this) {
+                if (!mParked) {
+                    mParked = true;
+                    mParkCount++;
+                }
+            }
+        }
+
+        /** Hands frames to the processor again, starting with the newest one */
+        public void unpark() {
+            synchronized (SharedWorkerPool.this) {
+                if (mParked) {
+                    wakeUp();
+                    mParked = false;
+                }
+            }
+        }
+
+        /** Is invoked before the session gets work, guarded by the pool */
+        private void wakeUp() {
+            if (!isRunnable() && !mBusy) {
+                // an idle session does not get credit for the time it did not use
+                mVirtualTime = Math.max(mVirtualTime, SharedWorkerPool.this.mVirtualTime);
+            }
+            SharedWorkerPool.this.notify();
+        }
+
+        /** @return whether a thread may take the session, guarded by the pool */
+        private boolean isRunnable() {
+            return !mBusy && !mClosed && (!mTasks.isEmpty() || (mPending && !mParked));
+        }
+
+        /**
+         * Stops processing the frames of this session, drops its tasks and releases its queued
+         * frame. Waits till a frame or task being processed right now is finished, so the
+         * resources of the processor can be released afterwards, unless it is invoked from
+         * within the session.
+         */
+        public void close() {
+            synchronized (SharedWorkerPool.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mTasks.clear();
+                mSessions.remove(this);
+            }
+            mSubscription.cancel();
+            synchronized (this) {
+                while (isBusyOnOtherThread()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean isBusyOnOtherThread() {
+            synchronized (SharedWorkerPool.this) {
+                return mBusy && mWorker != Thread.currentThread();
+            }
+        }
+
+        public String getName() { return mName; }
+
+        public int getWeight() { return mWeight; }
+
+        public long getProcessedCount() {
+            synchronized (SharedWorkerPool.this) {
+                return mProcessedCount;
+            }
+        }
+
+        /** @return the number of tasks executed in this session */
+        public long getTaskCount() {
+            synchronized (SharedWorkerPool.this) {
+                return mTaskCount;
+            }
+        }
+
+        /** @return how often the session has been parked */
+        public long getParkCount() {
+            synchronized (SharedWorkerPool.this) {
+                return mParkCount;
+            }
+        }
+
+        /** @return the number of frames and tasks which threw */
+        public long getFailureCount() {
+            synchronized (SharedWorkerPool.this) {
+                return mFailureCount;
+            }
+        }
+
+        /** @return the exception of the last frame or task which threw, null if none did */
+        public RuntimeException getLastFailure() {
+            synchronized (SharedWorkerPool.this) {
+                return mLastFailure;
+            }
+        }
+
+        /** @return the number of frames replaced by a newer one before being processed */
+        public long getDroppedCount() { return mSubscription.getDroppedCount(); }
+
+        /** @return the fraction of the processing time of the pool used by this session */
+        public double getShare() {
+            synchronized (SharedWorkerPool.this) {
+                return mBusyTime == 0 ? 0 : mProcessingTime / (double) mBusyTime;
+            }
+        }
+
+        /** The time from the arrival of a frame till its processing begins */
+        public LatencyHistogram getQueueLatencies() { return mQueueLatencies; }
+
+        /** The time from the arrival of a frame till its processing ends */
+        public LatencyHistogram getLatencies() { return mLatencies; }
+
+        @Override
+        public String toString() {
+            return String.format("%s weight=%d processed=%d dropped=%d tasks=%d parked=%d "
+                            + "failed=%d share=%.0f%% queue %s, latency %s", mName, mWeight,
+                    getProcessedCount(), getDroppedCount(), getTaskCount(), getParkCount(),
+                    getFailureCount(), 100 * getShare(), mQueueLatencies, mLatencies);
+        }
+    }
+}
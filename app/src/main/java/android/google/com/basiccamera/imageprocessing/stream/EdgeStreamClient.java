@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.stream;
+
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMask;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads the edge maps of an EdgeStreamPublisher, the reference for clients in other processes
+ * or on a host, which connects to the port forwarded with e.g. adb forward tcp:5555 tcp:5555.
+ * The maps are read with a blocking channel into one PackedMask, which is reused while the size
+ * stays the same.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeStreamClient {
+
+    private final SocketChannel mChannel;
+    private final ByteBuffer mHeader;
+    private ByteBuffer mPayload;
+    private final ByteBuffer mAcknowledgement;
+    private PackedMask mMask;
+    private long mSequence;
+    private long mTimestamp;
+    private long mCount;
+
+    public EdgeStreamClient(InetSocketAddress address) throws IOException {
+        mChannel = SocketChannel.open(address);
+        mChannel.socket().setTcpNoDelay(true);
+        mHeader = ByteBuffer.allocate(StreamFormat.HEADER_SIZE).order(StreamFormat.BYTE_ORDER);
+        mPayload = ByteBuffer.allocate(0);
+        mAcknowledgement = ByteBuffer.allocate(1);
+    }
+
+    /**
+     * Blocks till the next map has been read, and acknowledges it, so the publisher sends the
+     * next one.
+     * @return false if the publisher has closed the stream between two maps
+     * @throws IOException if the stream ends within a map or is not in the StreamFormat
+     */
+    public boolean read() throws IOException {
+        mHeader.clear();
+        if (!fill(mHeader, true)) {
+            return false;
+        }
+        mHeader.flip();
+        int length = mHeader.getInt();
+        int magic = mHeader.getInt();
+        long sequence = mHeader.getLong();
+        long timestamp = mHeader.getLong();
+        int width = mHeader.getInt();
+        int height = mHeader.getInt();
+        int wordsPerRow = mHeader.getInt();
+        if (magic != StreamFormat.MAGIC) {
+            throw new IOException("Not an edge stream, magic " + Integer.toHexString(magic));
+        }
+        if (width <= 0 || height <= 0 || width > StreamFormat.MAX_SIDE
+                || height > StreamFormat.MAX_SIDE || wordsPerRow != (width + 63) / 64
+                || length != StreamFormat.HEADER_SIZE - 4
+                + StreamFormat.payloadSize(width, height)) {
+            throw new IOException("Invalid header " + width + "x" + height + ", " + wordsPerRow
+                    + " words per row, length " + length);
+        }
+        if (mMask == null || mMask.getWidth() != width || mMask.getHeight() != height) {
+            mMask = new PackedMask(width, height);
+            mPayload = ByteBuffer.allocate(StreamFormat.payloadSize(width, height))
+                    .order(StreamFormat.BYTE_ORDER);
+        }
+        mPayload.clear();
+        fill(mPayload, false);
+        mPayload.flip();
+        mPayload.asLongBuffer().get(mMask.getWords(), 0, wordsPerRow * height);
+        mAcknowledgement.clear();
+        mAcknowledgement.put(0, StreamFormat.ACKNOWLEDGEMENT);
+        while (mAcknowledgement.hasRemaining()) {
+            mChannel.write(mAcknowledgement);
+        }
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * @return false if the stream ended before the first byte and that is allowed
+     */
+    private boolean fill(ByteBuffer buffer, boolean mayEnd) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) {
+                if (mayEnd && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("The edge stream ended within a map");
+            }
+        }
+        return true;
+    }
+
+    /** @return the map read last, which is overwritten by the next read */
+    public PackedMask getMask() { return mMask; }
+
+    public long getSequence() { return mSequence; }
+
+    /** @return the timestamp of the map in System.nanoTime() of the publishing device */
+    public long getTimestamp() { return mTimestamp; }
+
+    /** @return the maps read so far */
+    public long getCount() { return mCount; }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,508 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.stream;
+
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMask;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the edge maps of the task to other processes over a socket, in the StreamFormat. The
+ * processing thread hands a map to publish(), which packs it into a pooled buffer and returns.
+ * It never waits for a client: without a free buffer the map is dropped and counted.
+ *
+ * A selector thread accepts the clients and writes the maps. All clients share the pooled
+ * buffers of a map, each one through its own views, and the queued maps of a client go out with
+ * one gathering write of their headers and payloads. A client acknowledges every map it has
+ * read, and at most WINDOW maps are sent to it ahead of its acknowledgements, so the socket
+ * buffers can not queue more maps for a slow client, whatever their size. Beyond the window a
+ * client keeps only its newest map, the older ones are dropped for it. It receives the latest
+ * maps, at most WINDOW + 1 maps behind, and does not slow down the pipeline or the other
+ * clients.
+ *
+ * Android has no NIO channels for Unix domain sockets, so the stream is served over TCP, bound
+ * to the loopback address by the app. A host reaches it with adb forward.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeStreamPublisher {
+
+    // the maps sent to a client but not acknowledged yet, including the one being written
+    private static final int WINDOW = 2;
+    private static final int MAX_BUFFERS = 8;
+    // how long close() waits for the maps which are partly written, so no client gets half a map,
+    // and for the clients to close their connections
+    private static final long FLUSH_TIMEOUT_MS = 500;
+    private static final long JOIN_TIMEOUT_MS = 1000;
+
+    /** A packed map with its header, shared by the clients till the last one has written it */
+    private static final class Buffer {
+        final ByteBuffer header = ByteBuffer.allocateDirect(StreamFormat.HEADER_SIZE)
+                .order(StreamFormat.BYTE_ORDER);
+        ByteBuffer payload = ByteBuffer.allocateDirect(0);
+        final AtomicInteger references = new AtomicInteger();
+    }
+
+    /** A map queued for a client, with the views the client writes from */
+    private static final class Entry {
+        final Buffer buffer;
+        final ByteBuffer header;
+        final ByteBuffer payload;
+
+        Entry(Buffer buffer) {
+            this.buffer = buffer;
+            header = buffer.header.duplicate();
+            payload = buffer.payload.duplicate();
+        }
+
+        boolean isStarted() { return header.position() > 0; }
+
+        boolean isWritten() { return !payload.hasRemaining(); }
+    }
+
+    private static final class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        // the maps being written and at most one waiting for the window
+        final ArrayDeque<Entry> queue = new ArrayDeque<>(WINDOW + 1);
+        final ByteBuffer[] views = new ByteBuffer[2 * WINDOW];
+        // the maps written completely, whose acknowledgement has not arrived yet
+        int unacknowledged;
+        // the stream has ended, the client closes the connection after reading it
+        boolean finished;
+        long sent;
+        long dropped;
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServer;
+    private final Thread mThread;
+    // the maps published since the selector thread looked last
+    private final ConcurrentLinkedQueue<Buffer> mPublished;
+    // also guards the allocation of the buffers and their accounting
+    private final ArrayDeque<Buffer> mFreeBuffers;
+    private final MemoryBudget mMemoryBudget;
+    // used only by the selector thread
+    private final List<Client> mClients;
+    private final ByteBuffer mReadBuffer;
+    // used only by the processing thread
+    private PackedMask mPacked;
+    // guarded by mFreeBuffers
+    private int mBufferCount;
+    private long mBufferBytes;
+    private volatile boolean mClosed;
+    private volatile int mClientCount;
+    private volatile long mPublishedCount;
+    private volatile long mDroppedCount;
+    private volatile long mClientDroppedCount;
+    private volatile long mSentCount;
+    private volatile long mSentBytes;
+    private volatile long mAcceptedCount;
+
+    /**
+     * Binds the socket and starts the selector thread.
+     * @param address e.g. port 0 of the loopback address for any free port
+     */
+    public EdgeStreamPublisher(InetSocketAddress address) throws IOException {
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        try {
+            mServer.socket().bind(address);
+            mServer.configureBlocking(false);
+            mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            mServer.close();
+            mSelector.close();
+            throw e;
+        }
+        mPublished = new ConcurrentLinkedQueue<>();
+        mFreeBuffers = new ArrayDeque<>();
+        mMemoryBudget = MemoryBudget.get();
+        mClients = new ArrayList<>();
+        mReadBuffer = ByteBuffer.allocate(256);
+        mThread = new Thread("EdgeStreamPublisher") {
+            @Override
+            public void run() {
+                serve();
+            }
+        };
+        mThread.start();
+    }
+
+    /** @return the port the clients connect to */
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /**
+     * Packs an edge map and queues it for the clients without waiting, see
+     * publish(long, long, PackedMask).
+     */
+    public boolean publish(long sequence, long timestamp, byte[] edges, int width, int height) {
+        if (mClientCount == 0 || mClosed) {
+            return false;
+        }
+        if (mPacked == null || mPacked.getWidth() != width || mPacked.getHeight() != height) {
+            mPacked = new PackedMask(width, height);
+        }
+        mPacked.pack(edges);
+        return publish(sequence, timestamp, mPacked);
+    }
+
+    /**
+     * Copies a packed edge map into a pooled buffer and queues it for the clients without
+     * waiting. Must be called by one thread at a time.
+     * @param timestamp e.g. the capture time of the frame
+     * @return false if there is no client or the map was dropped because no buffer is free
+     */
+    public boolean publish(long sequence, long timestamp, PackedMask mask) {
+        if (mClientCount == 0 || mClosed) {
+            return false;
+        }
+        Buffer buffer = obtainBuffer(StreamFormat.payloadSize(mask.getWidth(),
+                mask.getHeight()));
+        if (buffer == null) {
+            if (!mClosed) {
+                mDroppedCount++;
+            }
+            return false;
+        }
+        buffer.header.clear();
+        StreamFormat.putHeader(buffer.header, sequence, timestamp, mask);
+        buffer.header.flip();
+        buffer.payload.clear();
+        buffer.payload.asLongBuffer().put(mask.getWords(), 0,
+                mask.getWordsPerRow() * mask.getHeight());
+        buffer.payload.limit(StreamFormat.payloadSize(mask.getWidth(), mask.getHeight()));
+        // the reference of the publisher, till the selector thread has queued it for the clients
+        buffer.references.set(1);
+        mPublished.add(buffer);
+        mPublishedCount++;
+        mSelector.wakeup();
+        return true;
+    }
+
+    /**
+     * Finishes the maps the clients have started to receive, drops the others, ends the streams
+     * and stops the selector thread. Maps published afterwards are ignored.
+     */
+    public void close() {
+        mClosed = true;
+        mSelector.wakeup();
+        try {
+            mThread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // a publish() running at the same time gets no buffer anymore
+        synchronized (mFreeBuffers) {
+            mFreeBuffers.clear();
+            mMemoryBudget.free(MemoryBudget.Category.WORK_BUFFERS, mBufferBytes);
+            mBufferBytes = 0;
+        }
+    }
+
+    /** @return a free buffer for the payload, null if all are in use or the publisher closed */
+    private Buffer obtainBuffer(int payloadSize) {
+        synchronized (mFreeBuffers) {
+            if (mClosed) {
+                return null;
+            }
+            Buffer buffer = mFreeBuffers.poll();
+            if (buffer == null) {
+                if (mBufferCount == MAX_BUFFERS) {
+                    return null;
+                }
+                buffer = new Buffer();
+                mBufferCount++;
+                mBufferBytes += StreamFormat.HEADER_SIZE;
+                mMemoryBudget.allocate(MemoryBudget.Category.WORK_BUFFERS,
+                        StreamFormat.HEADER_SIZE);
+            }
+            if (buffer.payload.capacity() < payloadSize) {
+                long grown = payloadSize - buffer.payload.capacity();
+                buffer.payload = ByteBuffer.allocateDirect(payloadSize)
+                        .order(StreamFormat.BYTE_ORDER);
+                mBufferBytes += grown;
+                mMemoryBudget.allocate(MemoryBudget.Category.WORK_BUFFERS, grown);
+            }
+            return buffer;
+        }
+    }
+
+    private void release(Buffer buffer) {
+        if (buffer.references.decrementAndGet() == 0) {
+            synchronized (mFreeBuffers) {
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+
+    private void serve() {
+        long flushDeadline = 0;
+        try {
+            while (true) {
+                if (mClosed) {
+                    if (flushDeadline == 0) {
+                        flushDeadline = System.nanoTime() + FLUSH_TIMEOUT_MS * 1000000L;
+                        for (Client client : mClients) {
+                            dropUnstarted(client);
+                        }
+                    }
+                    finishClients();
+                    if (mClients.isEmpty() || System.nanoTime() > flushDeadline) {
+                        break;
+                    }
+                    mSelector.select(FLUSH_TIMEOUT_MS);
+                } else {
+                    mSelector.select();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client client = (Client) key.attachment();
+                        if (key.isReadable() && !read(client)) {
+                            continue;
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(client);
+                        }
+                    }
+                }
+                if (!mClosed) {
+                    distribute();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // the selector failed, the stream ends as if closed
+        } finally {
+            for (Client client : new ArrayList<>(mClients)) {
+                disconnect(client);
+            }
+            Buffer buffer;
+            while ((buffer = mPublished.poll()) != null) {
+                release(buffer);
+            }
+            try {
+                mServer.close();
+                mSelector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            Client client = new Client(channel, key);
+            key.attach(client);
+            mClients.add(client);
+            mClientCount = mClients.size();
+            mAcceptedCount++;
+        }
+    }
+
+    /**
+     * Reads the acknowledgements of the client, one byte per map, and writes the maps the
+     * window lets through now.
+     * @return false if the client has disconnected
+     */
+    private boolean read(Client client) {
+        int read;
+        try {
+            mReadBuffer.clear();
+            read = client.channel.read(mReadBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            disconnect(client);
+            return false;
+        }
+        client.unacknowledged = Math.max(0, client.unacknowledged - read);
+        if (!client.queue.isEmpty()) {
+            write(client);
+        }
+        return client.channel.isOpen();
+    }
+
+    /** Queues the published maps for every client and writes as much as the sockets take */
+    private void distribute() {
+        Buffer buffer;
+        while ((buffer = mPublished.poll()) != null) {
+            for (Client client : mClients) {
+                if (client.unacknowledged + client.queue.size() >= WINDOW) {
+                    // the newest map waits for the window instead of an older one
+                    dropOldestUnstarted(client);
+                }
+                buffer.references.incrementAndGet();
+                client.queue.add(new Entry(buffer));
+            }
+            release(buffer);
+        }
+        for (Client client : new ArrayList<>(mClients)) {
+            if (!client.queue.isEmpty()) {
+                write(client);
+            }
+        }
+    }
+
+    private void dropOldestUnstarted(Client client) {
+        Iterator<Entry> entries = client.queue.iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (!entry.isStarted()) {
+                entries.remove();
+                release(entry.buffer);
+                client.dropped++;
+                mClientDroppedCount++;
+                return;
+            }
+        }
+    }
+
+    private void dropUnstarted(Client client) {
+        Iterator<Entry> entries = client.queue.iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (!entry.isStarted()) {
+                entries.remove();
+                release(entry.buffer);
+            }
+        }
+    }
+
+    /**
+     * Ends the stream of the clients whose last map is written. The clients read the rest of the
+     * stream and close the connection, which is closed here then. Closing it right away could
+     * reset it while acknowledgements are still on their way, and the client would lose the
+     * maps it has not read yet.
+     */
+    private void finishClients() {
+        for (Client client : new ArrayList<>(mClients)) {
+            if (client.queue.isEmpty() && !client.finished) {
+                client.finished = true;
+                try {
+                    client.channel.socket().shutdownOutput();
+                } catch (IOException e) {
+                    disconnect(client);
+                }
+            }
+        }
+    }
+
+    /** Writes the queued maps of a client the window lets through with one gathering write */
+    private void write(Client client) {
+        int count = 0;
+        int allowed = WINDOW - client.unacknowledged;
+        for (Entry entry : client.queue) {
+            if (count == 2 * allowed) {
+                break;
+            }
+            client.views[count++] = entry.header;
+            client.views[count++] = entry.payload;
+        }
+        if (count > 0) {
+            try {
+                long written = client.channel.write(client.views, 0, count);
+                mSentBytes += written;
+            } catch (IOException e) {
+                disconnect(client);
+                return;
+            }
+        }
+        while (!client.queue.isEmpty() && client.queue.peek().isWritten()) {
+            release(client.queue.poll().buffer);
+            client.unacknowledged++;
+            client.sent++;
+            mSentCount++;
+        }
+        // either the socket is full, the rest is written when it has space again, or the
+        // window is, then the rest is written when an acknowledgement arrives
+        boolean writable = !client.queue.isEmpty() && client.unacknowledged < WINDOW;
+        client.key.interestOps(writable ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    private void disconnect(Client client) {
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        Entry entry;
+        while ((entry = client.queue.poll()) != null) {
+            release(entry.buffer);
+        }
+        mClients.remove(client);
+        mClientCount = mClients.size();
+    }
+
+    public int getClientCount() { return mClientCount; }
+
+    public long getPublishedCount() { return mPublishedCount; }
+
+    /** @return the maps dropped for all clients because no buffer was free */
+    public long getDroppedCount() { return mDroppedCount; }
+
+    /** @return the maps dropped for single clients which fell behind */
+    public long getClientDroppedCount() { return mClientDroppedCount; }
+
+    /** @return the maps written completely to a client, counted per client */
+    public long getSentCount() { return mSentCount; }
+
+    public long getSentBytes() { return mSentBytes; }
+
+    @Override
+    public String toString() {
+        return "published " + mPublishedCount + ", dropped " + mDroppedCount + ", clients "
+                + mClientCount + " of " + mAcceptedCount + ", sent " + mSentCount + " maps "
+                + mSentBytes / 1024 + " KB, dropped for slow clients " + mClientDroppedCount;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.stream;
+
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMask;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The protocol of the edge stream. The stream is a sequence of frames without any greeting, each
+ * one a header followed by the packed edge map, all in little endian byte order, which is the
+ * native order of ARM and x86, so a consumer can use the words as they are:
+ *
+ * int length of the rest of the frame, int MAGIC, long sequence, long timestamp in
+ * System.nanoTime() of the device, int width, int height, int words per row, and then the
+ * words of the PackedMask, row by row: pixel x of a row is bit x % 64 of word x / 64 of the row.
+ *
+ * The client sends ACKNOWLEDGEMENT, a single byte, for every map it has read. The publisher sends
+ * only a few maps ahead of the acknowledgements and drops the others for the client, so a client
+ * which does not acknowledge receives only the first few maps.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class StreamFormat {
+
+    public static final int MAGIC = 0x45445331; // "EDS1"
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    public static final byte ACKNOWLEDGEMENT = 1;
+    // length, magic, sequence, timestamp, width, height, words per row
+    public static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+    /** The largest width or height a reader accepts */
+    public static final int MAX_SIDE = 1 << 14;
+
+    private StreamFormat() {}
+
+    /** @return the bytes of the packed edge map of a frame */
+    public static int payloadSize(int width, int height) {
+        return (width + 63) / 64 * height * 8;
+    }
+
+    /**
+     * Writes the header of a frame at the position of the buffer, which is in BYTE_ORDER.
+     */
+    static void putHeader(ByteBuffer header, long sequence, long timestamp, PackedMask mask) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        header.putInt(HEADER_SIZE - 4 + payloadSize(width, height))
+                .putInt(MAGIC)
+                .putLong(sequence)
+                .putLong(timestamp)
+                .putInt(width)
+                .putInt(height)
+                .putInt(mask.getWordsPerRow());
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.tuning;
+
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures which EdgeBackend detects the edges fastest on this device. The backends run on
+ * synthetic frames of the processing resolution: a brightness gradient with rectangles, discs
+ * and diamonds and some noise, which has flat parts and edges like a typical scene. The backends
+ * are measured one after the other in two passes of opposite order, so a change of the clock
+ * frequency or of the load hits all of them alike, and only the buffers of one backend are
+ * allocated at a time. The median time decides.
+ *
+ * A backend which fails, or whose edges differ from the ones of the first backend in more than
+ * a small share of the edges, is not chosen. The synthetic frames have borders in all
+ * directions, so a backend losing e.g. the diagonal edges differs in a large share.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class BackendTuner {
+
+    public static final long DEFAULT_BUDGET_NANOS = 3000000000L;
+    private static final int PASSES = 2;
+    private static final int WARMUP_RUNS = 3;
+    // the runs of a backend per pass are not continued beyond, even if time is left
+    private static final int MAX_RUNS = 25;
+    private static final int FRAME_COUNT = 4;
+    private static final int SHAPES_PER_FRAME = 24;
+    private static final int NOISE = 4;
+    private static final int SHAPE_DISC = 1;
+    private static final int SHAPE_DIAMOND = 2;
+    // OpenCV rounds the blur a little differently than the Java kernels, a share of the edges
+    private static final float MAX_DIFFERENCE = 0.05f;
+
+    /** Creates the detection of a backend, it may throw if the backend is not available */
+    public interface Factory {
+        EdgeDetection create(EdgeBackend backend);
+    }
+
+    private final Factory mFactory;
+    private final long mBudgetNanos;
+    private final MemoryBudget mMemoryBudget;
+    private byte[][] mFrames;
+    private byte[] mReference;
+    private byte[] mEdges;
+
+    /**
+     * @param budgetNanos the time the tuning may take, which is shared evenly by the turns of
+     *                    the backends. Every turn measures at least one run.
+     */
+    public BackendTuner(Factory factory, long budgetNanos) {
+        mFactory = factory;
+        mBudgetNanos = budgetNanos;
+        mMemoryBudget = MemoryBudget.get();
+    }
+
+    /**
+     * Measures the backends. An interrupt stops the measurements early, the result is made from
+     * the runs done so far.
+     * @param device identifies the device in the result
+     */
+    public TuningResult tune(String device, int width, int height, List<EdgeBackend> candidates) {
+        mFrames = new byte[FRAME_COUNT][];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mFrames[i] = createFrame(width, height, i);
+        }
+        mReference = null;
+        mEdges = new byte[width * height];
+        int count = candidates.size();
+        long turnNanos = mBudgetNanos / (PASSES * Math.max(count, 1));
+        String[] failures = new String[count];
+        float[] differences = new float[count];
+        long[][] times = new long[count][PASSES * MAX_RUNS];
+        int[] runs = new int[count];
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int i = 0; i < count && !Thread.currentThread().isInterrupted(); i++) {
+                int c = pass % 2 == 0 ? i : count - 1 - i;
+                if (failures[c] != null) {
+                    continue;
+                }
+                try {
+                    runs[c] = measure(candidates.get(c), width, height, turnNanos, pass == 0,
+                            times[c], runs[c]);
+                } catch (RuntimeException e) {
+                    failures[c] = e.toString();
+                    continue;
+                }
+                if (pass == 0 && mReference != null) {
+                    differences[c] = difference(mReference, mEdges);
+                    if (differences[c] > MAX_DIFFERENCE) {
+                        failures[c] = "edges differ";
+                    }
+                } else if (pass == 0) {
+                    mReference = mEdges;
+                    mEdges = new byte[width * height];
+                }
+            }
+        }
+        mFrames = null;
+        mReference = null;
+        mEdges = null;
+        List<TuningResult.Entry> entries = new ArrayList<>();
+        for (int c = 0; c < count; c++) {
+            long[] sorted = Arrays.copyOf(times[c], runs[c]);
+            Arrays.sort(sorted);
+            boolean measured = failures[c] == null && runs[c] > 0;
+            entries.add(new TuningResult.Entry(candidates.get(c), measured ? runs[c] : 0,
+                    measured ? sorted[runs[c] / 2] : 0, measured ? sorted[0] : 0,
+                    differences[c], failures[c]));
+        }
+        return new TuningResult(device, width, height, entries);
+    }
+
+    /**
+     * One turn of a backend. The turn of the first pass leaves the edges of the first frame in
+     * mEdges.
+     * @param times receives the times of the runs from index runs on
+     * @return the number of runs in times
+     */
+    private int measure(EdgeBackend backend, int width, int height, long turnNanos,
+            boolean warmUp, long[] times, int runs) {
+        long begin = System.nanoTime();
+        EdgeDetection detection = mFactory.create(backend);
+        MemoryBudget.Category category = backend.getKind() == EdgeBackend.Kind.OPENCV
+                ? MemoryBudget.Category.NATIVE_MATS : MemoryBudget.Category.WORK_BUFFERS;
+        long bytes = 0;
+        try {
+            detection.allocate(width, height);
+            bytes = detection.getBufferBytes();
+            mMemoryBudget.allocate(category, bytes);
+            for (int run = 0; warmUp && run < WARMUP_RUNS; run++) {
+                detection.detect(mFrames[0], width, height, mEdges);
+            }
+            int end = runs + MAX_RUNS;
+            do {
+                long start = System.nanoTime();
+                detection.detect(mFrames[runs % FRAME_COUNT], width, height, mEdges);
+                long now = System.nanoTime();
+                times[runs++] = now - start;
+                if (now - begin >= turnNanos) {
+                    break;
+                }
+            } while (runs < end && !Thread.currentThread().isInterrupted());
+            if (warmUp) {
+                // the edges of the first frame are compared with the other backends
+                detection.detect(mFrames[0], width, height, mEdges);
+            }
+            return runs;
+        } finally {
+            detection.close();
+            mMemoryBudget.free(category, bytes);
+        }
+    }
+
+    /**
+     * @return the pixels which are an edge in only one of the maps, relative to the edges of the
+     *         reference, as most pixels of a frame are no edge in either
+     */
+    static float difference(byte[] reference, byte[] edges) {
+        int different = 0;
+        int referenceEdges = 0;
+        for (int i = 0; i < reference.length; i++) {
+            if (reference[i] != 0) {
+                referenceEdges++;
+            }
+            if (reference[i] != edges[i]) {
+                different++;
+            }
+        }
+        return different / (float) Math.max(referenceEdges, 1);
+    }
+
+    /**
+     * Draws a synthetic frame, the same one for the same index on every device. The shapes are
+     * rectangles, discs and diamonds, so there are horizontal, vertical, curved and diagonal
+     * borders.
+     */
+    static byte[] createFrame(int width, int height, int index) {
+        Random random = new Random(index);
+        byte[] frame = new byte[width * height];
+        int[] value = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                value[y * width + x] = 60 + 120 * (x + y) / (width + height);
+            }
+        }
+        for (int shape = 0; shape < SHAPES_PER_FRAME; shape++) {
+            int centerX = random.nextInt(width);
+            int centerY = random.nextInt(height);
+            int radius = 4 + random.nextInt(Math.max(1, Math.min(width, height) / 6));
+            int brightness = random.nextInt(256);
+            int kind = random.nextInt(3);
+            for (int y = Math.max(0, centerY - radius); y < Math.min(height, centerY + radius);
+                    y++) {
+                for (int x = Math.max(0, centerX - radius); x < Math.min(width, centerX + radius);
+                        x++) {
+                    int dx = x - centerX;
+                    int dy = y - centerY;
+                    boolean inside;
+                    if (kind == SHAPE_DISC) {
+                        inside = dx * dx + dy * dy < radius * radius;
+                    } else if (kind == SHAPE_DIAMOND) {
+                        inside = Math.abs(dx) + Math.abs(dy) < radius;
+                    } else {
+                        inside = true;
+                    }
+                    if (inside) {
+                        value[y * width + x] = brightness;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < frame.length; i++) {
+            int noisy = value[i] + random.nextInt(2 * NOISE + 1) - NOISE;
+            frame[i] = (byte) Math.max(0, Math.min(255, noisy));
+        }
+        return frame;
+    }
+}
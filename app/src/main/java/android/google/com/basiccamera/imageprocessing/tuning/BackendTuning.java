@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.tuning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Keeps the fastest EdgeBackend per processing resolution in the shared preferences and tunes
+ * the resolutions which have none yet on a background thread, one at a time. The choices are
+ * keyed by the device, so preferences restored from a backup of another device are not used,
+ * and they are dropped when the version of the app changes, because a new version may change
+ * the backends.
+ *
+ * Every tuning is exported as CSV to tuning/ in the external files dir, where it can be pulled
+ * from any device, see TuningResult.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class BackendTuning {
+
+    private static final String TAG = BackendTuning.class.getSimpleName();
+    private static final String PREFERENCES = "edge-backends";
+    private static final String KEY_VERSION = "version";
+    private static final String EXPORT_DIRECTORY = "tuning";
+    private static final long JOIN_TIMEOUT_MS = 1000;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final String mDevice;
+    private final boolean mWithOpenCv;
+    private Thread mThread;
+    private boolean mClosed;
+
+    /**
+     * @param withOpenCv whether OpenCV is loaded when a tuning starts, so it is a candidate
+     */
+    public BackendTuning(Context context, boolean withOpenCv) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mDevice = Build.MANUFACTURER + " " + Build.MODEL + " API " + Build.VERSION.SDK_INT;
+        mWithOpenCv = withOpenCv;
+        int version = readVersionCode();
+        if (mPreferences.getInt(KEY_VERSION, -1) != version) {
+            // first run or an update, every resolution is tuned again
+            mPreferences.edit().clear().putInt(KEY_VERSION, version).apply();
+        }
+    }
+
+    /**
+     * Returns the backend tuned for the resolution. Without one a tuning is started, unless
+     * another one runs, and null is returned.
+     * @param width width of the images the edges are detected on
+     * @param height height of the images the edges are detected on
+     */
+    public EdgeBackend select(int width, int height) {
+        String key = getKey(width, height);
+        EdgeBackend backend = EdgeBackend.fromKey(mPreferences.getString(key, null));
+        if (backend == null) {
+            startTuning(width, height);
+        }
+        return backend;
+    }
+
+    /**
+     * Stops a running tuning, its result is not stored. Waits for it a short time.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            mClosed = true;
+            thread = mThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void startTuning(final int width, final int height) {
+        if (mClosed || (mThread != null && mThread.isAlive())) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tune(width, height);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    private void tune(int width, int height) {
+        Log.i(TAG, "Tuning the edge detection at " + width + "x" + height);
+        BackendTuner tuner = new BackendTuner(new BackendTuner.Factory() {
+            @Override
+            public EdgeDetection create(EdgeBackend backend) {
+                if (backend.getKind() == EdgeBackend.Kind.OPENCV) {
+                    return new OpenCvEdgeDetection();
+                }
+                return new JavaEdgeDetection(backend);
+            }
+        }, BackendTuner.DEFAULT_BUDGET_NANOS);
+        TuningResult result = tuner.tune(mDevice, width, height, EdgeBackend.getCandidates(
+                mWithOpenCv, Runtime.getRuntime().availableProcessors()));
+        if (Thread.currentThread().isInterrupted()) {
+            Log.i(TAG, "Tuning at " + width + "x" + height + " stopped");
+            return;
+        }
+        Log.i(TAG, "Tuned " + result);
+        if (result.getWinner() != null) {
+            mPreferences.edit().putString(getKey(width, height), result.getWinner().getKey())
+                    .apply();
+        }
+        export(result);
+    }
+
+    private void export(TuningResult result) {
+        File directory = mContext.getExternalFilesDir(null);
+        directory = new File(directory != null ? directory : mContext.getFilesDir(),
+                EXPORT_DIRECTORY);
+        File file = new File(directory, result.getDevice().replaceAll("[^A-Za-z0-9]+", "_")
+                + "_" + result.getWidth() + "x" + result.getHeight() + ".csv");
+        Writer writer = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(TuningResult.CSV_HEADER + "\n");
+            writer.write(result.toCsv());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not export the tuning to " + file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not export the tuning to " + file, e);
+                }
+            }
+        }
+    }
+
+    private String getKey(int width, int height) {
+        return mDevice + "/" + width + "x" + height;
+    }
+
+    private int readVersionCode() {
+        try {
+            return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0)
+                    .versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "No version of the app", e);
+            return 0;
+        }
+    }
+}
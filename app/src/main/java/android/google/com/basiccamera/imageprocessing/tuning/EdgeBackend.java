@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.tuning;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An implementation of the edge detection of the CannyEdgeDetector with its parameters. It is
+ * stored and exported by its key, e.g. "java-strips:4x64" for the Java kernel on 4 threads with
+ * strips of 64 rows.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeBackend {
+
+    public enum Kind {
+        /** Imgproc.blur and Imgproc.Canny on Mats */
+        OPENCV("opencv"),
+        /** The CannyKernel on the calling thread */
+        JAVA("java"),
+        /** The passes of the CannyKernel in strips on several threads */
+        JAVA_STRIPS("java-strips"),
+        /**
+         * The CoarseToFineCanny, which may miss edges the others find, so it is never chosen by
+         * the tuning
+         */
+        COARSE_TO_FINE("coarse-to-fine");
+
+        private final String mName;
+
+        Kind(String name) {
+            mName = name;
+        }
+    }
+
+    public static final EdgeBackend OPENCV = new EdgeBackend(Kind.OPENCV, 1, 0);
+    public static final EdgeBackend JAVA = new EdgeBackend(Kind.JAVA, 1, 0);
+    public static final EdgeBackend COARSE_TO_FINE = new EdgeBackend(Kind.COARSE_TO_FINE, 1, 0);
+
+    // the strip sizes tried by the tuning
+    private static final int[] CANDIDATE_STRIP_ROWS = {16, 64, 256};
+
+    private final Kind mKind;
+    private final int mThreadCount;
+    private final int mStripRows;
+
+    private EdgeBackend(Kind kind, int threadCount, int stripRows) {
+        mKind = kind;
+        mThreadCount = threadCount;
+        mStripRows = stripRows;
+    }
+
+    public static EdgeBackend strips(int threadCount, int stripRows) {
+        if (threadCount < 1 || stripRows < 1) {
+            throw new IllegalArgumentException("Invalid strips: " + threadCount + " threads, "
+                    + stripRows + " rows");
+        }
+        return new EdgeBackend(Kind.JAVA_STRIPS, threadCount, stripRows);
+    }
+
+    /**
+     * The backends compared by the tuning. They all find the same edges, except for the small
+     * differences of OpenCV in the rounding of the blur.
+     * @param withOpenCv whether OpenCV is loaded
+     * @param cores the number of cores, strips are only tried on more than one
+     */
+    public static List<EdgeBackend> getCandidates(boolean withOpenCv, int cores) {
+        List<EdgeBackend> candidates = new ArrayList<>();
+        if (withOpenCv) {
+            candidates.add(OPENCV);
+        }
+        candidates.add(JAVA);
+        if (cores > 1) {
+            for (int stripRows : CANDIDATE_STRIP_ROWS) {
+                candidates.add(strips(cores, stripRows));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @param key a key as returned by getKey
+     * @return the backend, or null if the key is unknown, e.g. one of a later version
+     */
+    public static EdgeBackend fromKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        for (EdgeBackend backend : new EdgeBackend[] {OPENCV, JAVA, COARSE_TO_FINE}) {
+            if (backend.getKey().equals(key)) {
+                return backend;
+            }
+        }
+        String prefix = Kind.JAVA_STRIPS.mName + ":";
+        if (key.startsWith(prefix)) {
+            String[] values = key.substring(prefix.length()).split("x");
+            try {
+                if (values.length == 2) {
+                    return strips(Integer.parseInt(values[0]), Integer.parseInt(values[1]));
+                }
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException included, the key is unknown
+            }
+        }
+        return null;
+    }
+
+    public String getKey() {
+        return mKind == Kind.JAVA_STRIPS ? mKind.mName + ":" + mThreadCount + "x" + mStripRows
+                : mKind.mName;
+    }
+
+    public Kind getKind() { return mKind; }
+
+    public int getThreadCount() { return mThreadCount; }
+
+    public int getStripRows() { return mStripRows; }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof EdgeBackend)) {
+            return false;
+        }
+        EdgeBackend backend = (EdgeBackend) other;
+        return mKind == backend.mKind && mThreadCount == backend.mThreadCount
+                && mStripRows == backend.mStripRows;
+    }
+
+    @Override
+    public int hashCode() {
+        return (mKind.hashCode() * 31 + mThreadCount) * 31 + mStripRows;
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.tuning;
+
+/**
+ * The edge detection of a gray image by one EdgeBackend, as the tuning measures it and the
+ * CannyEdgeDetector runs it. The blur is part of the detection.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public interface EdgeDetection {
+
+    /**
+     * @param gray the gray image before the blur, starting at index 0
+     * @param edges receives 255 for the edge pixels and 0 for all others
+     */
+    void detect(byte[] gray, int width, int height, byte[] edges);
+
+    /** Allocates the buffers if the resolution has changed */
+    void allocate(int width, int height);
+
+    /** @return the bytes of the buffers for the current resolution */
+    long getBufferBytes();
+
+    /** Frees the buffers, they are allocated again by the next detection */
+    void release();
+
+    /** Frees the buffers and stops the threads, the detection can not be used afterwards */
+    void close();
+}
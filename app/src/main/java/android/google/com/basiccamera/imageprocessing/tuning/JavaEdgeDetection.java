@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.tuning;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.CoarseToFineCanny;
+import android.google.com.basiccamera.imageprocessing.kernel.EdgeKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.StripCanny;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the pure Java backends. The strips get their own threads, one less than the backend
+ * uses, because the calling thread works on the strips as well.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class JavaEdgeDetection implements EdgeDetection {
+
+    private final EdgeBackend mBackend;
+    private final EdgeKernel mKernel;
+    private final ExecutorService mExecutor;
+
+    public JavaEdgeDetection(EdgeBackend backend) {
+        mBackend = backend;
+        switch (backend.getKind()) {
+            case JAVA:
+                mExecutor = null;
+                mKernel = new CannyKernel();
+                break;
+            case JAVA_STRIPS:
+                int threadCount = backend.getThreadCount();
+                mExecutor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount - 1) : null;
+                mKernel = new StripCanny(mExecutor, threadCount, backend.getStripRows());
+                break;
+            case COARSE_TO_FINE:
+                mExecutor = null;
+                mKernel = new CoarseToFineCanny();
+                break;
+            default:
+                throw new IllegalArgumentException("Not a Java backend: " + backend);
+        }
+    }
+
+    @Override
+    public void detect(byte[] gray, int width, int height, byte[] edges) {
+        mKernel.detect(gray, width, height, edges);
+    }
+
+    @Override
+    public void allocate(int width, int height) {
+        mKernel.allocate(width, height);
+    }
+
+    @Override
+    public long getBufferBytes() {
+        return mKernel.getBufferBytes();
+    }
+
+    @Override
+    public void release() {
+        mKernel.release();
+    }
+
+    @Override
+    public void close() {
+        mKernel.release();
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        // only the coarse to fine detection has statistics
+        return mKernel instanceof CoarseToFineCanny ? mBackend + ", " + mKernel
+                : mBackend.toString();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.tuning;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The OpenCV calls of the CannyEdgeDetector, including the copies into and out of the Mats,
+ * which the detector needs for the tracking and the contours as well.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+final class OpenCvEdgeDetection implements EdgeDetection {
+
+    private Mat mGray;
+    private Mat mEdges;
+
+    @Override
+    public void detect(byte[] gray, int width, int height, byte[] edges) {
+        allocate(width, height);
+        mGray.put(0, 0, gray);
+        Imgproc.blur(mGray, mGray, new Size(3, 3));
+        Imgproc.Canny(mGray, mEdges, CannyKernel.LOW_THRESHOLD, CannyKernel.HIGH_THRESHOLD);
+        mEdges.get(0, 0, edges);
+    }
+
+    @Override
+    public void allocate(int width, int height) {
+        if (mGray != null && mGray.cols() == width && mGray.rows() == height) {
+            return;
+        }
+        release();
+        mGray = new Mat(height, width, CvType.CV_8UC1);
+        mEdges = new Mat(height, width, CvType.CV_8UC1);
+    }
+
+    @Override
+    public long getBufferBytes() {
+        return mGray == null ? 0 : 2L * mGray.cols() * mGray.rows();
+    }
+
+    @Override
+    public void release() {
+        // the native memory of the Mats is not freed by the garbage collector in time
+        if (mGray != null) {
+            mGray.release();
+            mEdges.release();
+            mGray = null;
+            mEdges = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
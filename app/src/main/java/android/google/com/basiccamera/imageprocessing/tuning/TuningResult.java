@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.imageprocessing.tuning;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The times the EdgeBackends took on one device at one resolution and the fastest of them. It is
+ * exported as CSV, one line per backend, so the results of many devices can be collected into
+ * one table.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class TuningResult {
+
+    public static final String CSV_HEADER =
+            "device,width,height,backend,runs,median_us,min_us,difference,winner,failure";
+
+    /** The measurement of one backend */
+    public static final class Entry {
+        public final EdgeBackend backend;
+        public final int runs;
+        public final long medianNanos;
+        public final long minNanos;
+        /** The pixels whose edges differ from the first backend, relative to its edges */
+        public final float difference;
+        /** Why the backend could not be measured or was rejected, null if it was */
+        public final String failure;
+
+        public Entry(EdgeBackend backend, int runs, long medianNanos, long minNanos,
+                float difference, String failure) {
+            this.backend = backend;
+            this.runs = runs;
+            this.medianNanos = medianNanos;
+            this.minNanos = minNanos;
+            this.difference = difference;
+            this.failure = failure;
+        }
+    }
+
+    private final String mDevice;
+    private final int mWidth;
+    private final int mHeight;
+    private final List<Entry> mEntries;
+    private final EdgeBackend mWinner;
+
+    /**
+     * @param device identifies the device, commas are replaced
+     * @param entries the measurements, the winner is the one with the lowest median time
+     */
+    public TuningResult(String device, int width, int height, List<Entry> entries) {
+        mDevice = device.replace(',', ' ');
+        mWidth = width;
+        mHeight = height;
+        mEntries = Collections.unmodifiableList(new ArrayList<>(entries));
+        Entry winner = null;
+        for (Entry entry : entries) {
+            if (entry.failure == null && entry.runs > 0
+                    && (winner == null || entry.medianNanos < winner.medianNanos)) {
+                winner = entry;
+            }
+        }
+        mWinner = winner == null ? null : winner.backend;
+    }
+
+    public String getDevice() { return mDevice; }
+
+    public int getWidth() { return mWidth; }
+
+    public int getHeight() { return mHeight; }
+
+    public List<Entry> getEntries() { return mEntries; }
+
+    /** @return the fastest backend, null if none could be measured */
+    public EdgeBackend getWinner() { return mWinner; }
+
+    /** @return the lines of the entries without the header */
+    public String toCsv() {
+        StringBuilder csv = new StringBuilder();
+        for (Entry entry : mEntries) {
+            csv.append(String.format(Locale.US, "%s,%d,%d,%s,%d,%d,%d,%.5f,%b,%s%n", mDevice,
+                    mWidth, mHeight, entry.backend.getKey(), entry.runs,
+                    entry.medianNanos / 1000, entry.minNanos / 1000, entry.difference,
+                    entry.backend.equals(mWinner),
+                    entry.failure == null ? "" : entry.failure.replace(',', ' ')
+                            .replace('\n', ' ')));
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Reads the results of exported CSV files. Headers, empty lines and the lines of unknown
+     * backends are skipped.
+     * @return the results in the order of their first line
+     */
+    public static List<TuningResult> readCsv(BufferedReader reader) throws IOException {
+        Map<String, List<Entry>> entries = new LinkedHashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.equals(CSV_HEADER)) {
+                continue;
+            }
+            String[] values = line.split(",", -1);
+            EdgeBackend backend = values.length == 10 ? EdgeBackend.fromKey(values[3]) : null;
+            if (backend == null) {
+                continue;
+            }
+            String key = values[0] + "," + values[1] + "," + values[2];
+            List<Entry> list = entries.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                entries.put(key, list);
+            }
+            try {
+                list.add(new Entry(backend, Integer.parseInt(values[4]),
+                        Long.parseLong(values[5]) * 1000, Long.parseLong(values[6]) * 1000,
+                        Float.parseFloat(values[7]), values[9].isEmpty() ? null : values[9]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid line: " + line, e);
+            }
+        }
+        List<TuningResult> results = new ArrayList<>();
+        for (Map.Entry<String, List<Entry>> result : entries.entrySet()) {
+            String[] key = result.getKey().split(",");
+            results.add(new TuningResult(key[0], Integer.parseInt(key[1]),
+                    Integer.parseInt(key[2]), result.getValue()));
+        }
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(mDevice).append(' ').append(mWidth).append('x').append(mHeight)
+                .append(": winner ").append(mWinner);
+        for (Entry entry : mEntries) {
+            text.append(", ").append(entry.backend.getKey()).append(' ');
+            if (entry.failure != null) {
+                text.append(entry.failure);
+            } else {
+                text.append(String.format(Locale.US, "%.2fms", entry.medianNanos / 1e6));
+            }
+        }
+        return text.toString();
+    }
+}
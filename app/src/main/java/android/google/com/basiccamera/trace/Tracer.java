@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records begin, end and flow events of the pipeline threads and writes them in the Chrome trace
+ * event format, which can be opened with chrome://tracing or Perfetto. Events are keyed by the
+ * sequence number of the frame, flow events connect the stages of a frame across threads.
+ *
+ * Every thread records into its own ring buffer, which it gets at its first event. Recording an
+ * event does not allocate and does not lock. When tracing is disabled an event costs a single
+ * volatile read. The buffers of threads which have ended are reused by new threads once their
+ * events have been written or cleared, so the threads started on every resume do not add
+ * buffers.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class Tracer {
+
+    // the names of the traced stages
+    public static final int SEND_TASK = 0;
+    public static final int EXECUTE_COMMAND = 1;
+    public static final int ON_PREVIEW_FRAME = 2;
+    public static final int COMPRESS_JPEG = 3;
+    public static final int DECODE = 4;
+    public static final int CANNY = 5;
+    public static final int DRAW_RESULT = 6;
+    public static final int FRAME = 7;
+    public static final int TRACK = 8;
+    public static final int GOVERNOR = 9;
+    public static final int VECTORIZE = 10;
+    public static final int MEMORY = 11;
+    public static final int CONVERT_ARGB = 12;
+    private static final String[] NAMES = {"sendTask", "executeCommand", "onPreviewFrame",
+            "compressJpeg", "decode", "canny", "drawResult", "frame", "track",
+            "governor", "vectorize", "memory", "convertArgb"};
+
+    // the number of events kept per thread
+    private static final int BUFFER_CAPACITY = 8192;
+    private static final int NO_FRAME = -1;
+
+    private static final byte BEGIN = 'B';
+    private static final byte END = 'E';
+    private static final byte INSTANT = 'i';
+    private static final byte FLOW_START = 's';
+    private static final byte FLOW_STEP = 't';
+    private static final byte FLOW_END = 'f';
+
+    private static volatile boolean sEnabled = false;
+    private static final List<ThreadBuffer> sBuffers = new CopyOnWriteArrayList<>();
+    // the buffers of ended threads, whose events have been written or cleared
+    private static final ConcurrentLinkedQueue<ThreadBuffer> sFreeBuffers =
+            new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<ThreadBuffer> sThreadBuffer = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            ThreadBuffer buffer = sFreeBuffers.poll();
+            if (buffer == null) {
+                buffer = new ThreadBuffer();
+            }
+            buffer.bind(Thread.currentThread());
+            sBuffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    private Tracer() {}
+
+    public static void setEnabled(boolean enabled) { sEnabled = enabled; }
+
+    public static boolean isEnabled() { return sEnabled; }
+
+    /** Begins a slice of the current thread, frame is the sequence or -1 */
+    public static void begin(int name, long frame) {
+        if (sEnabled) {
+            sThreadBuffer.get().add(BEGIN, name, frame);
+        }
+    }
+
+    public static void begin(int name) {
+        begin(name, NO_FRAME);
+    }
+
+    /** Ends the innermost slice of the current thread */
+    public static void end(int name) {
+        if (sEnabled) {
+            sThreadBuffer.get().add(END, name, NO_FRAME);
+        }
+    }
+
+    public static void instant(int name, long frame) {
+        if (sEnabled) {
+            sThreadBuffer.get().add(INSTANT, name, frame);
+        }
+    }
+
+    /** Starts the flow of a frame inside the current slice */
+    public static void flowStart(long frame) {
+        if (sEnabled) {
+            sThreadBuffer.get().add(FLOW_START, FRAME, frame);
+        }
+    }
+
+    /** Continues the flow of a frame inside the current slice */
+    public static void flowStep(long frame) {
+        if (sEnabled) {
+            sThreadBuffer.get().add(FLOW_STEP, FRAME, frame);
+        }
+    }
+
+    /** Ends the flow of a frame inside the current slice */
+    public static void flowEnd(long frame) {
+        if (sEnabled) {
+            sThreadBuffer.get().add(FLOW_END, FRAME, frame);
+        }
+    }
+
+    /** Drops all recorded events */
+    public static void clear() {
+        recycleEndedThreads();
+        for (ThreadBuffer buffer : sBuffers) {
+            buffer.clear();
+        }
+    }
+
+    /** Moves the buffers of the threads which have ended to the free buffers */
+    private static void recycleEndedThreads() {
+        for (ThreadBuffer buffer : sBuffers) {
+            if (buffer.hasEnded()) {
+                sBuffers.remove(buffer);
+                buffer.clear();
+                sFreeBuffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes the recorded events as JSON in the Chrome trace event format. Tracing should be
+     * disabled while writing, otherwise the oldest events may be overwritten during the dump.
+     * The events of threads which have ended are written once, they are dropped afterwards.
+     */
+    public static void writeTo(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8"));
+        try {
+            writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static void writeTo(Writer writer) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        List<ThreadBuffer> buffers = new ArrayList<>(sBuffers);
+        for (ThreadBuffer buffer : buffers) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+            writer.write(Long.toString(buffer.mThreadId));
+            writer.write(",\"args\":{\"name\":\"");
+            writer.write(escape(buffer.mThreadName));
+            writer.write("\"}}");
+            first = buffer.write(writer, first);
+        }
+        writer.write("]}");
+        writer.flush();
+        recycleEndedThreads();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /** The ring buffer of a single thread, written only by its thread */
+    private static final class ThreadBuffer {
+
+        // the thread is only referenced weakly, so a buffer does not keep an ended thread alive
+        private WeakReference<Thread> mThread;
+        private long mThreadId;
+        private String mThreadName;
+        private final long[] mTimestamps = new long[BUFFER_CAPACITY];
+        private final long[] mFrames = new long[BUFFER_CAPACITY];
+        private final int[] mNames = new int[BUFFER_CAPACITY];
+        private final byte[] mPhases = new byte[BUFFER_CAPACITY];
+        // the number of events ever recorded, the newest is at (mCount - 1) % BUFFER_CAPACITY
+        private volatile long mCount;
+
+        /** Gives the buffer to a thread, before it is published in sBuffers */
+        private void bind(Thread thread) {
+            mThread = new WeakReference<>(thread);
+            mThreadId = thread.getId();
+            mThreadName = thread.getName();
+            mCount = 0;
+        }
+
+        private boolean hasEnded() {
+            Thread thread = mThread.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        private void add(byte phase, int name, long frame) {
+            long count = mCount;
+            int index = (int) (count % BUFFER_CAPACITY);
+            mTimestamps[index] = System.nanoTime();
+            mFrames[index] = frame;
+            mNames[index] = name;
+            mPhases[index] = phase;
+            mCount = count + 1;
+        }
+
+        private void clear() {
+            mCount = 0;
+        }
+
+        private boolean write(Writer writer, boolean first) throws IOException {
+            long count = mCount;
+            long begin = Math.max(0, count - BUFFER_CAPACITY);
+            // an end without its begin would confuse the viewer
+            int depth = 0;
+            for (long i = begin; i < count; i++) {
+                int index = (int) (i % BUFFER_CAPACITY);
+                byte phase = mPhases[index];
+                if (phase == BEGIN) {
+                    depth++;
+                } else if (phase == END) {
+                    if (depth == 0) {
+                        continue;
+                    }
+                    depth--;
+                }
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.write("{\"name\":\"");
+                writer.write(NAMES[mNames[index]]);
+                writer.write("\",\"cat\":\"pipeline\",\"ph\":\"");
+                writer.write((char) phase);
+                writer.write("\",\"ts\":");
+                writer.write(Long.toString(mTimestamps[index] / 1000));
+                writer.write(",\"pid\":1,\"tid\":");
+                writer.write(Long.toString(mThreadId));
+                long frame = mFrames[index];
+                if (phase == FLOW_START || phase == FLOW_STEP || phase == FLOW_END) {
+                    writer.write(",\"id\":");
+                    writer.write(Long.toString(frame));
+                    if (phase != FLOW_START) {
+                        // binds to the enclosing slice
+                        writer.write(",\"bp\":\"e\"");
+                    }
+                } else if (phase == INSTANT) {
+                    writer.write(",\"s\":\"t\"");
+                }
+                if (frame != NO_FRAME) {
+                    writer.write(",\"args\":{\"frame\":");
+                    writer.write(Long.toString(frame));
+                    writer.write('}');
+                }
+                writer.write('}');
+            }
+            return first;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.YuvToArgb;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Compares the lookup table conversion of NV21 frames into ARGB pixels with the JPEG round trip
+ * the app used for colors, YuvImage.compressToJpeg at quality 50 and BitmapFactory. On a plain
+ * JVM the round trip is emulated by a conversion into an RGB image, a JPEG encoding at the same
+ * quality and a decoding with ImageIO. The tables are run on one thread and on bands of rows on
+ * several threads. The maximum difference to a floating point conversion is reported, for the
+ * round trip as mean difference, since the JPEG is lossy.
+ *
+ * Usage: ArgbBenchmark [--size WxH]... [--runs N] [--threads N]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ArgbBenchmark {
+
+    private static final int WARMUP_RUNS = 20;
+    private static final float JPEG_QUALITY = 0.5f;
+    private static final int[][] DEFAULT_SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+
+    private interface Variant {
+        void run(byte[] nv21, int width, int height, int[] argb) throws IOException;
+    }
+
+    private ArgbBenchmark() {}
+
+    /** The BT.601 limited range conversion in floating point */
+    static void convertReference(byte[] nv21, int width, int height, int[] argb) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int chroma = width * height + (y / 2) * width + (x & ~1);
+                double luma = 1.164 * ((nv21[y * width + x] & 0xff) - 16);
+                int v = (nv21[chroma] & 0xff) - 128;
+                int u = (nv21[chroma + 1] & 0xff) - 128;
+                argb[y * width + x] = 0xff000000 | clamp(luma + 1.596 * v) << 16
+                        | clamp(luma - 0.813 * v - 0.391 * u) << 8 | clamp(luma + 2.018 * u);
+            }
+        }
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /** Converts, encodes to JPEG and decodes again */
+    static void convertByJpeg(byte[] nv21, int width, int height, int[] argb)
+            throws IOException {
+        convertReference(nv21, width, height, argb);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, null), param);
+        stream.close();
+        writer.dispose();
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        decoded.getRGB(0, 0, width, height, argb, 0, width);
+    }
+
+    /** A frame of smooth color gradients with noise, like a camera image */
+    private static byte[] createFrame(int width, int height) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) (16 + (x + y) * 219 / (width + height)
+                        + random.nextInt(9) - 4);
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width; x += 2) {
+                int chroma = width * height + y * width + x;
+                nv21[chroma] = (byte) (128 + 100 * Math.sin(x * 6.0 / width));
+                nv21[chroma + 1] = (byte) (128 + 100 * Math.cos(y * 12.0 / height));
+            }
+        }
+        return nv21;
+    }
+
+    /** @return the median time of a run in nanoseconds */
+    private static long measure(Variant variant, byte[] nv21, int width, int height, int[] argb,
+            int runs) throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            variant.run(nv21, width, height, argb);
+        }
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long begin = System.nanoTime();
+            variant.run(nv21, width, height, argb);
+            times[i] = System.nanoTime() - begin;
+        }
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+
+    /** @return the maximum and the mean difference of a channel */
+    private static double[] difference(int[] expected, int[] actual) {
+        long sum = 0;
+        int max = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int difference = Math.abs(((expected[i] >> shift) & 0xff)
+                        - ((actual[i] >> shift) & 0xff));
+                sum += difference;
+                max = Math.max(max, difference);
+            }
+        }
+        return new double[] {max, sum / (3.0 * expected.length)};
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<int[]> sizes = new ArrayList<>();
+        int runs = 50;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    sizes.add(new int[] {Integer.parseInt(size[0]), Integer.parseInt(size[1])});
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: ArgbBenchmark [--size WxH]... [--runs N] "
+                            + "[--threads N]");
+                    System.exit(2);
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.addAll(Arrays.asList(DEFAULT_SIZES));
+        }
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads - 1) : null;
+        final YuvToArgb single = new YuvToArgb(null, 1);
+        final YuvToArgb parallel = new YuvToArgb(executor, threads);
+        String[] names = {"jpeg round trip", "tables 1 thread",
+                "tables " + threads + " threads"};
+        Variant[] variants = {
+                new Variant() {
+                    @Override
+                    public void run(byte[] nv21, int width, int height, int[] argb)
+                            throws IOException {
+                        convertByJpeg(nv21, width, height, argb);
+                    }
+                },
+                new Variant() {
+                    @Override
+                    public void run(byte[] nv21, int width, int height, int[] argb) {
+                        single.convert(nv21, width, height, argb);
+                    }
+                },
+                new Variant() {
+                    @Override
+                    public void run(byte[] nv21, int width, int height, int[] argb) {
+                        parallel.convert(nv21, width, height, argb);
+                    }
+                }
+        };
+        try {
+            for (int[] size : sizes) {
+                int width = size[0];
+                int height = size[1];
+                byte[] nv21 = createFrame(width, height);
+                int[] expected = new int[width * height];
+                int[] argb = new int[width * height];
+                convertReference(nv21, width, height, expected);
+                System.out.println(String.format("%dx%d, median of %d runs", width, height,
+                        runs));
+                long jpeg = 0;
+                for (int i = 0; i < variants.length; i++) {
+                    // the round trip is slow, fewer runs are enough
+                    long time = measure(variants[i], nv21, width, height, argb,
+                            i == 0 ? Math.max(1, runs / 5) : runs);
+                    if (i == 0) {
+                        jpeg = time;
+                    }
+                    double[] difference = difference(expected, argb);
+                    System.out.println(String.format("%-18s %8.3f ms  %6.2fx  difference max "
+                                    + "%.0f mean %.2f", names[i], time / 1e6,
+                            jpeg / (double) time, difference[0], difference[1]));
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+}
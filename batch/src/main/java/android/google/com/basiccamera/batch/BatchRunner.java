@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the edge detection of the live pipeline over all images of a directory and writes the
+ * edge maps as PNG files. The images are read by the calling thread and processed by a fixed
+ * pool of workers. At most maxInFlight images are read but not yet written, which bounds the
+ * memory used independently of the size of the directory.
+ *
+ * Usage: BatchRunner [--threads N] [--in-flight N] [--size WxH] input_dir output_dir
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class BatchRunner {
+
+    private final int mThreadCount;
+    private final int mMaxInFlight;
+    private final int mRawWidth;
+    private final int mRawHeight;
+    private final LatencyStatistics mLatencies;
+    private final AtomicInteger mFailedCount;
+
+    /**
+     * @param threadCount number of worker threads
+     * @param maxInFlight maximum number of images held in memory at once
+     * @param rawWidth width of raw NV21 dumps without size in the file name, 0 if unknown
+     * @param rawHeight height of raw NV21 dumps without size in the file name, 0 if unknown
+     */
+    public BatchRunner(int threadCount, int maxInFlight, int rawWidth, int rawHeight) {
+        if (threadCount < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one thread and one image in flight");
+        }
+        mThreadCount = threadCount;
+        mMaxInFlight = maxInFlight;
+        mRawWidth = rawWidth;
+        mRawHeight = rawHeight;
+        mLatencies = new LatencyStatistics();
+        mFailedCount = new AtomicInteger();
+    }
+
+    /**
+     * Processes all supported images of the input directory
+     * @return the number of processed images
+     */
+    public int run(File inputDirectory, File outputDirectory) throws InterruptedException {
+        File[] files = inputDirectory.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException("Not a directory: " + inputDirectory);
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Could not create " + outputDirectory);
+        }
+        Arrays.sort(files);
+        List<File> images = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && ImageFiles.isSupported(file)) {
+                images.add(file);
+            }
+        }
+
+        final ThreadLocal<CannyKernel> kernels = new ThreadLocal<CannyKernel>() {
+            @Override
+            protected CannyKernel initialValue() {
+                return new CannyKernel();
+            }
+        };
+        final Semaphore inFlight = new Semaphore(mMaxInFlight);
+        ExecutorService workers = Executors.newFixedThreadPool(mThreadCount);
+        long begin = System.nanoTime();
+        for (final File file : images) {
+            inFlight.acquire();
+            final byte[] content;
+            try {
+                content = ImageFiles.read(file);
+            } catch (IOException e) {
+                System.err.println("Could not read " + file + ": " + e.getMessage());
+                mFailedCount.incrementAndGet();
+                inFlight.release();
+                continue;
+            }
+            final File output = new File(outputDirectory, baseName(file) + "_edges.png");
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(kernels.get(), file, content, output);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - begin;
+
+        int processed = mLatencies.getCount();
+        System.out.println(String.format("Processed %d images (%d failed) in %.2f s with %d "
+                        + "threads: %.1f images/s", processed, mFailedCount.get(), elapsed / 1e9,
+                mThreadCount, processed / (elapsed / 1e9)));
+        System.out.println("Latency per image: " + mLatencies.summary());
+        return processed;
+    }
+
+    private void process(CannyKernel kernel, File file, byte[] content, File output) {
+        long begin = System.nanoTime();
+        try {
+            ImageFiles.GrayImage image = ImageFiles.decode(file, content, mRawWidth, mRawHeight);
+            byte[] edges = new byte[image.width * image.height];
+            kernel.detect(image.data, image.width, image.height, edges);
+            ImageFiles.writeMask(output, edges, image.width, image.height);
+            mLatencies.add(System.nanoTime() - begin);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not process " + file + ": " + e);
+            mFailedCount.incrementAndGet();
+        }
+    }
+
+    public LatencyStatistics getLatencies() { return mLatencies; }
+
+    public int getFailedCount() { return mFailedCount.get(); }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int inFlight = -1;
+        int width = 0;
+        int height = 0;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--in-flight":
+                    inFlight = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                default:
+                    paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2) {
+            System.err.println("Usage: BatchRunner [--threads N] [--in-flight N] [--size WxH] "
+                    + "input_dir output_dir");
+            System.exit(2);
+        }
+        if (inFlight < 1) {
+            inFlight = 2 * threads;
+        }
+        BatchRunner runner = new BatchRunner(threads, inFlight, width, height);
+        runner.run(new File(paths.get(0)), new File(paths.get(1)));
+        System.exit(runner.getFailedCount() == 0 ? 0 : 1);
+    }
+}
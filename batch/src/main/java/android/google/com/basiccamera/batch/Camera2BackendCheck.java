@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.camera.CameraBackendSelector;
+import android.google.com.basiccamera.camera.CameraBackendSelector.Backend;
+import android.google.com.basiccamera.camera.CameraBackendSelector.Preference;
+import android.google.com.basiccamera.camera.YuvPlanes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the parts of the Camera2 backend which do not need a device: the choice of the backend
+ * and the packing of YUV_420_888 planes into NV21. A stand-in image source lays out a random
+ * frame the ways camera HALs do, planar with one sample per pixel, semi-planar with interleaved
+ * chroma sharing one buffer in either order, and with padded rows, all in direct buffers like
+ * the planes of an ImageReader. Exits with 1 if any case fails.
+ *
+ * Usage: Camera2BackendCheck [--size WxH]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class Camera2BackendCheck {
+
+    private final List<String> mFailures = new ArrayList<>();
+    private int mCaseCount;
+
+    /**
+     * The three planes of an image as an ImageReader hands them out.
+     */
+    private static final class StandInImage {
+        ByteBuffer y;
+        int yRowStride;
+        ByteBuffer u;
+        ByteBuffer v;
+        int uvRowStride;
+        int uvPixelStride;
+    }
+
+    /**
+     * Lays out an NV21 frame as YUV_420_888 planes.
+     * @param rowPadding bytes appended to every row of every plane
+     * @param interleaved whether U and V are interleaved in one buffer with pixel stride 2
+     * @param vFirst the order of the interleaved samples, true for NV21 and false for NV12
+     */
+    private static StandInImage layOut(byte[] nv21, int width, int height, int rowPadding,
+            boolean interleaved, boolean vFirst) {
+        StandInImage image = new StandInImage();
+        image.yRowStride = width + rowPadding;
+        image.y = ByteBuffer.allocateDirect(image.yRowStride * (height - 1) + width);
+        for (int row = 0; row < height; row++) {
+            image.y.position(row * image.yRowStride);
+            image.y.put(nv21, row * width, width);
+        }
+        image.y.rewind();
+
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        image.uvPixelStride = interleaved ? 2 : 1;
+        image.uvRowStride = chromaWidth * image.uvPixelStride + rowPadding;
+        if (interleaved) {
+            // one buffer holding both samples, the planes are views starting one byte apart
+            ByteBuffer chroma = ByteBuffer.allocateDirect(image.uvRowStride * chromaHeight);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int sample = 0; sample < chromaWidth; sample++) {
+                    int source = width * height + row * width + 2 * sample;
+                    int target = row * image.uvRowStride + 2 * sample;
+                    chroma.put(target, vFirst ? nv21[source] : nv21[source + 1]);
+                    chroma.put(target + 1, vFirst ? nv21[source + 1] : nv21[source]);
+                }
+            }
+            ByteBuffer first = slice(chroma, 0, chroma.capacity() - 1);
+            ByteBuffer second = slice(chroma, 1, chroma.capacity() - 1);
+            image.v = vFirst ? first : second;
+            image.u = vFirst ? second : first;
+        } else {
+            image.u = ByteBuffer.allocateDirect(image.uvRowStride * chromaHeight);
+            image.v = ByteBuffer.allocateDirect(image.uvRowStride * chromaHeight);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int sample = 0; sample < chromaWidth; sample++) {
+                    int source = width * height + row * width + 2 * sample;
+                    image.v.put(row * image.uvRowStride + sample, nv21[source]);
+                    image.u.put(row * image.uvRowStride + sample, nv21[source + 1]);
+                }
+            }
+        }
+        return image;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private void checkPacking(int width, int height) {
+        byte[] expected = new byte[YuvPlanes.nv21Size(width, height)];
+        new Random(width * 31 + height).nextBytes(expected);
+        YuvPlanes planes = new YuvPlanes();
+        byte[] packed = new byte[expected.length];
+        int[] paddings = {0, 64};
+        boolean[][] layouts = {{false, false}, {true, true}, {true, false}};
+        String[] layoutNames = {"planar", "interleaved VU", "interleaved UV"};
+        for (int padding : paddings) {
+            for (int layout = 0; layout < layouts.length; layout++) {
+                mCaseCount++;
+                StandInImage image = layOut(expected, width, height, padding,
+                        layouts[layout][0], layouts[layout][1]);
+                Arrays.fill(packed, (byte) 0);
+                String name = width + "x" + height + " " + layoutNames[layout] + ", row padding "
+                        + padding;
+                try {
+                    planes.toNv21(image.y, image.yRowStride, image.u, image.v,
+                            image.uvRowStride, image.uvPixelStride, width, height, packed);
+                } catch (RuntimeException e) {
+                    mFailures.add(name + ": " + e);
+                    continue;
+                }
+                int mismatch = firstMismatch(expected, packed);
+                if (mismatch >= 0) {
+                    mFailures.add(name + ": first difference at byte " + mismatch);
+                }
+            }
+        }
+    }
+
+    private static int firstMismatch(byte[] expected, byte[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkSelection(Preference preference, int sdkInt, int hardwareLevel,
+            Backend expected) {
+        mCaseCount++;
+        Backend backend = CameraBackendSelector.select(preference, sdkInt, hardwareLevel);
+        if (backend != expected) {
+            mFailures.add("Selection " + preference + " on API " + sdkInt + " with hardware "
+                    + "level " + hardwareLevel + ": " + backend + " instead of " + expected);
+        }
+    }
+
+    private void checkSelection() {
+        int camera2 = CameraBackendSelector.CAMERA2_API_LEVEL;
+        for (Preference preference : Preference.values()) {
+            // the old API is the only one below Lollipop or without characteristics
+            checkSelection(preference, camera2 - 1, CameraBackendSelector.HARDWARE_LEVEL_FULL,
+                    Backend.CAMERA1);
+            checkSelection(preference, camera2, CameraBackendSelector.HARDWARE_LEVEL_UNKNOWN,
+                    Backend.CAMERA1);
+        }
+        checkSelection(Preference.AUTO, camera2, CameraBackendSelector.HARDWARE_LEVEL_LEGACY,
+                Backend.CAMERA1);
+        checkSelection(Preference.AUTO, camera2, CameraBackendSelector.HARDWARE_LEVEL_LIMITED,
+                Backend.CAMERA2);
+        checkSelection(Preference.AUTO, camera2, CameraBackendSelector.HARDWARE_LEVEL_FULL,
+                Backend.CAMERA2);
+        checkSelection(Preference.AUTO, camera2 + 5, CameraBackendSelector.HARDWARE_LEVEL_3,
+                Backend.CAMERA2);
+        checkSelection(Preference.CAMERA2, camera2, CameraBackendSelector.HARDWARE_LEVEL_LEGACY,
+                Backend.CAMERA2);
+        checkSelection(Preference.CAMERA1, camera2, CameraBackendSelector.HARDWARE_LEVEL_FULL,
+                Backend.CAMERA1);
+    }
+
+    public static void main(String[] args) {
+        int width = 640;
+        int height = 480;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--size") && i + 1 < args.length) {
+                String[] size = args[++i].split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else {
+                System.err.println("Usage: Camera2BackendCheck [--size WxH]");
+                System.exit(2);
+            }
+        }
+        Camera2BackendCheck check = new Camera2BackendCheck();
+        check.checkSelection();
+        check.checkPacking(width, height);
+        // a resolution whose chroma rows are not a multiple of the padding
+        check.checkPacking(176, 144);
+        for (String failure : check.mFailures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.out.println(check.mCaseCount + " cases, " + check.mFailures.size() + " failed");
+        System.exit(check.mFailures.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.CoarseToFineCanny;
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the coarse to fine edge detection with the full resolution CannyKernel on stored
+ * frames, for a list of bounds of the low resolution gradients. For every bound it reports the
+ * share of the candidate tiles, the share of the pixels refined at full resolution, the recall
+ * and precision of the edge pixels against the full resolution edges and the median CPU time.
+ *
+ * Usage: CoarseToFineReport [--size WxH] [--downsampling N] [--level N] [--tile T] [--margin M]
+ *        [--bounds B,B,...] sequence_dir
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CoarseToFineReport {
+
+    // runs on the first frame before the measurement, so the JIT has compiled the kernels
+    private static final int WARMUP_RUNS = 20;
+
+    /** The sums of one configuration over all frames */
+    private static final class Totals {
+        final String name;
+        final LatencyStatistics cpuTimes = new LatencyStatistics();
+        long tiles;
+        long candidates;
+        long pixels;
+        long refined;
+        long referenceEdges;
+        long edges;
+        long matching;
+        double minRecall = 1;
+
+        Totals(String name) {
+            this.name = name;
+        }
+
+        void add(byte[] reference, byte[] edges, int size) {
+            int referenceCount = 0;
+            int count = 0;
+            int both = 0;
+            for (int i = 0; i < size; i++) {
+                boolean inReference = reference[i] != CannyKernel.NO_EDGE;
+                boolean inEdges = edges[i] != CannyKernel.NO_EDGE;
+                referenceCount += inReference ? 1 : 0;
+                count += inEdges ? 1 : 0;
+                both += inReference && inEdges ? 1 : 0;
+            }
+            referenceEdges += referenceCount;
+            this.edges += count;
+            matching += both;
+            minRecall = Math.min(minRecall, referenceCount == 0 ? 1
+                    : both / (double) referenceCount);
+        }
+
+        void print() {
+            System.out.printf("%-10s %7.1f%% %8.1f%% %7.2f%% %7.2f%% %9.2f%% %8.2fms%n", name,
+                    100.0 * candidates / tiles, 100.0 * refined / pixels,
+                    100.0 * matching / Math.max(referenceEdges, 1), 100 * minRecall,
+                    100.0 * matching / Math.max(edges, 1), cpuTimes.getPercentile(50) / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int width = 0;
+        int height = 0;
+        int downsampling = 1;
+        int level = CoarseToFineCanny.DEFAULT_DOWNSAMPLING;
+        int tileSize = CoarseToFineCanny.DEFAULT_TILE_SIZE;
+        int margin = CoarseToFineCanny.DEFAULT_MARGIN;
+        int[] bounds = {10, CoarseToFineCanny.DEFAULT_BOUND, 40, 80};
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--downsampling":
+                    downsampling = Integer.parseInt(args[++i]);
+                    break;
+                case "--level":
+                    level = Integer.parseInt(args[++i]);
+                    break;
+                case "--tile":
+                    tileSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--margin":
+                    margin = Integer.parseInt(args[++i]);
+                    break;
+                case "--bounds":
+                    String[] values = args[++i].split(",");
+                    bounds = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        bounds[j] = Integer.parseInt(values[j]);
+                    }
+                    break;
+                default:
+                    path = args[i];
+            }
+        }
+        File[] files = path == null ? null : new File(path).listFiles();
+        if (files == null) {
+            System.err.println("Usage: CoarseToFineReport [--size WxH] [--downsampling N] "
+                    + "[--level N] [--tile T] [--margin M] [--bounds B,B,...] sequence_dir");
+            System.exit(2);
+        }
+        Arrays.sort(files);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        CannyKernel kernel = new CannyKernel();
+        Totals full = new Totals("full");
+        CoarseToFineCanny[] detectors = new CoarseToFineCanny[bounds.length];
+        Totals[] totals = new Totals[bounds.length];
+        for (int b = 0; b < bounds.length; b++) {
+            detectors[b] = new CoarseToFineCanny(level, tileSize, margin, bounds[b]);
+            totals[b] = new Totals("bound " + bounds[b]);
+        }
+        int frameCount = 0;
+        for (File file : files) {
+            if (!file.isFile() || !ImageFiles.isSupported(file)) {
+                continue;
+            }
+            ImageFiles.GrayImage image = ImageFiles.decode(file, ImageFiles.read(file), width,
+                    height);
+            int scaledWidth = PlaneTransform.downsampledSize(image.width, downsampling);
+            int scaledHeight = PlaneTransform.downsampledSize(image.height, downsampling);
+            int size = scaledWidth * scaledHeight;
+            byte[] scaled = new byte[size];
+            PlaneTransform.downsample(image.data, image.width, image.height, downsampling, scaled);
+            byte[] reference = new byte[size];
+            byte[] edges = new byte[size];
+            int runs = frameCount == 0 ? WARMUP_RUNS : 0;
+            for (int run = 0; run < runs; run++) {
+                kernel.detect(scaled, scaledWidth, scaledHeight, reference);
+                for (CoarseToFineCanny detector : detectors) {
+                    detector.detect(scaled, scaledWidth, scaledHeight, edges);
+                }
+            }
+
+            long begin = threads.getCurrentThreadCpuTime();
+            kernel.detect(scaled, scaledWidth, scaledHeight, reference);
+            full.cpuTimes.add(threads.getCurrentThreadCpuTime() - begin);
+            full.tiles++;
+            full.candidates++;
+            full.pixels += size;
+            full.refined += size;
+            full.add(reference, reference, size);
+            for (int b = 0; b < bounds.length; b++) {
+                CoarseToFineCanny detector = detectors[b];
+                begin = threads.getCurrentThreadCpuTime();
+                detector.detect(scaled, scaledWidth, scaledHeight, edges);
+                totals[b].cpuTimes.add(threads.getCurrentThreadCpuTime() - begin);
+                totals[b].tiles += detector.getTileCount();
+                totals[b].candidates += detector.getCandidateCount();
+                totals[b].pixels += size;
+                totals[b].refined += Math.round(detector.getRefinedFraction() * (double) size);
+                totals[b].add(reference, edges, size);
+            }
+            frameCount++;
+        }
+        if (frameCount == 0) {
+            System.err.println("No supported images found");
+            System.exit(1);
+        }
+        System.out.printf("%d frames, level 1/%d, tiles %d, margin %d%n", frameCount, level,
+                tileSize, margin);
+        System.out.printf("%-10s %8s %9s %8s %8s %10s %10s%n", "", "tiles", "refined",
+                "recall", "min", "precision", "cpu p50");
+        full.print();
+        for (Totals total : totals) {
+            total.print();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.camera.CameraCommand;
+import android.google.com.basiccamera.camera.CommandFuture;
+import android.google.com.basiccamera.camera.CommandQueue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks the ordering and coalescing rules of the CommandQueue without a camera. Fixed sequences
+ * of commands cover every coalescing rule, the priority of pictures over preview captures and
+ * that configuration commands keep their order to all other commands. A random interleaving of
+ * submissions and polls then checks that a configuration command is only taken when it is the
+ * oldest pending command, that no picture or capture overtakes an older configuration command
+ * and that every lane stays in order. The surface holders and handlers are stand-in strings.
+ * Exits with 1 if any case fails.
+ *
+ * Usage: CommandQueueCheck [--operations N]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class CommandQueueCheck {
+
+    private final List<String> mFailures = new ArrayList<>();
+    private int mCaseCount;
+
+    /*
+     * Creates a command from TYPE[:argument][#what], the argument is interned so equal
+     * arguments are the same target like the handler of a caller.
+     */
+    private static CameraCommand command(String token) {
+        String type = token;
+        Object argument = null;
+        int what = 0;
+        int hash = type.indexOf('#');
+        if (hash >= 0) {
+            what = Integer.parseInt(type.substring(hash + 1));
+            type = type.substring(0, hash);
+        }
+        int colon = type.indexOf(':');
+        if (colon >= 0) {
+            argument = type.substring(colon + 1).intern();
+            type = type.substring(0, colon);
+        }
+        switch (CameraCommand.Type.valueOf(type)) {
+            case INIT_CAMERA:
+                return CameraCommand.initCamera(argument);
+            case OPEN_CAMERA:
+                return CameraCommand.openCamera(argument);
+            case RECONFIGURE:
+                return CameraCommand.reconfigure(argument);
+            case APPLY_PROFILE:
+                return CameraCommand.applyProfile(null);
+            case START_PREVIEW:
+                return CameraCommand.startPreview();
+            case STOP_PREVIEW:
+                return CameraCommand.stopPreview();
+            case TAKE_PICTURE:
+                return CameraCommand.takePicture(argument, what);
+            default:
+                return CameraCommand.capturePreview(argument, what);
+        }
+    }
+
+    private static String describe(CameraCommand command) {
+        StringBuilder description = new StringBuilder(command.getType().toString());
+        if (command.getArgument() != null) {
+            description.append(':').append(command.getArgument());
+        }
+        if (command.getWhat() != 0) {
+            description.append('#').append(command.getWhat());
+        }
+        return description.toString();
+    }
+
+    private static String drain(CommandQueue queue) {
+        StringBuilder order = new StringBuilder();
+        CameraCommand command;
+        while ((command = queue.poll()) != null) {
+            if (order.length() > 0) {
+                order.append(' ');
+            }
+            order.append(describe(command));
+        }
+        return order.toString();
+    }
+
+    /**
+     * Submits the commands and compares the order they are taken in
+     * @return the futures returned for the commands
+     */
+    private CommandFuture[] checkOrder(String name, String submitted, String expected) {
+        mCaseCount++;
+        CommandQueue queue = new CommandQueue();
+        String[] tokens = submitted.split(" ");
+        CommandFuture[] futures = new CommandFuture[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            futures[i] = queue.offer(command(tokens[i]));
+        }
+        String order = drain(queue);
+        if (!order.equals(expected)) {
+            mFailures.add(name + ": " + submitted + " was taken as " + order + " instead of "
+                    + expected);
+        }
+        if (!queue.isEmpty()) {
+            mFailures.add(name + ": the queue is not empty after taking all commands");
+        }
+        return futures;
+    }
+
+    private void expect(String name, boolean condition, String message) {
+        if (!condition) {
+            mFailures.add(name + ": " + message);
+        }
+    }
+
+    private void checkRules() {
+        checkOrder("priority", "CAPTURE_PREVIEW:h#1 TAKE_PICTURE:h#2",
+                "TAKE_PICTURE:h#2 CAPTURE_PREVIEW:h#1");
+        checkOrder("configuration waits for older pictures", "TAKE_PICTURE:h#1 STOP_PREVIEW",
+                "TAKE_PICTURE:h#1 STOP_PREVIEW");
+        checkOrder("pictures wait for older configuration", "STOP_PREVIEW TAKE_PICTURE:h#1",
+                "STOP_PREVIEW TAKE_PICTURE:h#1");
+        checkOrder("priority up to the next configuration",
+                "CAPTURE_PREVIEW:h#1 TAKE_PICTURE:h#2 STOP_PREVIEW CAPTURE_PREVIEW:h#3 "
+                        + "TAKE_PICTURE:h#4",
+                "TAKE_PICTURE:h#2 CAPTURE_PREVIEW:h#1 STOP_PREVIEW TAKE_PICTURE:h#4 "
+                        + "CAPTURE_PREVIEW:h#3");
+
+        String name = "capture joins a pending capture";
+        CommandFuture[] futures = checkOrder(name,
+                "CAPTURE_PREVIEW:h#1 TAKE_PICTURE:h#2 CAPTURE_PREVIEW:h#1",
+                "TAKE_PICTURE:h#2 CAPTURE_PREVIEW:h#1");
+        expect(name, futures[0] == futures[2], "the joined capture has its own future");
+        checkOrder("captures of other messages are kept",
+                "CAPTURE_PREVIEW:h#1 CAPTURE_PREVIEW:h#2 CAPTURE_PREVIEW:g#1",
+                "CAPTURE_PREVIEW:h#1 CAPTURE_PREVIEW:h#2 CAPTURE_PREVIEW:g#1");
+        checkOrder("capture is not joined across configuration",
+                "CAPTURE_PREVIEW:h#1 STOP_PREVIEW CAPTURE_PREVIEW:h#1",
+                "CAPTURE_PREVIEW:h#1 STOP_PREVIEW CAPTURE_PREVIEW:h#1");
+
+        name = "start cancels a stop";
+        futures = checkOrder(name, "STOP_PREVIEW START_PREVIEW", "START_PREVIEW");
+        expect(name, isCompleted(futures[0]), "the cancelled stop did not complete");
+        name = "start cancels a stop and joins the start before";
+        futures = checkOrder(name, "START_PREVIEW STOP_PREVIEW START_PREVIEW", "START_PREVIEW");
+        expect(name, futures[0] == futures[2], "the joined start has its own future");
+        checkOrder("start keeps a stop before a picture",
+                "STOP_PREVIEW TAKE_PICTURE:h#1 START_PREVIEW",
+                "STOP_PREVIEW TAKE_PICTURE:h#1 START_PREVIEW");
+
+        name = "the newer argument wins";
+        futures = checkOrder(name, "RECONFIGURE:a RECONFIGURE:b", "RECONFIGURE:b");
+        expect(name, futures[0] == futures[1], "the joined command has its own future");
+        checkOrder("commands are not joined across a picture",
+                "RECONFIGURE:a TAKE_PICTURE:h#1 RECONFIGURE:b",
+                "RECONFIGURE:a TAKE_PICTURE:h#1 RECONFIGURE:b");
+        checkOrder("commands are not joined across other configuration",
+                "RECONFIGURE:a APPLY_PROFILE RECONFIGURE:b",
+                "RECONFIGURE:a APPLY_PROFILE RECONFIGURE:b");
+        checkOrder("pictures are never joined", "TAKE_PICTURE:h#1 TAKE_PICTURE:h#1",
+                "TAKE_PICTURE:h#1 TAKE_PICTURE:h#1");
+
+        name = "clear";
+        mCaseCount++;
+        CommandQueue queue = new CommandQueue();
+        CommandFuture stop = queue.offer(command("STOP_PREVIEW"));
+        CommandFuture picture = queue.offer(command("TAKE_PICTURE:h#1"));
+        queue.clear(new IllegalStateException("cleared"));
+        expect(name, queue.isEmpty(), "the queue is not empty");
+        expect(name, isFailed(stop) && isFailed(picture), "the dropped commands did not fail");
+    }
+
+    private static boolean isCompleted(CommandFuture future) {
+        try {
+            return future.isDone() && future.get() == null;
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static boolean isFailed(CommandFuture future) {
+        if (!future.isDone()) {
+            return false;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (InterruptedException | ExecutionException e) {
+            return true;
+        }
+    }
+
+    private static boolean isConfiguration(CameraCommand command) {
+        return command.getType().lane == CameraCommand.Lane.CONFIGURATION;
+    }
+
+    /*
+     * Interleaves random submissions and polls and keeps the pending commands in the order of
+     * submission: a submission whose future is not its own was joined, a pending command whose
+     * future completed was cancelled.
+     */
+    private void checkInterleaving(int operations) {
+        mCaseCount++;
+        String[] tokens = {"INIT_CAMERA:h", "RECONFIGURE:h", "RECONFIGURE:g", "APPLY_PROFILE",
+                "START_PREVIEW", "STOP_PREVIEW", "TAKE_PICTURE:h#1", "TAKE_PICTURE:g#2",
+                "CAPTURE_PREVIEW:h#1", "CAPTURE_PREVIEW:h#2"};
+        Random random = new Random(1);
+        CommandQueue queue = new CommandQueue();
+        List<CameraCommand> pending = new ArrayList<>();
+        int taken = 0;
+        for (int operation = 0; operation < operations && mFailures.isEmpty(); operation++) {
+            if (random.nextBoolean()) {
+                CameraCommand command = command(tokens[random.nextInt(tokens.length)]);
+                CommandFuture future = queue.offer(command);
+                Iterator<CameraCommand> it = pending.iterator();
+                while (it.hasNext()) {
+                    if (it.next().getFuture().isDone()) {
+                        it.remove();
+                    }
+                }
+                if (future == command.getFuture()) {
+                    pending.add(command);
+                }
+                continue;
+            }
+            CameraCommand command = queue.poll();
+            if (command == null) {
+                if (!pending.isEmpty()) {
+                    mFailures.add("interleaving: nothing taken with " + pending.size()
+                            + " pending commands");
+                }
+                continue;
+            }
+            int index = pending.indexOf(command);
+            if (index < 0) {
+                mFailures.add("interleaving: " + describe(command) + " was not pending");
+                continue;
+            }
+            for (int i = 0; i < index; i++) {
+                CameraCommand older = pending.get(i);
+                if (isConfiguration(command) || isConfiguration(older)
+                        || older.getType().lane == command.getType().lane) {
+                    mFailures.add("interleaving: " + describe(command) + " overtook the older "
+                            + describe(older) + " after " + taken + " commands");
+                    break;
+                }
+            }
+            pending.remove(index);
+            taken++;
+        }
+        System.out.printf("Interleaving: %d operations, %d commands taken, %s%n", operations,
+                taken, queue);
+    }
+
+    public static void main(String[] args) {
+        int operations = 100000;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--operations") && i + 1 < args.length) {
+                operations = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: CommandQueueCheck [--operations N]");
+                System.exit(2);
+            }
+        }
+        CommandQueueCheck check = new CommandQueueCheck();
+        check.checkRules();
+        check.checkInterleaving(operations);
+        for (String failure : check.mFailures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.out.println(check.mCaseCount + " cases, " + check.mFailures.size() + " failed");
+        System.exit(check.mFailures.isEmpty() ? 0 : 1);
+    }
+}
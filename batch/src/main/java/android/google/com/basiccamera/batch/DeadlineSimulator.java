@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.camera.FrameBus;
+import android.google.com.basiccamera.imageprocessing.governor.DeadlineStats;
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.pool.EdgeDensityProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.FrameProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.LatencyHistogram;
+import android.google.com.basiccamera.imageprocessing.pool.SharedWorkerPool;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows what per frame deadlines gain when the processing falls behind. A synthetic camera
+ * publishes frames into a pool session running the edge density analysis, once finishing every
+ * frame and once with a staleness budget, under the same competing CPU load. For each run it
+ * prints the results finished, how many of them were older than the budget, their age, and for
+ * the run with deadlines the frames abandoned per stage and the processing time saved.
+ *
+ * Usage: DeadlineSimulator [--size WxH] [--fps N] [--seconds N] [--budget-ms N] [--load PERCENT]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class DeadlineSimulator {
+
+    // same as CameraManager
+    private static final int FRAME_BUFFER_COUNT = 4;
+    // the competing load is busy for its share of every period
+    private static final long LOAD_PERIOD_MS = 200;
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    /** Keeps the CPU busy for a share of every period, like another app or the UI */
+    private static final class Load extends Thread {
+
+        private final int mPercent;
+        private volatile long mSink;
+
+        Load(int percent) {
+            super("Load");
+            mPercent = percent;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                long busyUntil = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(LOAD_PERIOD_MS * mPercent / 100);
+                long sink = 0;
+                while (System.nanoTime() < busyUntil) {
+                    sink += sink * 31 + 7;
+                }
+                mSink = sink;
+                try {
+                    Thread.sleep(LOAD_PERIOD_MS * (100 - mPercent) / 100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Measures the age of the results the analysis finishes */
+    private static final class MeasuredProcessor implements FrameProcessor {
+
+        private final EdgeDensityProcessor mProcessor;
+        private final long mBudget;
+        private final LatencyHistogram mAges = new LatencyHistogram();
+        private long mStaleCount;
+
+        MeasuredProcessor(EdgeDensityProcessor processor, long budget) {
+            mProcessor = processor;
+            mBudget = budget;
+        }
+
+        @Override
+        public void process(Frame frame) {
+            long completed = mProcessor.getDeadlineStats().getCompletedCount();
+            mProcessor.process(frame);
+            if (mProcessor.getDeadlineStats().getCompletedCount() > completed) {
+                long age = System.nanoTime() - frame.getTimestamp();
+                mAges.add(age);
+                if (age > mBudget) {
+                    mStaleCount++;
+                }
+            }
+        }
+    }
+
+    private static void fill(byte[] buffer, int width, int height, Random random) {
+        for (int rectangle = 0; rectangle < 40; rectangle++) {
+            int left = random.nextInt(width);
+            int top = random.nextInt(height);
+            int right = Math.min(width, left + 20 + random.nextInt(width / 4));
+            int bottom = Math.min(height, top + 20 + random.nextInt(height / 4));
+            byte value = (byte) random.nextInt(256);
+            for (int y = top; y < bottom; y++) {
+                for (int x = left; x < right; x++) {
+                    buffer[y * width + x] = value;
+                }
+            }
+        }
+    }
+
+    private static void run(String name, int width, int height, int fps, int seconds,
+            long budget, boolean deadlines, int loadPercent) throws InterruptedException {
+        final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(FRAME_BUFFER_COUNT);
+        Random random = new Random(1);
+        for (int i = 0; i < FRAME_BUFFER_COUNT; i++) {
+            byte[] buffer = new byte[width * height * 3 / 2];
+            fill(buffer, width, height, random);
+            freeBuffers.add(buffer);
+        }
+        FrameBus frameBus = new FrameBus(new FrameBus.BufferRecycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                freeBuffers.add(buffer);
+            }
+        });
+        EdgeDensityProcessor processor = new EdgeDensityProcessor(1, deadlines ? budget : 0);
+        MeasuredProcessor measured = new MeasuredProcessor(processor, budget);
+        SharedWorkerPool pool = new SharedWorkerPool(name, 1);
+        SharedWorkerPool.Session session = pool.register(name, frameBus, 1, measured);
+        Load load = loadPercent > 0 ? new Load(loadPercent) : null;
+        if (load != null) {
+            load.start();
+        }
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / fps;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long next = System.nanoTime();
+        long published = 0;
+        while (next < end) {
+            byte[] buffer = freeBuffers.poll();
+            if (buffer != null) {
+                frameBus.publish(buffer, width, height);
+                published++;
+            }
+            next += interval;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+        if (load != null) {
+            load.interrupt();
+            load.join();
+        }
+        session.close();
+        if (!pool.shutdown(SHUTDOWN_TIMEOUT_MS)) {
+            System.out.println("FAILED pool did not finish within " + SHUTDOWN_TIMEOUT_MS + " ms");
+            System.exit(1);
+        }
+
+        DeadlineStats stats = processor.getDeadlineStats();
+        LatencyHistogram ages = measured.mAges;
+        System.out.printf("%-15s published %d, processed %d, finished %d, stale %d, fresh %d%n",
+                name, published, session.getProcessedCount(), stats.getCompletedCount(),
+                measured.mStaleCount, stats.getCompletedCount() - measured.mStaleCount);
+        System.out.printf("%-15s age of the results mean %.1f ms p50 <= %.0f ms p99 <= %.0f ms%n",
+                "", ages.getMean() / 1e6, ages.getPercentile(50) / 1e6,
+                ages.getPercentile(99) / 1e6);
+        if (deadlines) {
+            System.out.printf("%-15s abandoned %d (queue %d, blur %d, gradients %d, "
+                            + "suppression %d, hysteresis %d), spent %d ms, saved %d ms%n", "",
+                    stats.getAbandonedCount(), stats.getAbandonedCount("queue"),
+                    stats.getAbandonedCount(CannyKernel.STAGE_BLUR),
+                    stats.getAbandonedCount(CannyKernel.STAGE_GRADIENTS),
+                    stats.getAbandonedCount(CannyKernel.STAGE_SUPPRESSION),
+                    stats.getAbandonedCount(CannyKernel.STAGE_HYSTERESIS),
+                    stats.getAbandonedTime() / 1000000, stats.getSavedTime() / 1000000);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int width = 1280;
+        int height = 720;
+        int fps = 30;
+        int seconds = 10;
+        long budgetMillis = 100;
+        int loadPercent = 50;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--fps":
+                    fps = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--budget-ms":
+                    budgetMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--load":
+                    loadPercent = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: DeadlineSimulator [--size WxH] [--fps N] "
+                            + "[--seconds N] [--budget-ms N] [--load PERCENT]");
+                    System.exit(2);
+            }
+        }
+        long budget = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        System.out.printf("%dx%d at %d fps for %d s, budget %d ms, load %d%%%n", width, height,
+                fps, seconds, budgetMillis, loadPercent);
+        run("every frame", width, height, fps, seconds, budget, false, loadPercent);
+        run("with deadlines", width, height, fps, seconds, budget, true, loadPercent);
+    }
+}
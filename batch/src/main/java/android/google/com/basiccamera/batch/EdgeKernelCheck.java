@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.CoarseToFineCanny;
+import android.google.com.basiccamera.imageprocessing.kernel.EdgeKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.StripCanny;
+import android.google.com.basiccamera.imageprocessing.tuning.BackendTuner;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeBackend;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeDetection;
+import android.google.com.basiccamera.imageprocessing.tuning.JavaEdgeDetection;
+import android.google.com.basiccamera.imageprocessing.tuning.TuningResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the Java edge kernels on images of one step edge in every direction the non maximum
+ * suppression distinguishes, horizontal, vertical and both diagonals, and of a disk, whose
+ * border runs through all directions. Every point of the true border, away from the image
+ * border, must have an edge within MAX_DISTANCE pixels, and there must be no edge farther from
+ * the true border. The BackendTuner has to reject a backend which loses the diagonal edges
+ * and accept the Java strips. Exits with 1 if a kernel misses a border or finds edges
+ * elsewhere, or the tuner decides otherwise.
+ *
+ * Usage: EdgeKernelCheck [--size N]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class EdgeKernelCheck {
+
+    private static final int DARK = 40;
+    private static final int BRIGHT = 200;
+    // the distance in pixels between an edge and the true border, the blur widens the step
+    private static final double MAX_DISTANCE = 2;
+    // the points of the true border closer to the image border are not checked
+    private static final int BORDER = 4;
+    private static final int DISK_SAMPLES = 720;
+    private static final int STRIP_THREADS = 4;
+    private static final int STRIP_ROWS = 16;
+    private static final int TUNING_WIDTH = 320;
+    private static final int TUNING_HEIGHT = 240;
+    private static final long TUNING_BUDGET_NANOS = 1000000000L;
+    // tan(22.5 degree) and tan(67.5 degree), the bounds of the diagonal directions
+    private static final double TAN_22 = Math.tan(Math.PI / 8);
+    private static final double TAN_67 = Math.tan(3 * Math.PI / 8);
+
+    /** An image of two regions and the distance to their true border */
+    private abstract static class Shape {
+
+        final String mName;
+
+        Shape(String name) {
+            mName = name;
+        }
+
+        abstract boolean isBright(int x, int y, int size);
+
+        abstract double distance(int x, int y, int size);
+
+        /** @return points of the true border as {x, y} */
+        abstract List<double[]> border(int size);
+    }
+
+    /** A straight step through the center, bright on the side the normal points to */
+    private static final class Step extends Shape {
+
+        final double mNormalX;
+        final double mNormalY;
+
+        Step(String name, double normalX, double normalY) {
+            super(name);
+            double length = Math.hypot(normalX, normalY);
+            mNormalX = normalX / length;
+            mNormalY = normalY / length;
+        }
+
+        @Override
+        boolean isBright(int x, int y, int size) {
+            return distanceSigned(x, y, size) > 0;
+        }
+
+        @Override
+        double distance(int x, int y, int size) {
+            return Math.abs(distanceSigned(x, y, size));
+        }
+
+        private double distanceSigned(int x, int y, int size) {
+            // the center between two pixels, so the border is not on a row of pixels
+            double center = size / 2.0 - 0.5;
+            return (x - center) * mNormalX + (y - center) * mNormalY;
+        }
+
+        @Override
+        List<double[]> border(int size) {
+            List<double[]> points = new ArrayList<>();
+            double center = size / 2.0 - 0.5;
+            for (int t = -size; t <= size; t++) {
+                double x = center - t * mNormalY;
+                double y = center + t * mNormalX;
+                points.add(new double[]{x, y});
+            }
+            return points;
+        }
+    }
+
+    private static final class Disk extends Shape {
+
+        Disk() {
+            super("disk");
+        }
+
+        private static double radius(int size) { return size * 0.3; }
+
+        @Override
+        boolean isBright(int x, int y, int size) {
+            return Math.hypot(x - size / 2.0, y - size / 2.0) < radius(size);
+        }
+
+        @Override
+        double distance(int x, int y, int size) {
+            return Math.abs(Math.hypot(x - size / 2.0, y - size / 2.0) - radius(size));
+        }
+
+        @Override
+        List<double[]> border(int size) {
+            List<double[]> points = new ArrayList<>();
+            for (int i = 0; i < DISK_SAMPLES; i++) {
+                double angle = 2 * Math.PI * i / DISK_SAMPLES;
+                points.add(new double[]{size / 2.0 + radius(size) * Math.cos(angle),
+                        size / 2.0 + radius(size) * Math.sin(angle)});
+            }
+            return points;
+        }
+    }
+
+    /** The Java kernel losing the edges of diagonal borders, like a wrong suppression would */
+    private static final class DiagonalDroppingDetection implements EdgeDetection {
+
+        private final CannyKernel mKernel = new CannyKernel();
+
+        @Override
+        public void detect(byte[] gray, int width, int height, byte[] edges) {
+            mKernel.detect(gray, width, height, edges);
+            for (int y = 1; y < height - 1; y++) {
+                for (int x = 1; x < width - 1; x++) {
+                    int i = y * width + x;
+                    int dx = (gray[i + 1] & 0xff) - (gray[i - 1] & 0xff);
+                    int dy = (gray[i + width] & 0xff) - (gray[i - width] & 0xff);
+                    double ax = Math.abs(dx);
+                    double ay = Math.abs(dy);
+                    if (ay > ax * TAN_22 && ay < ax * TAN_67) {
+                        edges[i] = CannyKernel.NO_EDGE;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void allocate(int width, int height) { mKernel.allocate(width, height); }
+
+        @Override
+        public long getBufferBytes() { return mKernel.getBufferBytes(); }
+
+        @Override
+        public void release() { mKernel.release(); }
+
+        @Override
+        public void close() { mKernel.release(); }
+    }
+
+    private EdgeKernelCheck() {}
+
+    /** @return a description of the failure or null */
+    static String check(EdgeKernel kernel, Shape shape, int size) {
+        byte[] gray = new byte[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                gray[y * size + x] = (byte) (shape.isBright(x, y, size) ? BRIGHT : DARK);
+            }
+        }
+        byte[] edges = new byte[size * size];
+        kernel.detect(gray, size, size, edges);
+        int edgeCount = 0;
+        int strayCount = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (edges[y * size + x] != CannyKernel.NO_EDGE) {
+                    edgeCount++;
+                    if (shape.distance(x, y, size) > MAX_DISTANCE) {
+                        strayCount++;
+                    }
+                }
+            }
+        }
+        int checked = 0;
+        int missed = 0;
+        int reach = (int) Math.ceil(MAX_DISTANCE);
+        for (double[] point : shape.border(size)) {
+            if (point[0] < BORDER || point[1] < BORDER || point[0] > size - 1 - BORDER
+                    || point[1] > size - 1 - BORDER) {
+                continue;
+            }
+            checked++;
+            boolean found = false;
+            int px = (int) Math.round(point[0]);
+            int py = (int) Math.round(point[1]);
+            for (int y = py - reach; y <= py + reach && !found; y++) {
+                for (int x = px - reach; x <= px + reach && !found; x++) {
+                    found = edges[y * size + x] != CannyKernel.NO_EDGE;
+                }
+            }
+            if (!found) {
+                missed++;
+            }
+        }
+        System.out.println(String.format("%-24s %-14s %6d edges, %4d of %4d border points "
+                + "missed, %4d stray", kernel.getClass().getSimpleName(), shape.mName, edgeCount,
+                missed, checked, strayCount));
+        if (missed > 0 || strayCount > 0) {
+            return kernel.getClass().getSimpleName() + " " + shape.mName + ": " + missed
+                    + " border points without an edge, " + strayCount + " stray edges";
+        }
+        return null;
+    }
+
+    /**
+     * Tunes the Java kernel, the strips and, in place of the coarse to fine backend, the kernel
+     * losing the diagonal edges.
+     * @return descriptions of the failures
+     */
+    static List<String> checkTuning() {
+        final EdgeBackend strips = EdgeBackend.strips(2, STRIP_ROWS);
+        BackendTuner tuner = new BackendTuner(new BackendTuner.Factory() {
+            @Override
+            public EdgeDetection create(EdgeBackend backend) {
+                if (backend.equals(EdgeBackend.COARSE_TO_FINE)) {
+                    return new DiagonalDroppingDetection();
+                }
+                return new JavaEdgeDetection(backend);
+            }
+        }, TUNING_BUDGET_NANOS);
+        TuningResult result = tuner.tune("check", TUNING_WIDTH, TUNING_HEIGHT,
+                Arrays.asList(EdgeBackend.JAVA, strips, EdgeBackend.COARSE_TO_FINE));
+        List<String> failures = new ArrayList<>();
+        for (TuningResult.Entry entry : result.getEntries()) {
+            boolean dropping = entry.backend.equals(EdgeBackend.COARSE_TO_FINE);
+            System.out.println(String.format("tuning %-22s differs %7.3f%%  %s",
+                    dropping ? "dropping diagonals" : entry.backend.getKey(),
+                    100 * entry.difference, entry.failure == null ? "accepted" : entry.failure));
+            if (dropping && entry.failure == null) {
+                failures.add("the tuning accepted a backend losing the diagonal edges");
+            } else if (!dropping && entry.failure != null) {
+                failures.add("the tuning rejected " + entry.backend.getKey() + ": "
+                        + entry.failure);
+            }
+        }
+        return failures;
+    }
+
+    public static void main(String[] args) {
+        int size = 128;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    size = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: EdgeKernelCheck [--size N]");
+                    System.exit(2);
+            }
+        }
+        Shape[] shapes = {
+                new Step("vertical", 1, 0),
+                new Step("horizontal", 0, 1),
+                new Step("diagonal 45", 1, -1),
+                new Step("diagonal 135", 1, 1),
+                new Disk(),
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(STRIP_THREADS - 1);
+        EdgeKernel[] kernels = {
+                new CannyKernel(),
+                new StripCanny(executor, STRIP_THREADS, STRIP_ROWS),
+                new CoarseToFineCanny(),
+        };
+        List<String> failures = new ArrayList<>();
+        for (EdgeKernel kernel : kernels) {
+            for (Shape shape : shapes) {
+                String failure = check(kernel, shape, size);
+                if (failure != null) {
+                    failures.add(failure);
+                }
+            }
+            kernel.release();
+        }
+        executor.shutdown();
+        failures.addAll(checkTuning());
+        for (String failure : failures) {
+            System.out.println("FAILED " + failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+        System.out.println("All kernels found every border, the tuning rejected the lost "
+                + "diagonals");
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.governor.FakeThermalSignal;
+import android.google.com.basiccamera.imageprocessing.governor.ProcessingGovernor;
+import android.google.com.basiccamera.imageprocessing.governor.ThermalSignal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays the arrival and processing times of preview frames through the ProcessingGovernor and
+ * compares it with processing every frame it can. The times come either from a trace written by
+ * the Tracer of the app or from a synthetic session whose processing time grows like on a
+ * throttling device. The thermal state can be changed at given times.
+ *
+ * Like in the app there is one processing thread and a queue of one frame which drops the oldest
+ * frame. The processing time of a frame is the recorded one of the same frame or, for frames
+ * the recorded session did not process, the one of the closest processed frame.
+ *
+ * Usage: GovernorSimulator [--thermal SECONDS:STATE]... (trace.json | --synthetic SECONDS)
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class GovernorSimulator {
+
+    private static final Pattern EVENT_PATTERN = Pattern.compile("\\{\"name\":\"(\\w+)\",\"cat\":"
+            + "\"pipeline\",\"ph\":\"(\\w)\",\"ts\":(\\d+),\"pid\":1,\"tid\":(\\d+)(?:,\"id\":"
+            + "(\\d+))?[^{}]*(?:\\{\"frame\":(\\d+)\\})?\\}");
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    // synthetic session: 30 fps, the processing time grows from 25 to 60 ms
+    private static final long SYNTHETIC_FRAME_INTERVAL = NANOS_PER_SECOND / 30;
+    private static final long SYNTHETIC_PROCESSING_TIME = 25000000L;
+    private static final float SYNTHETIC_THROTTLING = 2.4f;
+
+    /** Arrival time per frame and the processing time of the processed ones, in nanoseconds */
+    private final long[] mArrivals;
+    private final TreeMap<Integer, Long> mProcessingTimes;
+    private final TreeMap<Long, ThermalSignal.State> mThermalSchedule;
+
+    private GovernorSimulator(long[] arrivals, TreeMap<Integer, Long> processingTimes,
+            TreeMap<Long, ThermalSignal.State> thermalSchedule) {
+        mArrivals = arrivals;
+        mProcessingTimes = processingTimes;
+        mThermalSchedule = thermalSchedule;
+    }
+
+    /**
+     * Reads the frame arrivals from the flow start events and the processing times from the
+     * decode slices of a trace. A frame is processed from the begin of its decode slice till the
+     * last end on the same thread before the next decode slice.
+     */
+    static GovernorSimulator fromTrace(File file,
+            TreeMap<Long, ThermalSignal.State> thermalSchedule) throws IOException {
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        TreeMap<Long, Long> arrivals = new TreeMap<>();
+        Map<Long, Long> processingBegins = new HashMap<>();
+        TreeMap<Long, Long> processingEnds = new TreeMap<>();
+        // the frame and the last end per processing thread
+        Map<String, long[]> current = new HashMap<>();
+        Matcher matcher = EVENT_PATTERN.matcher(json);
+        while (matcher.find()) {
+            String name = matcher.group(1);
+            String phase = matcher.group(2);
+            long timestamp = Long.parseLong(matcher.group(3)) * 1000;
+            String thread = matcher.group(4);
+            if (phase.equals("s") && matcher.group(5) != null) {
+                arrivals.put(Long.parseLong(matcher.group(5)), timestamp);
+            } else if (phase.equals("B") && name.equals("decode") && matcher.group(6) != null) {
+                long frame = Long.parseLong(matcher.group(6));
+                processingBegins.put(frame, timestamp);
+                current.put(thread, new long[] {frame, timestamp});
+            } else if (phase.equals("E") && current.containsKey(thread)) {
+                long[] state = current.get(thread);
+                processingEnds.put(state[0], timestamp);
+            }
+        }
+        if (arrivals.isEmpty()) {
+            throw new IllegalArgumentException("No frames in " + file);
+        }
+        long first = arrivals.firstKey();
+        long[] arrivalTimes = new long[(int) (arrivals.lastKey() - first + 1)];
+        long origin = arrivals.firstEntry().getValue();
+        long previous = 0;
+        for (int i = 0; i < arrivalTimes.length; i++) {
+            Long arrival = arrivals.get(first + i);
+            // frames missing in the ring buffer of the trace are interpolated
+            arrivalTimes[i] = arrival != null ? arrival - origin : previous;
+            previous = arrivalTimes[i];
+        }
+        TreeMap<Integer, Long> processingTimes = new TreeMap<>();
+        for (Map.Entry<Long, Long> end : processingEnds.entrySet()) {
+            Long begin = processingBegins.get(end.getKey());
+            if (begin != null && end.getKey() >= first) {
+                processingTimes.put((int) (end.getKey() - first), end.getValue() - begin);
+            }
+        }
+        if (processingTimes.isEmpty()) {
+            throw new IllegalArgumentException("No processed frames in " + file);
+        }
+        return new GovernorSimulator(arrivalTimes, processingTimes, thermalSchedule);
+    }
+
+    /** A session at 30 fps whose processing time grows linearly with jitter */
+    static GovernorSimulator synthetic(int seconds,
+            TreeMap<Long, ThermalSignal.State> thermalSchedule) {
+        int count = (int) (seconds * NANOS_PER_SECOND / SYNTHETIC_FRAME_INTERVAL);
+        long[] arrivals = new long[count];
+        TreeMap<Integer, Long> processingTimes = new TreeMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < count; i++) {
+            arrivals[i] = i * SYNTHETIC_FRAME_INTERVAL;
+            float throttling = 1 + (SYNTHETIC_THROTTLING - 1) * i / count;
+            float jitter = 0.8f + 0.4f * random.nextFloat();
+            processingTimes.put(i, (long) (SYNTHETIC_PROCESSING_TIME * throttling * jitter));
+        }
+        return new GovernorSimulator(arrivals, processingTimes, thermalSchedule);
+    }
+
+    private long processingTime(int frame) {
+        Map.Entry<Integer, Long> below = mProcessingTimes.floorEntry(frame);
+        Map.Entry<Integer, Long> above = mProcessingTimes.ceilingEntry(frame);
+        if (below == null) {
+            return above.getValue();
+        }
+        if (above == null || frame - below.getKey() <= above.getKey() - frame) {
+            return below.getValue();
+        }
+        return above.getValue();
+    }
+
+    /**
+     * Replays the session.
+     * @param governor decides which frames are processed, null to process every frame possible
+     */
+    String run(ProcessingGovernor governor, FakeThermalSignal thermalSignal) {
+        LatencyStatistics latencies = new LatencyStatistics();
+        long workerFreeAt = 0;
+        int queued = -1;
+        int dropped = 0;
+        int processed = 0;
+        for (int i = 0; i <= mArrivals.length; i++) {
+            // the arrival after the last frame only drains the queue
+            long now = i < mArrivals.length ? mArrivals[i] : Long.MAX_VALUE;
+            while (queued >= 0 && workerFreeAt <= now) {
+                long begin = Math.max(workerFreeAt, mArrivals[queued]);
+                long end = process(queued, begin, governor, thermalSignal, latencies);
+                processed += end > begin ? 1 : 0;
+                workerFreeAt = Math.max(workerFreeAt, end);
+                queued = -1;
+            }
+            if (i == mArrivals.length) {
+                break;
+            }
+            if (workerFreeAt <= now) {
+                long end = process(i, now, governor, thermalSignal, latencies);
+                processed += end > now ? 1 : 0;
+                workerFreeAt = end;
+            } else {
+                if (queued >= 0) {
+                    dropped++;
+                }
+                queued = i;
+            }
+        }
+        double duration = (mArrivals[mArrivals.length - 1] - mArrivals[0])
+                / (double) NANOS_PER_SECOND;
+        return String.format("processed %d of %d frames (%.1f fps), %d dropped by the queue%n"
+                        + "  latency from arrival to result: %s", processed, mArrivals.length,
+                processed / duration, dropped, latencies.summary())
+                + (governor != null ? "\n  governor: " + governor : "");
+    }
+
+    /** @return the time the processing ends, or begin if the governor skipped the frame */
+    private long process(int frame, long begin, ProcessingGovernor governor,
+            FakeThermalSignal thermalSignal, LatencyStatistics latencies) {
+        Map.Entry<Long, ThermalSignal.State> thermal = mThermalSchedule.floorEntry(begin);
+        if (thermal != null) {
+            thermalSignal.setState(thermal.getValue());
+        }
+        if (governor != null && !governor.shouldProcess(mArrivals[frame])) {
+            return begin;
+        }
+        long end = begin + processingTime(frame);
+        if (governor != null) {
+            governor.onFrameProcessed(begin - mArrivals[frame], end - begin, end);
+        }
+        latencies.add(end - mArrivals[frame]);
+        return end;
+    }
+
+    public static void main(String[] args) throws IOException {
+        TreeMap<Long, ThermalSignal.State> thermalSchedule = new TreeMap<>();
+        String trace = null;
+        int syntheticSeconds = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--thermal":
+                    String[] change = args[++i].split(":");
+                    thermalSchedule.put((long) (Double.parseDouble(change[0]) * NANOS_PER_SECOND),
+                            ThermalSignal.State.valueOf(change[1].toUpperCase()));
+                    break;
+                case "--synthetic":
+                    syntheticSeconds = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    trace = args[i];
+            }
+        }
+        if ((trace == null) == (syntheticSeconds == 0)) {
+            System.err.println("Usage: GovernorSimulator [--thermal SECONDS:STATE]... "
+                    + "(trace.json | --synthetic SECONDS)");
+            System.exit(2);
+        }
+        GovernorSimulator simulator = trace != null
+                ? fromTrace(new File(trace), thermalSchedule)
+                : synthetic(syntheticSeconds, thermalSchedule);
+
+        FakeThermalSignal thermalSignal = new FakeThermalSignal();
+        final List<String> decisions = new ArrayList<>();
+        ProcessingGovernor governor = new ProcessingGovernor(thermalSignal);
+        governor.setListener(new ProcessingGovernor.Listener() {
+            @Override
+            public void onLevelChanged(int level, int stride, int targetFps, String reason) {
+                decisions.add(String.format("  level %d (every %d. frame, %d fps): %s", level,
+                        stride, targetFps, reason));
+            }
+        });
+        System.out.println("Every frame:\n  " + simulator.run(null, new FakeThermalSignal()));
+        System.out.println("Governed:\n  " + simulator.run(governor, thermalSignal));
+        for (String decision : decisions) {
+            System.out.println(decision);
+        }
+    }
+}
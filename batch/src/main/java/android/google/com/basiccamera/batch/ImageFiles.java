@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Reads stored captures as gray images and writes edge maps. Supported are JPEG and PNG files
+ * and raw NV21 dumps of preview frames. The size of a raw dump is taken from its file name, e.g.
+ * "frame_0001_1280x720.nv21", or from the default size.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ImageFiles {
+
+    private static final Pattern SIZE_PATTERN = Pattern.compile("(\\d+)x(\\d+)");
+
+    /** A gray image, e.g. the Y plane of a preview frame */
+    public static final class GrayImage {
+        public final byte[] data;
+        public final int width;
+        public final int height;
+
+        public GrayImage(byte[] data, int width, int height) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private ImageFiles() {}
+
+    public static boolean isSupported(File file) {
+        return isRaw(file) || isCompressed(file);
+    }
+
+    private static boolean isRaw(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".nv21") || name.endsWith(".yuv");
+    }
+
+    private static boolean isCompressed(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png");
+    }
+
+    /**
+     * Decodes the file content into a gray image
+     * @param defaultWidth width of raw dumps without size in the file name, 0 if unknown
+     * @param defaultHeight height of raw dumps without size in the file name, 0 if unknown
+     */
+    public static GrayImage decode(File file, byte[] content, int defaultWidth, int defaultHeight)
+            throws IOException {
+        if (isRaw(file)) {
+            int width = defaultWidth;
+            int height = defaultHeight;
+            Matcher matcher = SIZE_PATTERN.matcher(file.getName());
+            if (matcher.find()) {
+                width = Integer.parseInt(matcher.group(1));
+                height = Integer.parseInt(matcher.group(2));
+            }
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Unknown size of raw frame " + file);
+            }
+            if (content.length < width * height) {
+                throw new IOException("Raw frame " + file + " is smaller than " + width + "x"
+                        + height);
+            }
+            // the Y plane are the first width * height bytes of a NV21 frame
+            return new GrayImage(content, width, height);
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(content));
+        if (image == null) {
+            throw new IOException("Could not decode " + file);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+        byte[] gray = new byte[width * height];
+        for (int i = 0; i < rgb.length; i++) {
+            int pixel = rgb[i];
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            // the same weights as Imgproc.COLOR_RGB2GRAY
+            gray[i] = (byte) ((299 * r + 587 * g + 114 * b + 500) / 1000);
+        }
+        return new GrayImage(gray, width, height);
+    }
+
+    public static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /** Writes a mask of 0 and 255 values as gray PNG */
+    public static void writeMask(File file, byte[] mask, int width, int height)
+            throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setDataElements(0, 0, width, height, mask.length == width * height
+                ? mask : Arrays.copyOf(mask, width * height));
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+}
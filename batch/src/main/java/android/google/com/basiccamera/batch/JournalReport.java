@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.journal.EdgeJournal;
+import android.google.com.basiccamera.imageprocessing.journal.EdgeJournalReader;
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Records the edge maps of a sequence of frames into an EdgeJournal like the edge detector of the
+ * app does, then reads them back in random and in forward order. It reports how long the
+ * processing thread spent handing maps to the journal, the compression and the read speed, and
+ * fails if a map read back differs from the recorded one.
+ *
+ * Usage: JournalReport [--size WxH] [--queue N] [--downsampling N] sequence_dir journal_dir
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class JournalReport {
+
+    public static void main(String[] args) throws IOException {
+        int width = 0;
+        int height = 0;
+        int queueCapacity = 8;
+        int downsampling = 2;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--queue":
+                    queueCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "--downsampling":
+                    downsampling = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    paths.add(args[i]);
+            }
+        }
+        File[] files = paths.size() == 2 ? new File(paths.get(0)).listFiles() : null;
+        if (files == null) {
+            System.err.println("Usage: JournalReport [--size WxH] [--queue N] "
+                    + "[--downsampling N] sequence_dir journal_dir");
+            System.exit(2);
+        }
+        Arrays.sort(files);
+        File directory = new File(paths.get(1));
+
+        // records the maps, keeping them for the comparison
+        CannyKernel kernel = new CannyKernel();
+        List<byte[]> recorded = new ArrayList<>();
+        List<Long> frameNumbers = new ArrayList<>();
+        // on few cores the writer thread may preempt the caller, which the CPU time excludes
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        LatencyStatistics offerLatencies = new LatencyStatistics();
+        LatencyStatistics offerCpuTimes = new LatencyStatistics();
+        EdgeJournal journal = new EdgeJournal(directory, queueCapacity);
+        long frameNumber = 0;
+        for (File file : files) {
+            if (!file.isFile() || !ImageFiles.isSupported(file)) {
+                continue;
+            }
+            ImageFiles.GrayImage image = ImageFiles.decode(file, ImageFiles.read(file), width,
+                    height);
+            int scaledWidth = PlaneTransform.downsampledSize(image.width, downsampling);
+            int scaledHeight = PlaneTransform.downsampledSize(image.height, downsampling);
+            byte[] scaled = new byte[scaledWidth * scaledHeight];
+            PlaneTransform.downsample(image.data, image.width, image.height, downsampling, scaled);
+            byte[] edges = new byte[scaled.length];
+            kernel.detect(scaled, scaledWidth, scaledHeight, edges);
+            long cpuBegin = threads.getCurrentThreadCpuTime();
+            long begin = System.nanoTime();
+            boolean queued = journal.offer(frameNumber, edges, scaledWidth, scaledHeight);
+            offerLatencies.add(System.nanoTime() - begin);
+            offerCpuTimes.add(threads.getCurrentThreadCpuTime() - cpuBegin);
+            if (queued) {
+                recorded.add(edges);
+                frameNumbers.add(frameNumber);
+            }
+            frameNumber++;
+        }
+        journal.close();
+        System.out.println("Recorded " + journal);
+        System.out.println("Offer wall time " + offerLatencies.summary());
+        System.out.println("Offer CPU time " + offerCpuTimes.summary());
+
+        EdgeJournalReader reader = new EdgeJournalReader(directory);
+        List<String> failures = new ArrayList<>();
+        if (reader.size() != recorded.size()) {
+            failures.add(reader.size() + " maps in the journal instead of " + recorded.size());
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < Math.min(reader.size(), recorded.size()); i++) {
+            order.add(i);
+        }
+        long forward = readAll(reader, order, recorded, frameNumbers, failures);
+        Collections.shuffle(order, new Random(1));
+        long random = readAll(reader, order, recorded, frameNumbers, failures);
+        System.out.printf("Read %d maps: forward %.3f ms per map, random %.3f ms per map%n",
+                order.size(), forward / 1e6 / Math.max(1, order.size()),
+                random / 1e6 / Math.max(1, order.size()));
+        for (String failure : failures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /** @return the time spent reading */
+    private static long readAll(EdgeJournalReader reader, List<Integer> order,
+            List<byte[]> recorded, List<Long> frameNumbers, List<String> failures) {
+        long time = 0;
+        for (int index : order) {
+            byte[] expected = recorded.get(index);
+            byte[] edges = new byte[expected.length];
+            long begin = System.nanoTime();
+            boolean found = reader.read(frameNumbers.get(index), edges);
+            time += System.nanoTime() - begin;
+            if (!found) {
+                failures.add("Frame " + frameNumbers.get(index) + " not found");
+            } else if (!Arrays.equals(edges, expected)) {
+                failures.add("Frame " + frameNumbers.get(index) + " differs");
+            }
+        }
+        return time;
+    }
+}
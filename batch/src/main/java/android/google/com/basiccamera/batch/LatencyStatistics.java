@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies in nanoseconds and computes percentiles. All methods are thread safe.
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class LatencyStatistics {
+
+    private long[] mLatencies = new long[1024];
+    private int mCount;
+
+    public synchronized void add(long latencyNanos) {
+        if (mCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+        }
+        mLatencies[mCount++] = latencyNanos;
+    }
+
+    public synchronized int getCount() { return mCount; }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in nanoseconds below which the given percentage of samples lie
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mLatencies, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+        return sorted[Math.min(Math.max(index, 0), mCount - 1)];
+    }
+
+    public synchronized long getMean() {
+        if (mCount == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < mCount; i++) {
+            sum += mLatencies[i];
+        }
+        return sum / mCount;
+    }
+
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    /** Formats the usual percentiles in milliseconds */
+    public synchronized String summary() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                mCount, getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(90) / 1e6,
+                getPercentile(99) / 1e6, getPercentile(100) / 1e6);
+    }
+}
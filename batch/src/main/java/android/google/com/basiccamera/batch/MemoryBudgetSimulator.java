@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs a session of the pipeline against the MemoryBudget, with the components reacting to the
+ * stages like they do in the app: the camera keeps fewer preview buffers and the bitmap pool
+ * fewer bitmaps, the task downsamples further and releases its Mats while the analysis is
+ * paused. Stills taken during the session and onTrimMemory calls put pressure on the budget.
+ * Every stage change and a sample of the usage per category every few seconds are printed.
+ *
+ * Usage: MemoryBudgetSimulator [--budget MB] [--size WxH] [--screen WxH] [--seconds N]
+ *        [--still FROM:TO:MB]... [--trim SECONDS:LEVEL]...
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class MemoryBudgetSimulator {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long FRAME_INTERVAL = NANOS_PER_SECOND / 30;
+    private static final int SAMPLE_SECONDS = 5;
+    // the values of the app
+    private static final int FRAME_BUFFER_COUNT = 3;
+    private static final int SHRUNK_FRAME_BUFFER_COUNT = 2;
+    private static final int RESULT_POOL_SIZE = 3;
+    private static final int SHRUNK_POOL_SIZE = 1;
+    private static final int DOWNSAMPLING = 2;
+    private static final int REDUCED_DOWNSAMPLING = 4;
+
+    private final MemoryBudget mBudget;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mScreenBytes;
+    // the state of the simulated components
+    private int mFrameBufferCount;
+    private int mTaskDownsampling;
+    private final ArrayDeque<Long> mPooledBitmaps;
+    private boolean mScreenBitmap;
+    private final long[] mTimeAtStage;
+    private long mProcessedCount;
+
+    private MemoryBudgetSimulator(long budget, int width, int height, long screenBytes) {
+        mBudget = new MemoryBudget(budget);
+        mWidth = width;
+        mHeight = height;
+        mScreenBytes = screenBytes;
+        mPooledBitmaps = new ArrayDeque<>();
+        mTimeAtStage = new long[MemoryBudget.Stage.values().length];
+    }
+
+    private void run(int seconds, List<long[]> stills, List<long[]> trims) {
+        final long[] time = new long[1];
+        mBudget.setListener(new MemoryBudget.Listener() {
+            @Override
+            public void onStageChanged(MemoryBudget.Stage stage, String reason) {
+                System.out.printf("%7.2fs stage %s: %s%n", time[0] / (double) NANOS_PER_SECOND,
+                        stage, reason);
+            }
+        });
+        long frameBytes = mWidth * mHeight * 3L / 2;
+        mFrameBufferCount = FRAME_BUFFER_COUNT;
+        mBudget.allocate(MemoryBudget.Category.PREVIEW_FRAMES, mFrameBufferCount * frameBytes);
+        long frames = seconds * NANOS_PER_SECOND / FRAME_INTERVAL;
+        for (long frame = 0; frame < frames; frame++) {
+            long now = frame * FRAME_INTERVAL;
+            time[0] = now;
+            for (long[] still : stills) {
+                if (still[0] == now) {
+                    mBudget.allocate(MemoryBudget.Category.STILL_IMAGES, still[2]);
+                } else if (still[1] == now) {
+                    mBudget.free(MemoryBudget.Category.STILL_IMAGES, still[2]);
+                }
+            }
+            for (long[] trim : trims) {
+                if (trim[0] == now) {
+                    mBudget.onTrimMemory((int) trim[1], now);
+                }
+            }
+            mBudget.update(now);
+            mTimeAtStage[mBudget.getStage().ordinal()] += FRAME_INTERVAL;
+            processFrame();
+            returnFrameBuffer(frameBytes);
+            if (frame % (SAMPLE_SECONDS * NANOS_PER_SECOND / FRAME_INTERVAL) == 0) {
+                System.out.printf("%7.2fs %s%n", now / (double) NANOS_PER_SECOND, mBudget);
+            }
+        }
+        System.out.printf("processed %d of %d frames, peak %.1f MB of %.1f MB, time at stages:",
+                mProcessedCount, frames, mBudget.getPeakTotalUsage() / 1048576.0,
+                mBudget.getBudget() / 1048576.0);
+        for (MemoryBudget.Stage stage : MemoryBudget.Stage.values()) {
+            System.out.printf(" %s %.1fs", stage,
+                    mTimeAtStage[stage.ordinal()] / (double) NANOS_PER_SECOND);
+        }
+        System.out.println();
+    }
+
+    /** Like CannyEdgeDetector.processFrames with a raster result drawn by the ResultView */
+    private void processFrame() {
+        if (mBudget.isAtLeast(MemoryBudget.Stage.PAUSE_ANALYSIS)) {
+            setTaskDownsampling(0);
+            while (!mPooledBitmaps.isEmpty()) {
+                mBudget.free(MemoryBudget.Category.RESULT_BITMAPS, mPooledBitmaps.pollFirst());
+            }
+            return;
+        }
+        setTaskDownsampling(mBudget.isAtLeast(MemoryBudget.Stage.REDUCE_RESOLUTION)
+                ? REDUCED_DOWNSAMPLING : DOWNSAMPLING);
+        long bitmapBytes = 4L * (mWidth / mTaskDownsampling) * (mHeight / mTaskDownsampling);
+        // BitmapPool.obtain
+        Iterator<Long> it = mPooledBitmaps.iterator();
+        boolean pooled = false;
+        while (it.hasNext() && !pooled) {
+            if (it.next() == bitmapBytes) {
+                it.remove();
+                pooled = true;
+            }
+        }
+        if (!pooled) {
+            mBudget.allocate(MemoryBudget.Category.RESULT_BITMAPS, bitmapBytes);
+        }
+        // ResultView.drawResult scales into a bitmap allocated once
+        if (!mScreenBitmap) {
+            mBudget.allocate(MemoryBudget.Category.SCREEN_BITMAPS, mScreenBytes);
+            mScreenBitmap = true;
+        }
+        // BitmapPool.release
+        int maxSize = mBudget.isAtLeast(MemoryBudget.Stage.SHRINK_QUEUES)
+                ? SHRUNK_POOL_SIZE : RESULT_POOL_SIZE;
+        mPooledBitmaps.addLast(bitmapBytes);
+        while (mPooledBitmaps.size() > maxSize) {
+            mBudget.free(MemoryBudget.Category.RESULT_BITMAPS, mPooledBitmaps.pollFirst());
+        }
+        mProcessedCount++;
+    }
+
+    /** Like CannyEdgeDetector.allocateMats and releaseMats, 0 releases the buffers */
+    private void setTaskDownsampling(int downsampling) {
+        if (downsampling == mTaskDownsampling) {
+            return;
+        }
+        if (mTaskDownsampling != 0) {
+            long bytes = 3L * (mWidth / mTaskDownsampling) * (mHeight / mTaskDownsampling);
+            mBudget.free(MemoryBudget.Category.NATIVE_MATS, bytes);
+            mBudget.free(MemoryBudget.Category.WORK_BUFFERS, bytes);
+        }
+        mTaskDownsampling = downsampling;
+        if (downsampling != 0) {
+            long bytes = 3L * (mWidth / downsampling) * (mHeight / downsampling);
+            mBudget.allocate(MemoryBudget.Category.NATIVE_MATS, bytes);
+            mBudget.allocate(MemoryBudget.Category.WORK_BUFFERS, bytes);
+        }
+    }
+
+    /** Like CameraManager.returnFrameBuffer */
+    private void returnFrameBuffer(long frameBytes) {
+        int target = mBudget.isAtLeast(MemoryBudget.Stage.SHRINK_QUEUES)
+                ? SHRUNK_FRAME_BUFFER_COUNT : FRAME_BUFFER_COUNT;
+        if (mFrameBufferCount > target) {
+            mFrameBufferCount--;
+            mBudget.free(MemoryBudget.Category.PREVIEW_FRAMES, frameBytes);
+        } else if (mFrameBufferCount < target) {
+            mFrameBufferCount++;
+            mBudget.allocate(MemoryBudget.Category.PREVIEW_FRAMES, frameBytes);
+        }
+    }
+
+    private static int[] parseSize(String size) {
+        String[] parts = size.split("x");
+        return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /** Rounds a time in seconds to the frame arriving at it */
+    private static long toFrameTime(String seconds) {
+        long time = (long) (Double.parseDouble(seconds) * NANOS_PER_SECOND);
+        return time / FRAME_INTERVAL * FRAME_INTERVAL;
+    }
+
+    public static void main(String[] args) {
+        long budget = 32L * 1024 * 1024;
+        int[] size = {1280, 720};
+        int[] screen = {1920, 1080};
+        int seconds = 120;
+        List<long[]> stills = new ArrayList<>();
+        List<long[]> trims = new ArrayList<>();
+        boolean scenario = false;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String[] parts = args[i + 1].split(":");
+            switch (args[i]) {
+                case "--budget":
+                    budget = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                    break;
+                case "--size":
+                    size = parseSize(args[i + 1]);
+                    break;
+                case "--screen":
+                    screen = parseSize(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--still":
+                    stills.add(new long[] {toFrameTime(parts[0]), toFrameTime(parts[1]),
+                            (long) (Double.parseDouble(parts[2]) * 1024 * 1024)});
+                    scenario = true;
+                    break;
+                case "--trim":
+                    trims.add(new long[] {toFrameTime(parts[0]), Integer.parseInt(parts[1])});
+                    scenario = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!scenario) {
+            // a burst of stills, then the system running low and critical on memory
+            stills.add(new long[] {toFrameTime("10"), toFrameTime("25"), 6L * 1024 * 1024});
+            stills.add(new long[] {toFrameTime("12"), toFrameTime("25"), 6L * 1024 * 1024});
+            trims.add(new long[] {toFrameTime("40"), MemoryBudget.TRIM_MEMORY_RUNNING_LOW});
+            trims.add(new long[] {toFrameTime("50"), MemoryBudget.TRIM_MEMORY_RUNNING_CRITICAL});
+        }
+        new MemoryBudgetSimulator(budget, size[0], size[1], 4L * screen[0] * screen[1])
+                .run(seconds, stills, trims);
+    }
+}
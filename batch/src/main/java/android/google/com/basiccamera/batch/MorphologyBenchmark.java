@@ -0,0 +1,349 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMask;
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMorphology;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the morphology of PackedMorphology on packed masks with the same operations on byte
+ * masks, one byte per pixel like the output of the Canny kernels. The input is the edge map of a
+ * synthetic image. Every operation is checked against the byte version, at the given size and at
+ * an odd size whose rows end within a word, then the median time of the measured runs is
+ * reported after a warmup, as well as the time to pack and unpack a mask and the bytes the
+ * packed operations allocated.
+ *
+ * Usage: MorphologyBenchmark [--size WxH] [--runs N]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class MorphologyBenchmark {
+
+    private static final int WARMUP_RUNS = 50;
+    // rows end in the middle of a word
+    private static final int CHECK_WIDTH = 997;
+    private static final int CHECK_HEIGHT = 301;
+
+    private interface Variant {
+        void run();
+    }
+
+    private MorphologyBenchmark() {}
+
+    /**
+     * The reference operations on byte masks, pixels outside count like in PackedMorphology. The
+     * 3x3 neighbourhood is separated into a pass over the rows into rows and one over the columns.
+     */
+    static void dilateBytes(byte[] source, int width, int height, byte[] rows, byte[] target) {
+        spreadBytes(source, width, height, false, rows, target);
+    }
+
+    static void erodeBytes(byte[] source, int width, int height, byte[] rows, byte[] target) {
+        spreadBytes(source, width, height, true, rows, target);
+    }
+
+    private static void spreadBytes(byte[] source, int width, int height, boolean all,
+            byte[] rows, byte[] target) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                boolean left = x == 0 ? all : source[row + x - 1] != 0;
+                boolean right = x == width - 1 ? all : source[row + x + 1] != 0;
+                boolean center = source[row + x] != 0;
+                rows[row + x] = (all ? left && center && right : left || center || right)
+                        ? CannyKernel.EDGE : CannyKernel.NO_EDGE;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                boolean above = y == 0 ? all : rows[row - width + x] != 0;
+                boolean below = y == height - 1 ? all : rows[row + width + x] != 0;
+                boolean center = rows[row + x] != 0;
+                target[row + x] = (all ? above && center && below : above || center || below)
+                        ? CannyKernel.EDGE : CannyKernel.NO_EDGE;
+            }
+        }
+    }
+
+    static void selectBytes(byte[] source, int width, int height, int min, int max,
+            byte[] target) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (source[i] == 0) {
+                    target[i] = CannyKernel.NO_EDGE;
+                    continue;
+                }
+                int count = 0;
+                for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                    for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+                        if (source[ny * width + nx] != 0) {
+                            count++;
+                        }
+                    }
+                }
+                // the pixel itself is not its neighbour
+                count--;
+                target[i] = count >= min && count <= max ? CannyKernel.EDGE : CannyKernel.NO_EDGE;
+            }
+        }
+    }
+
+    /** @return the edge map of random rectangles with noise */
+    static byte[] edges(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] gray = new byte[width * height];
+        for (int rectangle = 0; rectangle < 60; rectangle++) {
+            int left = random.nextInt(width);
+            int top = random.nextInt(height);
+            int right = Math.min(width, left + 10 + random.nextInt(width / 4));
+            int bottom = Math.min(height, top + 10 + random.nextInt(height / 4));
+            byte value = (byte) random.nextInt(256);
+            for (int y = top; y < bottom; y++) {
+                Arrays.fill(gray, y * width + left, y * width + right, value);
+            }
+        }
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] += (byte) random.nextInt(24);
+        }
+        byte[] edges = new byte[width * height];
+        new CannyKernel().detect(gray, width, height, edges);
+        return edges;
+    }
+
+    /** The packed and byte versions of one operation on the same input */
+    private static final class Operation {
+
+        final String mName;
+        final Variant mPacked;
+        final Variant mBytes;
+
+        Operation(String name, Variant packed, Variant bytes) {
+            mName = name;
+            mPacked = packed;
+            mBytes = bytes;
+        }
+    }
+
+    /** The masks of one size and the operations on them */
+    private static final class Workspace {
+
+        final int mWidth;
+        final int mHeight;
+        final byte[] mEdges;
+        final byte[] mByteResult;
+        final byte[] mByteScratch;
+        final byte[] mByteRows;
+        final byte[] mUnpacked;
+        final PackedMask mSource;
+        final PackedMask mResult;
+        final PackedMask mScratch;
+        final Operation[] mOperations;
+
+        Workspace(int width, int height, long seed) {
+            mWidth = width;
+            mHeight = height;
+            mEdges = edges(width, height, seed);
+            mByteResult = new byte[width * height];
+            mByteScratch = new byte[width * height];
+            mByteRows = new byte[width * height];
+            mUnpacked = new byte[width * height];
+            mSource = new PackedMask(width, height);
+            mResult = new PackedMask(width, height);
+            mScratch = new PackedMask(width, height);
+            mSource.pack(mEdges);
+            mOperations = new Operation[]{
+                    new Operation("dilate", new Variant() {
+                        @Override
+                        public void run() {
+                            PackedMorphology.dilate(mSource, mResult);
+                        }
+                    }, new Variant() {
+                        @Override
+                        public void run() {
+                            dilateBytes(mEdges, mWidth, mHeight, mByteRows, mByteResult);
+                        }
+                    }),
+                    new Operation("erode", new Variant() {
+                        @Override
+                        public void run() {
+                            PackedMorphology.erode(mSource, mResult);
+                        }
+                    }, new Variant() {
+                        @Override
+                        public void run() {
+                            erodeBytes(mEdges, mWidth, mHeight, mByteRows, mByteResult);
+                        }
+                    }),
+                    new Operation("open", new Variant() {
+                        @Override
+                        public void run() {
+                            PackedMorphology.open(mSource, mResult, mScratch);
+                        }
+                    }, new Variant() {
+                        @Override
+                        public void run() {
+                            erodeBytes(mEdges, mWidth, mHeight, mByteRows, mByteScratch);
+                            dilateBytes(mByteScratch, mWidth, mHeight, mByteRows, mByteResult);
+                        }
+                    }),
+                    new Operation("close", new Variant() {
+                        @Override
+                        public void run() {
+                            PackedMorphology.close(mSource, mResult, mScratch);
+                        }
+                    }, new Variant() {
+                        @Override
+                        public void run() {
+                            dilateBytes(mEdges, mWidth, mHeight, mByteRows, mByteScratch);
+                            erodeBytes(mByteScratch, mWidth, mHeight, mByteRows, mByteResult);
+                        }
+                    }),
+                    new Operation("remove isolated", new Variant() {
+                        @Override
+                        public void run() {
+                            PackedMorphology.removeIsolated(mSource, mResult);
+                        }
+                    }, new Variant() {
+                        @Override
+                        public void run() {
+                            selectBytes(mEdges, mWidth, mHeight, 1, 8, mByteResult);
+                        }
+                    }),
+                    new Operation("end points", new Variant() {
+                        @Override
+                        public void run() {
+                            PackedMorphology.selectByNeighbours(mSource, 1, 1, mResult);
+                        }
+                    }, new Variant() {
+                        @Override
+                        public void run() {
+                            selectBytes(mEdges, mWidth, mHeight, 1, 1, mByteResult);
+                        }
+                    })
+            };
+        }
+
+        /** @return whether the packed result of the operation equals the byte result */
+        boolean check(Operation operation) {
+            operation.mPacked.run();
+            operation.mBytes.run();
+            mResult.unpack(mUnpacked);
+            return Arrays.equals(mUnpacked, mByteResult);
+        }
+    }
+
+    /** @return the median time of a run in nanoseconds */
+    private static long measure(Variant variant, int runs) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            variant.run();
+        }
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long begin = System.nanoTime();
+            variant.run();
+            times[i] = System.nanoTime() - begin;
+        }
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+
+    /** @return the bytes allocated by this thread so far, or -1 if the JVM does not tell */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        int width = 1280;
+        int height = 720;
+        int runs = 100;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: MorphologyBenchmark [--size WxH] [--runs N]");
+                    System.exit(2);
+            }
+        }
+
+        final Workspace workspace = new Workspace(width, height, 1);
+        Workspace odd = new Workspace(CHECK_WIDTH, CHECK_HEIGHT, 2);
+        for (int i = 0; i < workspace.mOperations.length; i++) {
+            if (!workspace.check(workspace.mOperations[i]) || !odd.check(odd.mOperations[i])) {
+                throw new AssertionError(workspace.mOperations[i].mName
+                        + " differs from the byte mask version");
+            }
+        }
+        odd.mSource.unpack(odd.mUnpacked);
+        if (!Arrays.equals(odd.mUnpacked, odd.mEdges)) {
+            throw new AssertionError("Unpacking does not restore the packed mask");
+        }
+
+        System.out.printf("%dx%d, %d edge pixels, median of %d runs%n", width, height,
+                workspace.mSource.count(), runs);
+        long pack = measure(new Variant() {
+            @Override
+            public void run() {
+                workspace.mSource.pack(workspace.mEdges);
+            }
+        }, runs);
+        long unpack = measure(new Variant() {
+            @Override
+            public void run() {
+                workspace.mResult.unpack(workspace.mUnpacked);
+            }
+        }, runs);
+        System.out.printf("pack %.3f ms, unpack %.3f ms%n", pack / 1e6, unpack / 1e6);
+        System.out.println(String.format("%-16s %9s %9s %8s", "", "bytes", "packed",
+                "speedup"));
+        // what reading the allocated bytes allocates itself
+        long overhead = -allocatedBytes() + allocatedBytes();
+        long allocated = 0;
+        for (Operation operation : workspace.mOperations) {
+            long bytes = measure(operation.mBytes, runs);
+            long packed = measure(operation.mPacked, runs);
+            long before = allocatedBytes();
+            for (int i = 0; i < runs; i++) {
+                operation.mPacked.run();
+            }
+            allocated += allocatedBytes() - before - overhead;
+            System.out.println(String.format("%-16s %6.3f ms %6.3f ms %7.1fx", operation.mName,
+                    bytes / 1e6, packed / 1e6, bytes / (double) packed));
+        }
+        System.out.println("Allocated by the packed operations: "
+                + (allocatedBytes() < 0 ? "unknown" : allocated + " bytes"));
+    }
+}
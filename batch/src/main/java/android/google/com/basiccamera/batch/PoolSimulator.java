@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.camera.FrameBus;
+import android.google.com.basiccamera.imageprocessing.pool.EdgeDensityProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.SharedWorkerPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds several synthetic cameras with different frame rates into one SharedWorkerPool and
+ * prints the frames processed and dropped, the share of the processing time and the latencies
+ * of every camera. Every source publishes through its own FrameBus like PreviewCallback and owns
+ * a fixed number of buffers like CameraManager, so a source whose buffers are all in use skips
+ * frames like a camera does.
+ *
+ * Usage: PoolSimulator [--threads N] [--size WxH] [--seconds N] [--downsampling N]
+ *                      [--source FPS:WEIGHT]...
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class PoolSimulator {
+
+    // same as CameraManager
+    private static final int FRAME_BUFFER_COUNT = 4;
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    /**
+     * Publishes frames at a fixed rate on its own thread.
+     */
+    private static final class Source extends Thread {
+
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFps;
+        private final BlockingQueue<byte[]> mFreeBuffers;
+        private final FrameBus mFrameBus;
+        private long mPublishedCount;
+        private long mSkippedCount;
+
+        Source(String name, int width, int height, int fps, long seed) {
+            super(name);
+            mWidth = width;
+            mHeight = height;
+            mFps = fps;
+            mFreeBuffers = new ArrayBlockingQueue<>(FRAME_BUFFER_COUNT);
+            Random random = new Random(seed);
+            for (int i = 0; i < FRAME_BUFFER_COUNT; i++) {
+                byte[] buffer = new byte[width * height * 3 / 2];
+                fill(buffer, width, height, random);
+                mFreeBuffers.add(buffer);
+            }
+            mFrameBus = new FrameBus(new FrameBus.BufferRecycler() {
+                @Override
+                public void recycle(byte[] buffer) {
+                    mFreeBuffers.add(buffer);
+                }
+            });
+        }
+
+        /** Draws random rectangles, so the edge detection has something to find */
+        private static void fill(byte[] buffer, int width, int height, Random random) {
+            for (int rectangle = 0; rectangle < 40; rectangle++) {
+                int left = random.nextInt(width);
+                int top = random.nextInt(height);
+                int right = Math.min(width, left + 20 + random.nextInt(width / 4));
+                int bottom = Math.min(height, top + 20 + random.nextInt(height / 4));
+                byte value = (byte) random.nextInt(256);
+                for (int y = top; y < bottom; y++) {
+                    for (int x = left; x < right; x++) {
+                        buffer[y * width + x] = value;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long interval = TimeUnit.SECONDS.toNanos(1) / mFps;
+            long next = System.nanoTime();
+            while (!isInterrupted()) {
+                byte[] buffer = mFreeBuffers.poll();
+                if (buffer == null) {
+                    mSkippedCount++;
+                } else {
+                    mFrameBus.publish(buffer, mWidth, mHeight);
+                    mPublishedCount++;
+                }
+                next += interval;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = 1;
+        int width = 1280;
+        int height = 720;
+        int seconds = 10;
+        int downsampling = 1;
+        List<int[]> sources = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--downsampling":
+                    downsampling = Integer.parseInt(args[++i]);
+                    break;
+                case "--source":
+                    String[] source = args[++i].split(":");
+                    sources.add(new int[]{Integer.parseInt(source[0]),
+                            Integer.parseInt(source[1])});
+                    break;
+                default:
+                    System.err.println("Usage: PoolSimulator [--threads N] [--size WxH] "
+                            + "[--seconds N] [--downsampling N] [--source FPS:WEIGHT]...");
+                    System.exit(2);
+            }
+        }
+        if (sources.isEmpty()) {
+            sources.add(new int[]{30, 1});
+            sources.add(new int[]{10, 1});
+        }
+
+        SharedWorkerPool pool = new SharedWorkerPool("Pool", threads);
+        Source[] running = new Source[sources.size()];
+        for (int i = 0; i < running.length; i++) {
+            int fps = sources.get(i)[0];
+            String name = "camera-" + i + "@" + fps + "fps";
+            running[i] = new Source(name, width, height, fps, i);
+            pool.register(name, running[i].mFrameBus, sources.get(i)[1],
+                    new EdgeDensityProcessor(downsampling));
+        }
+        for (Source source : running) {
+            source.start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        for (Source source : running) {
+            source.interrupt();
+            source.join();
+        }
+        List<SharedWorkerPool.Session> sessions = pool.getSessions();
+        System.out.println(threads + " thread(s), " + width + "x" + height + ", " + seconds
+                + " s");
+        for (int i = 0; i < running.length; i++) {
+            System.out.println(sessions.get(i) + " published=" + running[i].mPublishedCount
+                    + " skipped=" + running[i].mSkippedCount);
+        }
+        if (!pool.shutdown(SHUTDOWN_TIMEOUT_MS)) {
+            System.out.println("FAILED pool did not finish within " + SHUTDOWN_TIMEOUT_MS + " ms");
+            System.exit(1);
+        }
+    }
+}
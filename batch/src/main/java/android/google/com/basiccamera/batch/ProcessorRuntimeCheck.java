@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.camera.FrameBus;
+import android.google.com.basiccamera.imageprocessing.pool.FrameProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.SharedWorkerPool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many lightweight processors of one camera on a SharedWorkerPool, like the TaskManager
+ * runs its processors beside the task. Every processor computes a statistic of the luminance,
+ * and every fourth one regularly waits for an asynchronous result, like a picture, by parking
+ * its session; a timer completes the wait within the session and unparks it. Every fourth one,
+ * starting with the second, regularly throws. The check reports the number of threads of the
+ * process, which must not grow with the number of processors, the frames processed per
+ * processor, and fails if a session ran two frames at once, got a frame while parked, lost a
+ * completion, ran after being closed or did not count a throw, or if a throw cost a thread.
+ *
+ * Usage: ProcessorRuntimeCheck [--processors N] [--threads N] [--fps N] [--size WxH]
+ *                              [--seconds N] [--wait-ms N]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ProcessorRuntimeCheck {
+
+    // same as CameraManager
+    private static final int FRAME_BUFFER_COUNT = 4;
+    // a waiting processor parks after this many frames
+    private static final int WAIT_INTERVAL = 30;
+    // a failing processor throws after this many frames
+    private static final int FAIL_INTERVAL = 7;
+    // every pixel of this stride is sampled by the statistics
+    private static final int SAMPLE_STRIDE = 7;
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    private static final AtomicInteger sViolations = new AtomicInteger();
+
+    private static void fail(String message) {
+        sViolations.incrementAndGet();
+        System.out.println("FAILED " + message);
+    }
+
+    /**
+     * Computes the mean luminance of a sample of the frame. A waiting processor parks its session
+     * every WAIT_INTERVAL frames till the timer completes the wait.
+     */
+    private static final class StatisticsProcessor implements FrameProcessor {
+
+        private final String mName;
+        private final boolean mWaits;
+        private final boolean mFails;
+        private final ScheduledExecutorService mTimer;
+        private final long mWaitMillis;
+        private final AtomicInteger mActive = new AtomicInteger();
+        private SharedWorkerPool.Session mSession;
+        // only accessed within the session
+        private boolean mWaiting;
+        private long mWaitCount;
+        private long mCompletedCount;
+        private volatile long mThrownCount;
+        private volatile long mProcessedCount;
+        private volatile boolean mClosed;
+        private double mMean;
+
+        StatisticsProcessor(String name, boolean waits, boolean fails,
+                ScheduledExecutorService timer, long waitMillis) {
+            mName = name;
+            mWaits = waits;
+            mFails = fails;
+            mTimer = timer;
+            mWaitMillis = waitMillis;
+        }
+
+        @Override
+        public void process(Frame frame) {
+            enter();
+            if (mClosed) {
+                fail(mName + " processed a frame after being closed");
+            }
+            if (mWaiting) {
+                fail(mName + " got a frame while parked");
+            }
+            byte[] data = frame.getData();
+            int size = frame.getWidth() * frame.getHeight();
+            long sum = 0;
+            int count = 0;
+            for (int i = 0; i < size; i += SAMPLE_STRIDE) {
+                sum += data[i] & 0xff;
+                count++;
+            }
+            mMean = sum / (double) count;
+            mProcessedCount++;
+            if (mWaits && mProcessedCount % WAIT_INTERVAL == 0) {
+                startWait();
+            }
+            leave();
+            if (mFails && mProcessedCount % FAIL_INTERVAL == 0) {
+                mThrownCount++;
+                throw new IllegalStateException(mName + " failed on purpose");
+            }
+        }
+
+        /** Parks the session like TaskManager.requestPicture, the timer plays the camera */
+        private void startWait() {
+            mWaiting = true;
+            mWaitCount++;
+            mSession.park();
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            enter();
+                            mWaiting = false;
+                            mCompletedCount++;
+                            leave();
+                        }
+                    });
+                    mSession.unpark();
+                }
+            }, mWaitMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void enter() {
+            if (mActive.incrementAndGet() != 1) {
+                fail(mName + " runs on two threads at once");
+            }
+        }
+
+        private void leave() {
+            mActive.decrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int processorCount = 32;
+        int threads = 2;
+        int fps = 30;
+        int width = 640;
+        int height = 480;
+        int seconds = 5;
+        long waitMillis = 300;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--processors":
+                    processorCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--fps":
+                    fps = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--wait-ms":
+                    waitMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: ProcessorRuntimeCheck [--processors N] "
+                            + "[--threads N] [--fps N] [--size WxH] [--seconds N] "
+                            + "[--wait-ms N]");
+                    System.exit(2);
+            }
+        }
+
+        final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(FRAME_BUFFER_COUNT);
+        Random random = new Random(1);
+        for (int i = 0; i < FRAME_BUFFER_COUNT; i++) {
+            byte[] buffer = new byte[width * height * 3 / 2];
+            random.nextBytes(buffer);
+            freeBuffers.add(buffer);
+        }
+        FrameBus frameBus = new FrameBus(new FrameBus.BufferRecycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                freeBuffers.add(buffer);
+            }
+        });
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        int threadsBefore = threadBean.getThreadCount();
+        SharedWorkerPool pool = new SharedWorkerPool("Runtime", threads);
+        StatisticsProcessor[] processors = new StatisticsProcessor[processorCount];
+        SharedWorkerPool.Session[] sessions = new SharedWorkerPool.Session[processorCount];
+        for (int i = 0; i < processorCount; i++) {
+            String name = "processor-" + i;
+            processors[i] = new StatisticsProcessor(name, i % 4 == 0, i % 4 == 1, timer,
+                    waitMillis);
+            sessions[i] = pool.register(name, frameBus, 1, processors[i]);
+            processors[i].mSession = sessions[i];
+        }
+        int threadsWithProcessors = threadBean.getThreadCount();
+        threadBean.resetPeakThreadCount();
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / fps;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long next = System.nanoTime();
+        long published = 0;
+        long skipped = 0;
+        while (next < end) {
+            byte[] buffer = freeBuffers.poll();
+            if (buffer == null) {
+                skipped++;
+            } else {
+                frameBus.publish(buffer, width, height);
+                published++;
+            }
+            next += interval;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+        // lets the last waits complete
+        TimeUnit.MILLISECONDS.sleep(2 * waitMillis);
+        int peakThreads = threadBean.getPeakThreadCount();
+
+        long[] processed = new long[processorCount];
+        for (int i = 0; i < processorCount; i++) {
+            sessions[i].close();
+            processors[i].mClosed = true;
+            processed[i] = processors[i].mProcessedCount;
+        }
+        frameBus.publish(freeBuffers.take(), width, height);
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long sum = 0;
+        long waits = 0;
+        long parks = 0;
+        long failures = 0;
+        for (int i = 0; i < processorCount; i++) {
+            StatisticsProcessor processor = processors[i];
+            if (processor.mProcessedCount != processed[i]) {
+                fail(processor.mName + " processed frames after close returned");
+            }
+            if (processor.mCompletedCount != processor.mWaitCount) {
+                fail(processor.mName + " completed " + processor.mCompletedCount + " of "
+                        + processor.mWaitCount + " waits");
+            }
+            if (sessions[i].getFailureCount() != processor.mThrownCount) {
+                fail(processor.mName + " threw " + processor.mThrownCount + " times, the session "
+                        + "counted " + sessions[i].getFailureCount());
+            }
+            failures += sessions[i].getFailureCount();
+            min = Math.min(min, processed[i]);
+            max = Math.max(max, processed[i]);
+            sum += processed[i];
+            waits += processor.mWaitCount;
+            parks += sessions[i].getParkCount();
+        }
+        System.out.printf("%d processors on %d thread(s), %dx%d at %d fps for %d s%n",
+                processorCount, threads, width, height, fps, seconds);
+        System.out.printf("Threads: %d before the pool, %d with the processors, peak %d%n",
+                threadsBefore, threadsWithProcessors, peakThreads);
+        System.out.printf("Frames published %d, skipped for lack of buffers %d%n", published,
+                skipped);
+        System.out.printf("Frames processed per processor: min %d mean %.0f max %d%n", min,
+                sum / (double) processorCount, max);
+        System.out.printf("Waits %d, sessions parked %d times, frames failed %d%n", waits, parks,
+                failures);
+        for (int i = 0; i < Math.min(2, processorCount); i++) {
+            System.out.println(sessions[i]);
+        }
+
+        timer.shutdown();
+        if (!pool.shutdown(SHUTDOWN_TIMEOUT_MS)) {
+            fail("pool did not finish within " + SHUTDOWN_TIMEOUT_MS + " ms");
+        }
+        if (threadsWithProcessors - threadsBefore != threads) {
+            fail("the processors started " + (threadsWithProcessors - threadsBefore)
+                    + " threads instead of " + threads);
+        }
+        if (sViolations.get() > 0) {
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.camera.CameraProfile;
+import android.google.com.basiccamera.camera.CameraSettings;
+import android.google.com.basiccamera.camera.FlatParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Prints the settings every camera profile chooses for recorded camera parameter dumps, as
+ * written by CameraConfigurationManager.saveCameraInfo(). It fails if a profile can not choose
+ * a preview size or format for a dump, so it can check the dumps of many devices on CI.
+ *
+ * Usage: ProfileReport screen_width screen_height dump_file...
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ProfileReport {
+
+    private ProfileReport() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ProfileReport screen_width screen_height dump_file...");
+            System.exit(2);
+        }
+        int screenWidth = Integer.parseInt(args[0]);
+        int screenHeight = Integer.parseInt(args[1]);
+        int failures = 0;
+        for (int i = 2; i < args.length; i++) {
+            File dump = new File(args[i]);
+            FlatParameters parameters = new FlatParameters(
+                    new String(ImageFiles.read(dump), Charset.forName("UTF-8")));
+            System.out.println(dump.getName());
+            for (CameraProfile profile : CameraProfile.values()) {
+                try {
+                    CameraSettings settings = profile.select(parameters, screenWidth,
+                            screenHeight);
+                    System.out.println("  " + settings);
+                    if (settings.previewFormat == null) {
+                        System.out.println("  FAILED: no supported preview format");
+                        failures++;
+                    }
+                } catch (IllegalStateException e) {
+                    System.out.println("  " + profile + " FAILED: " + e.getMessage());
+                    failures++;
+                }
+            }
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.cache.EdgeMap;
+import android.google.com.basiccamera.imageprocessing.cache.ResultCache;
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays repeated views of stored pictures through the still pipeline of the app with and
+ * without the ResultCache. The pictures are viewed in a random order where few pictures are
+ * viewed often, like a user going back to the latest captures. A third pass opens the cache
+ * again, like the app after a restart, so only the disk tier is filled. It reports the time of
+ * every pass, the hit rates, the bytes held and the evictions, and checks that every cached map
+ * equals the computed one.
+ *
+ * Usage: ResultCacheReport [--size WxH] [--views N] [--memory KB] [--disk KB] [--cache DIR]
+ *        picture_dir
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class ResultCacheReport {
+
+    // the values of the StillProcessor of the app
+    private static final int SAMPLE_SIZE = 4;
+    private static final int ROTATION = 90;
+    // the popularity of the i-th picture is proportional to 1 / (i + 1)^ZIPF_EXPONENT
+    private static final double ZIPF_EXPONENT = 1;
+
+    private final File[] mFiles;
+    private final int mWidth;
+    private final int mHeight;
+    private final CannyKernel mKernel;
+
+    private ResultCacheReport(File[] files, int width, int height) {
+        mFiles = files;
+        mWidth = width;
+        mHeight = height;
+        mKernel = new CannyKernel();
+    }
+
+    /** Decodes, downsamples, rotates and detects the edges like StillProcessor.process */
+    private EdgeMap process(File file, byte[] content) throws IOException {
+        ImageFiles.GrayImage image = ImageFiles.decode(file, content, mWidth, mHeight);
+        int width = PlaneTransform.downsampledSize(image.width, SAMPLE_SIZE);
+        int height = PlaneTransform.downsampledSize(image.height, SAMPLE_SIZE);
+        byte[] scaled = new byte[width * height];
+        PlaneTransform.downsample(image.data, image.width, image.height, SAMPLE_SIZE, scaled);
+        byte[] rotated = new byte[scaled.length];
+        PlaneTransform.rotate(scaled, width, height, ROTATION, rotated);
+        byte[] edges = new byte[scaled.length];
+        mKernel.detect(rotated, height, width, edges);
+        return new EdgeMap(edges, height, width);
+    }
+
+    private static String configuration() {
+        return "canny " + CannyKernel.LOW_THRESHOLD + "/" + CannyKernel.HIGH_THRESHOLD
+                + " sample " + SAMPLE_SIZE + " rotation " + ROTATION;
+    }
+
+    /**
+     * Views the pictures in the given order.
+     * @param cache null to process every view
+     * @return the mismatches between cached and computed maps, which are checked after timing
+     */
+    private int replay(String name, int[] views, ResultCache cache) throws IOException {
+        List<EdgeMap> served = new ArrayList<>();
+        long begin = System.nanoTime();
+        for (int view : views) {
+            File file = mFiles[view];
+            byte[] content = ImageFiles.read(file);
+            EdgeMap map = null;
+            String key = null;
+            if (cache != null) {
+                key = ResultCache.key(content, 0, content.length, configuration());
+                map = cache.get(key);
+            }
+            if (map == null) {
+                map = process(file, content);
+                if (cache != null) {
+                    cache.put(key, map);
+                }
+            }
+            served.add(map);
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%-9s %d views in %.2f s (%.2f ms per view)%n", name, views.length,
+                seconds, 1000 * seconds / views.length);
+        if (cache == null) {
+            return 0;
+        }
+        System.out.println("          " + cache);
+        int mismatches = 0;
+        for (int i = 0; i < views.length; i++) {
+            File file = mFiles[views[i]];
+            EdgeMap expected = process(file, ImageFiles.read(file));
+            if (!Arrays.equals(expected.getEdges(), served.get(i).getEdges())) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    /** Draws views from a Zipf distribution over the pictures */
+    private static int[] drawViews(int pictureCount, int viewCount, long seed) {
+        double[] cumulative = new double[pictureCount];
+        double sum = 0;
+        for (int i = 0; i < pictureCount; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(seed);
+        int[] views = new int[viewCount];
+        for (int i = 0; i < viewCount; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            views[i] = Math.min(index < 0 ? -index - 1 : index, pictureCount - 1);
+        }
+        return views;
+    }
+
+    private static void deleteCache(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int width = 0;
+        int height = 0;
+        int viewCount = 500;
+        long memoryCapacity = 256 * 1024;
+        long diskCapacity = 1024 * 1024;
+        File cacheDirectory = null;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--views":
+                    viewCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--memory":
+                    memoryCapacity = Long.parseLong(args[++i]) * 1024;
+                    break;
+                case "--disk":
+                    diskCapacity = Long.parseLong(args[++i]) * 1024;
+                    break;
+                case "--cache":
+                    cacheDirectory = new File(args[++i]);
+                    break;
+                default:
+                    paths.add(args[i]);
+            }
+        }
+        File[] listed = paths.size() == 1 ? new File(paths.get(0)).listFiles() : null;
+        if (listed == null) {
+            System.err.println("Usage: ResultCacheReport [--size WxH] [--views N] [--memory KB] "
+                    + "[--disk KB] [--cache DIR] picture_dir");
+            System.exit(2);
+        }
+        List<File> pictures = new ArrayList<>();
+        for (File file : listed) {
+            if (file.isFile() && ImageFiles.isSupported(file)) {
+                pictures.add(file);
+            }
+        }
+        if (pictures.isEmpty()) {
+            System.err.println("No supported images found");
+            System.exit(1);
+        }
+        File[] files = pictures.toArray(new File[pictures.size()]);
+        Arrays.sort(files);
+        if (cacheDirectory == null) {
+            cacheDirectory = Files.createTempDirectory("result-cache").toFile();
+        }
+        deleteCache(cacheDirectory);
+
+        ResultCacheReport report = new ResultCacheReport(files, width, height);
+        int[] views = drawViews(files.length, viewCount, 1);
+        System.out.printf("%d pictures, %d views, memory tier %d KB, disk tier %d KB%n",
+                files.length, viewCount, memoryCapacity / 1024, diskCapacity / 1024);
+        report.replay("uncached", views, null);
+        int mismatches = report.replay("cached", views, new ResultCache(cacheDirectory,
+                memoryCapacity, diskCapacity, null));
+        mismatches += report.replay("restarted", drawViews(files.length, viewCount, 2),
+                new ResultCache(cacheDirectory, memoryCapacity, diskCapacity, null));
+        System.out.println("Cached maps differing from the computed ones: " + mismatches);
+        if (mismatches != 0) {
+            System.exit(1);
+        }
+    }
+}
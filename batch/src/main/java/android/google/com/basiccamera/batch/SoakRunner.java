@@ -0,0 +1,423 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.camera.Frame;
+import android.google.com.basiccamera.camera.FrameBus;
+import android.google.com.basiccamera.imageprocessing.memory.MemoryBudget;
+import android.google.com.basiccamera.imageprocessing.pool.EdgeDensityProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.FrameProcessor;
+import android.google.com.basiccamera.imageprocessing.pool.SharedWorkerPool;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeBackend;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeDetection;
+import android.google.com.basiccamera.imageprocessing.tuning.JavaEdgeDetection;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeats the pause/resume cycle of the live pipeline for a long time and fails if heap, native
+ * memory, thread count or latency keep growing. Every cycle runs the parts of the pipeline which
+ * do not need Android or OpenCV the way the app does: UIActivity.onResume starts a
+ * SharedWorkerPool, CameraManager allocates the preview buffers and publishes frames through a
+ * FrameBus, and TaskManager registers the task and a further processor as sessions of the pool.
+ * The task runs the Java backends of the CannyEdgeDetector, one after the other from cycle to
+ * cycle, and accounts its buffers in the MemoryBudget like the detector; the processor is an
+ * EdgeDensityProcessor. On pause the sessions are closed in the order of TaskManager.quitTask,
+ * the detection is closed and the pool is shut down like in UIActivity.onPause.
+ *
+ * After every cycle the preview buffers, the MemoryBudget of every category and the number of
+ * threads have to be back at their values before the first cycle, otherwise the cycle fails
+ * immediately. The frames are published at the pace of the task, the defaults publish a
+ * million frames.
+ *
+ * Usage: SoakRunner [--cycles N] [--frames-per-cycle N] [--size WxH] [--sample-every N]
+ *                   [--threads N]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class SoakRunner {
+
+    // same as CameraManager
+    private static final int FRAME_BUFFER_COUNT = 3;
+    // same as TaskManager
+    private static final int TASK_WEIGHT = 4;
+    private static final long QUIT_TIMEOUT_MS = 2000;
+    private static final long BUFFER_TIMEOUT_MS = 100;
+    // the processor works on a quarter of the resolution, like the analysis of further cameras
+    private static final int PROCESSOR_DOWNSAMPLING = 2;
+    // the first samples are ignored, the JIT and the heap are still settling
+    private static final int WARMUP_SAMPLES = 3;
+    private static final long PAGE_SIZE = 4096;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFramesPerCycle;
+    private final int mSampleEvery;
+    private final int mThreadCount;
+    private final EdgeBackend[] mBackends;
+    private final MemoryBudget mMemoryBudget;
+    private final LatencyStatistics mLatencies;
+    // latencies since the last sample
+    private final LatencyStatistics mWindowLatencies;
+    private final List<String> mFailures;
+    private final Series mHeap;
+    private final Series mDirect;
+    private final Series mResident;
+    private final Series mThreads;
+    private final Series mLatency;
+    private int mBaseThreadCount;
+    private long[] mBaseUsage;
+    private long mPublishedCount;
+    private long mProcessedCount;
+
+    /**
+     * The task of a cycle, which detects the edges of the Y plane with a Java backend. The
+     * buffers are allocated with the first frame and accounted like in CannyEdgeDetector.
+     */
+    private final class DetectorProcessor implements FrameProcessor {
+
+        private final EdgeDetection mDetection;
+        // a permit per processed frame, the camera waits for it
+        private final Semaphore mProcessed = new Semaphore(0);
+        private byte[] mEdges;
+        private long mBufferBytes;
+
+        DetectorProcessor(EdgeBackend backend) {
+            mDetection = new JavaEdgeDetection(backend);
+        }
+
+        @Override
+        public void process(Frame frame) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            if (mEdges == null) {
+                mEdges = new byte[width * height];
+                mDetection.allocate(width, height);
+                mBufferBytes = mEdges.length + mDetection.getBufferBytes();
+                mMemoryBudget.allocate(MemoryBudget.Category.WORK_BUFFERS, mBufferBytes);
+            }
+            long begin = System.nanoTime();
+            mDetection.detect(frame.getData(), width, height, mEdges);
+            long latency = System.nanoTime() - begin;
+            mLatencies.add(latency);
+            mWindowLatencies.add(latency);
+            mProcessed.release();
+        }
+
+        /** Frees the buffers and stops the threads of the detection, like CannyEdgeDetector */
+        void close() {
+            if (mEdges != null) {
+                mEdges = null;
+                mMemoryBudget.free(MemoryBudget.Category.WORK_BUFFERS, mBufferBytes);
+            }
+            mDetection.close();
+        }
+    }
+
+    /**
+     * @param width width of the synthetic preview frames
+     * @param height height of the synthetic preview frames
+     * @param framesPerCycle number of frames published between resume and pause
+     * @param sampleEvery number of cycles between two measurements
+     * @param threadCount threads of the pool
+     */
+    public SoakRunner(int width, int height, int framesPerCycle, int sampleEvery,
+            int threadCount) {
+        if (framesPerCycle < 1 || sampleEvery < 1) {
+            throw new IllegalArgumentException("At least one frame and cycle per sample");
+        }
+        mWidth = width;
+        mHeight = height;
+        mFramesPerCycle = framesPerCycle;
+        mSampleEvery = sampleEvery;
+        mThreadCount = threadCount;
+        mBackends = new EdgeBackend[]{EdgeBackend.JAVA, EdgeBackend.strips(2, 64),
+                EdgeBackend.COARSE_TO_FINE};
+        mMemoryBudget = MemoryBudget.get();
+        mLatencies = new LatencyStatistics();
+        mWindowLatencies = new LatencyStatistics();
+        mFailures = new ArrayList<>();
+        // growth allowed over the whole run before it counts as a leak
+        mHeap = new Series("heap", 4 << 20);
+        mDirect = new Series("direct buffers", 1 << 20);
+        mResident = new Series("resident set", 8 << 20);
+        mThreads = new Series("threads", 0.5);
+        mLatency = new Series("p99 latency", 5e6);
+    }
+
+    /**
+     * Runs the given number of cycles
+     * @return whether no cycle failed and no measured value kept growing
+     */
+    public boolean run(int cycles) throws InterruptedException {
+        mBaseThreadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+        mBaseUsage = getUsage();
+        for (int cycle = 1; cycle <= cycles; cycle++) {
+            String failure = runCycle(cycle);
+            if (failure != null) {
+                mFailures.add("Cycle " + cycle + ": " + failure);
+                // a broken cycle would only repeat the same failure
+                break;
+            }
+            if (cycle % mSampleEvery == 0) {
+                sample(cycle);
+            }
+        }
+        Series[] series = {mHeap, mDirect, mResident, mThreads, mLatency};
+        for (Series values : series) {
+            String trend = values.checkTrend();
+            if (trend != null) {
+                mFailures.add(trend);
+            }
+        }
+        System.out.println(mPublishedCount + " frames published, " + mProcessedCount
+                + " processed by the task");
+        System.out.println("Latency per frame: " + mLatencies.summary());
+        for (String failure : mFailures) {
+            System.out.println("FAILED " + failure);
+        }
+        return mFailures.isEmpty();
+    }
+
+    private long[] getUsage() {
+        MemoryBudget.Category[] categories = MemoryBudget.Category.values();
+        long[] usage = new long[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            usage[i] = mMemoryBudget.getUsage(categories[i]);
+        }
+        return usage;
+    }
+
+    /** @return the reason of the failure or null if the cycle released everything */
+    private String runCycle(int cycle) throws InterruptedException {
+        // resume: starts the pool and allocates the buffers the camera fills
+        SharedWorkerPool pool = new SharedWorkerPool("Soak-" + cycle, mThreadCount);
+        final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(FRAME_BUFFER_COUNT);
+        int bufferSize = mWidth * mHeight * 3 / 2;
+        for (int i = 0; i < FRAME_BUFFER_COUNT; i++) {
+            freeBuffers.add(new byte[bufferSize]);
+        }
+        FrameBus bus = new FrameBus(new FrameBus.BufferRecycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                freeBuffers.add(buffer);
+            }
+        });
+        EdgeBackend backend = mBackends[cycle % mBackends.length];
+        DetectorProcessor detector = new DetectorProcessor(backend);
+        SharedWorkerPool.Session taskSession = pool.register("task", bus, TASK_WEIGHT, detector);
+        SharedWorkerPool.Session processorSession = pool.register("density", bus, 1,
+                new EdgeDensityProcessor(PROCESSOR_DOWNSAMPLING));
+
+        // preview: the camera skips a frame if no buffer has been given back in time. It
+        // publishes at the pace of the task, so the task processes almost every frame.
+        for (int i = 0; i < mFramesPerCycle; i++) {
+            byte[] buffer = freeBuffers.poll(BUFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (buffer != null) {
+                fill(buffer, cycle * mFramesPerCycle + i);
+                bus.publish(buffer, mWidth, mHeight);
+                mPublishedCount++;
+                detector.mProcessed.tryAcquire(BUFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // pause: same order as TaskManager.quitTask and UIActivity.onPause
+        taskSession.close();
+        processorSession.close();
+        mProcessedCount += taskSession.getProcessedCount();
+        detector.close();
+        if (!pool.shutdown(QUIT_TIMEOUT_MS)) {
+            return "the pool did not finish within " + QUIT_TIMEOUT_MS + " ms with " + backend;
+        }
+        if (freeBuffers.size() != FRAME_BUFFER_COUNT) {
+            return (FRAME_BUFFER_COUNT - freeBuffers.size()) + " of " + FRAME_BUFFER_COUNT
+                    + " preview buffers were not given back with " + backend;
+        }
+        long[] usage = getUsage();
+        for (int i = 0; i < usage.length; i++) {
+            if (usage[i] != mBaseUsage[i]) {
+                return String.format("%d bytes of %s are still accounted with %s",
+                        usage[i] - mBaseUsage[i], MemoryBudget.Category.values()[i], backend);
+            }
+        }
+        // the threads of a shut down executor end shortly after the detection is closed
+        long deadline = System.currentTimeMillis() + QUIT_TIMEOUT_MS;
+        int threads;
+        while ((threads = ManagementFactory.getThreadMXBean().getThreadCount())
+                > mBaseThreadCount) {
+            if (System.currentTimeMillis() > deadline) {
+                return (threads - mBaseThreadCount) + " threads are still running after "
+                        + backend;
+            }
+            Thread.sleep(1);
+        }
+        return null;
+    }
+
+    /** Writes a moving gradient with a bright square into the luminance plane */
+    private void fill(byte[] buffer, int frameIndex) {
+        int shift = frameIndex % mWidth;
+        for (int y = 0; y < mHeight; y++) {
+            int row = y * mWidth;
+            for (int x = 0; x < mWidth; x++) {
+                buffer[row + x] = (byte) ((x + shift) & 0x7f);
+            }
+        }
+        int size = Math.min(mWidth, mHeight) / 4;
+        int left = (shift + mWidth / 2) % (mWidth - size);
+        for (int y = mHeight / 2 - size / 2; y < mHeight / 2 + size / 2; y++) {
+            for (int x = left; x < left + size; x++) {
+                buffer[y * mWidth + x] = (byte) 0xf0;
+            }
+        }
+    }
+
+    private void sample(int cycle) {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            direct += pool.getMemoryUsed();
+        }
+        long resident = readResidentSetSize();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long p99 = mWindowLatencies.getPercentile(99);
+        mWindowLatencies.clear();
+
+        mHeap.add(cycle, heap);
+        mDirect.add(cycle, direct);
+        if (resident >= 0) {
+            mResident.add(cycle, resident);
+        }
+        mThreads.add(cycle, threads);
+        mLatency.add(cycle, p99);
+        System.out.println(String.format("cycle %6d  heap %7.1f MB  direct %6.1f MB  rss %7.1f MB"
+                        + "  threads %3d (%+d)  p99 %6.2f ms", cycle, heap / 1e6, direct / 1e6,
+                resident / 1e6, threads, threads - mBaseThreadCount, p99 / 1e6));
+    }
+
+    /** @return the resident set size of this process in bytes or -1 if it is unknown */
+    private static long readResidentSetSize() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/statm"))) {
+            String[] fields = reader.readLine().trim().split("\\s+");
+            return Long.parseLong(fields[1]) * PAGE_SIZE;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Measurements of one value over the run. A leak shows up as a growth of the least squares
+     * line through the samples which is larger than the tolerance over the whole run. Single
+     * spikes, as caused by the garbage collector, hardly move the line.
+     */
+    private static final class Series {
+
+        private final String mName;
+        private final double mTolerance;
+        private final List<double[]> mSamples;
+
+        Series(String name, double tolerance) {
+            mName = name;
+            mTolerance = tolerance;
+            mSamples = new ArrayList<>();
+        }
+
+        void add(int cycle, double value) {
+            mSamples.add(new double[] {cycle, value});
+        }
+
+        /** @return a description of the growth or null if the value is stable */
+        String checkTrend() {
+            List<double[]> samples = mSamples.subList(Math.min(WARMUP_SAMPLES, mSamples.size()),
+                    mSamples.size());
+            int n = samples.size();
+            if (n < 3) {
+                return null;
+            }
+            double meanX = 0;
+            double meanY = 0;
+            for (double[] sample : samples) {
+                meanX += sample[0] / n;
+                meanY += sample[1] / n;
+            }
+            double covariance = 0;
+            double variance = 0;
+            for (double[] sample : samples) {
+                covariance += (sample[0] - meanX) * (sample[1] - meanY);
+                variance += (sample[0] - meanX) * (sample[0] - meanX);
+            }
+            double slope = covariance / variance;
+            double growth = slope * (samples.get(n - 1)[0] - samples.get(0)[0]);
+            if (growth <= mTolerance) {
+                return null;
+            }
+            return String.format("%s grows by %.4g per cycle (%.4g over %d samples, tolerance "
+                    + "%.4g)", mName, slope, growth, n, mTolerance);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int cycles = 10000;
+        int framesPerCycle = 100;
+        int sampleEvery = 200;
+        int width = 320;
+        int height = 240;
+        // same as UIActivity
+        int threads = 2;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles":
+                    cycles = Integer.parseInt(args[++i]);
+                    break;
+                case "--frames-per-cycle":
+                    framesPerCycle = Integer.parseInt(args[++i]);
+                    break;
+                case "--sample-every":
+                    sampleEvery = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: SoakRunner [--cycles N] [--frames-per-cycle N] "
+                            + "[--size WxH] [--sample-every N] [--threads N]");
+                    System.exit(2);
+            }
+        }
+        SoakRunner runner = new SoakRunner(width, height, framesPerCycle, sampleEvery,
+                threads);
+        System.exit(runner.run(cycles) ? 0 : 1);
+    }
+}
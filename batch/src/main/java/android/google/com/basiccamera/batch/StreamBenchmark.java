@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.PackedMask;
+import android.google.com.basiccamera.imageprocessing.pool.LatencyHistogram;
+import android.google.com.basiccamera.imageprocessing.stream.EdgeStreamClient;
+import android.google.com.basiccamera.imageprocessing.stream.EdgeStreamPublisher;
+import android.google.com.basiccamera.imageprocessing.stream.StreamFormat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams edge maps over the loopback address from an EdgeStreamPublisher to EdgeStreamClients
+ * in other threads, the fast clients reading as fast as they can and one slow client sleeping
+ * after every map. The maps are a few synthetic edge maps in turn, so every client checks that
+ * each map it reads is the one of its sequence and that the sequences increase. Reported are the
+ * maps and bytes per second every client read, the maps dropped for it, the latency from
+ * publishing to reading and the time publish() took, which must stay short even for the slow
+ * client.
+ *
+ * Usage: StreamBenchmark [--size WxH] [--seconds S] [--clients N] [--slow-ms MS] [--fps F]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class StreamBenchmark {
+
+    private static final int MAP_COUNT = 8;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+
+    private StreamBenchmark() {}
+
+    private static final class Reader extends Thread {
+
+        final String mName;
+        final EdgeStreamClient mClient;
+        final PackedMask[] mMaps;
+        final long mSleepMs;
+        final LatencyHistogram mLatency = new LatencyHistogram();
+        long mGaps;
+        long mStart;
+        long mEnd;
+        String mError;
+
+        Reader(String name, InetSocketAddress address, PackedMask[] maps, long sleepMs)
+                throws IOException {
+            mName = name;
+            mClient = new EdgeStreamClient(address);
+            mMaps = maps;
+            mSleepMs = sleepMs;
+        }
+
+        @Override
+        public void run() {
+            long last = -1;
+            mStart = System.nanoTime();
+            try {
+                while (mClient.read()) {
+                    mLatency.add(System.nanoTime() - mClient.getTimestamp());
+                    long sequence = mClient.getSequence();
+                    if (sequence <= last) {
+                        mError = "sequence " + sequence + " after " + last;
+                        break;
+                    }
+                    if (!mClient.getMask().sameAs(mMaps[(int) (sequence % mMaps.length)])) {
+                        mError = "map " + sequence + " differs";
+                        break;
+                    }
+                    mGaps += sequence - last - 1;
+                    last = sequence;
+                    if (mSleepMs > 0) {
+                        Thread.sleep(mSleepMs);
+                    }
+                }
+            } catch (IOException e) {
+                mError = e.toString();
+            } catch (InterruptedException e) {
+                mError = "interrupted";
+            } finally {
+                mEnd = System.nanoTime();
+                try {
+                    mClient.close();
+                } catch (IOException e) {
+                    // closed anyway
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int width = 640;
+        int height = 480;
+        double seconds = 5;
+        int clients = 2;
+        long slowMs = 50;
+        double fps = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--seconds":
+                    seconds = Double.parseDouble(args[++i]);
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--slow-ms":
+                    slowMs = Long.parseLong(args[++i]);
+                    break;
+                case "--fps":
+                    fps = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: StreamBenchmark [--size WxH] [--seconds S] "
+                            + "[--clients N] [--slow-ms MS] [--fps F]");
+                    System.exit(2);
+            }
+        }
+        byte[][] edges = new byte[MAP_COUNT][];
+        PackedMask[] maps = new PackedMask[MAP_COUNT];
+        for (int map = 0; map < MAP_COUNT; map++) {
+            edges[map] = MorphologyBenchmark.edges(width, height, map);
+            maps[map] = new PackedMask(width, height);
+            maps[map].pack(edges[map]);
+        }
+
+        EdgeStreamPublisher publisher = new EdgeStreamPublisher(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                publisher.getPort());
+        List<Reader> readers = new ArrayList<>();
+        for (int client = 0; client < clients; client++) {
+            readers.add(new Reader("fast " + client, address, maps, 0));
+        }
+        if (slowMs > 0) {
+            readers.add(new Reader("slow " + slowMs + "ms", address, maps, slowMs));
+        }
+        long connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (publisher.getClientCount() < readers.size()) {
+            if (System.currentTimeMillis() > connectDeadline) {
+                System.err.println("Only " + publisher.getClientCount() + " clients connected");
+                System.exit(1);
+            }
+            Thread.sleep(1);
+        }
+        for (Reader reader : readers) {
+            reader.start();
+        }
+
+        // the maps are published as bytes like by the detector, so publish() includes packing
+        long intervalNanos = fps > 0 ? (long) (1e9 / fps) : 0;
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        long maxPublish = 0;
+        long totalPublish = 0;
+        long sequence = 0;
+        long next = start;
+        while (System.nanoTime() < end) {
+            if (intervalNanos > 0) {
+                while (System.nanoTime() < next) {
+                    Thread.sleep(0, 100000);
+                }
+                next += intervalNanos;
+            }
+            long before = System.nanoTime();
+            publisher.publish(sequence, before, edges[(int) (sequence % MAP_COUNT)], width,
+                    height);
+            long took = System.nanoTime() - before;
+            maxPublish = Math.max(maxPublish, took);
+            totalPublish += took;
+            sequence++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        publisher.close();
+        for (Reader reader : readers) {
+            reader.join();
+        }
+
+        int mapBytes = StreamFormat.HEADER_SIZE + StreamFormat.payloadSize(width, height);
+        System.out.printf("%dx%d, %d bytes per map, %d published in %.1f s (%.0f/s), "
+                        + "%d dropped without a free buffer%n", width, height, mapBytes,
+                publisher.getPublishedCount(), elapsed, publisher.getPublishedCount() / elapsed,
+                publisher.getDroppedCount());
+        System.out.printf("publish() mean %.1f us, max %.2f ms%n",
+                totalPublish / 1e3 / Math.max(sequence, 1), maxPublish / 1e6);
+        System.out.println(String.format("%-12s %8s %8s %9s %8s  %s", "client", "maps",
+                "maps/s", "MB/s", "dropped", "latency"));
+        boolean failed = false;
+        for (Reader reader : readers) {
+            long count = reader.mClient.getCount();
+            double readSeconds = (reader.mEnd - reader.mStart) / 1e9;
+            System.out.println(String.format("%-12s %8d %8.0f %9.1f %8d  %s", reader.mName,
+                    count, count / readSeconds, count * (double) mapBytes / readSeconds / 1e6,
+                    reader.mGaps, reader.mLatency));
+            if (reader.mError != null) {
+                System.out.println("  failed: " + reader.mError);
+                failed = true;
+            }
+        }
+        System.out.println(publisher);
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.KeyframeScheduler;
+import android.google.com.basiccamera.imageprocessing.kernel.SparseOpticalFlow;
+import android.google.com.basiccamera.imageprocessing.kernel.TrackedPoints;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the keyframe mode of the edge detection against the full edge detection on every
+ * frame of a recorded sequence. Reports the CPU time of both and how well the edge maps of the
+ * tracked frames match the full edge detection of the same frames: the precision is the fraction
+ * of tracked edge pixels near a detected edge, the recall the fraction of detected edge pixels
+ * near a tracked edge.
+ *
+ * The frames of the sequence are the supported images of a directory in name order, all of the
+ * same size, e.g. NV21 dumps named like "frame_0001_640x480.nv21".
+ *
+ * Usage: TrackingReport [--max-points N] [--size WxH] sequence_dir
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class TrackingReport {
+
+    // the same as the live pipeline
+    private static final int DEFAULT_MAX_POINTS = 200;
+    // distance in pixels up to which a tracked point counts as on the edge
+    private static final int TOLERANCE = 1;
+
+    private final CannyKernel mBaselineKernel;
+    private final CannyKernel mKeyframeKernel;
+    private final SparseOpticalFlow mFlow;
+    private final KeyframeScheduler mScheduler;
+    private final TrackedPoints mPoints;
+    private final ThreadMXBean mThreads;
+    private byte[] mBaselineEdges;
+    private byte[] mEdges;
+    private long mBaselineCpuTime;
+    private long mTrackingCpuTime;
+    private int mFrameCount;
+    private int mMeasuredCount;
+    private double mPrecisionSum;
+    private double mRecallSum;
+    private double mMinPrecision;
+    private double mMinRecall;
+
+    public TrackingReport(int maxPoints) {
+        mBaselineKernel = new CannyKernel();
+        mKeyframeKernel = new CannyKernel();
+        mFlow = new SparseOpticalFlow();
+        mScheduler = new KeyframeScheduler();
+        mPoints = new TrackedPoints(maxPoints);
+        mThreads = ManagementFactory.getThreadMXBean();
+        mMinPrecision = 1;
+        mMinRecall = 1;
+    }
+
+    /** Processes the next frame of the sequence in both modes */
+    public void process(byte[] gray, int width, int height) {
+        if (mEdges == null || mEdges.length != width * height) {
+            mBaselineEdges = new byte[width * height];
+            mEdges = new byte[width * height];
+            mScheduler.reset();
+            mFlow.reset();
+        }
+        mFrameCount++;
+
+        long begin = mThreads.getCurrentThreadCpuTime();
+        mBaselineKernel.detect(gray, width, height, mBaselineEdges);
+        long end = mThreads.getCurrentThreadCpuTime();
+        mBaselineCpuTime += end - begin;
+
+        // the same decisions as CannyEdgeDetector.detectEdges
+        begin = end;
+        boolean tracked = false;
+        if (mFlow.push(gray, width, height) && !mScheduler.isKeyframeDue()
+                && mPoints.getCount() > 0) {
+            mFlow.track(mPoints.getPoints(), mPoints.getCount(), mPoints.getNext(),
+                    mPoints.getStatus());
+            mPoints.update(width, height);
+            tracked = mScheduler.onTracked(mPoints.getConfidence(), mPoints.getMotion());
+            if (tracked) {
+                mPoints.render(mEdges, width, height);
+            }
+        }
+        if (!tracked) {
+            mKeyframeKernel.detect(gray, width, height, mEdges);
+            mPoints.sampleEdges(mEdges, width, height);
+            mScheduler.onKeyframe();
+        }
+        mTrackingCpuTime += mThreads.getCurrentThreadCpuTime() - begin;
+
+        if (tracked) {
+            double precision = match(mEdges, mBaselineEdges, width, height);
+            double recall = match(mBaselineEdges, mEdges, width, height);
+            mPrecisionSum += precision;
+            mRecallSum += recall;
+            mMinPrecision = Math.min(mMinPrecision, precision);
+            mMinRecall = Math.min(mMinRecall, recall);
+            mMeasuredCount++;
+        }
+    }
+
+    /** @return the fraction of edge pixels of the first map near an edge pixel of the second */
+    private static double match(byte[] edges, byte[] reference, int width, int height) {
+        int count = 0;
+        int hits = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (edges[y * width + x] == CannyKernel.NO_EDGE) {
+                    continue;
+                }
+                count++;
+                search:
+                for (int dy = Math.max(-TOLERANCE, -y); dy <= TOLERANCE && y + dy < height;
+                        dy++) {
+                    for (int dx = Math.max(-TOLERANCE, -x); dx <= TOLERANCE && x + dx < width;
+                            dx++) {
+                        if (reference[(y + dy) * width + x + dx] != CannyKernel.NO_EDGE) {
+                            hits++;
+                            break search;
+                        }
+                    }
+                }
+            }
+        }
+        return count == 0 ? 1 : hits / (double) count;
+    }
+
+    public String summary() {
+        double saved = mBaselineCpuTime == 0 ? 0
+                : 1 - mTrackingCpuTime / (double) mBaselineCpuTime;
+        int measured = Math.max(mMeasuredCount, 1);
+        return String.format("%d frames, %s%nCPU time: full %.1f ms, keyframes %.1f ms, saved "
+                        + "%.1f%%%nTracked frames within %d px: precision mean %.1f%% min %.1f%%, "
+                        + "recall mean %.1f%% min %.1f%%", mFrameCount, mScheduler,
+                mBaselineCpuTime / 1e6, mTrackingCpuTime / 1e6, 100 * saved, TOLERANCE,
+                100 * mPrecisionSum / measured, 100 * mMinPrecision, 100 * mRecallSum / measured,
+                100 * mMinRecall);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxPoints = DEFAULT_MAX_POINTS;
+        int width = 0;
+        int height = 0;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--max-points":
+                    maxPoints = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                default:
+                    paths.add(args[i]);
+            }
+        }
+        File[] files = paths.size() == 1 ? new File(paths.get(0)).listFiles() : null;
+        if (files == null) {
+            System.err.println("Usage: TrackingReport [--max-points N] [--size WxH] sequence_dir");
+            System.exit(2);
+        }
+        Arrays.sort(files);
+        TrackingReport report = new TrackingReport(maxPoints);
+        for (File file : files) {
+            if (file.isFile() && ImageFiles.isSupported(file)) {
+                ImageFiles.GrayImage image = ImageFiles.decode(file, ImageFiles.read(file), width,
+                        height);
+                report.process(image.data, image.width, image.height);
+            }
+        }
+        System.out.println(report.summary());
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the cache blocked transpose and rotation of PlaneTransform with a naive transpose
+ * which writes the target column by column. Every variant is warmed up before it is measured,
+ * the median of the measured runs is reported. The result of each variant is checked against
+ * the naive one.
+ *
+ * Usage: TransposeBenchmark [--size WxH] [--runs N]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class TransposeBenchmark {
+
+    private static final int WARMUP_RUNS = 50;
+
+    private interface Variant {
+        void run(byte[] source, int width, int height, byte[] target);
+    }
+
+    private TransposeBenchmark() {}
+
+    static void transposeNaive(byte[] source, int width, int height, byte[] target) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                target[x * height + y] = source[y * width + x];
+            }
+        }
+    }
+
+    /** @return the median time of a run in nanoseconds */
+    private static long measure(Variant variant, byte[] source, int width, int height,
+            byte[] target, int runs) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            variant.run(source, width, height, target);
+        }
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long begin = System.nanoTime();
+            variant.run(source, width, height, target);
+            times[i] = System.nanoTime() - begin;
+        }
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+
+    public static void main(String[] args) {
+        int width = 1920;
+        int height = 1080;
+        int runs = 200;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: TransposeBenchmark [--size WxH] [--runs N]");
+                    System.exit(2);
+            }
+        }
+
+        byte[] source = new byte[width * height];
+        new Random(1).nextBytes(source);
+        byte[] expected = new byte[width * height];
+        byte[] target = new byte[width * height];
+        transposeNaive(source, width, height, expected);
+
+        String[] names = {"naive transpose", "blocked transpose", "blocked rotate 90",
+                "2x downsample", "4x downsample"};
+        Variant[] variants = {
+                new Variant() {
+                    @Override
+                    public void run(byte[] source, int width, int height, byte[] target) {
+                        transposeNaive(source, width, height, target);
+                    }
+                },
+                new Variant() {
+                    @Override
+                    public void run(byte[] source, int width, int height, byte[] target) {
+                        PlaneTransform.transpose(source, width, height, target);
+                    }
+                },
+                new Variant() {
+                    @Override
+                    public void run(byte[] source, int width, int height, byte[] target) {
+                        PlaneTransform.rotate(source, width, height, 90, target);
+                    }
+                },
+                new Variant() {
+                    @Override
+                    public void run(byte[] source, int width, int height, byte[] target) {
+                        PlaneTransform.downsample(source, width, height, 2, target);
+                    }
+                },
+                new Variant() {
+                    @Override
+                    public void run(byte[] source, int width, int height, byte[] target) {
+                        PlaneTransform.downsample(source, width, height, 4, target);
+                    }
+                }
+        };
+
+        PlaneTransform.transpose(source, width, height, target);
+        if (!Arrays.equals(expected, target)) {
+            throw new AssertionError("Blocked transpose differs from the naive one");
+        }
+        System.out.println(String.format("%dx%d, median of %d runs", width, height, runs));
+        long naive = 0;
+        for (int i = 0; i < variants.length; i++) {
+            long time = measure(variants[i], source, width, height, target, runs);
+            if (i == 0) {
+                naive = time;
+            }
+            System.out.println(String.format("%-18s %7.3f ms  %5.2fx", names[i], time / 1e6,
+                    naive / (double) time));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.tuning.BackendTuner;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeBackend;
+import android.google.com.basiccamera.imageprocessing.tuning.EdgeDetection;
+import android.google.com.basiccamera.imageprocessing.tuning.JavaEdgeDetection;
+import android.google.com.basiccamera.imageprocessing.tuning.TuningResult;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the tuning of the edge backends on this JVM, or compares the tunings exported by devices.
+ *
+ * With --size the pure Java backends are tuned like on a device, at the given processing
+ * resolution, and the result is printed and optionally exported as CSV. Otherwise the CSV files
+ * of the given files and directories, e.g. pulled from tuning/ in the external files dir of
+ * several devices, are read and the time of every backend relative to the winner is printed
+ * per device and resolution.
+ *
+ * Usage: TuningReport --size WxH [--budget-ms N] [--cores N] [--export file.csv]
+ *        TuningReport file_or_dir...
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class TuningReport {
+
+    private static void print(TuningResult result) {
+        System.out.printf("%s %dx%d: winner %s%n", result.getDevice(), result.getWidth(),
+                result.getHeight(), result.getWinner());
+        long winner = 0;
+        for (TuningResult.Entry entry : result.getEntries()) {
+            if (entry.backend.equals(result.getWinner())) {
+                winner = entry.medianNanos;
+            }
+        }
+        for (TuningResult.Entry entry : result.getEntries()) {
+            if (entry.failure != null) {
+                System.out.printf(Locale.US, "  %-20s %s%n", entry.backend, entry.failure);
+                continue;
+            }
+            System.out.printf(Locale.US,
+                    "  %-20s %4d runs  median %8.2fms  min %8.2fms  x%.2f  differs %.3f%%%n",
+                    entry.backend, entry.runs, entry.medianNanos / 1e6, entry.minNanos / 1e6,
+                    winner == 0 ? 0 : entry.medianNanos / (double) winner,
+                    100 * entry.difference);
+        }
+    }
+
+    private static void read(File file, List<TuningResult> results) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File child : files) {
+                    if (child.getName().endsWith(".csv")) {
+                        read(child, results);
+                    }
+                }
+            }
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            results.addAll(TuningResult.readCsv(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int width = 0;
+        int height = 0;
+        long budgetNanos = BackendTuner.DEFAULT_BUDGET_NANOS;
+        int cores = Runtime.getRuntime().availableProcessors();
+        File export = null;
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--budget-ms":
+                    budgetNanos = Long.parseLong(args[++i]) * 1000000L;
+                    break;
+                case "--cores":
+                    cores = Integer.parseInt(args[++i]);
+                    break;
+                case "--export":
+                    export = new File(args[++i]);
+                    break;
+                default:
+                    inputs.add(new File(args[i]));
+            }
+        }
+        if ((width == 0) == inputs.isEmpty()) {
+            System.err.println("Usage: TuningReport --size WxH [--budget-ms N] [--cores N] "
+                    + "[--export file.csv]");
+            System.err.println("       TuningReport file_or_dir...");
+            System.exit(2);
+        }
+        if (width == 0) {
+            List<TuningResult> results = new ArrayList<>();
+            for (File input : inputs) {
+                read(input, results);
+            }
+            if (results.isEmpty()) {
+                System.err.println("No tuning results found");
+                System.exit(1);
+            }
+            for (TuningResult result : results) {
+                print(result);
+            }
+            return;
+        }
+
+        BackendTuner tuner = new BackendTuner(new BackendTuner.Factory() {
+            @Override
+            public EdgeDetection create(EdgeBackend backend) {
+                return new JavaEdgeDetection(backend);
+            }
+        }, budgetNanos);
+        String device = "JVM " + System.getProperty("os.name") + " "
+                + System.getProperty("os.arch") + " " + cores + " cores";
+        long begin = System.nanoTime();
+        TuningResult result = tuner.tune(device, width, height,
+                EdgeBackend.getCandidates(false, cores));
+        System.out.printf(Locale.US, "Tuned in %.2f s%n", (System.nanoTime() - begin) / 1e9);
+        print(result);
+        if (export != null) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(export), "UTF-8");
+            try {
+                writer.write(TuningResult.CSV_HEADER + "\n");
+                writer.write(result.toCsv());
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
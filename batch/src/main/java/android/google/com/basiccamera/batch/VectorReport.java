@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2016 Alexander Goscinski
+ *
+ * Licensed under the BSD 3-Clause License:
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.google.com.basiccamera.batch;
+
+import android.google.com.basiccamera.imageprocessing.kernel.CannyKernel;
+import android.google.com.basiccamera.imageprocessing.kernel.ContourVectorizer;
+import android.google.com.basiccamera.imageprocessing.kernel.LineSegments;
+import android.google.com.basiccamera.imageprocessing.kernel.PlaneTransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the vector results of the edge detector with the raster results on stored frames. For
+ * every frame the edges are detected like in the app, vectorized by the ContourVectorizer and
+ * drawn again. It reports the number of segments, the size of the result against the ARGB
+ * bitmap of the raster result, the CPU time of the vectorization and how many edge pixels lie
+ * within one pixel of the drawn segments. With an output directory the drawn segments are
+ * written as PNG.
+ *
+ * Usage: VectorReport [--size WxH] [--downsampling N] [--epsilon E] sequence_dir [output_dir]
+ *
+ * @author alexander.goscinski@posteo.de (Alexander Goscinski)
+ */
+
+public final class VectorReport {
+
+    // the ARGB bitmap of a raster result
+    private static final int BITMAP_BYTES_PER_PIXEL = 4;
+    // x0, y0, x1, y1 as float
+    private static final int SEGMENT_BYTES = 16;
+
+    /** Draws the segments into a mask with Bresenham's algorithm */
+    private static void draw(LineSegments segments, byte[] mask) {
+        Arrays.fill(mask, (byte) 0);
+        int width = segments.getWidth();
+        int height = segments.getHeight();
+        float[] coordinates = segments.getCoordinates();
+        for (int i = 0; i < 4 * segments.getCount(); i += 4) {
+            int x0 = (int) coordinates[i];
+            int y0 = (int) coordinates[i + 1];
+            int x1 = (int) coordinates[i + 2];
+            int y1 = (int) coordinates[i + 3];
+            int dx = Math.abs(x1 - x0);
+            int dy = -Math.abs(y1 - y0);
+            int stepX = x0 < x1 ? 1 : -1;
+            int stepY = y0 < y1 ? 1 : -1;
+            int error = dx + dy;
+            while (true) {
+                if (x0 >= 0 && y0 >= 0 && x0 < width && y0 < height) {
+                    mask[y0 * width + x0] = CannyKernel.EDGE;
+                }
+                if (x0 == x1 && y0 == y1) {
+                    break;
+                }
+                int doubled = 2 * error;
+                if (doubled >= dy) {
+                    error += dy;
+                    x0 += stepX;
+                }
+                if (doubled <= dx) {
+                    error += dx;
+                    y0 += stepY;
+                }
+            }
+        }
+    }
+
+    /** @return the fraction of edge pixels with a drawn pixel within one pixel */
+    private static double coverage(byte[] edges, byte[] drawn, int width, int height) {
+        int edgeCount = 0;
+        int covered = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (edges[y * width + x] == 0) {
+                    continue;
+                }
+                edgeCount++;
+                search:
+                for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                    for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+                        if (drawn[ny * width + nx] != 0) {
+                            covered++;
+                            break search;
+                        }
+                    }
+                }
+            }
+        }
+        return edgeCount == 0 ? 1 : covered / (double) edgeCount;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int width = 0;
+        int height = 0;
+        int downsampling = 2;
+        float epsilon = ContourVectorizer.DEFAULT_EPSILON;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--downsampling":
+                    downsampling = Integer.parseInt(args[++i]);
+                    break;
+                case "--epsilon":
+                    epsilon = Float.parseFloat(args[++i]);
+                    break;
+                default:
+                    paths.add(args[i]);
+            }
+        }
+        File[] files = paths.size() == 1 || paths.size() == 2
+                ? new File(paths.get(0)).listFiles() : null;
+        if (files == null) {
+            System.err.println("Usage: VectorReport [--size WxH] [--downsampling N] "
+                    + "[--epsilon E] sequence_dir [output_dir]");
+            System.exit(2);
+        }
+        Arrays.sort(files);
+        File output = paths.size() == 2 ? new File(paths.get(1)) : null;
+        if (output != null && !output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Could not create " + output);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        CannyKernel kernel = new CannyKernel();
+        ContourVectorizer vectorizer = new ContourVectorizer(epsilon,
+                ContourVectorizer.DEFAULT_MIN_CHAIN_LENGTH);
+        LineSegments segments = new LineSegments();
+        LatencyStatistics cpuTimes = new LatencyStatistics();
+        int frameCount = 0;
+        long segmentSum = 0;
+        int maxSegments = 0;
+        int truncated = 0;
+        long rasterBytes = 0;
+        double coverageSum = 0;
+        double minCoverage = 1;
+        for (File file : files) {
+            if (!file.isFile() || !ImageFiles.isSupported(file)) {
+                continue;
+            }
+            ImageFiles.GrayImage image = ImageFiles.decode(file, ImageFiles.read(file), width,
+                    height);
+            int scaledWidth = PlaneTransform.downsampledSize(image.width, downsampling);
+            int scaledHeight = PlaneTransform.downsampledSize(image.height, downsampling);
+            byte[] scaled = new byte[scaledWidth * scaledHeight];
+            PlaneTransform.downsample(image.data, image.width, image.height, downsampling, scaled);
+            byte[] edges = new byte[scaled.length];
+            kernel.detect(scaled, scaledWidth, scaledHeight, edges);
+
+            long begin = threads.getCurrentThreadCpuTime();
+            vectorizer.vectorize(edges, scaledWidth, scaledHeight, segments);
+            cpuTimes.add(threads.getCurrentThreadCpuTime() - begin);
+
+            byte[] drawn = new byte[edges.length];
+            draw(segments, drawn);
+            double frameCoverage = coverage(edges, drawn, scaledWidth, scaledHeight);
+            coverageSum += frameCoverage;
+            minCoverage = Math.min(minCoverage, frameCoverage);
+            segmentSum += segments.getCount();
+            maxSegments = Math.max(maxSegments, segments.getCount());
+            truncated += segments.isTruncated() ? 1 : 0;
+            rasterBytes = (long) scaledWidth * scaledHeight * BITMAP_BYTES_PER_PIXEL;
+            if (output != null) {
+                String name = file.getName();
+                int dot = name.lastIndexOf('.');
+                ImageFiles.writeMask(new File(output, (dot > 0 ? name.substring(0, dot) : name)
+                        + "_segments.png"), drawn, scaledWidth, scaledHeight);
+            }
+            frameCount++;
+        }
+        if (frameCount == 0) {
+            System.err.println("No supported images found");
+            System.exit(1);
+        }
+        double meanSegments = segmentSum / (double) frameCount;
+        System.out.printf("%d frames: segments mean %.0f max %d, truncated %d frames%n",
+                frameCount, meanSegments, maxSegments, truncated);
+        System.out.printf("Result size mean %.1f KB instead of %.1f KB raster%n",
+                meanSegments * SEGMENT_BYTES / 1024, rasterBytes / 1024.0);
+        System.out.println("Vectorization CPU time " + cpuTimes.summary());
+        System.out.printf("Edge pixels within 1 px of the segments: mean %.1f%% min %.1f%%%n",
+                100 * coverageSum / frameCount, 100 * minCoverage);
+    }
+}